@@ -20,6 +20,7 @@ import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 @SuppressWarnings("unchecked")
 public class Element {
@@ -180,4 +181,40 @@ public class Element {
     {
         return new Element(value, size);
     }
+
+    // The helpers below compute the encoded size themselves, for callers building messages by hand.
+    public static Element wrap (final long value)
+    {
+        return wrap(value, String.valueOf(value).length() + 2);
+    }
+
+    public static Element wrap (final byte[] value)
+    {
+        return wrap(value, String.valueOf(value.length).length() + 1 + value.length);
+    }
+
+    public static Element wrap (final String value)
+    {
+        return wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static Element wrap (final List<Element> list)
+    {
+        int size = 2;
+        for (var element : list)
+            size += element.size();
+        return wrap(list, size);
+    }
+
+    public static Element wrap (final Map<String, Element> map)
+    {
+        // Keys must appear in sorted order on the wire.
+        var sorted = new TreeMap<>(map);
+        int size = 2;
+        for (var entry : sorted.entrySet()) {
+            var key_length = entry.getKey().length();
+            size += String.valueOf(key_length).length() + 1 + key_length + entry.getValue().size();
+        }
+        return wrap(sorted, size);
+    }
 }
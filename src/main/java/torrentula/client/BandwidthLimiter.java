@@ -0,0 +1,201 @@
+package torrentula.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Hierarchical token bucket: a session-wide root, a child per torrent and a grandchild per peer, one tree for
+// each direction. A grant has to come out of every bucket on the path to the root, so the tightest limit wins.
+//
+// Buckets are refilled lazily by whichever caller notices time has passed, and tokens are handed out with a CAS
+// per level: there is no lock, and callers ask for a whole read or write worth of bytes at once rather than
+// per packet. A single grant from a bucket is capped at its burst divided among the children that took tokens
+// in the last second or so, so one busy peer can't drain a shared bucket in one go while idle peers don't hold
+// back a share they'll never use; whatever slower or capped children leave behind stays in the bucket for the
+// others.
+public class BandwidthLimiter {
+    public static final long UNLIMITED = 0;
+    // Bucket depth in milliseconds of rate, and never less than a full block plus its header.
+    static final long BURST_MILLIS = 100;
+    static final long MIN_BURST = 16 * 1024 + 13;
+    static final long MIN_GRANT = 1460;
+    private static final long SECOND = 1_000_000_000L;
+    // Children count as active for the window they last took tokens in and the one after.
+    private static final long ACTIVE_WINDOW = SECOND;
+    private static final int MAX_ACTIVE = 0xFFFF;
+
+    private final BandwidthLimiter m_parent;
+    // Packs the current window, the children active in the one before it and those active in it so far.
+    private final AtomicLong m_active = new AtomicLong();
+    // The last window this bucket counted itself active in with its parent.
+    private final AtomicLong m_active_window = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLong m_tokens = new AtomicLong();
+    private final AtomicLong m_refilled_at;
+    private volatile long m_rate;
+    private volatile boolean m_closed = false;
+
+    private BandwidthLimiter (BandwidthLimiter parent, long rate, long now)
+    {
+        m_parent = parent;
+        m_refilled_at = new AtomicLong(now);
+        set_rate(rate);
+    }
+
+    public static BandwidthLimiter create_root (long rate)
+    {
+        return new BandwidthLimiter(null, rate, System.nanoTime());
+    }
+
+    public BandwidthLimiter create_child (long rate)
+    {
+        return new BandwidthLimiter(this, rate, System.nanoTime());
+    }
+
+    public void close ()
+    {
+        m_closed = true;
+    }
+
+    // Bytes per second, or UNLIMITED.
+    public long rate ()
+    {
+        return m_rate;
+    }
+
+    public void set_rate (long rate)
+    {
+        m_rate = Math.max(UNLIMITED, rate);
+        m_tokens.accumulateAndGet(burst(), Math::min);
+    }
+
+    private long burst ()
+    {
+        return Math.max(MIN_BURST, m_rate * BURST_MILLIS / 1000);
+    }
+
+    private void refill (long now)
+    {
+        long rate = m_rate;
+        long last = m_refilled_at.get();
+        long elapsed = now - last;
+        if (rate == UNLIMITED || elapsed <= 0)
+            return;
+        long added, next;
+        if (elapsed >= SECOND) {
+            added = rate;
+            next = now;
+        } else {
+            // Only move the clock by the time the whole tokens stand for, or frequent callers would lose the
+            // fractions.
+            added = elapsed * rate / SECOND;
+            if (added == 0)
+                return;
+            next = last + added * SECOND / rate;
+        }
+        if (!m_refilled_at.compareAndSet(last, next))
+            return;
+        long cap = burst();
+        m_tokens.accumulateAndGet(added, (tokens, add) -> Math.min(cap, tokens + add));
+    }
+
+    private static long window_of (long now)
+    {
+        return Math.floorDiv(now, ACTIVE_WINDOW);
+    }
+
+    // Moves a packed active count on to `window`, keeping the last window's count if it was the one before.
+    private static long roll (long active, long window)
+    {
+        int current = (int) (active >>> 32);
+        int elapsed = (int) window - current;
+        if (elapsed <= 0)
+            return active;
+        long before = elapsed == 1 ? active & MAX_ACTIVE : 0;
+        return ((window & 0xFFFF_FFFFL) << 32) | (before << 16);
+    }
+
+    // Counts a child as active in the current window, once per window.
+    private void mark_active (long now)
+    {
+        long window = window_of(now);
+        if (m_closed || m_active_window.getAndSet(window) == window)
+            return;
+        m_parent.m_active.updateAndGet(active -> {
+            long rolled = roll(active, window);
+            return (rolled & MAX_ACTIVE) == MAX_ACTIVE ? rolled : rolled + 1;
+        });
+    }
+
+    private int active_children (long now)
+    {
+        long active = roll(m_active.get(), window_of(now));
+        return (int) Math.max(active & MAX_ACTIVE, (active >>> 16) & MAX_ACTIVE);
+    }
+
+    // Takes up to `wanted` tokens from this bucket alone.
+    private long take (long wanted, long now)
+    {
+        if (m_rate == UNLIMITED)
+            return wanted;
+        refill(now);
+        long share = Math.max(MIN_GRANT, burst() / Math.max(1, active_children(now)));
+        long limit = Math.min(wanted, share);
+        while (true) {
+            long tokens = m_tokens.get();
+            long granted = Math.min(limit, tokens);
+            if (granted <= 0)
+                return 0;
+            if (m_tokens.compareAndSet(tokens, tokens - granted))
+                return granted;
+        }
+    }
+
+    private void put (long tokens)
+    {
+        if (m_rate == UNLIMITED || tokens <= 0)
+            return;
+        long cap = burst();
+        m_tokens.accumulateAndGet(tokens, (current, add) -> Math.min(cap, current + add));
+    }
+
+    // Grants up to `wanted` bytes, possibly 0. Unused bytes should be returned with `give_back`.
+    public int acquire (int wanted)
+    {
+        return acquire(wanted, System.nanoTime());
+    }
+
+    int acquire (int wanted, long now)
+    {
+        long granted = wanted;
+        for (var node = this; node != null && granted > 0; node = node.m_parent) {
+            if (node.m_parent != null)
+                node.mark_active(now);
+            long taken = node.take(granted, now);
+            if (taken < granted) {
+                for (var below = this; below != node; below = below.m_parent)
+                    below.put(granted - taken);
+                granted = taken;
+            }
+        }
+        return (int) granted;
+    }
+
+    public void give_back (int bytes)
+    {
+        for (var node = this; node != null; node = node.m_parent)
+            node.put(bytes);
+    }
+
+    // How long a throttled caller should wait before asking again: enough for the slowest bucket on the
+    // path to accumulate one grant.
+    public long retry_delay_millis ()
+    {
+        long slowest = Long.MAX_VALUE;
+        for (var node = this; node != null; node = node.m_parent) {
+            long rate = node.m_rate;
+            if (rate != UNLIMITED)
+                slowest = Math.min(slowest, rate);
+        }
+        if (slowest == Long.MAX_VALUE)
+            return 1;
+        return Math.max(1, Math.min(BURST_MILLIS, MIN_GRANT * 1000 / slowest));
+    }
+}
@@ -0,0 +1,235 @@
+package torrentula.client;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Tit-for-tat upload slot allocation over every peer of every torrent.
+//
+// Every RECHOKE_INTERVAL the peers that are interested in us are ranked by how fast they upload to us (or, for
+// torrents we seed, how fast we upload to them) and the best `slots()` are unchoked. Snubbed peers, ones that
+// have us unchoked and wanted but sent nothing for SNUB_TIMEOUT, drop out of the ranking. One extra slot is
+// handed to a random choked peer and rotated every OPTIMISTIC_INTERVAL, so newcomers get a chance to prove
+// themselves.
+//
+// Rates come straight from each peer's TransferStats, and ranking works in preallocated arrays, so a rechoke
+// allocates nothing; only `add` may grow the arrays.
+public class Choker {
+    public interface Peer {
+        TransferStats stats ();
+
+        boolean peer_interested ();
+
+        boolean am_interested ();
+
+        boolean peer_choking ();
+
+        // Whether the torrent this peer belongs to is complete.
+        boolean seeding ();
+
+        // Milliseconds; 0 if nothing arrived yet.
+        long last_block_received ();
+
+        void choke ();
+
+        void unchoke ();
+    }
+
+    public static final long RECHOKE_INTERVAL = 10_000;
+    public static final long OPTIMISTIC_INTERVAL = 30_000;
+    public static final long SNUB_TIMEOUT = 60_000;
+    public static final int DEFAULT_SLOTS = 4;
+    static final int MIN_SLOTS = 2;
+    static final int MAX_SLOTS = 100;
+    // Upload rate we aim to give each regular slot when the capacity is known.
+    static final long SLOT_RATE = 20 * 1024;
+
+    private final Map<Peer, Integer> m_index = new HashMap<>();
+    private Peer[] m_peers = new Peer[64];
+    private boolean[] m_unchoked = new boolean[64];
+    private long[] m_connected_at = new long[64];
+    private double[] m_score = new double[64];
+    private int[] m_ranking = new int[64];
+    private boolean[] m_keep = new boolean[64];
+    private int m_count = 0;
+    private Peer m_optimistic = null;
+    private long m_optimistic_since = 0;
+    private long m_last_rechoke = Long.MIN_VALUE;
+    private int m_slots = DEFAULT_SLOTS;
+
+    public synchronized int slots ()
+    {
+        return m_slots;
+    }
+
+    // Bytes per second we may upload in total; 0 or less means unknown, which keeps the default slot count.
+    public synchronized void set_upload_capacity (long bytes_per_second)
+    {
+        if (bytes_per_second <= 0)
+            m_slots = DEFAULT_SLOTS;
+        else m_slots = (int) Math.max(MIN_SLOTS, Math.min(MAX_SLOTS, bytes_per_second / SLOT_RATE));
+    }
+
+    public synchronized int peer_count ()
+    {
+        return m_count;
+    }
+
+    public synchronized boolean is_unchoked (Peer peer)
+    {
+        var index = m_index.get(peer);
+        return index != null && m_unchoked[index];
+    }
+
+    public synchronized Peer optimistic ()
+    {
+        return m_optimistic;
+    }
+
+    // New peers start choked.
+    public synchronized void add (Peer peer, long now)
+    {
+        if (m_index.containsKey(peer))
+            return;
+        if (m_count == m_peers.length)
+            grow();
+        m_peers[m_count] = peer;
+        m_unchoked[m_count] = false;
+        m_connected_at[m_count] = now;
+        m_index.put(peer, m_count++);
+    }
+
+    public synchronized void remove (Peer peer)
+    {
+        var index = m_index.remove(peer);
+        if (index == null)
+            return;
+        int last = --m_count;
+        if (index != last) {
+            m_peers[index] = m_peers[last];
+            m_unchoked[index] = m_unchoked[last];
+            m_connected_at[index] = m_connected_at[last];
+            m_index.put(m_peers[index], index);
+        }
+        m_peers[last] = null;
+        if (m_optimistic == peer)
+            m_optimistic = null;
+    }
+
+    private void grow ()
+    {
+        int size = m_peers.length * 2;
+        m_peers = Arrays.copyOf(m_peers, size);
+        m_unchoked = Arrays.copyOf(m_unchoked, size);
+        m_connected_at = Arrays.copyOf(m_connected_at, size);
+        m_score = new double[size];
+        m_ranking = new int[size];
+        m_keep = new boolean[size];
+    }
+
+    // Call periodically (once a second is plenty); rechokes when RECHOKE_INTERVAL has passed.
+    public synchronized void tick (long now)
+    {
+        if (now - m_last_rechoke >= RECHOKE_INTERVAL || m_last_rechoke == Long.MIN_VALUE)
+            rechoke(now);
+    }
+
+    public synchronized void rechoke (long now)
+    {
+        m_last_rechoke = now;
+        int candidates = 0;
+        for (int i = 0; i < m_count; i++) {
+            m_keep[i] = false;
+            var peer = m_peers[i];
+            if (!peer.peer_interested())
+                continue;
+            if (!peer.seeding() && is_snubbed(i, now))
+                continue;
+            var stats = peer.stats();
+            m_score[i] = peer.seeding() ? stats.upload_rate(RateMeter.Window.TEN_SECONDS)
+                                        : stats.download_rate(RateMeter.Window.TEN_SECONDS);
+            m_ranking[candidates++] = i;
+        }
+        int regular = Math.min(m_slots, candidates);
+        select_top(candidates, regular);
+        for (int i = 0; i < regular; i++)
+            m_keep[m_ranking[i]] = true;
+
+        if (m_optimistic != null) {
+            var index = m_index.get(m_optimistic);
+            if (index == null || !m_optimistic.peer_interested() || m_keep[index]
+                    || now - m_optimistic_since >= OPTIMISTIC_INTERVAL)
+                m_optimistic = null;
+        }
+        if (m_optimistic == null)
+            pick_optimistic(now);
+        if (m_optimistic != null)
+            m_keep[m_index.get(m_optimistic)] = true;
+
+        for (int i = 0; i < m_count; i++) {
+            if (m_keep[i] && !m_unchoked[i]) {
+                m_unchoked[i] = true;
+                m_peers[i].unchoke();
+            } else if (!m_keep[i] && m_unchoked[i]) {
+                m_unchoked[i] = false;
+                m_peers[i].choke();
+            }
+        }
+    }
+
+    private boolean is_snubbed (int index, long now)
+    {
+        var peer = m_peers[index];
+        if (!peer.am_interested() || peer.peer_choking())
+            return false;
+        long last = Math.max(peer.last_block_received(), m_connected_at[index]);
+        return now - last > SNUB_TIMEOUT;
+    }
+
+    // Reservoir-samples one interested peer that didn't make the regular cut.
+    private void pick_optimistic (long now)
+    {
+        var random = ThreadLocalRandom.current();
+        int seen = 0;
+        int chosen = -1;
+        for (int i = 0; i < m_count; i++) {
+            if (m_keep[i] || !m_peers[i].peer_interested())
+                continue;
+            if (random.nextInt(++seen) == 0)
+                chosen = i;
+        }
+        if (chosen >= 0) {
+            m_optimistic = m_peers[chosen];
+            m_optimistic_since = now;
+        }
+    }
+
+    // Quickselect: moves the `k` best-scored of m_ranking[0, n) to its front, in no particular order.
+    private void select_top (int n, int k)
+    {
+        if (k <= 0 || k >= n)
+            return;
+        int lo = 0, hi = n - 1;
+        while (lo < hi) {
+            double pivot = m_score[m_ranking[(lo + hi) >>> 1]];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (m_score[m_ranking[i]] > pivot)
+                    i++;
+                while (m_score[m_ranking[j]] < pivot)
+                    j--;
+                if (i <= j) {
+                    int swap = m_ranking[i];
+                    m_ranking[i++] = m_ranking[j];
+                    m_ranking[j--] = swap;
+                }
+            }
+            if (k - 1 <= j)
+                hi = j;
+            else if (k - 1 >= i)
+                lo = i;
+            else return;
+        }
+    }
+}
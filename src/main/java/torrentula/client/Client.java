@@ -1,6 +1,10 @@
 package torrentula.client;
 
 import torrentula.Metainfo;
+import torrentula.peer.Handshake;
+import torrentula.peer.HandshakeRouter;
+import torrentula.peer.PeerConnection;
+import torrentula.peer.PeerHandler;
 
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
@@ -23,15 +27,40 @@ public class Client {
         ID = data;
     }
 
+    private final Session m_session;
     private final Metainfo m_metainfo;
     private final int m_port;
     private final ClientState m_state;
+    private final BandwidthLimiter m_download_limit;
+    private final BandwidthLimiter m_upload_limit;
+    private volatile HandshakeRouter m_incoming;
 
+    // A torrent outside any session's index that still uses the shared session's resources; it announces
+    // `port` itself. Session.add is the way to run many torrents behind one port.
     public Client (Metainfo info, int port)
     {
+        this(Session.shared(), info, port);
+    }
+
+    // A negative `port` means the session's.
+    Client (Session session, Metainfo info, int port)
+    {
+        m_session = session;
         m_metainfo = info;
         m_port = port;
-        m_state = new ClientState(this, m_metainfo.torrent_size());
+        m_state = new ClientState(this, m_metainfo.torrent_size(), session.stats().create_child());
+        m_download_limit = session.download_limit().create_child(BandwidthLimiter.UNLIMITED);
+        m_upload_limit = session.upload_limit().create_child(BandwidthLimiter.UNLIMITED);
+    }
+
+    public Session session ()
+    {
+        return m_session;
+    }
+
+    public Metainfo metainfo ()
+    {
+        return m_metainfo;
     }
 
     public ByteBuffer info_hash ()
@@ -41,16 +70,47 @@ public class Client {
 
     public ByteBuffer id ()
     {
-        return ByteBuffer.wrap(ID).asReadOnlyBuffer();
+        return m_session.peer_id();
     }
 
     public int port ()
     {
-        return m_port;
+        return m_port >= 0 ? m_port : m_session.port();
     }
 
     public ClientState state ()
     {
         return m_state;
     }
+
+    public BandwidthLimiter download_limit ()
+    {
+        return m_download_limit;
+    }
+
+    public BandwidthLimiter upload_limit ()
+    {
+        return m_upload_limit;
+    }
+
+    // Picks handlers for peers that connect to the session's port asking for this torrent; until one is set,
+    // they are refused.
+    public void set_incoming (HandshakeRouter router)
+    {
+        m_incoming = router;
+    }
+
+    PeerHandler route (PeerConnection connection, Handshake handshake)
+    {
+        var router = m_incoming;
+        return router == null ? null : router.route(connection, handshake);
+    }
+
+    void close ()
+    {
+        m_incoming = null;
+        m_state.stats().close();
+        m_download_limit.close();
+        m_upload_limit.close();
+    }
 }
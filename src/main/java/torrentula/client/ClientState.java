@@ -3,39 +3,42 @@ package torrentula.client;
 public class ClientState {
     private final Client m_client;
     private final long m_torrent_size;
-    private long m_uploaded;
-    private long m_downloaded;
-    private long m_left;
+    private final TransferStats m_stats;
 
-    ClientState (Client client, long torrent_size)
+    ClientState (Client client, long torrent_size, TransferStats stats)
     {
         m_client = client;
         m_torrent_size = torrent_size;
+        m_stats = stats;
     }
 
-    public synchronized long bytes_uploaded ()
+    public TransferStats stats ()
     {
-        return m_uploaded;
+        return m_stats;
     }
 
-    public synchronized long bytes_downloaded ()
+    public long bytes_uploaded ()
     {
-        return m_downloaded;
+        return m_stats.payload_uploaded();
     }
 
-    public synchronized long bytes_left ()
+    public long bytes_downloaded ()
     {
-        return m_left;
+        return m_stats.payload_downloaded();
     }
 
-    synchronized void update_uploaded_byte_count (long update)
+    public long bytes_left ()
     {
-        m_uploaded = update;
+        return Math.max(0, m_torrent_size - m_stats.payload_downloaded());
     }
 
-    synchronized void update_downloaded_byte_count (long update)
+    void add_uploaded_byte_count (long bytes)
     {
-        m_downloaded = update;
-        m_left = m_torrent_size - m_downloaded;
+        m_stats.add_payload_uploaded(bytes);
+    }
+
+    void add_downloaded_byte_count (long bytes)
+    {
+        m_stats.add_payload_downloaded(bytes);
     }
 }
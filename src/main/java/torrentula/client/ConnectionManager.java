@@ -0,0 +1,477 @@
+package torrentula.client;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.zip.CRC32C;
+
+// Admission control for peer connections over every torrent: a global cap, a per-torrent cap and a cap on
+// connect attempts still in flight (half-open sockets), which some systems limit and which otherwise pile up
+// behind dead tracker entries.
+//
+// Addresses from trackers wait as candidates and are dialed highest BEP 40 priority first. That order is the
+// same for both ends of any pair of peers, so a swarm settles into a stable, well-mixed graph instead of
+// everyone dialing the first addresses in the tracker's list.
+//
+// When the process is full and a torrent still has room and candidates, the least useful established peer is
+// dropped to make space: one neither side is interested in first, then one snubbing us, then the slowest.
+// Peers younger than GRACE_PERIOD are never judged, and such evictions happen at most once per EVICT_INTERVAL
+// so the swarm doesn't churn.
+public class ConnectionManager {
+    public interface Peer extends Choker.Peer {
+        // Closes the connection; the owner reports it back through `on_closed`.
+        void disconnect ();
+    }
+
+    // Starts a connection attempt, whose outcome must be reported with `on_connected` or `on_connect_failed`.
+    public interface Dialer {
+        void dial (Object torrent, InetSocketAddress address);
+    }
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 500;
+    public static final int DEFAULT_MAX_PER_TORRENT = 50;
+    public static final int DEFAULT_MAX_HALF_OPEN = 20;
+    public static final long GRACE_PERIOD = 30_000; // Milliseconds.
+    public static final long EVICT_INTERVAL = 10_000; // Milliseconds.
+    // Candidates kept per torrent; the lowest priority ones are dropped past this.
+    static final int MAX_CANDIDATES = 1000;
+
+    private static final class Candidate {
+        final InetSocketAddress address;
+        final long priority;
+
+        Candidate (InetSocketAddress address, long priority)
+        {
+            this.address = address;
+            this.priority = priority;
+        }
+    }
+
+    private static final class Connection {
+        final InetSocketAddress address;
+        final long since;
+
+        Connection (InetSocketAddress address, long since)
+        {
+            this.address = address;
+            this.since = since;
+        }
+    }
+
+    private static final class Torrent {
+        final PriorityQueue<Candidate> candidates = new PriorityQueue<>((a, b) -> Long.compare(b.priority, a.priority));
+        // Every address queued, dialing or connected, so tracker repeats aren't queued twice. An address leaves
+        // when its connection fails or closes, so it can be dialed again.
+        final Set<InetSocketAddress> known = new HashSet<>();
+        final Map<Peer, Connection> peers = new LinkedHashMap<>();
+        int half_open = 0;
+        int max_connections = -1;
+    }
+
+    private final Dialer m_dialer;
+    private final Map<Object, Torrent> m_torrents = new LinkedHashMap<>();
+    private final Map<Peer, Object> m_owners = new HashMap<>();
+    private InetSocketAddress m_external_address;
+    private int m_max_connections = DEFAULT_MAX_CONNECTIONS;
+    private int m_max_per_torrent = DEFAULT_MAX_PER_TORRENT;
+    private int m_max_half_open = DEFAULT_MAX_HALF_OPEN;
+    private int m_half_open = 0;
+    private long m_attempts = 0;
+    private long m_successes = 0;
+    private long m_failures = 0;
+    private long m_evictions = 0;
+    private long m_last_eviction = -EVICT_INTERVAL;
+
+    public ConnectionManager (Dialer dialer)
+    {
+        m_dialer = dialer;
+    }
+
+    // ---- Tuning.
+
+    // Our address and listen port as others see them, for BEP 40 priorities. Until they are known, candidates
+    // rank by their own address alone.
+    public synchronized void set_external_address (InetSocketAddress address)
+    {
+        m_external_address = address;
+    }
+
+    public synchronized void set_max_connections (int max)
+    {
+        m_max_connections = Math.max(1, max);
+    }
+
+    public synchronized void set_max_per_torrent (int max)
+    {
+        m_max_per_torrent = Math.max(1, max);
+    }
+
+    public synchronized void set_max_half_open (int max)
+    {
+        m_max_half_open = Math.max(1, max);
+    }
+
+    // Overrides the per-torrent cap for one torrent; a negative `max` restores the default.
+    public synchronized void set_torrent_limit (Object torrent, int max)
+    {
+        torrent(torrent).max_connections = max;
+    }
+
+    // ---- Observation.
+
+    public synchronized int connection_count ()
+    {
+        return m_owners.size();
+    }
+
+    public synchronized int connection_count (Object torrent)
+    {
+        var state = m_torrents.get(torrent);
+        return state == null ? 0 : state.peers.size();
+    }
+
+    public synchronized int candidate_count (Object torrent)
+    {
+        var state = m_torrents.get(torrent);
+        return state == null ? 0 : state.candidates.size();
+    }
+
+    public synchronized int half_open ()
+    {
+        return m_half_open;
+    }
+
+    public synchronized long attempts ()
+    {
+        return m_attempts;
+    }
+
+    public synchronized long successes ()
+    {
+        return m_successes;
+    }
+
+    public synchronized long failures ()
+    {
+        return m_failures;
+    }
+
+    public synchronized long evictions ()
+    {
+        return m_evictions;
+    }
+
+    // Share of finished connect attempts that succeeded; 1 before any finished.
+    public synchronized double success_rate ()
+    {
+        long finished = m_successes + m_failures;
+        return finished == 0 ? 1 : (double) m_successes / finished;
+    }
+
+    // ---- Torrents and candidates.
+
+    private Torrent torrent (Object torrent)
+    {
+        var state = m_torrents.get(torrent);
+        if (state == null)
+            throw new RuntimeException("Unknown torrent!");
+        return state;
+    }
+
+    public synchronized void add_torrent (Object torrent)
+    {
+        m_torrents.putIfAbsent(torrent, new Torrent());
+    }
+
+    // Forgets the torrent's candidates and disconnects its peers.
+    public void remove_torrent (Object torrent)
+    {
+        List<Peer> peers;
+        synchronized (this) {
+            var state = m_torrents.remove(torrent);
+            if (state == null)
+                return;
+            peers = new ArrayList<>(state.peers.keySet());
+            for (var peer : peers)
+                m_owners.remove(peer);
+            m_half_open -= state.half_open;
+        }
+        for (var peer : peers)
+            peer.disconnect();
+    }
+
+    // Queues addresses from a tracker or another peer source. Known addresses are skipped.
+    public synchronized void add_peers (Object torrent, List<InetSocketAddress> addresses)
+    {
+        var state = torrent(torrent);
+        for (var address : addresses) {
+            if (address.isUnresolved() || !state.known.add(address))
+                continue;
+            state.candidates.add(new Candidate(address, priority(m_external_address, address)));
+        }
+        if (state.candidates.size() > MAX_CANDIDATES) {
+            var kept = new ArrayList<Candidate>(MAX_CANDIDATES);
+            for (int i = 0; i < MAX_CANDIDATES; i++)
+                kept.add(state.candidates.poll());
+            for (var dropped : state.candidates)
+                state.known.remove(dropped.address);
+            state.candidates.clear();
+            state.candidates.addAll(kept);
+        }
+    }
+
+    private int limit (Torrent state)
+    {
+        return state.max_connections >= 0 ? state.max_connections : m_max_per_torrent;
+    }
+
+    // ---- Connection events.
+
+    public synchronized void on_connected (Object torrent, InetSocketAddress address, Peer peer, long now)
+    {
+        var state = m_torrents.get(torrent);
+        m_successes++;
+        // A removed torrent already gave back its half-open count.
+        if (state == null) {
+            peer.disconnect();
+            return;
+        }
+        state.half_open--;
+        m_half_open--;
+        state.peers.put(peer, new Connection(address, now));
+        m_owners.put(peer, torrent);
+    }
+
+    public synchronized void on_connect_failed (Object torrent, InetSocketAddress address)
+    {
+        m_failures++;
+        var state = m_torrents.get(torrent);
+        if (state == null)
+            return;
+        m_half_open--;
+        state.half_open--;
+        state.known.remove(address);
+    }
+
+    // Decides whether an incoming peer may stay, making room by evicting a useless or snubbing peer if the
+    // limits are reached. The caller closes the connection on false.
+    public boolean accept_incoming (Object torrent, InetSocketAddress address, Peer peer, long now)
+    {
+        Peer evicted = null;
+        synchronized (this) {
+            var state = m_torrents.get(torrent);
+            if (state == null)
+                return false;
+            boolean torrent_full = state.peers.size() + state.half_open >= limit(state);
+            boolean global_full = m_owners.size() + m_half_open >= m_max_connections;
+            if (torrent_full || global_full) {
+                evicted = least_useful(torrent_full ? state.peers.keySet() : m_owners.keySet(), now, SNUBBING);
+                if (evicted == null)
+                    return false;
+                forget(evicted);
+                m_evictions++;
+            }
+            // Incoming peers connect from ephemeral ports, so their address isn't one to dial; it is only
+            // remembered while connected.
+            state.peers.put(peer, new Connection(address, now));
+            state.known.add(address);
+            m_owners.put(peer, torrent);
+        }
+        if (evicted != null)
+            evicted.disconnect();
+        return true;
+    }
+
+    public synchronized void on_closed (Peer peer)
+    {
+        forget(peer);
+    }
+
+    private void forget (Peer peer)
+    {
+        var torrent = m_owners.remove(peer);
+        if (torrent == null)
+            return;
+        var state = m_torrents.get(torrent);
+        if (state == null)
+            return;
+        var connection = state.peers.remove(peer);
+        if (connection != null)
+            state.known.remove(connection.address);
+    }
+
+    // ---- Policy.
+
+    // Usefulness levels; higher is better.
+    static final int USELESS = 0;
+    static final int SNUBBING = 1;
+    static final int USEFUL = 2;
+
+    private static int level (Peer peer, Torrent state, long now)
+    {
+        if (!peer.am_interested() && !peer.peer_interested())
+            return USELESS;
+        if (peer.am_interested() && !peer.peer_choking()) {
+            long last = Math.max(peer.last_block_received(), state.peers.get(peer).since);
+            if (now - last > Choker.SNUB_TIMEOUT)
+                return SNUBBING;
+        }
+        return USEFUL;
+    }
+
+    // Returns the peer in `peers` that is least worth keeping, at most at usefulness `worst_allowed`, or null.
+    private Peer least_useful (Set<Peer> peers, long now, int worst_allowed)
+    {
+        Peer worst = null;
+        int worst_level = Integer.MAX_VALUE;
+        long worst_rate = Long.MAX_VALUE;
+        for (var peer : peers) {
+            var state = m_torrents.get(m_owners.get(peer));
+            if (now - state.peers.get(peer).since < GRACE_PERIOD)
+                continue;
+            int level = level(peer, state, now);
+            if (level > worst_allowed)
+                continue;
+            var window = RateMeter.Window.ONE_MINUTE;
+            long rate = peer.seeding() ? peer.stats().upload_rate(window) : peer.stats().download_rate(window);
+            if (level < worst_level || (level == worst_level && rate < worst_rate)) {
+                worst = peer;
+                worst_level = level;
+                worst_rate = rate;
+            }
+        }
+        return worst;
+    }
+
+    // Call periodically (once a second is plenty). Dials candidates while the limits allow, round robin over
+    // torrents, and evicts one peer per call to make room when the process is full and a torrent is starved.
+    public void tick (long now)
+    {
+        var dials = new ArrayList<Object[]>();
+        Peer evicted = null;
+        synchronized (this) {
+            boolean progress = true;
+            while (progress && m_half_open < m_max_half_open && m_owners.size() + m_half_open < m_max_connections) {
+                progress = false;
+                for (var entry : m_torrents.entrySet()) {
+                    var state = entry.getValue();
+                    if (state.candidates.isEmpty() || state.peers.size() + state.half_open >= limit(state))
+                        continue;
+                    if (m_half_open >= m_max_half_open || m_owners.size() + m_half_open >= m_max_connections)
+                        break;
+                    var candidate = state.candidates.poll();
+                    state.half_open++;
+                    m_half_open++;
+                    m_attempts++;
+                    dials.add(new Object[] { entry.getKey(), candidate.address });
+                    progress = true;
+                }
+            }
+            if (m_owners.size() + m_half_open >= m_max_connections && now - m_last_eviction >= EVICT_INTERVAL
+                    && starved()) {
+                evicted = least_useful(m_owners.keySet(), now, USEFUL);
+                if (evicted != null) {
+                    forget(evicted);
+                    m_evictions++;
+                    m_last_eviction = now;
+                }
+            }
+        }
+        if (evicted != null)
+            evicted.disconnect();
+        for (var dial : dials)
+            m_dialer.dial(dial[0], (InetSocketAddress) dial[1]);
+    }
+
+    private boolean starved ()
+    {
+        for (var state : m_torrents.values()) {
+            if (!state.candidates.isEmpty() && state.peers.size() + state.half_open < limit(state))
+                return true;
+        }
+        return false;
+    }
+
+    // ---- BEP 40 canonical peer priority.
+
+    private static final byte[] V4_SAME_24 = { -1, -1, -1, -1 };
+    private static final byte[] V4_SAME_16 = { -1, -1, -1, 0x55 };
+    private static final byte[] V4_OTHER = { -1, -1, 0x55, 0x55 };
+
+    // CRC32-C of both addresses, masked according to how close they are and sorted, so the result is the same
+    // from either end. Identical addresses are ranked by their sorted ports instead. Returned unsigned.
+    public static long priority (InetSocketAddress self, InetSocketAddress peer)
+    {
+        var crc = new CRC32C();
+        byte[] theirs = peer.getAddress().getAddress();
+        if (self == null || self.getAddress() == null || self.getAddress().getAddress().length != theirs.length) {
+            var masked = mask(theirs, theirs.length == 4 ? V4_OTHER : v6_mask(6));
+            crc.update(masked);
+            return crc.getValue();
+        }
+        byte[] ours = self.getAddress().getAddress();
+        if (Arrays.equals(ours, theirs)) {
+            int low = Math.min(self.getPort(), peer.getPort());
+            int high = Math.max(self.getPort(), peer.getPort());
+            crc.update(new byte[] { (byte) (low >>> 8), (byte) low, (byte) (high >>> 8), (byte) high });
+            return crc.getValue();
+        }
+        byte[] mask;
+        if (ours.length == 4) {
+            if (common_prefix(ours, theirs, 3))
+                mask = V4_SAME_24;
+            else if (common_prefix(ours, theirs, 2))
+                mask = V4_SAME_16;
+            else mask = V4_OTHER;
+        } else {
+            if (common_prefix(ours, theirs, 7))
+                mask = v6_mask(16);
+            else if (common_prefix(ours, theirs, 6))
+                mask = v6_mask(7);
+            else mask = v6_mask(6);
+        }
+        byte[] a = mask(ours, mask);
+        byte[] b = mask(theirs, mask);
+        if (Arrays.compareUnsigned(a, b) > 0) {
+            var swap = a;
+            a = b;
+            b = swap;
+        }
+        crc.update(a);
+        crc.update(b);
+        return crc.getValue();
+    }
+
+    // Full bytes up to `kept`, then 0x55.
+    private static byte[] v6_mask (int kept)
+    {
+        var mask = new byte[16];
+        for (int i = 0; i < 16; i++)
+            mask[i] = i < kept ? (byte) 0xFF : 0x55;
+        return mask;
+    }
+
+    private static boolean common_prefix (byte[] a, byte[] b, int bytes)
+    {
+        for (int i = 0; i < bytes; i++) {
+            if (a[i] != b[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static byte[] mask (byte[] address, byte[] mask)
+    {
+        var masked = new byte[address.length];
+        for (int i = 0; i < address.length; i++)
+            masked[i] = (byte) (address[i] & mask[i]);
+        return masked;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.client;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Byte counter with rates over sliding 1 s, 10 s and 60 s windows. `add` is a striped, uncontended
+// increment; `tick` must be called once a second by a single thread, and turns the running total into
+// per-second samples. Rates are plain volatile reads, so hot paths such as choking can poll them freely.
+public class RateMeter {
+    public enum Window {
+        ONE_SECOND(1),
+        TEN_SECONDS(10),
+        ONE_MINUTE(60);
+
+        final int seconds;
+
+        Window (int seconds)
+        {
+            this.seconds = seconds;
+        }
+    }
+
+    private static final int HISTORY = 60;
+
+    private final LongAdder m_total = new LongAdder();
+    // Owned by the ticking thread.
+    private final long[] m_history = new long[HISTORY];
+    private int m_cursor;
+    private int m_ticks;
+    private long m_last_total;
+    private long m_sum_10;
+    private long m_sum_60;
+
+    private volatile long m_rate_1;
+    private volatile long m_rate_10;
+    private volatile long m_rate_60;
+
+    public void add (long bytes)
+    {
+        m_total.add(bytes);
+    }
+
+    public long total ()
+    {
+        return m_total.sum();
+    }
+
+    // Bytes per second, averaged over `window`.
+    public long rate (Window window)
+    {
+        return switch (window) {
+            case ONE_SECOND -> m_rate_1;
+            case TEN_SECONDS -> m_rate_10;
+            case ONE_MINUTE -> m_rate_60;
+        };
+    }
+
+    void tick ()
+    {
+        // Working from the cumulative total means adds racing with the tick land in the next sample instead
+        // of being lost.
+        long total = m_total.sum();
+        long sample = total - m_last_total;
+        m_last_total = total;
+
+        long expired_10 = m_history[(m_cursor + HISTORY - Window.TEN_SECONDS.seconds) % HISTORY];
+        long expired_60 = m_history[m_cursor];
+        m_history[m_cursor] = sample;
+        m_cursor = (m_cursor + 1) % HISTORY;
+        m_sum_10 += sample - expired_10;
+        m_sum_60 += sample - expired_60;
+        m_ticks = Math.min(m_ticks + 1, HISTORY);
+
+        m_rate_1 = sample;
+        m_rate_10 = m_sum_10 / Math.min(m_ticks, Window.TEN_SECONDS.seconds);
+        m_rate_60 = m_sum_60 / m_ticks;
+    }
+}
@@ -0,0 +1,291 @@
+package torrentula.client;
+
+import torrentula.Metainfo;
+import torrentula.event.BatchEventProcessor;
+import torrentula.event.RingBuffer;
+import torrentula.event.RingEventHandler;
+import torrentula.event.WaitStrategy;
+import torrentula.peer.Handshake;
+import torrentula.peer.PeerConnection;
+import torrentula.peer.PeerEngine;
+import torrentula.peer.PeerEvent;
+import torrentula.peer.PeerHandler;
+import torrentula.storage.HashPool;
+import torrentula.storage.ReadCache;
+import torrentula.storage.SlabAllocator;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Everything the torrents of a process share: the peer id, one listen port, peer I/O threads, buffers and the
+// read cache, disk and tracker I/O, upload slots, bandwidth caps and transfer totals. Incoming handshakes
+// are routed to torrents through a concurrent info hash index, so adding or removing a torrent only touches
+// its own entry and never waits on the others.
+public class Session {
+    public static final int DISK_THREADS = 4;
+    public static final long READ_CACHE_SIZE = 32L * 1024 * 1024;
+    public static final int EVENT_RING_SIZE = 16 * 1024;
+
+    private static Session s_shared;
+
+    private final byte[] m_peer_id;
+    private final SlabAllocator m_allocator;
+    private final ReadCache m_read_cache;
+    private final TransferStats m_stats = TransferStats.create_root();
+    // Upload slots are shared by all torrents.
+    private final Choker m_choker = new Choker();
+    // Session-wide bandwidth caps; torrents and peers hang their own buckets below these.
+    private final BandwidthLimiter m_download_limit = BandwidthLimiter.create_root(BandwidthLimiter.UNLIMITED);
+    private final BandwidthLimiter m_upload_limit = BandwidthLimiter.create_root(BandwidthLimiter.UNLIMITED);
+    private final ExecutorService m_disk;
+    private final HashPool m_hashes;
+    private final ScheduledExecutorService m_ticker;
+    private final ConcurrentHashMap<ByteBuffer, Client> m_torrents = new ConcurrentHashMap<>();
+    // High-rate peer events go through preallocated slots rather than `Event.fire()`; see `subscribe`.
+    private final RingBuffer<PeerEvent> m_events = new RingBuffer<>(EVENT_RING_SIZE, PeerEvent::new, WaitStrategy.PARK);
+    private final List<BatchEventProcessor<PeerEvent>> m_subscribers = new ArrayList<>();
+    private PeerEngine m_engine;
+    private HttpClient m_http;
+    private volatile int m_port;
+
+    public Session (byte[] peer_id)
+    {
+        this(peer_id, SlabAllocator.shared(), DISK_THREADS);
+    }
+
+    public Session (byte[] peer_id, SlabAllocator allocator, int disk_threads)
+    {
+        if (peer_id.length != 20)
+            throw new RuntimeException("Peer id must be 20 bytes!");
+        m_peer_id = peer_id.clone();
+        m_allocator = allocator;
+        m_read_cache = new ReadCache(allocator, READ_CACHE_SIZE);
+        var disk_count = new AtomicInteger();
+        m_disk = Executors.newFixedThreadPool(Math.max(1, disk_threads), runnable -> {
+            var thread = new Thread(runnable, "disk-" + disk_count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        m_hashes = new HashPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2), HashPool.DEFAULT_MAX_QUEUED);
+        m_ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "stats-ticker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        m_ticker.scheduleAtFixedRate(() -> {
+            m_stats.tick();
+            m_choker.tick(System.currentTimeMillis());
+            publish_rate_ticks();
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    // The process-wide session behind `Client.ID`, created on first use.
+    public static synchronized Session shared ()
+    {
+        if (s_shared == null)
+            s_shared = new Session(Client.ID);
+        return s_shared;
+    }
+
+    private static ByteBuffer key (byte[] info_hash)
+    {
+        return ByteBuffer.wrap(info_hash.clone());
+    }
+
+    // ---- Torrents.
+
+    public Client add (Metainfo info)
+    {
+        var client = new Client(this, info, -1);
+        if (m_torrents.putIfAbsent(key(info.info_hash()), client) != null) {
+            client.close();
+            throw new RuntimeException("Torrent already in the session!");
+        }
+        return client;
+    }
+
+    // Drops the torrent from the index, so its handshakes are refused from now on, and detaches its stats and
+    // limits. Returns the removed torrent, or null if there was none.
+    public Client remove (byte[] info_hash)
+    {
+        var client = m_torrents.remove(ByteBuffer.wrap(info_hash));
+        if (client != null)
+            client.close();
+        return client;
+    }
+
+    public Client torrent (byte[] info_hash)
+    {
+        return m_torrents.get(ByteBuffer.wrap(info_hash));
+    }
+
+    public int torrent_count ()
+    {
+        return m_torrents.size();
+    }
+
+    public Collection<Client> torrents ()
+    {
+        return Collections.unmodifiableCollection(m_torrents.values());
+    }
+
+    // ---- Peers.
+
+    // Opens the session's single listen port. Every torrent is reachable through it.
+    public synchronized InetSocketAddress listen (InetSocketAddress address) throws IOException
+    {
+        var bound = engine().listen(address);
+        m_port = bound.getPort();
+        return bound;
+    }
+
+    // Port announced to trackers, or 0 before `listen`.
+    public int port ()
+    {
+        return m_port;
+    }
+
+    public synchronized PeerEngine engine () throws IOException
+    {
+        if (m_engine == null) {
+            m_engine = new PeerEngine(m_peer_id, this::route, Runtime.getRuntime().availableProcessors(), m_allocator);
+            m_engine.set_hash_pool(m_hashes);
+            m_engine.set_events(m_events);
+        }
+        return m_engine;
+    }
+
+    private PeerHandler route (PeerConnection connection, Handshake handshake)
+    {
+        var client = m_torrents.get(ByteBuffer.wrap(handshake.info_hash()));
+        return client == null ? null : client.route(connection, handshake);
+    }
+
+    // ---- Peer events.
+
+    // Runs `handler` on a thread of its own for every block received, HAVE and per-torrent rate tick, in
+    // batches. A subscriber that falls a whole ring behind makes the peer threads drop events, never wait.
+    public BatchEventProcessor<PeerEvent> subscribe (RingEventHandler<PeerEvent> handler)
+    {
+        var processor = new BatchEventProcessor<>(m_events, handler);
+        synchronized (m_subscribers) {
+            m_subscribers.add(processor);
+        }
+        var thread = new Thread(processor, "peer-events");
+        thread.setDaemon(true);
+        thread.start();
+        return processor;
+    }
+
+    public void unsubscribe (BatchEventProcessor<PeerEvent> processor)
+    {
+        synchronized (m_subscribers) {
+            m_subscribers.remove(processor);
+        }
+        processor.halt();
+    }
+
+    private void publish_rate_ticks ()
+    {
+        for (var entry : m_torrents.entrySet()) {
+            long sequence = m_events.try_next();
+            if (sequence < 0)
+                return;
+            var stats = entry.getValue().state().stats();
+            m_events.get(sequence).set_rate_tick(entry.getKey().array(), stats.download_rate(RateMeter.Window.ONE_SECOND),
+                    stats.upload_rate(RateMeter.Window.ONE_SECOND));
+            m_events.publish(sequence);
+        }
+    }
+
+    // ---- Shared resources.
+
+    public ByteBuffer peer_id ()
+    {
+        return ByteBuffer.wrap(m_peer_id).asReadOnlyBuffer();
+    }
+
+    public SlabAllocator allocator ()
+    {
+        return m_allocator;
+    }
+
+    public ReadCache read_cache ()
+    {
+        return m_read_cache;
+    }
+
+    // Threads for disk work and piece hashing; give both to each torrent's WriteCache.
+    public Executor disk ()
+    {
+        return m_disk;
+    }
+
+    public HashPool hashes ()
+    {
+        return m_hashes;
+    }
+
+    // One HTTP client, with its connection pool and selector thread, for every tracker announce.
+    public synchronized HttpClient http ()
+    {
+        if (m_http == null)
+            m_http = HttpClient.newBuilder().followRedirects(HttpClient.Redirect.NEVER).build();
+        return m_http;
+    }
+
+    public TransferStats stats ()
+    {
+        return m_stats;
+    }
+
+    public Choker choker ()
+    {
+        return m_choker;
+    }
+
+    public BandwidthLimiter download_limit ()
+    {
+        return m_download_limit;
+    }
+
+    public BandwidthLimiter upload_limit ()
+    {
+        return m_upload_limit;
+    }
+
+    public void dispose ()
+    {
+        for (var key : m_torrents.keySet()) {
+            var client = m_torrents.remove(key);
+            if (client != null)
+                client.close();
+        }
+        synchronized (this) {
+            if (m_engine != null)
+                m_engine.dispose();
+            m_engine = null;
+        }
+        m_ticker.shutdownNow();
+        synchronized (m_subscribers) {
+            m_subscribers.forEach(BatchEventProcessor::halt);
+            m_subscribers.clear();
+        }
+        m_disk.shutdown();
+        m_hashes.dispose();
+        m_read_cache.dispose();
+    }
+}
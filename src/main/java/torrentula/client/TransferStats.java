@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.client;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Transfer counters for one level of the session > torrent > peer hierarchy. Every update is also applied to
+// the parent, so a torrent's numbers always include its peers' and the session's include every torrent's.
+// Nothing here takes a lock.
+public class TransferStats {
+    private final TransferStats m_parent;
+    private final Set<TransferStats> m_children = ConcurrentHashMap.newKeySet();
+    private final RateMeter m_payload_downloaded = new RateMeter();
+    private final RateMeter m_payload_uploaded = new RateMeter();
+    private final RateMeter m_protocol_downloaded = new RateMeter();
+    private final RateMeter m_protocol_uploaded = new RateMeter();
+    private final LongAdder m_wasted = new LongAdder();
+    private final LongAdder m_hash_failed = new LongAdder();
+
+    private TransferStats (TransferStats parent)
+    {
+        m_parent = parent;
+    }
+
+    public static TransferStats create_root ()
+    {
+        return new TransferStats(null);
+    }
+
+    public TransferStats create_child ()
+    {
+        var child = new TransferStats(this);
+        m_children.add(child);
+        return child;
+    }
+
+    // Detaches this node from ticking. Totals already added to the parents stay there.
+    public void close ()
+    {
+        if (m_parent != null)
+            m_parent.m_children.remove(this);
+    }
+
+    public void add_payload_downloaded (long bytes)
+    {
+        for (var stats = this; stats != null; stats = stats.m_parent)
+            stats.m_payload_downloaded.add(bytes);
+    }
+
+    public void add_payload_uploaded (long bytes)
+    {
+        for (var stats = this; stats != null; stats = stats.m_parent)
+            stats.m_payload_uploaded.add(bytes);
+    }
+
+    // Message headers, handshakes, bitfields and the like.
+    public void add_protocol_downloaded (long bytes)
+    {
+        for (var stats = this; stats != null; stats = stats.m_parent)
+            stats.m_protocol_downloaded.add(bytes);
+    }
+
+    public void add_protocol_uploaded (long bytes)
+    {
+        for (var stats = this; stats != null; stats = stats.m_parent)
+            stats.m_protocol_uploaded.add(bytes);
+    }
+
+    // Payload we received but couldn't use, e.g. duplicate blocks from endgame.
+    public void add_wasted (long bytes)
+    {
+        for (var stats = this; stats != null; stats = stats.m_parent)
+            stats.m_wasted.add(bytes);
+    }
+
+    // Payload of pieces that failed their hash check.
+    public void add_hash_failed (long bytes)
+    {
+        for (var stats = this; stats != null; stats = stats.m_parent)
+            stats.m_hash_failed.add(bytes);
+    }
+
+    public long payload_downloaded ()
+    {
+        return m_payload_downloaded.total();
+    }
+
+    public long payload_uploaded ()
+    {
+        return m_payload_uploaded.total();
+    }
+
+    public long protocol_downloaded ()
+    {
+        return m_protocol_downloaded.total();
+    }
+
+    public long protocol_uploaded ()
+    {
+        return m_protocol_uploaded.total();
+    }
+
+    public long wasted ()
+    {
+        return m_wasted.sum();
+    }
+
+    public long hash_failed ()
+    {
+        return m_hash_failed.sum();
+    }
+
+    public long download_rate (RateMeter.Window window)
+    {
+        return m_payload_downloaded.rate(window);
+    }
+
+    public long upload_rate (RateMeter.Window window)
+    {
+        return m_payload_uploaded.rate(window);
+    }
+
+    public long protocol_download_rate (RateMeter.Window window)
+    {
+        return m_protocol_downloaded.rate(window);
+    }
+
+    public long protocol_upload_rate (RateMeter.Window window)
+    {
+        return m_protocol_uploaded.rate(window);
+    }
+
+    // Call once a second, from one thread, on the root; children are ticked recursively.
+    public void tick ()
+    {
+        m_payload_downloaded.tick();
+        m_payload_uploaded.tick();
+        m_protocol_downloaded.tick();
+        m_protocol_uploaded.tick();
+        for (var child : m_children)
+            child.tick();
+    }
+}
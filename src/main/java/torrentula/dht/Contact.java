@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.dht;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+
+public class Contact {
+    public static final int COMPACT_SIZE = 26;
+
+    private final byte[] m_id;
+    private final InetSocketAddress m_address;
+
+    Contact (byte[] id, InetSocketAddress address)
+    {
+        Objects.requireNonNull(address, "Contact address may not be null!");
+        m_id = id;
+        m_address = address;
+    }
+
+    public byte[] id ()
+    {
+        return m_id;
+    }
+
+    public InetSocketAddress address ()
+    {
+        return m_address;
+    }
+
+    boolean has_id ()
+    {
+        return m_id != null;
+    }
+
+    void write_compact (ByteBuffer buffer)
+    {
+        buffer.put(m_id);
+        buffer.put(m_address.getAddress().getAddress());
+        buffer.putShort((short) m_address.getPort());
+    }
+
+    static Contact from_compact (ByteBuffer buffer)
+    {
+        byte[] id = new byte[NodeId.LENGTH];
+        byte[] ip = new byte[4];
+        buffer.get(id);
+        buffer.get(ip);
+        int port = buffer.getShort() & 0xFFFF;
+        try {
+            return new Contact(id, new InetSocketAddress(Inet4Address.getByAddress(ip), port));
+        } catch (UnknownHostException exc) {
+            throw new RuntimeException(exc);
+        }
+    }
+
+    static int pack_ip (InetAddress address)
+    {
+        return ByteBuffer.wrap(address.getAddress()).getInt();
+    }
+
+    @Override
+    public boolean equals (Object o)
+    {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass())
+            return false;
+        Contact contact = (Contact) o;
+        return Arrays.equals(m_id, contact.m_id) && m_address.equals(contact.m_address);
+    }
+
+    @Override
+    public int hashCode ()
+    {
+        return 31 * Arrays.hashCode(m_id) + m_address.hashCode();
+    }
+
+    @Override
+    public String toString ()
+    {
+        return (m_id == null ? "?" : NodeId.to_hex(m_id)) + "@" + m_address;
+    }
+}
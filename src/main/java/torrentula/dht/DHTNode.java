@@ -0,0 +1,513 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.dht;
+
+import torrentula.bencode.Bencode;
+import torrentula.bencode.Element;
+import torrentula.tracker.PeerAddress;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Mainline DHT (BEP 5) node. Everything runs on a single thread that owns one non-blocking DatagramChannel;
+// the public methods only enqueue work for that thread and hand back futures.
+public class DHTNode {
+    static final long QUERY_TIMEOUT = 2000; // Milliseconds.
+    private static final int TICK = 100; // Milliseconds.
+    private static final int MAX_PACKET = 2048;
+
+    private interface ResponseHandler {
+        void on_response (Map<String, Element> response);
+
+        void on_failure ();
+    }
+
+    private static class Transaction {
+        final byte[] node_id;
+        final InetSocketAddress address;
+        final ResponseHandler handler;
+        final long deadline;
+
+        Transaction (byte[] node_id, InetSocketAddress address, ResponseHandler handler, long deadline)
+        {
+            this.node_id = node_id;
+            this.address = address;
+            this.handler = handler;
+            this.deadline = deadline;
+        }
+    }
+
+    private final byte[] m_id;
+    private final DatagramChannel m_channel;
+    private final Selector m_selector;
+    private final RoutingTable m_table;
+    private final TokenManager m_tokens;
+    private final PeerStore m_peers = new PeerStore();
+    private final Map<Integer, Transaction> m_transactions = new HashMap<>();
+    private final Queue<Runnable> m_tasks = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer m_receive_buffer = ByteBuffer.allocate(MAX_PACKET);
+    private final AtomicInteger m_table_size = new AtomicInteger();
+    private final Thread m_thread;
+    private volatile boolean m_running = true;
+    private int m_next_transaction;
+    private long m_last_expiry;
+
+    public DHTNode (InetSocketAddress bind_address) throws IOException
+    {
+        this(NodeId.random(), bind_address);
+    }
+
+    public DHTNode (byte[] id, InetSocketAddress bind_address) throws IOException
+    {
+        if (!NodeId.is_valid(id))
+            throw new RuntimeException("Node id must be 20 bytes!");
+        m_id = id.clone();
+        m_table = new RoutingTable(m_id);
+        m_tokens = new TokenManager(System.currentTimeMillis());
+        m_selector = Selector.open();
+        m_channel = DatagramChannel.open();
+        m_channel.configureBlocking(false);
+        m_channel.bind(bind_address);
+        m_channel.register(m_selector, SelectionKey.OP_READ);
+        m_thread = new Thread(this::run, "dht-" + m_channel.getLocalAddress());
+        m_thread.setDaemon(true);
+        m_thread.start();
+    }
+
+    public byte[] id ()
+    {
+        return m_id.clone();
+    }
+
+    public InetSocketAddress local_address ()
+    {
+        try {
+            return (InetSocketAddress) m_channel.getLocalAddress();
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    public int routing_table_size ()
+    {
+        return m_table_size.get();
+    }
+
+    private void submit (Runnable task)
+    {
+        m_tasks.add(task);
+        m_selector.wakeup();
+    }
+
+    // Queries every seed for our own id, then runs a self-lookup to fill the routing table.
+    public CompletableFuture<Integer> bootstrap (List<InetSocketAddress> seeds)
+    {
+        var future = new CompletableFuture<Integer>();
+        submit(() -> {
+            var pending = new int[]{seeds.size()};
+            Runnable on_seed_done = () -> {
+                if (--pending[0] > 0)
+                    return;
+                start_lookup(m_id, false).thenAccept(lookup -> future.complete(m_table.size()));
+            };
+            if (seeds.isEmpty()) {
+                pending[0] = 1;
+                on_seed_done.run();
+                return;
+            }
+            for (var seed : seeds) {
+                send_query(new Contact(null, seed), KRPC.FIND_NODE, target_arguments("target", m_id), new ResponseHandler() {
+                    @Override
+                    public void on_response (Map<String, Element> response)
+                    {
+                        on_seed_done.run();
+                    }
+
+                    @Override
+                    public void on_failure ()
+                    {
+                        on_seed_done.run();
+                    }
+                });
+            }
+        });
+        return future;
+    }
+
+    public CompletableFuture<List<Contact>> find_node (byte[] target)
+    {
+        var future = new CompletableFuture<List<Contact>>();
+        submit(() -> start_lookup(target, false).thenAccept(lookup -> {
+            List<Contact> contacts = new ArrayList<>();
+            for (var candidate : lookup.closest_responded())
+                contacts.add(candidate.contact);
+            future.complete(contacts);
+        }));
+        return future;
+    }
+
+    public CompletableFuture<List<PeerAddress>> get_peers (byte[] info_hash)
+    {
+        var future = new CompletableFuture<List<PeerAddress>>();
+        submit(() -> start_lookup(info_hash, true).thenAccept(lookup -> future.complete(to_peer_addresses(lookup.peers()))));
+        return future;
+    }
+
+    // A `get_peers` lookup followed by `announce_peer` to the closest nodes that handed us a token. Completes
+    // with the peers found once every announce has been answered or has timed out.
+    public CompletableFuture<List<PeerAddress>> announce (byte[] info_hash, int port)
+    {
+        var future = new CompletableFuture<List<PeerAddress>>();
+        submit(() -> start_lookup(info_hash, true).thenAccept(lookup -> {
+            var peers = to_peer_addresses(lookup.peers());
+            var pending = new int[]{1};
+            Runnable on_announced = () -> {
+                if (--pending[0] == 0)
+                    future.complete(peers);
+            };
+            var handler = new ResponseHandler() {
+                @Override
+                public void on_response (Map<String, Element> response)
+                {
+                    on_announced.run();
+                }
+
+                @Override
+                public void on_failure ()
+                {
+                    on_announced.run();
+                }
+            };
+            for (var candidate : lookup.closest_responded()) {
+                if (candidate.token == null)
+                    continue;
+                var arguments = target_arguments("info_hash", info_hash);
+                arguments.put("port", Element.wrap(port));
+                arguments.put("token", Element.wrap(candidate.token));
+                pending[0]++;
+                send_query(candidate.contact, KRPC.ANNOUNCE_PEER, arguments, handler);
+            }
+            on_announced.run();
+        }));
+        return future;
+    }
+
+    public void dispose ()
+    {
+        m_running = false;
+        m_selector.wakeup();
+        try {
+            m_thread.join(1000);
+            m_selector.close();
+            m_channel.close();
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    private static List<PeerAddress> to_peer_addresses (List<byte[]> compact_peers)
+    {
+        var buffer = ByteBuffer.allocate(compact_peers.size() * 6);
+        for (var peer : compact_peers)
+            buffer.put(peer);
+        return PeerAddress.from(buffer.array());
+    }
+
+    private Map<String, Element> target_arguments (String key, byte[] target)
+    {
+        Map<String, Element> arguments = new HashMap<>();
+        arguments.put("id", Element.wrap(m_id));
+        arguments.put(key, Element.wrap(target));
+        return arguments;
+    }
+
+    private CompletableFuture<Lookup> start_lookup (byte[] target, boolean get_peers)
+    {
+        var lookup = new Lookup(target, get_peers, m_table.closest(target, RoutingTable.K));
+        step(lookup);
+        return lookup.future();
+    }
+
+    private void step (Lookup lookup)
+    {
+        Lookup.Candidate candidate;
+        while ((candidate = lookup.next()) != null) {
+            final var queried = candidate;
+            var method = lookup.is_get_peers() ? KRPC.GET_PEERS : KRPC.FIND_NODE;
+            var arguments = target_arguments(lookup.is_get_peers() ? "info_hash" : "target", lookup.target());
+            send_query(queried.contact, method, arguments, new ResponseHandler() {
+                @Override
+                public void on_response (Map<String, Element> response)
+                {
+                    List<Contact> nodes = List.of();
+                    List<byte[]> values = new ArrayList<>();
+                    try {
+                        var compact_nodes = KRPC.bytes_or_null(response, "nodes");
+                        if (compact_nodes != null)
+                            nodes = KRPC.decode_nodes(compact_nodes);
+                        var value_list = response.get("values");
+                        if (value_list != null && value_list.type() == Element.Type.LIST) {
+                            for (var value : value_list.as_list())
+                                values.add(value.as_byte_string());
+                        }
+                    } catch (RuntimeException exc) {
+                        lookup.on_failure(queried);
+                        step(lookup);
+                        return;
+                    }
+                    lookup.on_response(queried, nodes, values, KRPC.bytes_or_null(response, "token"));
+                    step(lookup);
+                }
+
+                @Override
+                public void on_failure ()
+                {
+                    lookup.on_failure(queried);
+                    step(lookup);
+                }
+            });
+        }
+        if (lookup.finished())
+            lookup.complete();
+    }
+
+    private byte[] next_transaction_id ()
+    {
+        m_next_transaction = (m_next_transaction + 1) & 0xFFFF;
+        return new byte[]{(byte) (m_next_transaction >> 8), (byte) m_next_transaction};
+    }
+
+    private static int transaction_key (byte[] transaction_id)
+    {
+        if (transaction_id.length != 2)
+            return -1;
+        return ((transaction_id[0] & 0xFF) << 8) | (transaction_id[1] & 0xFF);
+    }
+
+    private void send (byte[] message, InetSocketAddress address)
+    {
+        try {
+            m_channel.send(ByteBuffer.wrap(message), address);
+        } catch (IOException ioe) {
+            // UDP is lossy anyway; the transaction will time out.
+        }
+    }
+
+    private void send_query (Contact contact, String method, Map<String, Element> arguments, ResponseHandler handler)
+    {
+        var transaction_id = next_transaction_id();
+        var key = transaction_key(transaction_id);
+        var previous = m_transactions.remove(key);
+        if (previous != null && previous.handler != null)
+            previous.handler.on_failure();
+        var deadline = System.currentTimeMillis() + QUERY_TIMEOUT;
+        m_transactions.put(key, new Transaction(contact.id(), contact.address(), handler, deadline));
+        send(KRPC.query(transaction_id, method, arguments), contact.address());
+    }
+
+    private void run ()
+    {
+        while (m_running) {
+            try {
+                m_selector.select(TICK);
+                m_selector.selectedKeys().clear();
+                Runnable task;
+                while ((task = m_tasks.poll()) != null)
+                    task.run();
+                receive_all();
+                expire(System.currentTimeMillis());
+                m_table_size.set(m_table.size());
+            } catch (IOException ioe) {
+                if (m_running)
+                    System.err.println("DHT I/O failure: " + ioe.getMessage());
+            } catch (RuntimeException exc) {
+                // A bad handler must not kill the node.
+                System.err.println("DHT task failed: " + exc);
+            }
+        }
+    }
+
+    private void receive_all () throws IOException
+    {
+        InetSocketAddress from;
+        while ((from = (InetSocketAddress) m_channel.receive(m_receive_buffer)) != null) {
+            m_receive_buffer.flip();
+            byte[] packet = new byte[m_receive_buffer.remaining()];
+            m_receive_buffer.get(packet);
+            m_receive_buffer.clear();
+            handle_packet(packet, from);
+        }
+    }
+
+    private void expire (long now)
+    {
+        if (now - m_last_expiry < TICK)
+            return;
+        m_last_expiry = now;
+        Iterator<Transaction> iterator = m_transactions.values().iterator();
+        List<Transaction> expired = new ArrayList<>();
+        while (iterator.hasNext()) {
+            var transaction = iterator.next();
+            if (transaction.deadline <= now) {
+                iterator.remove();
+                expired.add(transaction);
+            }
+        }
+        for (var transaction : expired) {
+            m_table.mark_failed(transaction.node_id);
+            if (transaction.handler != null)
+                transaction.handler.on_failure();
+        }
+        m_peers.expire(now);
+    }
+
+    private void handle_packet (byte[] packet, InetSocketAddress from)
+    {
+        Map<String, Element> message;
+        try {
+            message = Bencode.deserialize(packet).as_dictionary();
+        } catch (RuntimeException exc) {
+            return;
+        }
+        var transaction_id = KRPC.bytes_or_null(message, "t");
+        var type = KRPC.bytes_or_null(message, "y");
+        if (transaction_id == null || type == null || type.length != 1)
+            return;
+        try {
+            switch (type[0]) {
+                case 'q' -> handle_query(message, transaction_id, from);
+                case 'r' -> handle_response(message, transaction_id, from);
+                case 'e' -> handle_error(transaction_id, from);
+                default -> {
+                }
+            }
+        } catch (RuntimeException exc) {
+            if (type[0] == 'q')
+                send(KRPC.error(transaction_id, KRPC.ERROR_PROTOCOL, "Malformed message"), from);
+        }
+    }
+
+    private void handle_query (Map<String, Element> message, byte[] transaction_id, InetSocketAddress from)
+    {
+        var method = message.get("q").as_string();
+        var arguments = message.get("a").as_dictionary();
+        var sender = KRPC.bytes_or_null(arguments, "id");
+        if (!NodeId.is_valid(sender)) {
+            send(KRPC.error(transaction_id, KRPC.ERROR_PROTOCOL, "Invalid id"), from);
+            return;
+        }
+        var now = System.currentTimeMillis();
+        m_table.insert(sender, from, now);
+
+        Map<String, Element> response = new HashMap<>();
+        response.put("id", Element.wrap(m_id));
+        switch (method) {
+            case KRPC.PING -> {
+            }
+            case KRPC.FIND_NODE -> {
+                var target = KRPC.bytes_or_null(arguments, "target");
+                if (!NodeId.is_valid(target)) {
+                    send(KRPC.error(transaction_id, KRPC.ERROR_PROTOCOL, "Invalid target"), from);
+                    return;
+                }
+                response.put("nodes", Element.wrap(KRPC.encode_nodes(m_table.closest(target, RoutingTable.K))));
+            }
+            case KRPC.GET_PEERS -> {
+                var info_hash = KRPC.bytes_or_null(arguments, "info_hash");
+                if (!NodeId.is_valid(info_hash)) {
+                    send(KRPC.error(transaction_id, KRPC.ERROR_PROTOCOL, "Invalid info_hash"), from);
+                    return;
+                }
+                response.put("token", Element.wrap(m_tokens.generate(from.getAddress(), now)));
+                var values = m_peers.get(info_hash, now);
+                if (!values.isEmpty()) {
+                    List<Element> list = new ArrayList<>(values.size());
+                    for (var value : values)
+                        list.add(Element.wrap(value));
+                    response.put("values", Element.wrap(list));
+                }
+                response.put("nodes", Element.wrap(KRPC.encode_nodes(m_table.closest(info_hash, RoutingTable.K))));
+            }
+            case KRPC.ANNOUNCE_PEER -> {
+                var info_hash = KRPC.bytes_or_null(arguments, "info_hash");
+                var token = KRPC.bytes_or_null(arguments, "token");
+                if (!NodeId.is_valid(info_hash) || !m_tokens.validate(token, from.getAddress(), now)) {
+                    send(KRPC.error(transaction_id, KRPC.ERROR_PROTOCOL, "Bad token"), from);
+                    return;
+                }
+                var implied = arguments.get("implied_port");
+                int port = implied != null && implied.as_integer() != 0 ? from.getPort() : (int) arguments.get("port").as_integer();
+                var compact_peer = ByteBuffer.allocate(6).put(from.getAddress().getAddress()).putShort((short) port).array();
+                m_peers.add(info_hash, compact_peer, now);
+            }
+            default -> {
+                send(KRPC.error(transaction_id, KRPC.ERROR_METHOD_UNKNOWN, "Method Unknown"), from);
+                return;
+            }
+        }
+        send(KRPC.response(transaction_id, response), from);
+    }
+
+    private Transaction take_transaction (byte[] transaction_id, InetSocketAddress from)
+    {
+        var key = transaction_key(transaction_id);
+        var transaction = m_transactions.get(key);
+        if (transaction == null || !transaction.address.equals(from))
+            return null;
+        m_transactions.remove(key);
+        return transaction;
+    }
+
+    private void handle_response (Map<String, Element> message, byte[] transaction_id, InetSocketAddress from)
+    {
+        var transaction = take_transaction(transaction_id, from);
+        if (transaction == null)
+            return;
+        var response = message.get("r").as_dictionary();
+        var sender = KRPC.bytes_or_null(response, "id");
+        if (!NodeId.is_valid(sender)) {
+            if (transaction.handler != null)
+                transaction.handler.on_failure();
+            return;
+        }
+        m_table.insert(sender, from, System.currentTimeMillis());
+        if (transaction.handler != null)
+            transaction.handler.on_response(response);
+    }
+
+    private void handle_error (byte[] transaction_id, InetSocketAddress from)
+    {
+        var transaction = take_transaction(transaction_id, from);
+        if (transaction != null && transaction.handler != null)
+            transaction.handler.on_failure();
+    }
+}
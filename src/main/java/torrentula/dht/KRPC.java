@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.dht;
+
+import torrentula.bencode.Bencode;
+import torrentula.bencode.Element;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// KRPC (BEP 5) message framing on top of `torrentula.bencode`.
+final class KRPC {
+    static final String PING = "ping";
+    static final String FIND_NODE = "find_node";
+    static final String GET_PEERS = "get_peers";
+    static final String ANNOUNCE_PEER = "announce_peer";
+
+    static final int ERROR_PROTOCOL = 203;
+    static final int ERROR_METHOD_UNKNOWN = 204;
+
+    private KRPC ()
+    {
+    }
+
+    static byte[] query (byte[] transaction_id, String method, Map<String, Element> arguments)
+    {
+        Map<String, Element> message = new HashMap<>();
+        message.put("t", Element.wrap(transaction_id));
+        message.put("y", Element.wrap("q"));
+        message.put("q", Element.wrap(method));
+        message.put("a", Element.wrap(arguments));
+        return Bencode.serialize(Element.wrap(message));
+    }
+
+    static byte[] response (byte[] transaction_id, Map<String, Element> values)
+    {
+        Map<String, Element> message = new HashMap<>();
+        message.put("t", Element.wrap(transaction_id));
+        message.put("y", Element.wrap("r"));
+        message.put("r", Element.wrap(values));
+        return Bencode.serialize(Element.wrap(message));
+    }
+
+    static byte[] error (byte[] transaction_id, int code, String description)
+    {
+        Map<String, Element> message = new HashMap<>();
+        message.put("t", Element.wrap(transaction_id));
+        message.put("y", Element.wrap("e"));
+        message.put("e", Element.wrap(List.of(Element.wrap(code), Element.wrap(description))));
+        return Bencode.serialize(Element.wrap(message));
+    }
+
+    static byte[] encode_nodes (List<Contact> contacts)
+    {
+        var buffer = ByteBuffer.allocate(contacts.size() * Contact.COMPACT_SIZE);
+        for (var contact : contacts)
+            contact.write_compact(buffer);
+        return buffer.array();
+    }
+
+    static List<Contact> decode_nodes (byte[] nodes)
+    {
+        if (nodes.length % Contact.COMPACT_SIZE != 0)
+            throw new RuntimeException("Invalid compact node info length!");
+        var buffer = ByteBuffer.wrap(nodes);
+        List<Contact> contacts = new ArrayList<>(nodes.length / Contact.COMPACT_SIZE);
+        while (buffer.hasRemaining())
+            contacts.add(Contact.from_compact(buffer));
+        return contacts;
+    }
+
+    static byte[] bytes_or_null (Map<String, Element> dictionary, String key)
+    {
+        var element = dictionary.get(key);
+        return element == null || element.type() != Element.Type.BYTE_STRING ? null : element.as_byte_string();
+    }
+}
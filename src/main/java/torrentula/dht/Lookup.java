@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.dht;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+// State of one iterative `find_node`/`get_peers` lookup. Keeps a shortlist ordered by distance to the
+// target, keeps up to ALPHA queries in flight and stops once the K closest live candidates have answered.
+// Only touched from the node's I/O thread.
+class Lookup {
+    static final int ALPHA = 3;
+    private static final int MAX_CANDIDATES = RoutingTable.K * 8;
+
+    enum State {
+        NEW,
+        IN_FLIGHT,
+        RESPONDED,
+        FAILED
+    }
+
+    static class Candidate {
+        final Contact contact;
+        State state = State.NEW;
+        byte[] token;
+
+        Candidate (Contact contact)
+        {
+            this.contact = contact;
+        }
+    }
+
+    private final byte[] m_target;
+    private final boolean m_get_peers;
+    private final List<Candidate> m_candidates = new ArrayList<>();
+    private final Set<String> m_seen = new HashSet<>();
+    private final Set<String> m_peers = new LinkedHashSet<>();
+    private final CompletableFuture<Lookup> m_future = new CompletableFuture<>();
+    private int m_in_flight;
+
+    Lookup (byte[] target, boolean get_peers, List<Contact> initial)
+    {
+        m_target = target;
+        m_get_peers = get_peers;
+        for (var contact : initial)
+            add(contact);
+    }
+
+    byte[] target ()
+    {
+        return m_target;
+    }
+
+    boolean is_get_peers ()
+    {
+        return m_get_peers;
+    }
+
+    CompletableFuture<Lookup> future ()
+    {
+        return m_future;
+    }
+
+    private static String key (byte[] bytes)
+    {
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private void add (Contact contact)
+    {
+        if (!contact.has_id() || !m_seen.add(key(contact.id())))
+            return;
+        int position = m_candidates.size();
+        while (position > 0 && NodeId.compare_distance(m_target, contact.id(), m_candidates.get(position - 1).contact.id()) < 0)
+            position--;
+        if (position >= MAX_CANDIDATES)
+            return;
+        m_candidates.add(position, new Candidate(contact));
+        if (m_candidates.size() > MAX_CANDIDATES)
+            m_candidates.remove(m_candidates.size() - 1);
+    }
+
+    // Next candidate to query, or null if ALPHA queries are in flight or nothing is worth asking.
+    Candidate next ()
+    {
+        if (m_in_flight >= Lookup.ALPHA)
+            return null;
+        int live = 0;
+        for (var candidate : m_candidates) {
+            if (candidate.state == State.FAILED)
+                continue;
+            if (live++ >= RoutingTable.K)
+                break;
+            if (candidate.state == State.NEW) {
+                candidate.state = State.IN_FLIGHT;
+                m_in_flight++;
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    void on_response (Candidate candidate, List<Contact> nodes, List<byte[]> values, byte[] token)
+    {
+        if (candidate.state != State.IN_FLIGHT)
+            return;
+        candidate.state = State.RESPONDED;
+        candidate.token = token;
+        m_in_flight--;
+        for (var node : nodes)
+            add(node);
+        for (var value : values) {
+            if (value.length == 6)
+                m_peers.add(key(value));
+        }
+    }
+
+    void on_failure (Candidate candidate)
+    {
+        if (candidate.state != State.IN_FLIGHT)
+            return;
+        candidate.state = State.FAILED;
+        m_in_flight--;
+    }
+
+    boolean finished ()
+    {
+        return m_in_flight == 0;
+    }
+
+    void complete ()
+    {
+        m_future.complete(this);
+    }
+
+    // The K closest candidates that answered, nearest first.
+    List<Candidate> closest_responded ()
+    {
+        List<Candidate> closest = new ArrayList<>(RoutingTable.K);
+        for (var candidate : m_candidates) {
+            if (candidate.state == State.RESPONDED)
+                closest.add(candidate);
+            if (closest.size() == RoutingTable.K)
+                break;
+        }
+        return closest;
+    }
+
+    List<byte[]> peers ()
+    {
+        List<byte[]> peers = new ArrayList<>(m_peers.size());
+        for (var peer : m_peers)
+            peers.add(peer.getBytes(StandardCharsets.ISO_8859_1));
+        return peers;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.dht;
+
+import java.security.SecureRandom;
+
+public abstract class NodeId {
+    public static final int LENGTH = 20;
+    public static final int BITS = LENGTH * 8;
+
+    private static final SecureRandom s_random = new SecureRandom();
+
+    private NodeId ()
+    {
+    }
+
+    public static byte[] random ()
+    {
+        byte[] id = new byte[LENGTH];
+        s_random.nextBytes(id);
+        return id;
+    }
+
+    public static boolean is_valid (byte[] id)
+    {
+        return id != null && id.length == LENGTH;
+    }
+
+    // Index of the highest bit in which `a` and `b` differ (0 for the lowest bit), or -1 if equal.
+    public static int bucket_index (byte[] a, byte[] b)
+    {
+        for (int i = 0; i < LENGTH; i++) {
+            int x = (a[i] ^ b[i]) & 0xFF;
+            if (x != 0)
+                return (LENGTH - i) * 8 - (Integer.numberOfLeadingZeros(x) - 24) - 1;
+        }
+        return -1;
+    }
+
+    // Compares the XOR distances of `a` and `b` to `target`.
+    public static int compare_distance (byte[] target, byte[] a, byte[] b)
+    {
+        for (int i = 0; i < LENGTH; i++) {
+            int da = (a[i] ^ target[i]) & 0xFF;
+            int db = (b[i] ^ target[i]) & 0xFF;
+            if (da != db)
+                return da < db ? -1 : 1;
+        }
+        return 0;
+    }
+
+    public static String to_hex (byte[] id)
+    {
+        var builder = new StringBuilder(id.length * 2);
+        for (byte b : id)
+            builder.append(String.format("%02x", b & 0xFF));
+        return builder.toString();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.dht;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Peers announced to this node, keyed by info-hash. Only touched from the node's I/O thread.
+class PeerStore {
+    static final long PEER_TTL = 30 * 60 * 1000; // Milliseconds.
+    static final int MAX_PEERS_PER_TORRENT = 2000;
+    static final int MAX_VALUES = 50;
+
+    private final Map<String, LinkedHashMap<String, Long>> m_torrents = new HashMap<>();
+
+    private static String key (byte[] bytes)
+    {
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    void add (byte[] info_hash, byte[] compact_peer, long now)
+    {
+        var peers = m_torrents.computeIfAbsent(key(info_hash), k -> new LinkedHashMap<>());
+        var peer = key(compact_peer);
+        // Re-insert so the map stays ordered by last announce.
+        peers.remove(peer);
+        peers.put(peer, now + PEER_TTL);
+        if (peers.size() > MAX_PEERS_PER_TORRENT) {
+            Iterator<String> oldest = peers.keySet().iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    List<byte[]> get (byte[] info_hash, long now)
+    {
+        var peers = m_torrents.get(key(info_hash));
+        if (peers == null)
+            return List.of();
+        List<byte[]> values = new ArrayList<>(Math.min(peers.size(), MAX_VALUES));
+        // Newest announces are at the tail.
+        var entries = new ArrayList<>(peers.entrySet());
+        for (int i = entries.size() - 1; i >= 0 && values.size() < MAX_VALUES; i--) {
+            var entry = entries.get(i);
+            if (entry.getValue() > now)
+                values.add(entry.getKey().getBytes(StandardCharsets.ISO_8859_1));
+        }
+        return values;
+    }
+
+    void expire (long now)
+    {
+        var torrents = m_torrents.values().iterator();
+        while (torrents.hasNext()) {
+            var peers = torrents.next();
+            peers.values().removeIf(expiry -> expiry <= now);
+            if (peers.isEmpty())
+                torrents.remove();
+        }
+    }
+}
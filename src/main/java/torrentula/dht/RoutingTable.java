@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.dht;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Kademlia routing table. Bucket `i` holds up to K contacts whose XOR distance from the local id lies in
+// [2^i, 2^(i+1)). All slots live in flat primitive arrays so the table costs a few tens of kilobytes and no
+// per-contact objects; `Contact` instances are only materialized for lookup results.
+class RoutingTable {
+    static final int K = 8;
+    static final int MAX_FAILURES = 2;
+
+    private final byte[] m_local_id;
+    private final byte[] m_ids = new byte[NodeId.BITS * K * NodeId.LENGTH];
+    private final int[] m_ips = new int[NodeId.BITS * K];
+    private final char[] m_ports = new char[NodeId.BITS * K];
+    private final long[] m_last_seen = new long[NodeId.BITS * K];
+    private final byte[] m_failures = new byte[NodeId.BITS * K];
+    private final byte[] m_counts = new byte[NodeId.BITS];
+    private int m_size;
+
+    RoutingTable (byte[] local_id)
+    {
+        m_local_id = local_id.clone();
+    }
+
+    private boolean id_at_equals (int slot, byte[] id)
+    {
+        return Arrays.equals(m_ids, slot * NodeId.LENGTH, (slot + 1) * NodeId.LENGTH, id, 0, NodeId.LENGTH);
+    }
+
+    private int find_slot (int bucket, byte[] id)
+    {
+        int base = bucket * K;
+        for (int i = 0; i < m_counts[bucket]; i++) {
+            if (id_at_equals(base + i, id))
+                return base + i;
+        }
+        return -1;
+    }
+
+    private void write_slot (int slot, byte[] id, int ip, int port, long now)
+    {
+        System.arraycopy(id, 0, m_ids, slot * NodeId.LENGTH, NodeId.LENGTH);
+        m_ips[slot] = ip;
+        m_ports[slot] = (char) port;
+        m_last_seen[slot] = now;
+        m_failures[slot] = 0;
+    }
+
+    private void copy_slot (int from, int to)
+    {
+        System.arraycopy(m_ids, from * NodeId.LENGTH, m_ids, to * NodeId.LENGTH, NodeId.LENGTH);
+        m_ips[to] = m_ips[from];
+        m_ports[to] = m_ports[from];
+        m_last_seen[to] = m_last_seen[from];
+        m_failures[to] = m_failures[from];
+    }
+
+    // Returns true if the contact is (now) part of the table.
+    boolean insert (byte[] id, InetSocketAddress address, long now)
+    {
+        if (!NodeId.is_valid(id) || address.getAddress() == null || address.getAddress().getAddress().length != 4)
+            return false;
+        int bucket = NodeId.bucket_index(m_local_id, id);
+        if (bucket < 0)
+            return false;
+
+        int ip = Contact.pack_ip(address.getAddress());
+        int slot = find_slot(bucket, id);
+        if (slot >= 0) {
+            write_slot(slot, id, ip, address.getPort(), now);
+            return true;
+        }
+
+        int base = bucket * K;
+        int count = m_counts[bucket];
+        if (count < K) {
+            write_slot(base + count, id, ip, address.getPort(), now);
+            m_counts[bucket]++;
+            m_size++;
+            return true;
+        }
+
+        // Bucket is full: only replace a contact that has stopped answering.
+        int worst = -1;
+        for (int i = 0; i < K; i++) {
+            if (m_failures[base + i] >= MAX_FAILURES && (worst < 0 || m_last_seen[base + i] < m_last_seen[worst]))
+                worst = base + i;
+        }
+        if (worst < 0)
+            return false;
+        write_slot(worst, id, ip, address.getPort(), now);
+        return true;
+    }
+
+    void mark_failed (byte[] id)
+    {
+        if (!NodeId.is_valid(id))
+            return;
+        int bucket = NodeId.bucket_index(m_local_id, id);
+        if (bucket < 0)
+            return;
+        int slot = find_slot(bucket, id);
+        if (slot >= 0 && m_failures[slot] < Byte.MAX_VALUE)
+            m_failures[slot]++;
+    }
+
+    int size ()
+    {
+        return m_size;
+    }
+
+    private byte[] id_at (int slot)
+    {
+        return Arrays.copyOfRange(m_ids, slot * NodeId.LENGTH, (slot + 1) * NodeId.LENGTH);
+    }
+
+    private Contact contact_at (int slot)
+    {
+        byte[] ip = ByteBuffer.allocate(4).putInt(m_ips[slot]).array();
+        try {
+            return new Contact(id_at(slot), new InetSocketAddress(InetAddress.getByAddress(ip), m_ports[slot]));
+        } catch (UnknownHostException exc) {
+            throw new RuntimeException(exc);
+        }
+    }
+
+    // Distance comparison straight against the flat id array, to avoid copying ids while selecting.
+    private int compare_slots (byte[] target, int a, int b)
+    {
+        int oa = a * NodeId.LENGTH;
+        int ob = b * NodeId.LENGTH;
+        for (int i = 0; i < NodeId.LENGTH; i++) {
+            int da = (m_ids[oa + i] ^ target[i]) & 0xFF;
+            int db = (m_ids[ob + i] ^ target[i]) & 0xFF;
+            if (da != db)
+                return da < db ? -1 : 1;
+        }
+        return 0;
+    }
+
+    // Up to `count` good contacts closest to `target`, nearest first.
+    List<Contact> closest (byte[] target, int count)
+    {
+        int[] best = new int[count];
+        int found = 0;
+        for (int bucket = 0; bucket < NodeId.BITS; bucket++) {
+            int base = bucket * K;
+            for (int i = 0; i < m_counts[bucket]; i++) {
+                int slot = base + i;
+                if (m_failures[slot] >= MAX_FAILURES)
+                    continue;
+                // Insertion into the small sorted `best` array.
+                int position = found;
+                while (position > 0 && compare_slots(target, slot, best[position - 1]) < 0)
+                    position--;
+                if (position >= count)
+                    continue;
+                int end = Math.min(found, count - 1);
+                System.arraycopy(best, position, best, position + 1, end - position);
+                best[position] = slot;
+                if (found < count) found++;
+            }
+        }
+        List<Contact> contacts = new ArrayList<>(found);
+        for (int i = 0; i < found; i++)
+            contacts.add(contact_at(best[i]));
+        return contacts;
+    }
+}
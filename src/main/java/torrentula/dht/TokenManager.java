@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.dht;
+
+import java.net.InetAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+// Write tokens handed out in `get_peers` responses. A token is a truncated SHA-1 over a rotating secret and
+// the requester's IP; tokens minted with the current or the previous secret are accepted.
+class TokenManager {
+    static final long ROTATION_INTERVAL = 5 * 60 * 1000; // Milliseconds.
+    private static final int TOKEN_LENGTH = 8;
+
+    private final SecureRandom m_random = new SecureRandom();
+    private final MessageDigest m_sha1;
+    private byte[] m_current = new byte[16];
+    private byte[] m_previous = new byte[16];
+    private long m_rotated_at;
+
+    TokenManager (long now)
+    {
+        try {
+            m_sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException exc) {
+            throw new RuntimeException(exc);
+        }
+        m_random.nextBytes(m_current);
+        m_random.nextBytes(m_previous);
+        m_rotated_at = now;
+    }
+
+    private void rotate_if_due (long now)
+    {
+        if (now - m_rotated_at < ROTATION_INTERVAL)
+            return;
+        var tmp = m_previous;
+        m_previous = m_current;
+        m_current = tmp;
+        m_random.nextBytes(m_current);
+        m_rotated_at = now;
+    }
+
+    private byte[] token_for (byte[] secret, InetAddress address)
+    {
+        m_sha1.update(secret);
+        m_sha1.update(address.getAddress());
+        return Arrays.copyOf(m_sha1.digest(), TOKEN_LENGTH);
+    }
+
+    byte[] generate (InetAddress address, long now)
+    {
+        rotate_if_due(now);
+        return token_for(m_current, address);
+    }
+
+    boolean validate (byte[] token, InetAddress address, long now)
+    {
+        rotate_if_due(now);
+        if (token == null || token.length != TOKEN_LENGTH)
+            return false;
+        return MessageDigest.isEqual(token, token_for(m_current, address))
+                || MessageDigest.isEqual(token, token_for(m_previous, address));
+    }
+}
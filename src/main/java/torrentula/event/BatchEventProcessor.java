@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.event;
+
+// Drains a `RingBuffer` on one thread, handing the handler every slot that was published since the last
+// pass in a single batch.
+public class BatchEventProcessor<T> implements Runnable {
+    private final RingBuffer<T> m_ring;
+    private final RingEventHandler<T> m_handler;
+    private final Sequence m_sequence = new Sequence();
+    private final Sequence m_alert = new Sequence(0);
+    private volatile boolean m_running;
+
+    public BatchEventProcessor (RingBuffer<T> ring, RingEventHandler<T> handler)
+    {
+        m_ring = ring;
+        m_handler = handler;
+        m_ring.add_gating_sequence(m_sequence);
+    }
+
+    public Sequence sequence ()
+    {
+        return m_sequence;
+    }
+
+    public boolean running ()
+    {
+        return m_running;
+    }
+
+    public void halt ()
+    {
+        m_alert.set(1);
+    }
+
+    @Override
+    public void run ()
+    {
+        m_running = true;
+        var cursor = m_ring.cursor();
+        var wait_strategy = m_ring.wait_strategy();
+        long next = m_sequence.get() + 1;
+        try {
+            // The alert is checked on every pass, not just while waiting, so a busy ring can still be halted.
+            while (m_alert.get() == 0) {
+                long available = wait_strategy.wait_for(next, cursor, m_alert);
+                if (available < next)
+                    break;
+                long highest = m_ring.highest_published(next, available);
+                if (highest < next) {
+                    // Claimed but not yet published; wait for the producer to finish filling the slot.
+                    Thread.onSpinWait();
+                    continue;
+                }
+                for (long sequence = next; sequence <= highest; sequence++) {
+                    try {
+                        m_handler.on_event(m_ring.get(sequence), sequence, sequence == highest);
+                    } catch (Throwable th) {
+                        // A failing handler must not stall the ring.
+                        System.err.println("Ring event handler failed at " + sequence + ": " + th);
+                    }
+                }
+                m_sequence.set(highest);
+                next = highest + 1;
+            }
+        } finally {
+            m_ring.remove_gating_sequence(m_sequence);
+            m_running = false;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.event;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// One dispatch lane: a bounded FIFO of events drained by a single thread. Coalescing event types, and every
+// type under `OverflowPolicy.COALESCE`, are indexed by (type, key) so a newer event can overwrite a queued one
+// in place without losing its position in the queue.
+final class DispatchLane {
+    private static final class PendingKey {
+        final EventType type;
+        final Object key;
+
+        PendingKey (Event event)
+        {
+            type = event.type();
+            key = event.key();
+        }
+
+        @Override
+        public boolean equals (Object o)
+        {
+            if (!(o instanceof PendingKey))
+                return false;
+            var other = (PendingKey) o;
+            return type == other.type && Objects.equals(key, other.key);
+        }
+
+        @Override
+        public int hashCode ()
+        {
+            return 31 * type.id() + Objects.hashCode(key);
+        }
+    }
+
+    private final ReentrantLock m_lock = new ReentrantLock();
+    private final Condition m_not_empty = m_lock.newCondition();
+    private final Condition m_not_full = m_lock.newCondition();
+    private final Event[] m_queue;
+    private final long[] m_enqueued_at;
+    private final PendingKey[] m_pending_keys;
+    private final Map<PendingKey, Long> m_pending = new HashMap<>();
+    private final Consumer<Event> m_sink;
+    private final LogHistogram m_queue_latency = new LogHistogram();
+    private final Thread m_thread;
+    private volatile OverflowPolicy m_policy;
+    private long m_head;
+    private long m_tail;
+    private boolean m_accepting = true;
+    private long m_enqueued;
+    private long m_dropped;
+    private long m_coalesced;
+    private long m_delivered;
+
+    DispatchLane (String name, int capacity, OverflowPolicy policy, Consumer<Event> sink)
+    {
+        if (capacity < 1)
+            throw new RuntimeException("Lane capacity must be positive!");
+        m_queue = new Event[capacity];
+        m_enqueued_at = new long[capacity];
+        m_pending_keys = new PendingKey[capacity];
+        m_policy = policy;
+        m_sink = sink;
+        m_thread = new Thread(this::run, name);
+        m_thread.setDaemon(true);
+        m_thread.start();
+    }
+
+    void set_policy (OverflowPolicy policy)
+    {
+        m_policy = Objects.requireNonNull(policy);
+    }
+
+    private int index (long sequence)
+    {
+        return (int) (sequence % m_queue.length);
+    }
+
+    private int size ()
+    {
+        return (int) (m_tail - m_head);
+    }
+
+    private void remove_head ()
+    {
+        int index = index(m_head);
+        var pending_key = m_pending_keys[index];
+        if (pending_key != null) {
+            m_pending.remove(pending_key);
+            m_pending_keys[index] = null;
+        }
+        m_queue[index] = null;
+        m_head++;
+    }
+
+    // Returns false once the lane has been shut down.
+    boolean offer (Event event) throws InterruptedException
+    {
+        long now = System.nanoTime();
+        var policy = m_policy;
+        boolean coalescing = event.type().coalescing();
+        boolean tracked = coalescing || policy == OverflowPolicy.COALESCE;
+        var pending_key = tracked ? new PendingKey(event) : null;
+
+        m_lock.lock();
+        try {
+            if (!m_accepting)
+                return false;
+            if (coalescing && replace_pending(pending_key, event))
+                return true;
+            while (size() == m_queue.length) {
+                if (policy == OverflowPolicy.COALESCE && replace_pending(pending_key, event))
+                    return true;
+                if (policy == OverflowPolicy.DROP_OLDEST || Thread.currentThread() == m_thread) {
+                    remove_head();
+                    m_dropped++;
+                    break;
+                }
+                m_not_full.await();
+                if (!m_accepting)
+                    return false;
+            }
+            int index = index(m_tail);
+            m_queue[index] = event;
+            m_enqueued_at[index] = now;
+            if (tracked) {
+                var previous = m_pending.put(pending_key, m_tail);
+                if (previous != null)
+                    m_pending_keys[index(previous)] = null;
+                m_pending_keys[index] = pending_key;
+            }
+            m_tail++;
+            m_enqueued++;
+            m_not_empty.signal();
+            return true;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    private boolean replace_pending (PendingKey pending_key, Event event)
+    {
+        var sequence = m_pending.get(pending_key);
+        if (sequence == null)
+            return false;
+        m_queue[index(sequence)] = event;
+        m_coalesced++;
+        return true;
+    }
+
+    private Event take () throws InterruptedException
+    {
+        m_lock.lock();
+        try {
+            while (size() == 0) {
+                if (!m_accepting)
+                    return null;
+                m_not_empty.await();
+            }
+            int index = index(m_head);
+            var event = m_queue[index];
+            // A coalesced event inherits the queue time of the one it replaced.
+            m_queue_latency.record(System.nanoTime() - m_enqueued_at[index]);
+            remove_head();
+            m_delivered++;
+            m_not_full.signal();
+            return event;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    private void run ()
+    {
+        try {
+            Event event;
+            while ((event = take()) != null) {
+                try {
+                    m_sink.accept(event);
+                } catch (Throwable th) {
+                    // The sink guards each listener; this is a last line of defence for the lane thread.
+                    System.err.println("Dispatch failed for `" + event.id() + "`: " + th);
+                }
+            }
+        } catch (InterruptedException exc) {
+            // Immediate shutdown.
+        }
+    }
+
+    // Stops accepting events; already queued ones are still delivered unless `discard` is set.
+    void shutdown (boolean discard)
+    {
+        m_lock.lock();
+        try {
+            m_accepting = false;
+            if (discard) {
+                while (size() > 0)
+                    remove_head();
+            }
+            m_not_empty.signalAll();
+            m_not_full.signalAll();
+        } finally {
+            m_lock.unlock();
+        }
+        if (discard)
+            m_thread.interrupt();
+    }
+
+    DispatcherMetrics.Lane metrics ()
+    {
+        m_lock.lock();
+        try {
+            return new DispatcherMetrics.Lane(m_thread.getName(), size(), m_queue.length, m_enqueued, m_dropped, m_coalesced, m_delivered,
+                    m_queue_latency.snapshot());
+        } finally {
+            m_lock.unlock();
+        }
+    }
+}
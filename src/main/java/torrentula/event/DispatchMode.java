@@ -0,0 +1,27 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.event;
+
+// Where and when a listener runs, chosen when it is registered.
+public enum DispatchMode {
+    // On the firing thread, before `fire()` returns. For cheap reactions such as counters and bitfield updates.
+    INLINE,
+    // On the dispatcher's batch thread, as a list of events accumulated over one tick or up to a batch size.
+    BATCHED,
+    // On the event's dispatch lane.
+    ASYNC
+}
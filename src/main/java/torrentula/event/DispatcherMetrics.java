@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.event;
+
+import java.util.List;
+
+// Point-in-time view of the dispatcher's counters.
+public class DispatcherMetrics {
+    public static class Lane {
+        private final String m_name;
+        private final int m_depth;
+        private final int m_capacity;
+        private final long m_enqueued;
+        private final long m_dropped;
+        private final long m_coalesced;
+        private final long m_delivered;
+        private final LogHistogram.Snapshot m_queue_latency;
+
+        Lane (String name, int depth, int capacity, long enqueued, long dropped, long coalesced, long delivered,
+              LogHistogram.Snapshot queue_latency)
+        {
+            m_name = name;
+            m_depth = depth;
+            m_capacity = capacity;
+            m_enqueued = enqueued;
+            m_dropped = dropped;
+            m_coalesced = coalesced;
+            m_delivered = delivered;
+            m_queue_latency = queue_latency;
+        }
+
+        public String name ()
+        {
+            return m_name;
+        }
+
+        public int depth ()
+        {
+            return m_depth;
+        }
+
+        public int capacity ()
+        {
+            return m_capacity;
+        }
+
+        public long enqueued ()
+        {
+            return m_enqueued;
+        }
+
+        public long dropped ()
+        {
+            return m_dropped;
+        }
+
+        public long coalesced ()
+        {
+            return m_coalesced;
+        }
+
+        public long delivered ()
+        {
+            return m_delivered;
+        }
+
+        // Time from enqueue until the lane picked the event up, in nanoseconds.
+        public LogHistogram.Snapshot queue_latency ()
+        {
+            return m_queue_latency;
+        }
+    }
+
+    public static class Listener {
+        private final String m_event_type;
+        private final String m_listener;
+        private final DispatchMode m_mode;
+        private final LogHistogram.Snapshot m_execution;
+        private final long m_exceptions;
+        private final long m_slow;
+        private final Throwable m_last_exception;
+
+        Listener (String event_type, String listener, DispatchMode mode, LogHistogram.Snapshot execution,
+                  long exceptions, long slow, Throwable last_exception)
+        {
+            m_event_type = event_type;
+            m_listener = listener;
+            m_mode = mode;
+            m_execution = execution;
+            m_exceptions = exceptions;
+            m_slow = slow;
+            m_last_exception = last_exception;
+        }
+
+        public String event_type ()
+        {
+            return m_event_type;
+        }
+
+        public String listener ()
+        {
+            return m_listener;
+        }
+
+        public DispatchMode mode ()
+        {
+            return m_mode;
+        }
+
+        // Time spent in `react`, in nanoseconds. For batched listeners, one sample per batch.
+        public LogHistogram.Snapshot execution ()
+        {
+            return m_execution;
+        }
+
+        public long exceptions ()
+        {
+            return m_exceptions;
+        }
+
+        public long slow ()
+        {
+            return m_slow;
+        }
+
+        public Throwable last_exception ()
+        {
+            return m_last_exception;
+        }
+    }
+
+    private final List<Lane> m_lanes;
+    private final List<Listener> m_listeners;
+
+    DispatcherMetrics (List<Lane> lanes, List<Listener> listeners)
+    {
+        m_lanes = List.copyOf(lanes);
+        m_listeners = List.copyOf(listeners);
+    }
+
+    public List<Lane> lanes ()
+    {
+        return m_lanes;
+    }
+
+    public List<Listener> listeners ()
+    {
+        return m_listeners;
+    }
+
+    public long depth ()
+    {
+        long depth = 0;
+        for (var lane : m_lanes)
+            depth += lane.depth();
+        return depth;
+    }
+
+    public long dropped ()
+    {
+        long dropped = 0;
+        for (var lane : m_lanes)
+            dropped += lane.dropped();
+        return dropped;
+    }
+
+    public long coalesced ()
+    {
+        long coalesced = 0;
+        for (var lane : m_lanes)
+            coalesced += lane.coalesced();
+        return coalesced;
+    }
+}
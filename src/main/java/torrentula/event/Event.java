@@ -19,20 +19,43 @@ package torrentula.event;
 import java.util.Objects;
 
 public class Event {
-    private final String m_id;
+    private final EventType m_type;
+    private final Object m_key;
     private final EventData m_event_data;
 
     protected Event (String id, EventData data)
     {
-        Objects.requireNonNull(id, "Key may not be empty!");
+        this(id, null, data);
+    }
+
+    protected Event (String id, Object key, EventData data)
+    {
+        this(EventType.register(Objects.requireNonNull(id, "Key may not be empty!")), key, data);
+    }
+
+    protected Event (EventType type, Object key, EventData data)
+    {
+        Objects.requireNonNull(type, "Type may not be empty!");
         data = data == null ? EventData.empty() : data;
-        m_id = id;
+        m_type = type;
+        m_key = key;
         m_event_data = data;
     }
 
     public String id ()
     {
-        return m_id;
+        return m_type.name();
+    }
+
+    public EventType type ()
+    {
+        return m_type;
+    }
+
+    // Ordering key. Events sharing a key are delivered in the order they were fired.
+    public Object key ()
+    {
+        return m_key;
     }
 
     public EventData data ()
@@ -47,13 +70,13 @@ public class Event {
         if (o == null || getClass() != o.getClass())
             return false;
         Event event = (Event) o;
-        return m_id.equals(event.m_id);
+        return m_type == event.m_type;
     }
 
     @Override
     public int hashCode ()
     {
-        return m_id.hashCode();
+        return m_type.id();
     }
 
     public static Event create (String id, EventData data)
@@ -61,6 +84,21 @@ public class Event {
         return new Event(id, data);
     }
 
+    public static Event create (String id, Object key, EventData data)
+    {
+        return new Event(id, key, data);
+    }
+
+    public static Event create (EventType type, EventData data)
+    {
+        return new Event(type, null, data);
+    }
+
+    public static Event create (EventType type, Object key, EventData data)
+    {
+        return new Event(type, key, data);
+    }
+
     public void fire ()
     {
         EventDispatcher.dispatch(this);
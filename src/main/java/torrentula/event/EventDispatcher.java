@@ -17,89 +17,279 @@
 package torrentula.event;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
 
 public abstract class EventDispatcher {
-    private static final Object s_listener_traversal_lock = new Object();
-    private static final ExecutorService s_dispatcher_service = Executors.newSingleThreadExecutor();
-    private static Map<Event, List<EventListener>> s_listeners = new HashMap<>();
+    static final int DEFAULT_LANE_CAPACITY = 4096;
+    static final long DEFAULT_SLOW_LISTENER_THRESHOLD = 10_000_000; // Nanoseconds.
+    static final long DEFAULT_BATCH_TICK = 10_000_000; // Nanoseconds.
+    static final int DEFAULT_BATCH_SIZE = 256;
 
+    private static final Object s_listener_write_lock = new Object();
+    private static final DispatchLane[] s_lanes = create_lanes(
+            Integer.getInteger("torrentula.event.lanes", Runtime.getRuntime().availableProcessors()),
+            Integer.getInteger("torrentula.event.lane_capacity", DEFAULT_LANE_CAPACITY),
+            OverflowPolicy.valueOf(System.getProperty("torrentula.event.overflow_policy", OverflowPolicy.BLOCK.name())));
+    private static final Subscription[][] s_no_listeners = new Subscription[0][];
+    // Copy-on-write snapshot indexed by `EventType.id()`. Readers never lock; writers swap in a new table
+    // under `s_listener_write_lock`. Neither the table nor the rows are mutated once published.
+    private static volatile Subscription[][] s_listeners = s_no_listeners;
+    private static volatile long s_slow_listener_threshold = DEFAULT_SLOW_LISTENER_THRESHOLD;
+    private static volatile long s_batch_tick = DEFAULT_BATCH_TICK;
+    private static volatile boolean s_batching = true;
+    private static volatile Thread s_batch_thread;
+    // Removed BATCHED subscriptions; the batch thread delivers whatever they still hold, then drops them.
+    private static final Queue<Subscription> s_retired = new ConcurrentLinkedQueue<>();
+
+    private static DispatchLane[] create_lanes (int count, int capacity, OverflowPolicy policy)
+    {
+        var lanes = new DispatchLane[Math.max(1, count)];
+        for (int i = 0; i < lanes.length; i++)
+            lanes[i] = new DispatchLane("event-lane-" + i, capacity, policy, EventDispatcher::deliver);
+        return lanes;
+    }
+
+    public static int lane_count ()
+    {
+        return s_lanes.length;
+    }
+
+    public static void set_overflow_policy (OverflowPolicy policy)
+    {
+        for (var lane : s_lanes)
+            lane.set_policy(policy);
+    }
+
+    // Listeners running longer than this are counted as slow.
+    public static void set_slow_listener_threshold (long nanos)
+    {
+        s_slow_listener_threshold = nanos;
+    }
+
+    public static DispatcherMetrics metrics ()
+    {
+        var lanes = new ArrayList<DispatcherMetrics.Lane>(s_lanes.length);
+        for (var lane : s_lanes)
+            lanes.add(lane.metrics());
+        var listeners = new ArrayList<DispatcherMetrics.Listener>();
+        for (var row : s_listeners) {
+            if (row == null)
+                continue;
+            for (var subscription : row)
+                listeners.add(subscription.metrics());
+        }
+        return new DispatcherMetrics(lanes, listeners);
+    }
+
+    // Events with the same key always land on the same lane. Unkeyed events are spread by id, which keeps
+    // every kind of event in order with respect to itself.
+    static int lane_for (Event event)
+    {
+        var key = event.key();
+        int hash = key == null ? event.type().id() : key.hashCode();
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % s_lanes.length;
+    }
+
+    public static void set_batch_tick (long nanos)
+    {
+        s_batch_tick = nanos;
+    }
+
+    // Inline listeners run right here; batched ones get the event appended to their pending batch. The event
+    // only goes through a lane if some listener wants it asynchronously.
     static void dispatch (Event event)
     {
-        // Exceptions will be caught by the executor. Worker thread won't die.
-        s_dispatcher_service.submit(() -> {
-            var listeners = get_listeners(event);
-            if (listeners == null) return;
-            for (var listener : listeners)
-                listener.react(event);
-        });
+        var listeners = get_listeners(event.type());
+        if (listeners == null) return;
+        boolean async = false;
+        boolean batch_full = false;
+        for (var listener : listeners) {
+            switch (listener.mode()) {
+                case INLINE -> listener.invoke(event, s_slow_listener_threshold);
+                case BATCHED -> batch_full |= listener.append(event);
+                case ASYNC -> async = true;
+            }
+        }
+        if (batch_full)
+            wake_batch_thread();
+        if (!async)
+            return;
+        try {
+            s_lanes[lane_for(event)].offer(event);
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        }
     }
 
-    private static List<EventListener> get_listeners (Event event)
+    // Runs on the lane thread. Each listener's exceptions are caught and counted. Worker thread won't die.
+    private static void deliver (Event event)
     {
-        synchronized (s_listener_traversal_lock) {
-            return s_listeners.get(event);
+        var listeners = get_listeners(event.type());
+        if (listeners == null) return;
+        long slow_threshold = s_slow_listener_threshold;
+        for (var listener : listeners) {
+            if (listener.mode() == DispatchMode.ASYNC)
+                listener.invoke(event, slow_threshold);
         }
     }
 
+    private static synchronized void start_batch_thread ()
+    {
+        if (s_batch_thread != null)
+            return;
+        var thread = new Thread(EventDispatcher::run_batches, "event-batcher");
+        thread.setDaemon(true);
+        thread.start();
+        s_batch_thread = thread;
+    }
+
+    private static void wake_batch_thread ()
+    {
+        var thread = s_batch_thread;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    private static void flush_batches ()
+    {
+        long slow_threshold = s_slow_listener_threshold;
+        for (var row : s_listeners) {
+            if (row == null)
+                continue;
+            for (var listener : row) {
+                if (listener.mode() == DispatchMode.BATCHED)
+                    listener.flush(slow_threshold);
+            }
+        }
+        Subscription retired;
+        while ((retired = s_retired.poll()) != null)
+            retired.flush(slow_threshold);
+    }
+
+    private static void run_batches ()
+    {
+        while (s_batching) {
+            LockSupport.parkNanos(s_batch_tick);
+            flush_batches();
+        }
+    }
+
+    private static Subscription[] get_listeners (EventType type)
+    {
+        var table = s_listeners;
+        return type.id() < table.length ? table[type.id()] : null;
+    }
+
     private static void clear_listeners ()
     {
-        synchronized (s_listener_traversal_lock) {
-            s_listeners.clear();
-            s_listeners = null;
+        synchronized (s_listener_write_lock) {
+            s_listeners = s_no_listeners;
         }
     }
 
     public static void shutdown_immediately ()
     {
+        s_batching = false;
         clear_listeners();
-        s_dispatcher_service.shutdownNow();
+        for (var lane : s_lanes)
+            lane.shutdown(true);
     }
 
     public static void shutdown ()
     {
+        s_batching = false;
+        flush_batches();
         clear_listeners();
-        s_dispatcher_service.shutdown();
+        for (var lane : s_lanes)
+            lane.shutdown(false);
     }
 
-    static void add_listener (Event event, EventListener listener)
+    private static void replace_listeners (EventType type, Subscription[] listeners)
+    {
+        var table = s_listeners;
+        var copy = Arrays.copyOf(table, Math.max(table.length, type.id() + 1));
+        copy[type.id()] = listeners == null || listeners.length == 0 ? null : listeners;
+        s_listeners = copy;
+    }
+
+    private interface ListenerFilter {
+        boolean matches (EventListener listener);
+    }
+
+    // Removed BATCHED listeners still get the events they had pending, in one last batch.
+    private static void remove_matching (EventType type, ListenerFilter filter)
+    {
+        boolean retired = false;
+        synchronized (s_listener_write_lock) {
+            var listeners = get_listeners(type);
+            if (listeners == null)
+                return;
+            int kept = 0;
+            var remaining = new Subscription[listeners.length];
+            for (var listener : listeners) {
+                if (!filter.matches(listener.listener())) {
+                    remaining[kept++] = listener;
+                } else if (listener.mode() == DispatchMode.BATCHED) {
+                    s_retired.add(listener);
+                    retired = true;
+                }
+            }
+            if (kept != listeners.length)
+                replace_listeners(type, Arrays.copyOf(remaining, kept));
+        }
+        if (retired)
+            wake_batch_thread();
+    }
+
+    static void add_listener (EventType type, EventListener listener)
     {
-        synchronized (s_listener_traversal_lock) {
-            var existing_listeners = get_listeners(event);
+        add_listener(type, listener, DispatchMode.ASYNC, DEFAULT_BATCH_SIZE);
+    }
+
+    static void add_listener (EventType type, EventListener listener, DispatchMode mode)
+    {
+        add_listener(type, listener, mode, DEFAULT_BATCH_SIZE);
+    }
+
+    // `batch_size` only matters for BATCHED listeners: a full batch is delivered without waiting for the tick.
+    static void add_listener (EventType type, EventListener listener, DispatchMode mode, int batch_size)
+    {
+        if (mode == DispatchMode.BATCHED)
+            start_batch_thread();
+        synchronized (s_listener_write_lock) {
+            var existing_listeners = get_listeners(type);
+            var subscription = new Subscription(type, listener, mode, batch_size);
             if (existing_listeners == null) {
-                var list = new ArrayList<EventListener>();
-                list.add(listener);
-                s_listeners.put(event, list);
+                replace_listeners(type, new Subscription[]{subscription});
                 return;
             }
-            existing_listeners.add(listener);
+            var listeners = Arrays.copyOf(existing_listeners, existing_listeners.length + 1);
+            listeners[existing_listeners.length] = subscription;
+            replace_listeners(type, listeners);
         }
     }
 
+    static void add_listener (Event event, EventListener listener)
+    {
+        add_listener(event.type(), listener);
+    }
+
     static void remove_listener (Event event, EventListener listener)
     {
-        synchronized (s_listener_traversal_lock) {
-            var listeners = get_listeners(event);
-            listeners.removeIf(r -> r == listener);
-        }
+        remove_matching(event.type(), r -> r == listener);
     }
 
     static void remove_listeners_listening_to (Event event)
     {
-        synchronized (s_listener_traversal_lock) {
-            s_listeners.remove(event);
-        }
+        remove_matching(event.type(), r -> true);
     }
 
     static void remove_listeners_of_type (Event event, Class<? extends EventListener> klass)
     {
-        synchronized (s_listener_traversal_lock) {
-            var listeners = get_listeners(event);
-            listeners.removeIf(r -> r.getClass().equals(klass));
-        }
+        remove_matching(event.type(), r -> r.getClass().equals(klass));
     }
 }
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.event;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Canonical event kind. Each name is assigned a small, dense integer id the first time it is registered, so
+// the dispatcher can find listeners with an array index instead of hashing strings on every event.
+public final class EventType {
+    private static final Object s_registration_lock = new Object();
+    private static final Map<String, EventType> s_types = new ConcurrentHashMap<>();
+    private static int s_next_id = 0;
+
+    private final int m_id;
+    private final String m_name;
+    private volatile boolean m_coalescing;
+
+    private EventType (int id, String name)
+    {
+        m_id = id;
+        m_name = name;
+    }
+
+    public static EventType register (String name)
+    {
+        Objects.requireNonNull(name, "Event type name may not be null!");
+        var type = s_types.get(name);
+        if (type != null)
+            return type;
+        synchronized (s_registration_lock) {
+            return s_types.computeIfAbsent(name, key -> new EventType(s_next_id++, key));
+        }
+    }
+
+    // Coalescing types suit state and progress notifications: a queued event that hasn't been delivered yet
+    // is overwritten by a newer one with the same key, so listeners only see the latest.
+    public static EventType register (String name, boolean coalescing)
+    {
+        var type = register(name);
+        if (coalescing)
+            type.m_coalescing = true;
+        return type;
+    }
+
+    public static int count ()
+    {
+        synchronized (s_registration_lock) {
+            return s_next_id;
+        }
+    }
+
+    public int id ()
+    {
+        return m_id;
+    }
+
+    public String name ()
+    {
+        return m_name;
+    }
+
+    public boolean coalescing ()
+    {
+        return m_coalescing;
+    }
+
+    @Override
+    public String toString ()
+    {
+        return m_name + "#" + m_id;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.event;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Histogram of nanosecond durations with one bucket per power of two. Recording is a couple of atomic
+// increments and never allocates; quantiles are accurate to within a factor of two, which is plenty to
+// tell a 2 us listener from a 2 ms one.
+public class LogHistogram {
+    private static final int BUCKETS = 64;
+
+    public static class Snapshot {
+        private final long[] m_counts;
+        private final long m_count;
+        private final long m_sum;
+        private final long m_max;
+
+        private Snapshot (long[] counts, long sum, long max)
+        {
+            long count = 0;
+            for (var bucket : counts)
+                count += bucket;
+            m_counts = counts;
+            m_count = count;
+            m_sum = sum;
+            m_max = max;
+        }
+
+        public long count ()
+        {
+            return m_count;
+        }
+
+        public long max ()
+        {
+            return m_max;
+        }
+
+        public double mean ()
+        {
+            return m_count == 0 ? 0 : (double) m_sum / m_count;
+        }
+
+        // Upper bound of the bucket holding the `quantile` (0..1) sample, capped at the observed maximum.
+        public long quantile (double quantile)
+        {
+            if (m_count == 0)
+                return 0;
+            long rank = (long) Math.ceil(quantile * m_count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += m_counts[i];
+                if (seen >= rank && m_counts[i] > 0)
+                    return Math.min(upper_bound(i), m_max);
+            }
+            return m_max;
+        }
+
+        @Override
+        public String toString ()
+        {
+            return String.format("count=%d mean=%.0fns p50=%dns p99=%dns max=%dns", m_count, mean(), quantile(0.5), quantile(0.99), m_max);
+        }
+    }
+
+    private final AtomicLongArray m_counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong m_sum = new AtomicLong();
+    private final AtomicLong m_max = new AtomicLong();
+
+    private static int bucket (long nanos)
+    {
+        return nanos <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+    }
+
+    private static long upper_bound (int bucket)
+    {
+        return bucket >= 62 ? Long.MAX_VALUE : (1L << (bucket + 1)) - 1;
+    }
+
+    public void record (long nanos)
+    {
+        m_counts.getAndIncrement(bucket(nanos));
+        m_sum.getAndAdd(nanos);
+        long max;
+        while (nanos > (max = m_max.get()) && !m_max.compareAndSet(max, nanos))
+            ;
+    }
+
+    public Snapshot snapshot ()
+    {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            counts[i] = m_counts.get(i);
+        return new Snapshot(counts, m_sum.get(), m_max.get());
+    }
+}
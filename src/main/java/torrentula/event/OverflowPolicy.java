@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.event;
+
+// What a dispatch lane does with a new event when its queue is full.
+public enum OverflowPolicy {
+    // The firing thread waits for room. Lane threads firing into their own full lane drop the oldest instead,
+    // since waiting on themselves would never end.
+    BLOCK,
+    // The oldest queued event is discarded to make room.
+    DROP_OLDEST,
+    // The new event replaces a queued event of the same type and key; without one, behaves like BLOCK.
+    COALESCE
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.event;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+// Disruptor-style multi-producer ring of preallocated, mutable event slots. Producers claim a sequence,
+// fill the slot in place and publish it; consumers (see `BatchEventProcessor`) read every published slot in
+// order. Once constructed, nothing on the publish or consume path allocates.
+public class RingBuffer<T> {
+    public interface Translator<T, A> {
+        void translate (T slot, long sequence, A argument);
+    }
+
+    private static final VarHandle s_available = MethodHandles.arrayElementVarHandle(int[].class);
+
+    private final Object[] m_slots;
+    private final int m_mask;
+    private final int m_shift;
+    private final int[] m_available;
+    private final WaitStrategy m_wait_strategy;
+    private final Sequence m_cursor = new Sequence();
+    private final Sequence m_gating_cache = new Sequence();
+    private volatile Sequence[] m_gating_sequences = new Sequence[0];
+
+    public RingBuffer (int size, Supplier<T> factory, WaitStrategy wait_strategy)
+    {
+        if (size < 1 || Integer.bitCount(size) != 1)
+            throw new RuntimeException("Ring buffer size must be a power of two!");
+        m_slots = new Object[size];
+        for (int i = 0; i < size; i++)
+            m_slots[i] = factory.get();
+        m_mask = size - 1;
+        m_shift = Integer.numberOfTrailingZeros(size);
+        m_available = new int[size];
+        Arrays.fill(m_available, -1);
+        m_wait_strategy = wait_strategy;
+    }
+
+    public int size ()
+    {
+        return m_slots.length;
+    }
+
+    public WaitStrategy wait_strategy ()
+    {
+        return m_wait_strategy;
+    }
+
+    Sequence cursor ()
+    {
+        return m_cursor;
+    }
+
+    // Producers won't lap a gating sequence, i.e. overwrite slots a consumer hasn't processed yet.
+    public synchronized void add_gating_sequence (Sequence sequence)
+    {
+        var sequences = Arrays.copyOf(m_gating_sequences, m_gating_sequences.length + 1);
+        sequence.set(m_cursor.get());
+        sequences[sequences.length - 1] = sequence;
+        m_gating_sequences = sequences;
+    }
+
+    public synchronized void remove_gating_sequence (Sequence sequence)
+    {
+        var sequences = m_gating_sequences;
+        for (int i = 0; i < sequences.length; i++) {
+            if (sequences[i] == sequence) {
+                var remaining = new Sequence[sequences.length - 1];
+                System.arraycopy(sequences, 0, remaining, 0, i);
+                System.arraycopy(sequences, i + 1, remaining, i, remaining.length - i);
+                m_gating_sequences = remaining;
+                return;
+            }
+        }
+    }
+
+    private long minimum_gating_sequence (long minimum)
+    {
+        for (var sequence : m_gating_sequences)
+            minimum = Math.min(minimum, sequence.get());
+        return minimum;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get (long sequence)
+    {
+        return (T) m_slots[(int) sequence & m_mask];
+    }
+
+    public long next ()
+    {
+        return next(1);
+    }
+
+    // Claims `count` consecutive slots and returns the highest claimed sequence. Blocks while the ring is full.
+    public long next (int count)
+    {
+        if (count < 1 || count > m_slots.length)
+            throw new RuntimeException("Can't claim " + count + " slots!");
+        long current;
+        long next;
+        while (true) {
+            current = m_cursor.get();
+            next = current + count;
+            long wrap_point = next - m_slots.length;
+            long cached_gating = m_gating_cache.get();
+            if (wrap_point > cached_gating || cached_gating > current) {
+                long gating = minimum_gating_sequence(current);
+                if (wrap_point > gating) {
+                    LockSupport.parkNanos(1);
+                    continue;
+                }
+                m_gating_cache.set(gating);
+            } else if (m_cursor.compare_and_set(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    // Like `next()`, but returns -1 instead of waiting when the ring is full.
+    public long try_next ()
+    {
+        long current;
+        long next;
+        do {
+            current = m_cursor.get();
+            next = current + 1;
+            if (next - m_slots.length > minimum_gating_sequence(current))
+                return -1;
+        } while (!m_cursor.compare_and_set(current, next));
+        return next;
+    }
+
+    public void publish (long sequence)
+    {
+        s_available.setRelease(m_available, (int) sequence & m_mask, (int) (sequence >>> m_shift));
+    }
+
+    public void publish (long low, long high)
+    {
+        for (long sequence = low; sequence <= high; sequence++)
+            publish(sequence);
+    }
+
+    public <A> void publish_event (Translator<T, A> translator, A argument)
+    {
+        long sequence = next();
+        try {
+            translator.translate(get(sequence), sequence, argument);
+        } finally {
+            publish(sequence);
+        }
+    }
+
+    boolean is_available (long sequence)
+    {
+        return (int) s_available.getAcquire(m_available, (int) sequence & m_mask) == (int) (sequence >>> m_shift);
+    }
+
+    // Claims are made in order but published out of order; consumers may only advance over a gap-free run.
+    long highest_published (long low, long available)
+    {
+        for (long sequence = low; sequence <= available; sequence++) {
+            if (!is_available(sequence))
+                return sequence - 1;
+        }
+        return available;
+    }
+}
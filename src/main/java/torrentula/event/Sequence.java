@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.event;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+// A sequence counter padded on both sides so that producers and consumers spinning on neighbouring
+// sequences don't false-share a cache line.
+public class Sequence {
+    static final long INITIAL_VALUE = -1L;
+
+    private static final VarHandle s_value;
+
+    static {
+        try {
+            s_value = MethodHandles.lookup().findVarHandle(Sequence.class, "m_value", long.class);
+        } catch (ReflectiveOperationException exc) {
+            throw new RuntimeException(exc);
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private long p1, p2, p3, p4, p5, p6, p7;
+    private volatile long m_value;
+    @SuppressWarnings("unused")
+    private long p9, p10, p11, p12, p13, p14, p15;
+
+    public Sequence ()
+    {
+        this(INITIAL_VALUE);
+    }
+
+    public Sequence (long initial)
+    {
+        s_value.setRelease(this, initial);
+    }
+
+    public long get ()
+    {
+        return m_value;
+    }
+
+    public void set (long value)
+    {
+        // A release store is all publication needs; the full fence of a volatile write isn't.
+        s_value.setRelease(this, value);
+    }
+
+    public boolean compare_and_set (long expected, long value)
+    {
+        return s_value.compareAndSet(this, expected, value);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.event;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+// A listener registered for one event type, together with its dispatch mode, pending batch and its timing
+// and failure counters.
+final class Subscription {
+    private final EventType m_type;
+    private final EventListener m_listener;
+    private final DispatchMode m_mode;
+    private final int m_batch_size;
+    private final Object m_batch_lock = new Object();
+    private List<Event> m_batch = new ArrayList<>();
+    private final LogHistogram m_execution = new LogHistogram();
+    private final LongAdder m_exceptions = new LongAdder();
+    private final LongAdder m_slow = new LongAdder();
+    private volatile Throwable m_last_exception;
+
+    Subscription (EventType type, EventListener listener, DispatchMode mode, int batch_size)
+    {
+        if (batch_size < 1)
+            throw new RuntimeException("Batch size must be positive!");
+        m_type = type;
+        m_listener = listener;
+        m_mode = mode;
+        m_batch_size = batch_size;
+    }
+
+    EventListener listener ()
+    {
+        return m_listener;
+    }
+
+    DispatchMode mode ()
+    {
+        return m_mode;
+    }
+
+    private void failed (Throwable th)
+    {
+        m_exceptions.increment();
+        m_last_exception = th;
+        System.err.println("Listener failed for `" + m_type.name() + "`: " + th);
+    }
+
+    private void finished (long start, long slow_threshold)
+    {
+        long elapsed = System.nanoTime() - start;
+        m_execution.record(elapsed);
+        if (elapsed > slow_threshold)
+            m_slow.increment();
+    }
+
+    void invoke (Event event, long slow_threshold)
+    {
+        long start = System.nanoTime();
+        try {
+            m_listener.react(event);
+        } catch (Throwable th) {
+            failed(th);
+        } finally {
+            finished(start, slow_threshold);
+        }
+    }
+
+    // Returns true once the pending batch has reached its size limit.
+    boolean append (Event event)
+    {
+        synchronized (m_batch_lock) {
+            m_batch.add(event);
+            return m_batch.size() >= m_batch_size;
+        }
+    }
+
+    // Hands the pending batch to the listener. Only ever called from the batch thread, so batches are
+    // delivered one at a time and in order.
+    void flush (long slow_threshold)
+    {
+        List<Event> batch;
+        synchronized (m_batch_lock) {
+            if (m_batch.isEmpty())
+                return;
+            batch = m_batch;
+            m_batch = new ArrayList<>(Math.min(batch.size(), m_batch_size));
+        }
+        long start = System.nanoTime();
+        try {
+            if (m_listener instanceof BatchEventListener) {
+                ((BatchEventListener) m_listener).react(batch);
+            } else {
+                for (var event : batch)
+                    m_listener.react(event);
+            }
+        } catch (Throwable th) {
+            failed(th);
+        } finally {
+            finished(start, slow_threshold);
+        }
+    }
+
+    DispatcherMetrics.Listener metrics ()
+    {
+        return new DispatcherMetrics.Listener(m_type.name(), m_listener.getClass().getName(), m_mode,
+                m_execution.snapshot(), m_exceptions.sum(), m_slow.sum(), m_last_exception);
+    }
+}
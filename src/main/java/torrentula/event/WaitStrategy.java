@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.event;
+
+import java.util.concurrent.locks.LockSupport;
+
+// How a ring buffer consumer idles while waiting for producers. Lower latency costs more CPU.
+public enum WaitStrategy {
+    // Burns a core; lowest latency. Only for consumers pinned to otherwise idle cores.
+    BUSY_SPIN {
+        @Override
+        void idle (int attempt)
+        {
+            Thread.onSpinWait();
+        }
+    },
+    // Spins briefly, then yields the core to other runnable threads.
+    YIELD {
+        @Override
+        void idle (int attempt)
+        {
+            if (attempt < SPIN_TRIES)
+                Thread.onSpinWait();
+            else Thread.yield();
+        }
+    },
+    // Spins, yields, then sleeps in short parks. Near-zero CPU when idle at the cost of wake-up latency.
+    PARK {
+        @Override
+        void idle (int attempt)
+        {
+            if (attempt < SPIN_TRIES)
+                Thread.onSpinWait();
+            else if (attempt < SPIN_TRIES * 2)
+                Thread.yield();
+            else LockSupport.parkNanos(PARK_NANOS);
+        }
+    };
+
+    private static final int SPIN_TRIES = 100;
+    private static final long PARK_NANOS = 50_000;
+
+    abstract void idle (int attempt);
+
+    // Waits until `cursor` reaches `sequence` and returns the cursor, which may be further ahead.
+    long wait_for (long sequence, Sequence cursor, Sequence alert)
+    {
+        long available;
+        int attempt = 0;
+        while ((available = cursor.get()) < sequence) {
+            if (alert.get() != 0)
+                return Sequence.INITIAL_VALUE;
+            idle(attempt++);
+        }
+        return available;
+    }
+}
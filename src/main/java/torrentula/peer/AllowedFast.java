@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.peer;
+
+import torrentula.storage.HashPool;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+// The canonical allowed fast set of BEP 6: pieces a peer may request from us while choked. The set depends only
+// on the peer's /24 and the info hash, so reconnecting, or connecting from another port of the same network,
+// doesn't earn a peer more free pieces.
+public final class AllowedFast {
+    public static final int DEFAULT_SIZE = 10;
+
+    private AllowedFast ()
+    {
+    }
+
+    // `k` distinct pieces, in generation order; every piece if the torrent has no more than `k`. BEP 6 only
+    // defines the set for IPv4, so other peers get none.
+    public static int[] generate (byte[] info_hash, InetAddress address, int piece_count, int k)
+    {
+        if (!(address instanceof Inet4Address) || k <= 0)
+            return new int[0];
+        if (piece_count <= k) {
+            var pieces = new int[piece_count];
+            for (int i = 0; i < piece_count; i++)
+                pieces[i] = i;
+            return pieces;
+        }
+        byte[] x = new byte[24];
+        byte[] ip = address.getAddress();
+        System.arraycopy(ip, 0, x, 0, 3);
+        System.arraycopy(info_hash, 0, x, 4, 20);
+        var sha1 = HashPool.create_sha1();
+        var pieces = new int[k];
+        int count = 0;
+        while (count < k) {
+            x = sha1.digest(x);
+            var words = ByteBuffer.wrap(x);
+            for (int i = 0; i < 5 && count < k; i++) {
+                int index = (int) (Integer.toUnsignedLong(words.getInt()) % piece_count);
+                if (!contains(pieces, count, index))
+                    pieces[count++] = index;
+            }
+        }
+        return pieces;
+    }
+
+    private static boolean contains (int[] pieces, int count, int index)
+    {
+        for (int i = 0; i < count; i++) {
+            if (pieces[i] == index)
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.peer;
+
+import torrentula.client.BandwidthLimiter;
+import torrentula.client.TransferStats;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Peer connection for the blocking mode: plain socket streams, driven by one thread per connection. Reads
+// are only ever done by the owning thread; sends may come from any thread and are serialised by a
+// ReentrantLock rather than `synchronized`, which would pin a virtual thread to its carrier while it blocks.
+// For the same reason the streams are buffered here rather than by java.io's Buffered streams, whose methods
+// are all synchronized.
+//
+// Keep-alives are sent by the owning thread too: its reads wake up every KEEP_ALIVE_POLL, and send one if
+// nothing went out for KEEP_ALIVE_INTERVAL. A peer stuck on its end only ever stalls its own thread.
+public class BlockingPeerConnection {
+    static final int IDLE_TIMEOUT = 240 * 1000;
+    static final int KEEP_ALIVE_INTERVAL = 120 * 1000;
+    static final int KEEP_ALIVE_POLL = 30 * 1000;
+    private static final int MAX_MESSAGE_SIZE = 1 << 20;
+    private static final int BUFFER_SIZE = 8192;
+
+    private TorrentScope m_scope;
+    private final Socket m_socket;
+    private final boolean m_outgoing;
+    private final InputStream m_in;
+    private final OutputStream m_out;
+    // Received bytes not consumed yet are `m_in_buffer[m_in_position, m_in_limit)`; owner thread only.
+    private final byte[] m_in_buffer = new byte[BUFFER_SIZE];
+    private int m_in_position = 0;
+    private int m_in_limit = 0;
+    private final byte[] m_int = new byte[4];
+    private long m_last_received = System.currentTimeMillis();
+    // Guarded by `m_send_lock`.
+    private final byte[] m_out_buffer = new byte[BUFFER_SIZE];
+    private int m_out_length = 0;
+    private final ReentrantLock m_send_lock = new ReentrantLock();
+    private Handshake m_remote_handshake;
+    private TransferStats m_stats;
+    private volatile BandwidthLimiter m_download_limit;
+    private volatile BandwidthLimiter m_upload_limit;
+    private byte[] m_frame = new byte[256];
+    private volatile long m_last_sent = System.currentTimeMillis();
+    private volatile boolean m_closed = false;
+
+    // A received message. `payload` is only valid until the next `read()`.
+    public static final class Frame {
+        private final byte m_id;
+        private final ByteBuffer m_payload;
+
+        Frame (byte id, ByteBuffer payload)
+        {
+            m_id = id;
+            m_payload = payload;
+        }
+
+        public byte id ()
+        {
+            return m_id;
+        }
+
+        public ByteBuffer payload ()
+        {
+            return m_payload;
+        }
+    }
+
+    BlockingPeerConnection (TorrentScope scope, Socket socket, boolean outgoing) throws IOException
+    {
+        m_scope = scope;
+        m_socket = socket;
+        m_outgoing = outgoing;
+        m_socket.setSoTimeout(KEEP_ALIVE_POLL);
+        m_socket.setTcpNoDelay(true);
+        m_in = socket.getInputStream();
+        m_out = socket.getOutputStream();
+    }
+
+    public InetSocketAddress remote_address ()
+    {
+        return (InetSocketAddress) m_socket.getRemoteSocketAddress();
+    }
+
+    public boolean outgoing ()
+    {
+        return m_outgoing;
+    }
+
+    public boolean is_closed ()
+    {
+        return m_closed;
+    }
+
+    public Handshake remote_handshake ()
+    {
+        return m_remote_handshake;
+    }
+
+    public TorrentScope scope ()
+    {
+        return m_scope;
+    }
+
+    // Per-peer buckets; null lifts the limit. Throttled sessions simply sleep before touching the socket.
+    public void set_limits (BandwidthLimiter download, BandwidthLimiter upload)
+    {
+        m_download_limit = download;
+        m_upload_limit = upload;
+    }
+
+    private static void throttle (BandwidthLimiter limiter, long bytes) throws IOException
+    {
+        if (limiter == null)
+            return;
+        while (bytes > 0) {
+            int granted = limiter.acquire((int) Math.min(bytes, Integer.MAX_VALUE));
+            bytes -= granted;
+            if (granted == 0) {
+                try {
+                    Thread.sleep(limiter.retry_delay_millis());
+                } catch (InterruptedException exc) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while throttled");
+                }
+            }
+        }
+    }
+
+    // Incoming connections only learn their torrent from the handshake.
+    void bind (TorrentScope scope)
+    {
+        m_scope = scope;
+    }
+
+    public void set_stats (TransferStats stats)
+    {
+        m_stats = stats;
+    }
+
+    Handshake read_handshake () throws IOException
+    {
+        var bytes = new byte[Handshake.SIZE];
+        read_fully(bytes, 0, bytes.length);
+        m_remote_handshake = Handshake.decode(ByteBuffer.wrap(bytes));
+        return m_remote_handshake;
+    }
+
+    void send_handshake (Handshake handshake) throws IOException
+    {
+        send(handshake.encode());
+    }
+
+    // Blocks until the next message that isn't a keep-alive.
+    public Frame read () throws IOException
+    {
+        while (true) {
+            read_fully(m_int, 0, 4);
+            int length = ByteBuffer.wrap(m_int).getInt();
+            if (length == 0) {
+                account_protocol_in(4);
+                continue;
+            }
+            if (length < 0 || length > MAX_MESSAGE_SIZE)
+                throw new IOException("Bad message length " + length);
+            throttle(m_download_limit, 4L + length);
+            if (m_frame.length < length)
+                m_frame = new byte[Math.max(length, Message.BLOCK_SIZE + Message.PIECE_HEADER_SIZE)];
+            read_fully(m_frame, 0, length);
+            byte id = m_frame[0];
+            if (id == Message.PIECE && length >= 9) {
+                account_protocol_in(Message.PIECE_HEADER_SIZE);
+                if (m_stats != null)
+                    m_stats.add_payload_downloaded(length - 9);
+            } else account_protocol_in(4 + length);
+            return new Frame(id, ByteBuffer.wrap(m_frame, 1, length - 1).slice());
+        }
+    }
+
+    private void read_fully (byte[] bytes, int offset, int length) throws IOException
+    {
+        while (length > 0) {
+            if (m_in_position == m_in_limit) {
+                // Large reads skip the buffer.
+                if (length >= m_in_buffer.length) {
+                    int read = read_socket(bytes, offset, length);
+                    offset += read;
+                    length -= read;
+                    continue;
+                }
+                m_in_position = 0;
+                m_in_limit = read_socket(m_in_buffer, 0, m_in_buffer.length);
+            }
+            int count = Math.min(length, m_in_limit - m_in_position);
+            System.arraycopy(m_in_buffer, m_in_position, bytes, offset, count);
+            m_in_position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    // Reads at least one byte. Timeouts only mean the poll interval is up: send a keep-alive if one is due, and
+    // give up once the peer has been silent for IDLE_TIMEOUT.
+    private int read_socket (byte[] bytes, int offset, int length) throws IOException
+    {
+        while (true) {
+            try {
+                int read = m_in.read(bytes, offset, length);
+                if (read < 0)
+                    throw new EOFException("Connection closed by peer");
+                m_last_received = System.currentTimeMillis();
+                return read;
+            } catch (SocketTimeoutException exc) {
+                long now = System.currentTimeMillis();
+                if (now - m_last_received >= IDLE_TIMEOUT)
+                    throw exc;
+                if (now - m_last_sent >= KEEP_ALIVE_INTERVAL)
+                    send_keep_alive();
+            }
+        }
+    }
+
+    private void account_protocol_in (long bytes)
+    {
+        if (m_stats != null)
+            m_stats.add_protocol_downloaded(bytes);
+    }
+
+    public void send_keep_alive () throws IOException
+    {
+        send(Message.keep_alive());
+    }
+
+    public void send_choke () throws IOException
+    {
+        send(Message.simple(Message.CHOKE));
+    }
+
+    public void send_unchoke () throws IOException
+    {
+        send(Message.simple(Message.UNCHOKE));
+    }
+
+    public void send_interested () throws IOException
+    {
+        send(Message.simple(Message.INTERESTED));
+    }
+
+    public void send_not_interested () throws IOException
+    {
+        send(Message.simple(Message.NOT_INTERESTED));
+    }
+
+    public void send_have (int index) throws IOException
+    {
+        send(Message.have(index));
+    }
+
+    public void send_bitfield (byte[] bitfield) throws IOException
+    {
+        send(Message.bitfield(bitfield));
+    }
+
+    public void send_request (int index, int begin, int length) throws IOException
+    {
+        send(Message.request(index, begin, length));
+    }
+
+    public void send_cancel (int index, int begin, int length) throws IOException
+    {
+        send(Message.cancel(index, begin, length));
+    }
+
+    public void send_piece (int index, int begin, ByteBuffer block) throws IOException
+    {
+        int length = block.remaining();
+        send(Message.piece_header(index, begin, length), block);
+        if (m_stats != null) {
+            m_stats.add_payload_uploaded(length);
+            m_stats.add_protocol_uploaded(Message.PIECE_HEADER_SIZE);
+        }
+    }
+
+    public void send (ByteBuffer... buffers) throws IOException
+    {
+        long total = 0;
+        for (var buffer : buffers)
+            total += buffer.remaining();
+        m_send_lock.lock();
+        try {
+            throttle(m_upload_limit, total);
+            for (var buffer : buffers) {
+                // Big heap buffers go out as they are, after whatever is buffered ahead of them.
+                if (buffer.hasArray() && buffer.remaining() >= m_out_buffer.length) {
+                    flush_output();
+                    m_out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                    buffer.position(buffer.limit());
+                    continue;
+                }
+                while (buffer.hasRemaining()) {
+                    if (m_out_length == m_out_buffer.length)
+                        flush_output();
+                    int count = Math.min(buffer.remaining(), m_out_buffer.length - m_out_length);
+                    buffer.get(m_out_buffer, m_out_length, count);
+                    m_out_length += count;
+                }
+            }
+            flush_output();
+            m_last_sent = System.currentTimeMillis();
+        } finally {
+            m_send_lock.unlock();
+        }
+    }
+
+    private void flush_output () throws IOException
+    {
+        if (m_out_length == 0)
+            return;
+        m_out.write(m_out_buffer, 0, m_out_length);
+        m_out_length = 0;
+    }
+
+    // Safe from any thread; unblocks the owning thread's pending read.
+    public void close ()
+    {
+        if (m_closed)
+            return;
+        m_closed = true;
+        try {
+            m_socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public String toString ()
+    {
+        return "BlockingPeerConnection[" + m_socket.getRemoteSocketAddress() + (m_closed ? ", closed]" : "]");
+    }
+}
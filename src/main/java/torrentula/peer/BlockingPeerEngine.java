@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.peer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+// Thread-per-connection alternative to `PeerEngine`. Session code is written as plain blocking reads and
+// writes (see `PeerTask`) and runs on a virtual thread where the runtime has them.
+//
+// Virtual threads stay pinned to their carrier while inside `synchronized` or native calls, so this mode
+// never blocks under a monitor itself, and sessions should wrap anything that might pin (file I/O through
+// RandomAccessFile, third-party code holding monitors) in `pinned()`. That bounds how many carriers can be
+// tied up at once to `max_pinned`, leaving the rest free to run the other sessions.
+public class BlockingPeerEngine {
+    private final byte[] m_peer_id;
+    private final byte[] m_reserved = new byte[8];
+    private final ThreadFactory m_threads = PeerThreads.factory("peer");
+    private final Semaphore m_pinning;
+    private final Map<ByteBuffer, TorrentScope> m_scopes = new ConcurrentHashMap<>();
+    private final List<ServerSocket> m_servers = new ArrayList<>();
+    private volatile boolean m_disposed = false;
+
+    public BlockingPeerEngine (byte[] peer_id)
+    {
+        this(peer_id, Runtime.getRuntime().availableProcessors());
+    }
+
+    public BlockingPeerEngine (byte[] peer_id, int max_pinned)
+    {
+        if (peer_id.length != 20)
+            throw new RuntimeException("Peer id must be 20 bytes!");
+        m_peer_id = peer_id.clone();
+        m_pinning = new Semaphore(Math.max(1, max_pinned));
+    }
+
+    public static boolean uses_virtual_threads ()
+    {
+        return PeerThreads.virtual();
+    }
+
+    byte[] peer_id ()
+    {
+        return m_peer_id;
+    }
+
+    byte[] reserved ()
+    {
+        return m_reserved;
+    }
+
+    ThreadFactory thread_factory ()
+    {
+        return m_threads;
+    }
+
+    // Opens the scope for one torrent; `incoming` runs for every accepted peer that asks for it.
+    public TorrentScope open (byte[] info_hash, PeerTask incoming)
+    {
+        if (info_hash.length != 20)
+            throw new RuntimeException("Info hash must be 20 bytes!");
+        var scope = new TorrentScope(this, info_hash.clone(), incoming);
+        if (m_scopes.putIfAbsent(ByteBuffer.wrap(scope.info_hash()), scope) != null)
+            throw new RuntimeException("Torrent is already open!");
+        return scope;
+    }
+
+    void on_closed (TorrentScope scope)
+    {
+        m_scopes.remove(ByteBuffer.wrap(scope.info_hash()), scope);
+    }
+
+    public int connection_count ()
+    {
+        int count = 0;
+        for (var scope : m_scopes.values())
+            count += scope.connection_count();
+        return count;
+    }
+
+    // Runs `task` while holding one of the `max_pinned` permits; see the class comment.
+    public <T> T pinned (Callable<T> task) throws Exception
+    {
+        m_pinning.acquire();
+        try {
+            return task.call();
+        } finally {
+            m_pinning.release();
+        }
+    }
+
+    public InetSocketAddress listen (InetSocketAddress address) throws IOException
+    {
+        var server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(address, 1024);
+        synchronized (m_servers) {
+            m_servers.add(server);
+        }
+        m_threads.newThread(() -> accept_loop(server)).start();
+        return (InetSocketAddress) server.getLocalSocketAddress();
+    }
+
+    private void accept_loop (ServerSocket server)
+    {
+        while (!m_disposed && !server.isClosed()) {
+            try {
+                var socket = server.accept();
+                m_threads.newThread(() -> handle_incoming(socket)).start();
+            } catch (IOException ioe) {
+                if (!server.isClosed())
+                    System.err.println("Accept failed: " + ioe.getMessage());
+            }
+        }
+    }
+
+    private void handle_incoming (Socket socket)
+    {
+        try {
+            var connection = new BlockingPeerConnection(null, socket, false);
+            var handshake = connection.read_handshake();
+            var scope = m_scopes.get(ByteBuffer.wrap(handshake.info_hash()));
+            if (scope == null || scope.is_cancelled()) {
+                socket.close();
+                return;
+            }
+            connection.bind(scope);
+            scope.adopt(socket, connection);
+        } catch (IOException | RuntimeException exc) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    public void dispose ()
+    {
+        m_disposed = true;
+        synchronized (m_servers) {
+            for (var server : m_servers) {
+                try {
+                    server.close();
+                } catch (IOException ignored) {
+                }
+            }
+            m_servers.clear();
+        }
+        for (var scope : m_scopes.values())
+            scope.cancel();
+        m_scopes.clear();
+    }
+}
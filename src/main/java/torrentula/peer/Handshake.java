@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.peer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class Handshake {
+    public static final int SIZE = 68;
+    // Reserved bit announcing the fast extension (BEP 6): the third least significant bit of the last byte.
+    static final int FAST_BYTE = 7;
+    static final byte FAST_BIT = 0x04;
+    private static final byte[] PROTOCOL = "BitTorrent protocol".getBytes(StandardCharsets.US_ASCII);
+
+    private final byte[] m_reserved;
+    private final byte[] m_info_hash;
+    private final byte[] m_peer_id;
+
+    public Handshake (byte[] reserved, byte[] info_hash, byte[] peer_id)
+    {
+        if (reserved.length != 8 || info_hash.length != 20 || peer_id.length != 20)
+            throw new RuntimeException("Invalid handshake field length!");
+        m_reserved = reserved;
+        m_info_hash = info_hash;
+        m_peer_id = peer_id;
+    }
+
+    public byte[] reserved ()
+    {
+        return m_reserved;
+    }
+
+    public boolean supports_fast ()
+    {
+        return (m_reserved[FAST_BYTE] & FAST_BIT) != 0;
+    }
+
+    public byte[] info_hash ()
+    {
+        return m_info_hash;
+    }
+
+    public byte[] peer_id ()
+    {
+        return m_peer_id;
+    }
+
+    public ByteBuffer encode ()
+    {
+        return ByteBuffer.allocate(SIZE)
+                .put((byte) PROTOCOL.length)
+                .put(PROTOCOL)
+                .put(m_reserved)
+                .put(m_info_hash)
+                .put(m_peer_id)
+                .flip();
+    }
+
+    // Consumes SIZE bytes from `buffer`.
+    public static Handshake decode (ByteBuffer buffer)
+    {
+        if (buffer.get() != PROTOCOL.length)
+            throw new RuntimeException("Unknown protocol in handshake!");
+        byte[] protocol = new byte[PROTOCOL.length];
+        buffer.get(protocol);
+        if (!Arrays.equals(protocol, PROTOCOL))
+            throw new RuntimeException("Unknown protocol in handshake!");
+        byte[] reserved = new byte[8];
+        byte[] info_hash = new byte[20];
+        byte[] peer_id = new byte[20];
+        buffer.get(reserved).get(info_hash).get(peer_id);
+        return new Handshake(reserved, info_hash, peer_id);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.peer;
+
+import torrentula.piece.Block;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+// Peer wire message ids and encoders. Every encoder returns a buffer ready to be written.
+public final class Message {
+    public static final byte CHOKE = 0;
+    public static final byte UNCHOKE = 1;
+    public static final byte INTERESTED = 2;
+    public static final byte NOT_INTERESTED = 3;
+    public static final byte HAVE = 4;
+    public static final byte BITFIELD = 5;
+    public static final byte REQUEST = 6;
+    public static final byte PIECE = 7;
+    public static final byte CANCEL = 8;
+    public static final byte PORT = 9;
+    // Fast extension (BEP 6).
+    public static final byte SUGGEST_PIECE = 0x0D;
+    public static final byte HAVE_ALL = 0x0E;
+    public static final byte HAVE_NONE = 0x0F;
+    public static final byte REJECT_REQUEST = 0x10;
+    public static final byte ALLOWED_FAST = 0x11;
+
+    // Length prefix, id, index and begin.
+    public static final int PIECE_HEADER_SIZE = 13;
+    public static final int BLOCK_SIZE = 16 * 1024;
+
+    private Message ()
+    {
+    }
+
+    public static ByteBuffer keep_alive ()
+    {
+        return ByteBuffer.allocate(4).putInt(0).flip();
+    }
+
+    public static ByteBuffer simple (byte id)
+    {
+        return ByteBuffer.allocate(5).putInt(1).put(id).flip();
+    }
+
+    public static ByteBuffer have (int index)
+    {
+        return ByteBuffer.allocate(9).putInt(5).put(HAVE).putInt(index).flip();
+    }
+
+    public static ByteBuffer bitfield (byte[] bitfield)
+    {
+        return ByteBuffer.allocate(5 + bitfield.length).putInt(1 + bitfield.length).put(BITFIELD).put(bitfield).flip();
+    }
+
+    public static ByteBuffer request (int index, int begin, int length)
+    {
+        return block_message(REQUEST, index, begin, length);
+    }
+
+    // Several requests back to back in one buffer.
+    public static ByteBuffer requests (List<Block> blocks)
+    {
+        var buffer = ByteBuffer.allocate(17 * blocks.size());
+        for (var block : blocks)
+            buffer.putInt(13).put(REQUEST).putInt(block.piece()).putInt(block.begin()).putInt(block.length());
+        return buffer.flip();
+    }
+
+    public static ByteBuffer cancel (int index, int begin, int length)
+    {
+        return block_message(CANCEL, index, begin, length);
+    }
+
+    private static ByteBuffer block_message (byte id, int index, int begin, int length)
+    {
+        return ByteBuffer.allocate(17).putInt(13).put(id).putInt(index).putInt(begin).putInt(length).flip();
+    }
+
+    public static ByteBuffer piece_header (int index, int begin, int length)
+    {
+        return ByteBuffer.allocate(PIECE_HEADER_SIZE).putInt(9 + length).put(PIECE).putInt(index).putInt(begin).flip();
+    }
+
+    public static ByteBuffer suggest_piece (int index)
+    {
+        return ByteBuffer.allocate(9).putInt(5).put(SUGGEST_PIECE).putInt(index).flip();
+    }
+
+    public static ByteBuffer reject_request (int index, int begin, int length)
+    {
+        return block_message(REJECT_REQUEST, index, begin, length);
+    }
+
+    // One ALLOWED_FAST per piece, back to back in one buffer.
+    public static ByteBuffer allowed_fast (int[] pieces)
+    {
+        var buffer = ByteBuffer.allocate(9 * pieces.length);
+        for (int piece : pieces)
+            buffer.putInt(5).put(ALLOWED_FAST).putInt(piece);
+        return buffer.flip();
+    }
+
+    public static ByteBuffer port (int port)
+    {
+        return ByteBuffer.allocate(7).putInt(3).put(PORT).putShort((short) port).flip();
+    }
+}
@@ -0,0 +1,971 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.peer;
+
+import torrentula.client.BandwidthLimiter;
+import torrentula.client.TransferStats;
+import torrentula.piece.Bitfield;
+import torrentula.piece.Block;
+import torrentula.storage.FileStorage;
+import torrentula.storage.Lease;
+import torrentula.storage.ReadCache;
+import torrentula.storage.SlabAllocator;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// One peer wire connection driven by a `SelectorLoop`. Everything except the `send_*` methods and `close`
+// runs on the loop thread. Messages are parsed out of a small input buffer; piece payloads are the
+// exception and are read from the socket straight into a pooled block buffer.
+public class PeerConnection {
+    enum State {
+        CONNECTING,
+        HANDSHAKING,
+        ACTIVE,
+        CLOSED
+    }
+
+    // `header`, if any, goes out right before `buffer`; keeping both in one entry stops a message from another
+    // thread landing between a piece header and its payload.
+    // A file-backed entry has no `buffer`; its bytes go from `segments` to the socket with transferTo.
+    private static class Outgoing {
+        final ByteBuffer header;
+        final ByteBuffer buffer;
+        final Runnable on_done;
+        final FileStorage storage;
+        final List<FileStorage.Segment> segments;
+        int segment;
+        long transferred;
+
+        Outgoing (ByteBuffer header, ByteBuffer buffer, Runnable on_done)
+        {
+            this(header, buffer, on_done, null, null);
+        }
+
+        Outgoing (ByteBuffer header, ByteBuffer buffer, Runnable on_done, FileStorage storage,
+                  List<FileStorage.Segment> segments)
+        {
+            this.header = header;
+            this.buffer = buffer;
+            this.on_done = on_done;
+            this.storage = storage;
+            this.segments = segments;
+        }
+
+        boolean is_file ()
+        {
+            return segments != null;
+        }
+
+        boolean is_written ()
+        {
+            if (header != null && header.hasRemaining())
+                return false;
+            return is_file() ? segment == segments.size() : !buffer.hasRemaining();
+        }
+
+        long remaining_bytes ()
+        {
+            if (!is_file())
+                return buffer.remaining();
+            long remaining = -transferred;
+            for (int i = segment; i < segments.size(); i++)
+                remaining += segments.get(i).length;
+            return remaining;
+        }
+
+        // Moves up to `budget` bytes of the current segment to `channel`.
+        long transfer (SocketChannel channel, long budget) throws IOException
+        {
+            var current = segments.get(segment);
+            long sent = storage.transfer(current.file, current.position + transferred,
+                    Math.min(current.length - transferred, budget), channel);
+            transferred += sent;
+            if (transferred == current.length) {
+                segment++;
+                transferred = 0;
+            }
+            return sent;
+        }
+    }
+
+    static final int INPUT_SIZE = 256;
+    static final int MAX_MESSAGE_SIZE = 1 << 20;
+    static final long HANDSHAKE_TIMEOUT = 30_000; // Milliseconds.
+    static final long KEEP_ALIVE_INTERVAL = 120_000; // Milliseconds.
+    static final long IDLE_TIMEOUT = 240_000; // Milliseconds.
+    // Most ALLOWED_FAST pieces remembered from one peer; anything beyond is ignored.
+    static final int MAX_ALLOWED_FAST = 64;
+    private static final int MAX_READS_PER_WAKEUP = 16;
+    // Most bytes asked of the upload limiter per write.
+    private static final int WRITE_GRANT = 64 * 1024;
+    private static final int MAX_GATHER = 16;
+
+    private final SelectorLoop m_loop;
+    private final SocketChannel m_channel;
+    private final boolean m_outgoing;
+    private final InetSocketAddress m_remote_address;
+    private final byte[] m_local_id;
+    private SelectionKey m_key;
+    private volatile State m_state;
+    private byte[] m_info_hash;
+    private Handshake m_remote_handshake;
+    private PeerHandler m_handler;
+    private volatile TransferStats m_stats;
+    private volatile BandwidthLimiter m_download_limit;
+    private volatile BandwidthLimiter m_upload_limit;
+
+    private final ByteBuffer m_input = ByteBuffer.allocate(INPUT_SIZE);
+    // Target of a bulk read: a piece payload or a message too large for `m_input`.
+    private ByteBuffer m_body;
+    private Lease m_body_lease;
+    private byte m_body_id;
+    private int m_piece_index;
+    private int m_piece_begin;
+    // Reading stops while the buffer pool is dry, the hash pool is saturated or the download limiter is out of
+    // tokens; either way the bytes stay in the kernel and TCP flow control slows the peer down.
+    private boolean m_read_paused;
+    private boolean m_read_throttled;
+    private boolean m_write_throttled;
+
+    private final Queue<Outgoing> m_outbox = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<Outgoing> m_writing = new ArrayDeque<>();
+    private final ByteBuffer[] m_gather = new ByteBuffer[MAX_GATHER];
+    private ByteBuffer m_clipped;
+    private int m_clipped_limit;
+    private final AtomicBoolean m_write_scheduled = new AtomicBoolean();
+
+    private long m_state_since;
+    private long m_last_received;
+    private long m_last_sent;
+
+    private volatile boolean m_am_choking = true;
+    private volatile boolean m_am_interested = false;
+    private volatile boolean m_peer_choking = true;
+    private volatile boolean m_peer_interested = false;
+    // Set once both handshakes carried the fast extension bit.
+    private volatile boolean m_fast = false;
+    // Pieces the peer lets us request while it chokes us, and those we let it request while we choke it.
+    private final Set<Integer> m_allowed_fast = ConcurrentHashMap.newKeySet();
+    private final Set<Integer> m_granted_fast = ConcurrentHashMap.newKeySet();
+
+    PeerConnection (SelectorLoop loop, SocketChannel channel, boolean outgoing, InetSocketAddress remote,
+                    byte[] local_id, byte[] info_hash, PeerHandler handler)
+    {
+        m_loop = loop;
+        m_channel = channel;
+        m_outgoing = outgoing;
+        m_remote_address = remote;
+        m_local_id = local_id;
+        m_info_hash = info_hash;
+        m_handler = handler;
+        m_state = outgoing ? State.CONNECTING : State.HANDSHAKING;
+        m_state_since = m_last_received = m_last_sent = System.currentTimeMillis();
+    }
+
+    public InetSocketAddress remote_address ()
+    {
+        return m_remote_address;
+    }
+
+    public boolean outgoing ()
+    {
+        return m_outgoing;
+    }
+
+    public boolean is_active ()
+    {
+        return m_state == State.ACTIVE;
+    }
+
+    public boolean is_closed ()
+    {
+        return m_state == State.CLOSED;
+    }
+
+    public byte[] info_hash ()
+    {
+        return m_info_hash;
+    }
+
+    public Handshake remote_handshake ()
+    {
+        return m_remote_handshake;
+    }
+
+    public boolean am_choking ()
+    {
+        return m_am_choking;
+    }
+
+    public boolean am_interested ()
+    {
+        return m_am_interested;
+    }
+
+    public boolean peer_choking ()
+    {
+        return m_peer_choking;
+    }
+
+    public boolean peer_interested ()
+    {
+        return m_peer_interested;
+    }
+
+    public boolean supports_fast ()
+    {
+        return m_fast;
+    }
+
+    // Pieces we may request from the peer even while it chokes us.
+    public Set<Integer> allowed_fast ()
+    {
+        return Collections.unmodifiableSet(m_allowed_fast);
+    }
+
+    // Whether the peer may have blocks of `index` while we choke it.
+    public boolean is_granted_fast (int index)
+    {
+        return m_granted_fast.contains(index);
+    }
+
+    public void set_stats (TransferStats stats)
+    {
+        m_stats = stats;
+    }
+
+    // Per-peer buckets, usually children of the torrent's; null lifts the limit.
+    public void set_limits (BandwidthLimiter download, BandwidthLimiter upload)
+    {
+        m_download_limit = download;
+        m_upload_limit = upload;
+    }
+
+    void attach (SelectionKey key)
+    {
+        m_key = key;
+    }
+
+    // ---- Sending. Safe from any thread.
+
+    private void enqueue (ByteBuffer buffer, Runnable on_done, int payload)
+    {
+        enqueue(null, buffer, on_done, payload);
+    }
+
+    private void enqueue (ByteBuffer header, ByteBuffer buffer, Runnable on_done, int payload)
+    {
+        enqueue(new Outgoing(header, buffer, on_done), payload);
+    }
+
+    private void enqueue (Outgoing outgoing, int payload)
+    {
+        if (m_state == State.CLOSED) {
+            if (outgoing.on_done != null)
+                outgoing.on_done.run();
+            return;
+        }
+        var stats = m_stats;
+        if (stats != null) {
+            var header = outgoing.header;
+            stats.add_protocol_uploaded((header == null ? 0 : header.remaining()) + outgoing.remaining_bytes() - payload);
+            stats.add_payload_uploaded(payload);
+        }
+        m_outbox.add(outgoing);
+        // `close` may have drained the outbox between the check above and the add. Whichever side takes the
+        // entry out of the queue runs its `on_done`, so a lease is given back exactly once.
+        if (m_state == State.CLOSED) {
+            if (m_outbox.remove(outgoing) && outgoing.on_done != null)
+                outgoing.on_done.run();
+            return;
+        }
+        if (m_write_scheduled.compareAndSet(false, true))
+            m_loop.execute(this::enable_writes);
+    }
+
+    public void send_keep_alive ()
+    {
+        enqueue(Message.keep_alive(), null, 0);
+    }
+
+    public void send_choke ()
+    {
+        m_am_choking = true;
+        enqueue(Message.simple(Message.CHOKE), null, 0);
+    }
+
+    public void send_unchoke ()
+    {
+        m_am_choking = false;
+        enqueue(Message.simple(Message.UNCHOKE), null, 0);
+    }
+
+    public void send_interested ()
+    {
+        m_am_interested = true;
+        enqueue(Message.simple(Message.INTERESTED), null, 0);
+    }
+
+    public void send_not_interested ()
+    {
+        m_am_interested = false;
+        enqueue(Message.simple(Message.NOT_INTERESTED), null, 0);
+    }
+
+    public void send_have (int index)
+    {
+        enqueue(Message.have(index), null, 0);
+    }
+
+    public void send_bitfield (byte[] bitfield)
+    {
+        enqueue(Message.bitfield(bitfield), null, 0);
+    }
+
+    // Announces `have` in as few bytes as possible. With the fast extension a seed or an empty client sends a
+    // single five byte message; without it an empty bitfield is simply left out.
+    public void send_have_set (Bitfield have)
+    {
+        if (m_fast && have.is_full())
+            send_have_all();
+        else if (m_fast && have.is_empty())
+            send_have_none();
+        else if (!have.is_empty())
+            send_bitfield(have.to_bytes());
+    }
+
+    public void send_have_all ()
+    {
+        require_fast();
+        enqueue(Message.simple(Message.HAVE_ALL), null, 0);
+    }
+
+    public void send_have_none ()
+    {
+        require_fast();
+        enqueue(Message.simple(Message.HAVE_NONE), null, 0);
+    }
+
+    public void send_reject_request (int index, int begin, int length)
+    {
+        require_fast();
+        enqueue(Message.reject_request(index, begin, length), null, 0);
+    }
+
+    public void send_suggest_piece (int index)
+    {
+        require_fast();
+        enqueue(Message.suggest_piece(index), null, 0);
+    }
+
+    // Lets the peer request `pieces` while we choke it, so a newcomer with nothing to trade can still get its
+    // first pieces.
+    public void send_allowed_fast (int[] pieces)
+    {
+        require_fast();
+        for (int piece : pieces)
+            m_granted_fast.add(piece);
+        if (pieces.length > 0)
+            enqueue(Message.allowed_fast(pieces), null, 0);
+    }
+
+    // Grants the peer its canonical allowed fast set for a torrent of `piece_count` pieces.
+    public void send_allowed_fast (int piece_count)
+    {
+        send_allowed_fast(AllowedFast.generate(m_info_hash, m_remote_address.getAddress(), piece_count,
+                AllowedFast.DEFAULT_SIZE));
+    }
+
+    private void require_fast ()
+    {
+        if (!m_fast)
+            throw new RuntimeException("Peer doesn't support the fast extension!");
+    }
+
+    public void send_request (int index, int begin, int length)
+    {
+        enqueue(Message.request(index, begin, length), null, 0);
+    }
+
+    // All of `blocks` as one buffer, so a refilled pipeline costs a single write.
+    public void send_requests (List<Block> blocks)
+    {
+        if (!blocks.isEmpty())
+            enqueue(Message.requests(blocks), null, 0);
+    }
+
+    public void send_cancel (int index, int begin, int length)
+    {
+        enqueue(Message.cancel(index, begin, length), null, 0);
+    }
+
+    public void send_port (int port)
+    {
+        enqueue(Message.port(port), null, 0);
+    }
+
+    // `block` is written as is, without copying; `on_done` runs once it has been written or dropped, and is
+    // the place to give the buffer back.
+    public void send_piece (int index, int begin, ByteBuffer block, Runnable on_done)
+    {
+        int length = block.remaining();
+        enqueue(Message.piece_header(index, begin, length), block, on_done, length);
+    }
+
+    // Sends the remaining bytes of the leased buffer and releases the lease once they are out.
+    public void send_piece (int index, int begin, Lease block)
+    {
+        send_piece(index, begin, block.buffer(), block::release);
+    }
+
+    // Sends `length` bytes at `begin` of `piece` from `storage`. With a `cache` every block goes through it, so
+    // misses fill it and back-to-back requests trigger its read-ahead; a block that isn't cached yet is read on
+    // `disk` and queued from there, and a failed read closes the connection. Without a cache, unthrottled
+    // uploads use transferTo, so the file bytes never enter the Java heap and the header is the only thing
+    // copied, and a rate limited connection gets a buffered copy, as it could only move one small grant per
+    // transferTo call.
+    public void send_piece (int index, int begin, int length, FileStorage storage, ReadCache cache, Executor disk) throws IOException
+    {
+        if (cache != null) {
+            cache.read_async(storage, index, begin, length, this, disk).whenComplete((block, error) -> {
+                if (error != null)
+                    m_loop.execute(() -> close(error instanceof CompletionException ? error.getCause() : error));
+                else send_piece(index, begin, block.data(), block::release);
+            });
+            return;
+        }
+        long offset = index * storage.piece_length() + begin;
+        if (m_upload_limit != null) {
+            var lease = m_loop.allocator().lease(length);
+            var buffer = lease != null ? lease.buffer() : ByteBuffer.allocate(length);
+            buffer.limit(length);
+            try {
+                storage.read(offset, buffer);
+            } catch (IOException ioe) {
+                if (lease != null)
+                    lease.release();
+                throw ioe;
+            }
+            buffer.flip();
+            send_piece(index, begin, buffer, lease == null ? null : lease::release);
+            return;
+        }
+        var header = Message.piece_header(index, begin, length);
+        enqueue(new Outgoing(header, null, null, storage, storage.map(offset, length)), length);
+    }
+
+    // Queues an already encoded message.
+    public void send_raw (ByteBuffer message)
+    {
+        enqueue(message, null, 0);
+    }
+
+    public void close ()
+    {
+        m_loop.execute(() -> close(null));
+    }
+
+    // ---- Loop thread from here on.
+
+    private void enable_writes ()
+    {
+        if (m_state == State.CLOSED || m_state == State.CONNECTING || m_write_throttled || m_key == null || !m_key.isValid())
+            return;
+        m_key.interestOps(m_key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    void on_connectable ()
+    {
+        try {
+            if (!m_channel.finishConnect())
+                return;
+        } catch (IOException ioe) {
+            close(ioe);
+            return;
+        }
+        m_state = State.HANDSHAKING;
+        m_state_since = System.currentTimeMillis();
+        m_key.interestOps(SelectionKey.OP_READ);
+        send_handshake();
+        enable_writes();
+    }
+
+    private void send_handshake ()
+    {
+        var handshake = new Handshake(m_loop.reserved(), m_info_hash, m_local_id).encode();
+        // Goes in front of anything queued while connecting.
+        m_writing.addFirst(new Outgoing(null, handshake, null));
+        var stats = m_stats;
+        if (stats != null)
+            stats.add_protocol_uploaded(Handshake.SIZE);
+        if (m_key != null && m_key.isValid())
+            m_key.interestOps(m_key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    void on_writable ()
+    {
+        m_write_scheduled.set(false);
+        Outgoing outgoing;
+        while ((outgoing = m_outbox.poll()) != null)
+            m_writing.add(outgoing);
+        try {
+            while (!m_writing.isEmpty()) {
+                var limiter = m_state == State.ACTIVE ? m_upload_limit : null;
+                int budget = Integer.MAX_VALUE;
+                if (limiter != null) {
+                    budget = limiter.acquire(WRITE_GRANT);
+                    if (budget == 0) {
+                        throttle_writes(limiter);
+                        return;
+                    }
+                }
+                var head = m_writing.peekFirst();
+                long written;
+                if (head.is_file() && (head.header == null || !head.header.hasRemaining())) {
+                    written = head.transfer(m_channel, budget);
+                } else {
+                    int count = gather(budget);
+                    written = m_channel.write(m_gather, 0, count);
+                    Arrays.fill(m_gather, 0, count, null);
+                    if (m_clipped != null) {
+                        m_clipped.limit(m_clipped_limit);
+                        m_clipped = null;
+                    }
+                }
+                if (limiter != null && written < budget)
+                    limiter.give_back((int) (budget - written));
+                if (written > 0)
+                    m_last_sent = System.currentTimeMillis();
+                while (!m_writing.isEmpty() && m_writing.peekFirst().is_written()) {
+                    var done = m_writing.pollFirst();
+                    if (done.on_done != null)
+                        done.on_done.run();
+                }
+                if (written == 0)
+                    break;
+            }
+        } catch (IOException ioe) {
+            close(ioe);
+            return;
+        }
+        if (m_writing.isEmpty() && m_outbox.isEmpty() && m_key.isValid())
+            m_key.interestOps(m_key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    // Fills `m_gather` with at most `budget` bytes of pending output, clipping the last buffer if needed. It
+    // stops at the header of a file-backed entry, whose data can only follow by transferTo.
+    private int gather (int budget)
+    {
+        int count = 0;
+        long total = 0;
+        for (var pending : m_writing) {
+            if (count > MAX_GATHER - 2 || total >= budget)
+                break;
+            if (pending.header != null && pending.header.hasRemaining())
+                total = add_to_gather(count++, pending.header, total, budget);
+            if (pending.is_file())
+                break;
+            if (total < budget)
+                total = add_to_gather(count++, pending.buffer, total, budget);
+        }
+        return count;
+    }
+
+    private long add_to_gather (int index, ByteBuffer buffer, long total, int budget)
+    {
+        m_gather[index] = buffer;
+        total += buffer.remaining();
+        if (total > budget) {
+            m_clipped = buffer;
+            m_clipped_limit = buffer.limit();
+            buffer.limit(buffer.limit() - (int) (total - budget));
+            total = budget;
+        }
+        return total;
+    }
+
+    private void throttle_writes (BandwidthLimiter limiter)
+    {
+        m_write_throttled = true;
+        if (m_key.isValid())
+            m_key.interestOps(m_key.interestOps() & ~SelectionKey.OP_WRITE);
+        m_loop.schedule(limiter.retry_delay_millis(), () -> {
+            m_write_throttled = false;
+            enable_writes();
+        });
+    }
+
+    // Reads into `target`, no more than the download limiter allows. Returns 0 and throttles reading if it
+    // allows nothing.
+    private int read_limited (ByteBuffer target) throws IOException
+    {
+        var limiter = m_state == State.ACTIVE ? m_download_limit : null;
+        if (limiter == null)
+            return m_channel.read(target);
+        int budget = limiter.acquire(target.remaining());
+        if (budget == 0) {
+            throttle_reads(limiter);
+            return 0;
+        }
+        int limit = target.limit();
+        target.limit(target.position() + budget);
+        int read;
+        try {
+            read = m_channel.read(target);
+        } finally {
+            target.limit(limit);
+        }
+        if (read < budget)
+            limiter.give_back(budget - Math.max(read, 0));
+        return read;
+    }
+
+    private void throttle_reads (BandwidthLimiter limiter)
+    {
+        m_read_throttled = true;
+        update_read_interest();
+        m_loop.schedule(limiter.retry_delay_millis(), () -> {
+            m_read_throttled = false;
+            if (m_state == State.CLOSED)
+                return;
+            update_read_interest();
+            on_readable();
+        });
+    }
+
+    void on_readable ()
+    {
+        try {
+            for (int reads = 0; reads < MAX_READS_PER_WAKEUP && !m_read_paused && !m_read_throttled && m_state != State.CLOSED; reads++) {
+                int read;
+                if (m_body != null) {
+                    read = read_limited(m_body);
+                    if (read < 0)
+                        throw new EOFException("Peer closed the connection");
+                    if (!m_body.hasRemaining()) {
+                        finish_body();
+                        // Bytes left over in `m_input` belong to the next message.
+                        if (m_state != State.CLOSED && m_input.position() > 0)
+                            parse_input();
+                    }
+                } else {
+                    read = read_limited(m_input);
+                    if (read < 0)
+                        throw new EOFException("Peer closed the connection");
+                    if (read > 0)
+                        parse_input();
+                }
+                if (read == 0)
+                    break;
+                m_last_received = System.currentTimeMillis();
+            }
+        } catch (IOException | RuntimeException exc) {
+            close(exc);
+        }
+    }
+
+    private void set_reading (boolean reading)
+    {
+        m_read_paused = !reading;
+        update_read_interest();
+    }
+
+    private void update_read_interest ()
+    {
+        if (m_key == null || !m_key.isValid())
+            return;
+        int ops = m_key.interestOps();
+        boolean reading = !m_read_paused && !m_read_throttled;
+        m_key.interestOps(reading ? ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ);
+    }
+
+    // Parses complete messages out of `m_input`, which is in write mode on entry and exit.
+    private void parse_input ()
+    {
+        m_input.flip();
+        try {
+            while (m_state != State.CLOSED && m_body == null && parse_one())
+                ;
+        } finally {
+            m_input.compact();
+        }
+    }
+
+    private boolean parse_one ()
+    {
+        if (m_state == State.HANDSHAKING) {
+            if (m_input.remaining() < Handshake.SIZE)
+                return false;
+            on_handshake(Handshake.decode(m_input));
+            return true;
+        }
+        if (m_input.remaining() < 4)
+            return false;
+        int start = m_input.position();
+        int length = m_input.getInt(start);
+        if (length == 0) {
+            m_input.position(start + 4);
+            account_protocol(4);
+            return true;
+        }
+        if (length < 0 || length > MAX_MESSAGE_SIZE)
+            throw new RuntimeException("Invalid message length " + length + "!");
+        if (m_input.remaining() < 5)
+            return false;
+        byte id = m_input.get(start + 4);
+
+        if (id == Message.PIECE) {
+            if (m_input.remaining() < Message.PIECE_HEADER_SIZE)
+                return false;
+            int payload = length - 9;
+            if (payload < 0 || payload > SlabAllocator.BLOCK_SIZE)
+                throw new RuntimeException("Invalid piece payload length " + payload + "!");
+            var lease = m_loop.can_read_piece() ? m_loop.allocator().lease_block() : null;
+            if (lease == null) {
+                // Out of memory or hashing capacity: leave the header where it is and stop reading until the
+                // loop resumes us.
+                set_reading(false);
+                return false;
+            }
+            m_body_lease = lease;
+            var block = lease.buffer();
+            m_input.position(start + 5);
+            m_piece_index = m_input.getInt();
+            m_piece_begin = m_input.getInt();
+            account_protocol(Message.PIECE_HEADER_SIZE);
+            block.limit(payload);
+            return start_body(Message.PIECE, block);
+        }
+
+        if (4 + length <= INPUT_SIZE) {
+            if (m_input.remaining() < 4 + length)
+                return false;
+            m_input.position(start + 5);
+            var payload = m_input.slice();
+            payload.limit(length - 1);
+            m_input.position(start + 4 + length);
+            account_protocol(4 + length);
+            handle_message(id, payload);
+            return true;
+        }
+
+        // Too big for the input buffer, e.g. the bitfield of a large torrent.
+        m_input.position(start + 5);
+        account_protocol(4 + length);
+        return start_body(id, ByteBuffer.allocate(length - 1));
+    }
+
+    // Moves whatever part of the body already sits in `m_input` into the body buffer; the rest is read
+    // straight from the socket. Returns true if the body was complete already.
+    private boolean start_body (byte id, ByteBuffer body)
+    {
+        m_body_id = id;
+        m_body = body;
+        int available = Math.min(m_input.remaining(), body.remaining());
+        if (available > 0) {
+            var slice = m_input.slice();
+            slice.limit(available);
+            body.put(slice);
+            m_input.position(m_input.position() + available);
+        }
+        if (body.hasRemaining())
+            return false;
+        finish_body();
+        return true;
+    }
+
+    private void finish_body ()
+    {
+        var body = m_body;
+        m_body = null;
+        body.flip();
+        if (m_body_id == Message.PIECE) {
+            var lease = m_body_lease;
+            m_body_lease = null;
+            var stats = m_stats;
+            if (stats != null)
+                stats.add_payload_downloaded(body.remaining());
+            m_loop.publish_block(this, m_piece_index, m_piece_begin, body.remaining());
+            m_handler.on_piece(this, m_piece_index, m_piece_begin, lease);
+        } else handle_message(m_body_id, body);
+    }
+
+    private void account_protocol (int bytes)
+    {
+        var stats = m_stats;
+        if (stats != null)
+            stats.add_protocol_downloaded(bytes);
+    }
+
+    private void on_handshake (Handshake handshake)
+    {
+        account_protocol(Handshake.SIZE);
+        m_remote_handshake = handshake;
+        if (m_outgoing) {
+            if (!Arrays.equals(handshake.info_hash(), m_info_hash))
+                throw new RuntimeException("Info-hash mismatch in handshake!");
+        } else {
+            m_info_hash = handshake.info_hash();
+            m_handler = m_loop.router().route(this, handshake);
+            if (m_handler == null) {
+                close(new RuntimeException("No torrent for incoming handshake"));
+                return;
+            }
+            send_handshake();
+        }
+        m_fast = handshake.supports_fast() && (m_loop.reserved()[Handshake.FAST_BYTE] & Handshake.FAST_BIT) != 0;
+        m_state = State.ACTIVE;
+        m_state_since = System.currentTimeMillis();
+        m_handler.on_connected(this);
+    }
+
+    private void handle_message (byte id, ByteBuffer payload)
+    {
+        switch (id) {
+            case Message.CHOKE -> {
+                m_peer_choking = true;
+                m_handler.on_choke(this);
+            }
+            case Message.UNCHOKE -> {
+                m_peer_choking = false;
+                m_handler.on_unchoke(this);
+            }
+            case Message.INTERESTED -> {
+                m_peer_interested = true;
+                m_handler.on_interested(this);
+            }
+            case Message.NOT_INTERESTED -> {
+                m_peer_interested = false;
+                m_handler.on_not_interested(this);
+            }
+            case Message.HAVE -> {
+                int index = payload.getInt();
+                m_loop.publish_have(this, index);
+                m_handler.on_have(this, index);
+            }
+            case Message.BITFIELD -> {
+                byte[] bitfield = new byte[payload.remaining()];
+                payload.get(bitfield);
+                m_handler.on_bitfield(this, bitfield);
+            }
+            case Message.REQUEST -> m_handler.on_request(this, payload.getInt(), payload.getInt(), payload.getInt());
+            case Message.CANCEL -> m_handler.on_cancel(this, payload.getInt(), payload.getInt(), payload.getInt());
+            case Message.PORT -> m_handler.on_port(this, payload.getShort() & 0xFFFF);
+            case Message.HAVE_ALL, Message.HAVE_NONE, Message.REJECT_REQUEST, Message.SUGGEST_PIECE,
+                 Message.ALLOWED_FAST -> handle_fast_message(id, payload);
+            default -> m_handler.on_unknown(this, id, payload);
+        }
+    }
+
+    private void handle_fast_message (byte id, ByteBuffer payload)
+    {
+        if (!m_fast)
+            throw new RuntimeException("Fast extension message " + id + " without the extension!");
+        switch (id) {
+            case Message.HAVE_ALL -> m_handler.on_have_all(this);
+            case Message.HAVE_NONE -> m_handler.on_have_none(this);
+            case Message.REJECT_REQUEST ->
+                m_handler.on_reject_request(this, payload.getInt(), payload.getInt(), payload.getInt());
+            case Message.SUGGEST_PIECE -> m_handler.on_suggest_piece(this, payload.getInt());
+            case Message.ALLOWED_FAST -> {
+                int index = payload.getInt();
+                if (m_allowed_fast.size() < MAX_ALLOWED_FAST)
+                    m_allowed_fast.add(index);
+                m_handler.on_allowed_fast(this, index);
+            }
+        }
+    }
+
+    // Called by the loop about once a second.
+    void on_tick (long now)
+    {
+        if (m_state == State.CLOSED)
+            return;
+        if (m_state != State.ACTIVE) {
+            if (now - m_state_since > HANDSHAKE_TIMEOUT)
+                close(new RuntimeException("Handshake timed out"));
+            return;
+        }
+        if (now - m_last_received > IDLE_TIMEOUT) {
+            close(new RuntimeException("Peer went silent"));
+            return;
+        }
+        if (now - m_last_sent > KEEP_ALIVE_INTERVAL)
+            send_keep_alive();
+        resume_reading();
+    }
+
+    void resume_reading ()
+    {
+        if (!m_read_paused || m_state == State.CLOSED || !m_loop.can_read_piece())
+            return;
+        set_reading(true);
+        // The header that stalled us is still waiting in `m_input`.
+        parse_input();
+        on_readable();
+    }
+
+    void close (Throwable cause)
+    {
+        if (m_state == State.CLOSED)
+            return;
+        m_state = State.CLOSED;
+        if (m_key != null)
+            m_key.cancel();
+        try {
+            m_channel.close();
+        } catch (IOException ignored) {
+        }
+        if (m_body_lease != null)
+            m_body_lease.release();
+        m_body_lease = null;
+        m_body = null;
+        Outgoing outgoing;
+        while ((outgoing = m_outbox.poll()) != null)
+            m_writing.add(outgoing);
+        for (var pending : m_writing) {
+            if (pending.on_done != null)
+                pending.on_done.run();
+        }
+        m_writing.clear();
+        m_loop.on_closed(this);
+        if (m_handler != null)
+            m_handler.on_closed(this, cause);
+    }
+
+    @Override
+    public String toString ()
+    {
+        return "PeerConnection[" + m_remote_address + ", " + m_state + "]";
+    }
+}
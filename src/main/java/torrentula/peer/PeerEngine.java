@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.peer;
+
+import torrentula.event.RingBuffer;
+import torrentula.storage.HashPool;
+import torrentula.storage.SlabAllocator;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Non-blocking peer wire engine: a handful of selector threads (one per core by default) shared by every
+// connection in the process. Memory per idle connection is a few hundred bytes; piece payloads are read
+// straight into leased blocks from a capped `SlabAllocator`.
+public class PeerEngine {
+    private final byte[] m_peer_id;
+    private final byte[] m_reserved = new byte[8];
+    private final SlabAllocator m_allocator;
+    private final HandshakeRouter m_router;
+    private final SelectorLoop[] m_loops;
+    private final List<ServerSocketChannel> m_servers = new ArrayList<>();
+    private final AtomicInteger m_next_loop = new AtomicInteger();
+    private final Runnable m_resume_reads = this::resume_reads;
+    private volatile HashPool m_hashes;
+    private volatile RingBuffer<PeerEvent> m_events;
+
+    public PeerEngine (byte[] peer_id, HandshakeRouter router) throws IOException
+    {
+        this(peer_id, router, Runtime.getRuntime().availableProcessors(), SlabAllocator.shared());
+    }
+
+    public PeerEngine (byte[] peer_id, HandshakeRouter router, int threads, SlabAllocator allocator) throws IOException
+    {
+        if (peer_id.length != 20)
+            throw new RuntimeException("Peer id must be 20 bytes!");
+        m_peer_id = peer_id.clone();
+        m_reserved[Handshake.FAST_BYTE] |= Handshake.FAST_BIT;
+        m_router = router;
+        m_allocator = allocator;
+        m_loops = new SelectorLoop[Math.max(1, threads)];
+        for (int i = 0; i < m_loops.length; i++)
+            m_loops[i] = new SelectorLoop(this, "peer-loop-" + i);
+    }
+
+    SlabAllocator allocator ()
+    {
+        return m_allocator;
+    }
+
+    HandshakeRouter router ()
+    {
+        return m_router;
+    }
+
+    // Piece payloads are only read while the hash pool keeps up; a saturated pool stalls them in the kernel,
+    // which makes TCP slow the senders down, until it has drained.
+    public void set_hash_pool (HashPool hashes)
+    {
+        var old = m_hashes;
+        if (old != null)
+            old.remove_drain_listener(m_resume_reads);
+        m_hashes = hashes;
+        if (hashes != null)
+            hashes.add_drain_listener(m_resume_reads);
+    }
+
+    // Blocks and HAVEs received by any connection are published to `events` from then on; null stops it.
+    public void set_events (RingBuffer<PeerEvent> events)
+    {
+        m_events = events;
+    }
+
+    // A full ring drops the event rather than stall the selector thread.
+    void publish_block (PeerConnection connection, int piece, int begin, int length)
+    {
+        var events = m_events;
+        if (events == null)
+            return;
+        long sequence = events.try_next();
+        if (sequence < 0)
+            return;
+        events.get(sequence).set_block(connection, piece, begin, length);
+        events.publish(sequence);
+    }
+
+    void publish_have (PeerConnection connection, int piece)
+    {
+        var events = m_events;
+        if (events == null)
+            return;
+        long sequence = events.try_next();
+        if (sequence < 0)
+            return;
+        events.get(sequence).set_have(connection, piece);
+        events.publish(sequence);
+    }
+
+    // Whether a connection may start reading another piece payload.
+    boolean can_read_piece ()
+    {
+        var hashes = m_hashes;
+        return m_allocator.can_lease_block() && (hashes == null || !hashes.is_saturated());
+    }
+
+    private void resume_reads ()
+    {
+        for (var loop : m_loops)
+            loop.execute(loop::resume_reads);
+    }
+
+    byte[] reserved ()
+    {
+        return m_reserved;
+    }
+
+    public byte[] peer_id ()
+    {
+        return m_peer_id.clone();
+    }
+
+    private SelectorLoop next_loop ()
+    {
+        return m_loops[(m_next_loop.getAndIncrement() & Integer.MAX_VALUE) % m_loops.length];
+    }
+
+    public int connection_count ()
+    {
+        int count = 0;
+        for (var loop : m_loops)
+            count += loop.connection_count();
+        return count;
+    }
+
+    public InetSocketAddress listen (InetSocketAddress address) throws IOException
+    {
+        var server = ServerSocketChannel.open();
+        server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        server.bind(address, 1024);
+        server.configureBlocking(false);
+        synchronized (m_servers) {
+            m_servers.add(server);
+        }
+        m_loops[0].register_acceptor(server);
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    void accept (ServerSocketChannel server)
+    {
+        SocketChannel channel;
+        try {
+            while ((channel = server.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                var loop = next_loop();
+                var connection = new PeerConnection(loop, channel, false,
+                        (InetSocketAddress) channel.getRemoteAddress(), m_peer_id, null, null);
+                loop.on_opened();
+                loop.register_incoming(connection, channel);
+            }
+        } catch (IOException ioe) {
+            System.err.println("Accept failed: " + ioe.getMessage());
+        }
+    }
+
+    public PeerConnection connect (InetSocketAddress address, byte[] info_hash, PeerHandler handler) throws IOException
+    {
+        var channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        var loop = next_loop();
+        var connection = new PeerConnection(loop, channel, true, address, m_peer_id, info_hash.clone(), handler);
+        loop.on_opened();
+        loop.register_outgoing(address, connection, channel);
+        return connection;
+    }
+
+    public void dispose ()
+    {
+        set_hash_pool(null);
+        synchronized (m_servers) {
+            for (var server : m_servers) {
+                try {
+                    server.close();
+                } catch (IOException ignored) {
+                }
+            }
+            m_servers.clear();
+        }
+        for (var loop : m_loops)
+            loop.dispose();
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.peer;
+
+// A preallocated, reusable slot on the session's event ring (see `RingBuffer`) for the events that fire too
+// often to allocate for: blocks arriving, HAVE messages and per-torrent rate ticks. A consumer reads a slot
+// only inside `on_event`; the ring refills it once every consumer has moved past it.
+public final class PeerEvent {
+    public enum Type {
+        BLOCK_RECEIVED,
+        HAVE,
+        RATE_TICK
+    }
+
+    private Type m_type;
+    private PeerConnection m_connection;
+    private byte[] m_info_hash;
+    private int m_piece;
+    private int m_begin;
+    private int m_length;
+    private long m_download_rate;
+    private long m_upload_rate;
+
+    public void set_block (PeerConnection connection, int piece, int begin, int length)
+    {
+        set(Type.BLOCK_RECEIVED, connection, connection.info_hash());
+        m_piece = piece;
+        m_begin = begin;
+        m_length = length;
+    }
+
+    public void set_have (PeerConnection connection, int piece)
+    {
+        set(Type.HAVE, connection, connection.info_hash());
+        m_piece = piece;
+    }
+
+    // Bytes per second over the last second, for the torrent as a whole.
+    public void set_rate_tick (byte[] info_hash, long download_rate, long upload_rate)
+    {
+        set(Type.RATE_TICK, null, info_hash);
+        m_download_rate = download_rate;
+        m_upload_rate = upload_rate;
+    }
+
+    private void set (Type type, PeerConnection connection, byte[] info_hash)
+    {
+        m_type = type;
+        m_connection = connection;
+        m_info_hash = info_hash;
+        m_piece = -1;
+        m_begin = 0;
+        m_length = 0;
+        m_download_rate = 0;
+        m_upload_rate = 0;
+    }
+
+    public Type type ()
+    {
+        return m_type;
+    }
+
+    // Null for rate ticks.
+    public PeerConnection connection ()
+    {
+        return m_connection;
+    }
+
+    // Shared, not copied; don't modify it.
+    public byte[] info_hash ()
+    {
+        return m_info_hash;
+    }
+
+    public int piece ()
+    {
+        return m_piece;
+    }
+
+    public int begin ()
+    {
+        return m_begin;
+    }
+
+    public int length ()
+    {
+        return m_length;
+    }
+
+    public long download_rate ()
+    {
+        return m_download_rate;
+    }
+
+    public long upload_rate ()
+    {
+        return m_upload_rate;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.peer;
+
+import torrentula.storage.Lease;
+
+import java.nio.ByteBuffer;
+
+// Callbacks for one peer connection. All of them run on the connection's selector thread, so they must not
+// block; hand anything slow off to another thread.
+public interface PeerHandler {
+    default void on_connected (PeerConnection connection)
+    {
+    }
+
+    default void on_choke (PeerConnection connection)
+    {
+    }
+
+    default void on_unchoke (PeerConnection connection)
+    {
+    }
+
+    default void on_interested (PeerConnection connection)
+    {
+    }
+
+    default void on_not_interested (PeerConnection connection)
+    {
+    }
+
+    default void on_have (PeerConnection connection, int index)
+    {
+    }
+
+    default void on_bitfield (PeerConnection connection, byte[] bitfield)
+    {
+    }
+
+    // The fast extension's compact bitfields, sent instead of BITFIELD.
+    default void on_have_all (PeerConnection connection)
+    {
+    }
+
+    default void on_have_none (PeerConnection connection)
+    {
+    }
+
+    default void on_request (PeerConnection connection, int index, int begin, int length)
+    {
+    }
+
+    default void on_cancel (PeerConnection connection, int index, int begin, int length)
+    {
+    }
+
+    // `block.buffer()` holds the payload between position and limit. The handler owns the lease; it can pass
+    // it on to hashing and disk as is, and must `release()` it once done.
+    default void on_piece (PeerConnection connection, int index, int begin, Lease block)
+    {
+        block.release();
+    }
+
+    // The peer will not send this block; with the fast extension a choke no longer drops pending requests by
+    // itself, so every one of them is answered by a block or a reject.
+    default void on_reject_request (PeerConnection connection, int index, int begin, int length)
+    {
+    }
+
+    // A hint that `index` is cheap for the peer to serve, e.g. because it is in its cache.
+    default void on_suggest_piece (PeerConnection connection, int index)
+    {
+    }
+
+    // `index` may be requested even while the peer chokes us; see `PeerConnection.allowed_fast()`.
+    default void on_allowed_fast (PeerConnection connection, int index)
+    {
+    }
+
+    default void on_port (PeerConnection connection, int port)
+    {
+    }
+
+    // Messages this engine doesn't know, with the id byte already consumed.
+    default void on_unknown (PeerConnection connection, byte id, ByteBuffer payload)
+    {
+    }
+
+    default void on_closed (PeerConnection connection, Throwable cause)
+    {
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.peer;
+
+import java.io.IOException;
+
+// Body of a blocking peer session. Runs on the connection's own thread once the handshake is done; the
+// connection is closed when it returns or throws.
+@FunctionalInterface
+public interface PeerTask {
+    void run (BlockingPeerConnection connection) throws IOException, InterruptedException;
+}
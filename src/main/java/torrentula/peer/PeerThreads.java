@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.peer;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Thread factories for the blocking peer mode. On runtimes with virtual threads every connection gets one;
+// elsewhere we fall back to daemon platform threads with a small stack so a few thousand peers stay cheap.
+final class PeerThreads {
+    private static final long FALLBACK_STACK_SIZE = 256 * 1024;
+    private static final Method s_of_virtual;
+    private static final Method s_name;
+    private static final Method s_factory;
+
+    static {
+        Method of_virtual = null, name = null, factory = null;
+        try {
+            of_virtual = Thread.class.getMethod("ofVirtual");
+            var builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+        } catch (ReflectiveOperationException exc) {
+            of_virtual = null;
+        }
+        s_of_virtual = of_virtual;
+        s_name = name;
+        s_factory = factory;
+    }
+
+    private PeerThreads ()
+    {
+    }
+
+    static boolean virtual ()
+    {
+        return s_of_virtual != null;
+    }
+
+    static ThreadFactory factory (String prefix)
+    {
+        if (s_of_virtual != null) {
+            try {
+                var builder = s_of_virtual.invoke(null);
+                builder = s_name.invoke(builder, prefix + "-", 0L);
+                return (ThreadFactory) s_factory.invoke(builder);
+            } catch (ReflectiveOperationException exc) {
+                // Preview builds can refuse at runtime; fall through.
+            }
+        }
+        var counter = new AtomicLong();
+        return task -> {
+            var thread = new Thread(null, task, prefix + "-" + counter.getAndIncrement(), FALLBACK_STACK_SIZE);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
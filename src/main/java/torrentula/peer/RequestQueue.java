@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.peer;
+
+import torrentula.piece.Bitfield;
+import torrentula.piece.Block;
+import torrentula.piece.PiecePicker;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Outstanding block requests to one peer.
+//
+// The target depth is the bandwidth-delay product: the measured download rate from this peer times its round
+// trip time, in blocks. It is doubled so the pipe can keep growing while the rate is still limited by our own
+// queue, and clamped to [min, max]. The RTT is the smallest request-to-arrival time seen over the last
+// RTT_WINDOW, which filters out time spent queued behind other blocks.
+//
+// Not thread-safe; use it from the connection's thread. All times are System.nanoTime() values.
+public class RequestQueue {
+    public static final int DEFAULT_MIN_DEPTH = 4;
+    public static final int DEFAULT_MAX_DEPTH = 256;
+    static final long RATE_WINDOW = 500_000_000L;
+    static final long RTT_WINDOW = 10_000_000_000L;
+    static final long MIN_TIMEOUT = 5_000_000_000L;
+    static final long MAX_TIMEOUT = 60_000_000_000L;
+    private static final long SECOND = 1_000_000_000L;
+
+    private final int m_min_depth;
+    private final int m_max_depth;
+    private final Map<Block, Long> m_outstanding = new LinkedHashMap<>();
+    private double m_rate = 0;                // Bytes per second, smoothed.
+    private long m_window_start = -1;
+    private long m_window_bytes = 0;
+    private long m_rtt = -1;
+    private long m_rtt_since = 0;
+
+    public RequestQueue ()
+    {
+        this(DEFAULT_MIN_DEPTH, DEFAULT_MAX_DEPTH);
+    }
+
+    public RequestQueue (int min_depth, int max_depth)
+    {
+        if (min_depth < 1 || max_depth < min_depth)
+            throw new RuntimeException("Invalid pipeline bounds!");
+        m_min_depth = min_depth;
+        m_max_depth = max_depth;
+    }
+
+    public int outstanding ()
+    {
+        return m_outstanding.size();
+    }
+
+    public boolean is_outstanding (Block block)
+    {
+        return m_outstanding.containsKey(block);
+    }
+
+    public double rate ()
+    {
+        return m_rate;
+    }
+
+    // -1 until the first block has arrived.
+    public long rtt ()
+    {
+        return m_rtt;
+    }
+
+    public int target_depth ()
+    {
+        if (m_rtt < 0 || m_rate <= 0)
+            return m_min_depth;
+        double bdp = m_rate * m_rtt / SECOND / PiecePicker.BLOCK_SIZE;
+        return (int) Math.max(m_min_depth, Math.min(m_max_depth, Math.ceil(2 * bdp)));
+    }
+
+    // How long a request may stay unanswered: a few times the time needed to drain the queue ahead of it.
+    public long timeout ()
+    {
+        if (m_rtt < 0 || m_rate <= 0)
+            return MAX_TIMEOUT;
+        long drain = (long) (m_outstanding.size() * (double) PiecePicker.BLOCK_SIZE / m_rate * SECOND);
+        return Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, 3 * (m_rtt + drain)));
+    }
+
+    // Picks enough blocks to bring the queue up to its target depth. The result should go out in one
+    // `send_requests()`.
+    public List<Block> fill (PiecePicker picker, Object peer, Bitfield bitfield, long now)
+    {
+        int wanted = target_depth() - m_outstanding.size();
+        if (wanted <= 0)
+            return List.of();
+        var blocks = picker.pick(peer, bitfield, wanted);
+        for (var block : blocks)
+            m_outstanding.put(block, now);
+        return blocks;
+    }
+
+    // While the peer chokes us, fills the queue from the pieces it lets us have anyway (BEP 6 allowed fast),
+    // so a connection with nothing to trade yet can still start downloading.
+    public List<Block> fill_allowed_fast (PiecePicker picker, Object peer, Bitfield bitfield, Set<Integer> allowed,
+                                          long now)
+    {
+        if (allowed.isEmpty())
+            return List.of();
+        var mask = new Bitfield(bitfield.size());
+        for (int piece : allowed) {
+            if (piece >= 0 && piece < mask.size())
+                mask.set(piece);
+        }
+        return fill(picker, peer, mask.and(bitfield), now);
+    }
+
+    // Records an arriving block and returns false if it wasn't requested from this peer (or was cancelled).
+    public boolean on_block (Block block, long now)
+    {
+        var sent = m_outstanding.remove(block);
+        account(block.length(), now);
+        if (sent == null)
+            return false;
+        long sample = now - sent;
+        if (m_rtt < 0 || sample <= m_rtt || now - m_rtt_since > RTT_WINDOW) {
+            m_rtt = sample;
+            m_rtt_since = now;
+        }
+        return true;
+    }
+
+    private void account (int bytes, long now)
+    {
+        if (m_window_start < 0)
+            m_window_start = now;
+        m_window_bytes += bytes;
+        long elapsed = now - m_window_start;
+        if (elapsed < RATE_WINDOW)
+            return;
+        double sample = (double) m_window_bytes * SECOND / elapsed;
+        // Follow increases at once so a fresh connection ramps up in a few windows; smooth out the drops.
+        m_rate = sample > m_rate ? sample : 0.75 * m_rate + 0.25 * sample;
+        m_window_start = now;
+        m_window_bytes = 0;
+    }
+
+    // The block arrived from another peer. Returns true if it was outstanding here and a CANCEL should be sent.
+    public boolean cancel (Block block)
+    {
+        return m_outstanding.remove(block) != null;
+    }
+
+    // Drops requests that have waited longer than `timeout()`, hands them back to the picker so other peers can
+    // be asked, and returns them so the caller can cancel them with this peer.
+    public List<Block> expire (PiecePicker picker, Object peer, long now)
+    {
+        long timeout = timeout();
+        List<Block> expired = null;
+        for (Iterator<Map.Entry<Block, Long>> it = m_outstanding.entrySet().iterator(); it.hasNext(); ) {
+            var entry = it.next();
+            // Requests are kept in sending order, so the first young one ends the scan.
+            if (now - entry.getValue() < timeout)
+                break;
+            it.remove();
+            var block = entry.getKey();
+            picker.on_request_failed(peer, block.piece(), block.begin());
+            if (expired == null)
+                expired = new ArrayList<>();
+            expired.add(block);
+        }
+        if (expired != null) {
+            // A stalled peer shouldn't keep a deep pipeline.
+            m_rate /= 2;
+        }
+        return expired == null ? List.of() : expired;
+    }
+
+    // The peer rejected a request (BEP 6); the block goes back to the picker for another peer. Returns false if
+    // it wasn't outstanding here, which the extension treats as a protocol error.
+    public boolean reject (PiecePicker picker, Object peer, Block block)
+    {
+        if (m_outstanding.remove(block) == null)
+            return false;
+        picker.on_request_failed(peer, block.piece(), block.begin());
+        return true;
+    }
+
+    // The peer choked us or went away; everything outstanding is lost. A peer speaking the fast extension
+    // answers each pending request with a block or a reject instead, so its choke alone is no reason to call this.
+    public void clear (PiecePicker picker, Object peer)
+    {
+        picker.abort_peer(peer);
+        m_outstanding.clear();
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.peer;
+
+import torrentula.storage.SlabAllocator;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// One selector thread serving many peer connections.
+final class SelectorLoop {
+    private static final long TICK = 1000; // Milliseconds.
+
+    private final PeerEngine m_engine;
+    private final Selector m_selector;
+    private final Thread m_thread;
+    private final Queue<Runnable> m_tasks = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Timer> m_timers = new PriorityQueue<>();
+    private final Set<PeerConnection> m_connections = new HashSet<>();
+    private final AtomicInteger m_connection_count = new AtomicInteger();
+    private volatile boolean m_running = true;
+    private long m_last_tick;
+
+    private static final class Timer implements Comparable<Timer> {
+        final long deadline;
+        final Runnable task;
+
+        Timer (long deadline, Runnable task)
+        {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo (Timer other)
+        {
+            return Long.compare(deadline, other.deadline);
+        }
+    }
+
+    SelectorLoop (PeerEngine engine, String name) throws IOException
+    {
+        m_engine = engine;
+        m_selector = Selector.open();
+        m_thread = new Thread(this::run, name);
+        m_thread.setDaemon(true);
+        m_thread.start();
+    }
+
+    SlabAllocator allocator ()
+    {
+        return m_engine.allocator();
+    }
+
+    HandshakeRouter router ()
+    {
+        return m_engine.router();
+    }
+
+    boolean can_read_piece ()
+    {
+        return m_engine.can_read_piece();
+    }
+
+    byte[] reserved ()
+    {
+        return m_engine.reserved();
+    }
+
+    void publish_block (PeerConnection connection, int piece, int begin, int length)
+    {
+        m_engine.publish_block(connection, piece, begin, length);
+    }
+
+    void publish_have (PeerConnection connection, int piece)
+    {
+        m_engine.publish_have(connection, piece);
+    }
+
+    int connection_count ()
+    {
+        return m_connection_count.get();
+    }
+
+    boolean in_loop ()
+    {
+        return Thread.currentThread() == m_thread;
+    }
+
+    // Runs `task` on the loop thread, on its next pass.
+    void execute (Runnable task)
+    {
+        m_tasks.add(task);
+        if (!in_loop())
+            m_selector.wakeup();
+    }
+
+    // Runs `task` on the loop thread after `delay` milliseconds. Only call from the loop thread.
+    void schedule (long delay, Runnable task)
+    {
+        m_timers.add(new Timer(System.currentTimeMillis() + delay, task));
+    }
+
+    void register_outgoing (InetSocketAddress address, PeerConnection connection, SocketChannel channel)
+    {
+        execute(() -> {
+            try {
+                var connected = channel.connect(address);
+                var key = channel.register(m_selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, connection);
+                connection.attach(key);
+                m_connections.add(connection);
+                if (connected)
+                    connection.on_connectable();
+            } catch (IOException ioe) {
+                m_connections.add(connection);
+                connection.close(ioe);
+            }
+        });
+    }
+
+    void register_incoming (PeerConnection connection, SocketChannel channel)
+    {
+        execute(() -> {
+            try {
+                connection.attach(channel.register(m_selector, SelectionKey.OP_READ, connection));
+                m_connections.add(connection);
+            } catch (IOException ioe) {
+                m_connections.add(connection);
+                connection.close(ioe);
+            }
+        });
+    }
+
+    void register_acceptor (ServerSocketChannel server)
+    {
+        execute(() -> {
+            try {
+                server.register(m_selector, SelectionKey.OP_ACCEPT, server);
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+        });
+    }
+
+    void on_opened ()
+    {
+        m_connection_count.incrementAndGet();
+    }
+
+    void on_closed (PeerConnection connection)
+    {
+        m_connections.remove(connection);
+        m_connection_count.decrementAndGet();
+    }
+
+    private void run ()
+    {
+        while (m_running) {
+            try {
+                long timeout = TICK;
+                var timer = m_timers.peek();
+                if (timer != null)
+                    timeout = Math.max(1, Math.min(TICK, timer.deadline - System.currentTimeMillis()));
+                m_selector.select(timeout);
+                // Failures are contained per key and per task, so one bad connection can't stall the rest of the
+                // batch or leave its key selected forever.
+                for (var key : m_selector.selectedKeys())
+                    handle(key);
+                m_selector.selectedKeys().clear();
+                Runnable task;
+                while ((task = m_tasks.poll()) != null)
+                    run_task(task);
+                long now = System.currentTimeMillis();
+                while ((timer = m_timers.peek()) != null && timer.deadline <= now)
+                    run_task(m_timers.poll().task);
+                tick(now);
+            } catch (IOException | RuntimeException exc) {
+                if (m_running)
+                    System.err.println("Selector loop failure: " + exc);
+            }
+        }
+        for (var connection : new ArrayList<>(m_connections))
+            connection.close(new RuntimeException("Engine shut down"));
+        // Blocks released on this thread sit in its allocator cache; hand them back before the thread dies.
+        m_engine.allocator().flush_cache();
+        try {
+            m_selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void run_task (Runnable task)
+    {
+        try {
+            task.run();
+        } catch (RuntimeException exc) {
+            System.err.println("Selector loop task failed: " + exc);
+        }
+    }
+
+    private void handle (SelectionKey key)
+    {
+        if (!key.isValid())
+            return;
+        if (key.attachment() instanceof ServerSocketChannel) {
+            try {
+                m_engine.accept((ServerSocketChannel) key.attachment());
+            } catch (RuntimeException exc) {
+                System.err.println("Accept failed: " + exc);
+            }
+            return;
+        }
+        var connection = (PeerConnection) key.attachment();
+        try {
+            int ready = key.readyOps();
+            if ((ready & SelectionKey.OP_CONNECT) != 0)
+                connection.on_connectable();
+            if (key.isValid() && (ready & SelectionKey.OP_READ) != 0)
+                connection.on_readable();
+            if (key.isValid() && (ready & SelectionKey.OP_WRITE) != 0)
+                connection.on_writable();
+        } catch (RuntimeException exc) {
+            connection.close(exc);
+        }
+    }
+
+    private void tick (long now)
+    {
+        if (now - m_last_tick < TICK)
+            return;
+        m_last_tick = now;
+        for (var connection : new ArrayList<>(m_connections)) {
+            try {
+                connection.on_tick(now);
+            } catch (RuntimeException exc) {
+                connection.close(exc);
+            }
+        }
+    }
+
+    // Restarts connections that stopped reading for lack of memory or hashing capacity.
+    void resume_reads ()
+    {
+        for (var connection : new ArrayList<>(m_connections)) {
+            try {
+                connection.resume_reading();
+            } catch (RuntimeException exc) {
+                connection.close(exc);
+            }
+        }
+    }
+
+    void dispose ()
+    {
+        m_running = false;
+        m_selector.wakeup();
+        try {
+            m_thread.join(1000);
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.peer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// All blocking peer sessions of one torrent. Cancelling the scope closes every socket, which unblocks the
+// session threads, and `join()` waits for them to finish; no session outlives its torrent.
+public class TorrentScope implements AutoCloseable {
+    private static final int CONNECT_TIMEOUT = 10 * 1000;
+
+    private final BlockingPeerEngine m_engine;
+    private final byte[] m_info_hash;
+    private final PeerTask m_incoming;
+    private final Set<Thread> m_threads = ConcurrentHashMap.newKeySet();
+    private final Set<Socket> m_sockets = ConcurrentHashMap.newKeySet();
+    private final Set<BlockingPeerConnection> m_connections = ConcurrentHashMap.newKeySet();
+    private volatile boolean m_cancelled = false;
+
+    TorrentScope (BlockingPeerEngine engine, byte[] info_hash, PeerTask incoming)
+    {
+        m_engine = engine;
+        m_info_hash = info_hash;
+        m_incoming = incoming;
+    }
+
+    public byte[] info_hash ()
+    {
+        return m_info_hash.clone();
+    }
+
+    public boolean is_cancelled ()
+    {
+        return m_cancelled;
+    }
+
+    public int connection_count ()
+    {
+        return m_connections.size();
+    }
+
+    public void connect (InetSocketAddress address, PeerTask task)
+    {
+        if (m_cancelled)
+            throw new RuntimeException("Torrent scope is cancelled!");
+        var thread = m_engine.thread_factory().newThread(() -> {
+            var socket = new Socket();
+            if (!enter(socket))
+                return;
+            try {
+                socket.connect(address, CONNECT_TIMEOUT);
+                var connection = new BlockingPeerConnection(this, socket, true);
+                connection.send_handshake(new Handshake(m_engine.reserved(), m_info_hash, m_engine.peer_id()));
+                var handshake = connection.read_handshake();
+                if (!Arrays.equals(handshake.info_hash(), m_info_hash))
+                    throw new IOException("Peer answered with a different info hash");
+                run_session(connection, task);
+            } catch (IOException | RuntimeException exc) {
+                // Connection failures end the session; nothing else to clean up.
+            } finally {
+                leave(socket);
+            }
+        });
+        m_threads.add(thread);
+        thread.start();
+    }
+
+    // Takes over an incoming socket whose handshake has been read already. Runs on the socket's own thread.
+    void adopt (Socket socket, BlockingPeerConnection connection)
+    {
+        m_threads.add(Thread.currentThread());
+        if (!enter(socket))
+            return;
+        try {
+            connection.send_handshake(new Handshake(m_engine.reserved(), m_info_hash, m_engine.peer_id()));
+            run_session(connection, m_incoming);
+        } catch (IOException | RuntimeException exc) {
+            // Same as for outgoing sessions.
+        } finally {
+            leave(socket);
+        }
+    }
+
+    private void run_session (BlockingPeerConnection connection, PeerTask task) throws IOException
+    {
+        m_connections.add(connection);
+        try {
+            task.run(connection);
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        } finally {
+            m_connections.remove(connection);
+            connection.close();
+        }
+    }
+
+    // Registering before checking the flag means `cancel()` either sees the socket or we see the flag.
+    private boolean enter (Socket socket)
+    {
+        m_sockets.add(socket);
+        if (!m_cancelled)
+            return true;
+        leave(socket);
+        return false;
+    }
+
+    private void leave (Socket socket)
+    {
+        m_sockets.remove(socket);
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+        m_threads.remove(Thread.currentThread());
+    }
+
+    public void cancel ()
+    {
+        m_cancelled = true;
+        for (var socket : m_sockets) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+        for (var thread : m_threads)
+            thread.interrupt();
+    }
+
+    // Returns false if some session was still running after `timeout` milliseconds.
+    public boolean join (long timeout) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+        for (var thread : m_threads) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0)
+                return m_threads.isEmpty();
+            thread.join(left);
+        }
+        return m_threads.isEmpty();
+    }
+
+    // Cancels the scope and waits a little for its sessions. An interrupt cuts the wait short; the flag is kept
+    // for the caller and the scope is closed all the same.
+    @Override
+    public void close ()
+    {
+        cancel();
+        try {
+            join(5000);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        m_engine.on_closed(this);
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.piece;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// A set of piece indices packed 64 to a long. Bits are kept in wire order: piece 0 is the most significant bit
+// of word 0, so a BITFIELD payload decodes with big-endian getLong and no bit shuffling. The bulk operations
+// are plain loops over the words, the shape the JIT unrolls and vectorizes, which makes a question such as
+// "does this peer have anything we lack" cost pieces / 64 word operations. Bits past `size` are always zero.
+// Not thread-safe.
+public final class Bitfield {
+    private final int m_size;
+    private final long[] m_words;
+    private int m_count;
+
+    public Bitfield (int size)
+    {
+        if (size < 0)
+            throw new RuntimeException("Negative bitfield size!");
+        m_size = size;
+        m_words = new long[(size + 63) >>> 6];
+    }
+
+    private Bitfield (Bitfield other)
+    {
+        m_size = other.m_size;
+        m_words = other.m_words.clone();
+        m_count = other.m_count;
+    }
+
+    // Reads a BITFIELD payload for `size` pieces from the buffer's remaining bytes. Peers that send the wrong
+    // length or set spare bits are broken, so both are errors.
+    public static Bitfield decode (ByteBuffer payload, int size)
+    {
+        if (payload.remaining() != byte_length(size))
+            throw new RuntimeException("Bitfield length doesn't match the piece count!");
+        var bitfield = new Bitfield(size);
+        var words = bitfield.m_words;
+        int full = payload.remaining() >>> 3;
+        int position = payload.position();
+        for (int i = 0; i < full; i++)
+            words[i] = payload.getLong(position + (i << 3));
+        if (full < words.length) {
+            long word = 0;
+            int tail = payload.remaining() & 7;
+            for (int i = 0; i < tail; i++)
+                word |= (payload.get(position + (full << 3) + i) & 0xFFL) << (56 - 8 * i);
+            words[full] = word;
+        }
+        payload.position(payload.limit());
+        if (words.length > 0 && (words[words.length - 1] & ~last_mask(size)) != 0)
+            throw new RuntimeException("Spare bits set in bitfield!");
+        bitfield.recount();
+        return bitfield;
+    }
+
+    public static Bitfield decode (byte[] payload, int size)
+    {
+        return decode(ByteBuffer.wrap(payload), size);
+    }
+
+    public static int byte_length (int size)
+    {
+        return (size + 7) >>> 3;
+    }
+
+    // Mask of the bits in use in the last word.
+    private static long last_mask (int size)
+    {
+        int used = size & 63;
+        return used == 0 ? -1L : -1L << (64 - used);
+    }
+
+    private static long bit (int index)
+    {
+        return Long.MIN_VALUE >>> index;
+    }
+
+    // Writes the wire form, byte_length(size()) bytes, at the buffer's position.
+    public void encode (ByteBuffer target)
+    {
+        int length = byte_length(m_size);
+        int full = length >>> 3;
+        for (int i = 0; i < full; i++)
+            target.putLong(m_words[i]);
+        int tail = length & 7;
+        for (int i = 0; i < tail; i++)
+            target.put((byte) (m_words[full] >>> (56 - 8 * i)));
+    }
+
+    public byte[] to_bytes ()
+    {
+        var bytes = ByteBuffer.allocate(byte_length(m_size));
+        encode(bytes);
+        return bytes.array();
+    }
+
+    public Bitfield copy ()
+    {
+        return new Bitfield(this);
+    }
+
+    public int size ()
+    {
+        return m_size;
+    }
+
+    public int count ()
+    {
+        return m_count;
+    }
+
+    public boolean is_empty ()
+    {
+        return m_count == 0;
+    }
+
+    public boolean is_full ()
+    {
+        return m_count == m_size;
+    }
+
+    private void check (int index)
+    {
+        if (index < 0 || index >= m_size)
+            throw new RuntimeException("Piece index " + index + " out of range!");
+    }
+
+    public boolean get (int index)
+    {
+        check(index);
+        return (m_words[index >>> 6] & bit(index & 63)) != 0;
+    }
+
+    // Returns false if the bit was already set, which is how a repeated HAVE shows up.
+    public boolean set (int index)
+    {
+        check(index);
+        long before = m_words[index >>> 6];
+        long after = before | bit(index & 63);
+        if (before == after)
+            return false;
+        m_words[index >>> 6] = after;
+        m_count++;
+        return true;
+    }
+
+    public boolean clear (int index)
+    {
+        check(index);
+        long before = m_words[index >>> 6];
+        long after = before & ~bit(index & 63);
+        if (before == after)
+            return false;
+        m_words[index >>> 6] = after;
+        m_count--;
+        return true;
+    }
+
+    public void set_all ()
+    {
+        if (m_words.length == 0)
+            return;
+        Arrays.fill(m_words, -1L);
+        m_words[m_words.length - 1] = last_mask(m_size);
+        m_count = m_size;
+    }
+
+    public void clear_all ()
+    {
+        Arrays.fill(m_words, 0);
+        m_count = 0;
+    }
+
+    private void recount ()
+    {
+        int count = 0;
+        for (long word : m_words)
+            count += Long.bitCount(word);
+        m_count = count;
+    }
+
+    private void check (Bitfield other)
+    {
+        if (other.m_size != m_size)
+            throw new RuntimeException("Bitfield sizes differ!");
+    }
+
+    // ---- Bulk operations, in place.
+
+    public Bitfield and (Bitfield other)
+    {
+        check(other);
+        var words = m_words;
+        var others = other.m_words;
+        int count = 0;
+        for (int i = 0; i < words.length; i++) {
+            words[i] &= others[i];
+            count += Long.bitCount(words[i]);
+        }
+        m_count = count;
+        return this;
+    }
+
+    public Bitfield and_not (Bitfield other)
+    {
+        check(other);
+        var words = m_words;
+        var others = other.m_words;
+        int count = 0;
+        for (int i = 0; i < words.length; i++) {
+            words[i] &= ~others[i];
+            count += Long.bitCount(words[i]);
+        }
+        m_count = count;
+        return this;
+    }
+
+    public Bitfield or (Bitfield other)
+    {
+        check(other);
+        var words = m_words;
+        var others = other.m_words;
+        int count = 0;
+        for (int i = 0; i < words.length; i++) {
+            words[i] |= others[i];
+            count += Long.bitCount(words[i]);
+        }
+        m_count = count;
+        return this;
+    }
+
+    // ---- Queries that allocate nothing.
+
+    // True if this set has a bit that `other` lacks: for a peer's bitfield and our have-set, whether the peer
+    // is interesting.
+    public boolean has_any_not_in (Bitfield other)
+    {
+        check(other);
+        var words = m_words;
+        var others = other.m_words;
+        for (int i = 0; i < words.length; i++) {
+            if ((words[i] & ~others[i]) != 0)
+                return true;
+        }
+        return false;
+    }
+
+    public int count_not_in (Bitfield other)
+    {
+        check(other);
+        var words = m_words;
+        var others = other.m_words;
+        int count = 0;
+        for (int i = 0; i < words.length; i++)
+            count += Long.bitCount(words[i] & ~others[i]);
+        return count;
+    }
+
+    public boolean intersects (Bitfield other)
+    {
+        check(other);
+        var words = m_words;
+        var others = other.m_words;
+        for (int i = 0; i < words.length; i++) {
+            if ((words[i] & others[i]) != 0)
+                return true;
+        }
+        return false;
+    }
+
+    // First set bit at or after `from`, or -1. Skips whole empty words.
+    public int next_set_bit (int from)
+    {
+        if (from < 0)
+            from = 0;
+        if (from >= m_size)
+            return -1;
+        int index = from >>> 6;
+        long word = m_words[index] & (-1L >>> (from & 63));
+        while (true) {
+            if (word != 0)
+                return (index << 6) + Long.numberOfLeadingZeros(word);
+            if (++index == m_words.length)
+                return -1;
+            word = m_words[index];
+        }
+    }
+
+    // First clear bit at or after `from`, or -1.
+    public int next_clear_bit (int from)
+    {
+        if (from < 0)
+            from = 0;
+        if (from >= m_size)
+            return -1;
+        int index = from >>> 6;
+        long word = ~m_words[index] & (-1L >>> (from & 63));
+        while (true) {
+            if (word != 0) {
+                int bit = (index << 6) + Long.numberOfLeadingZeros(word);
+                return bit < m_size ? bit : -1;
+            }
+            if (++index == m_words.length)
+                return -1;
+            word = ~m_words[index];
+        }
+    }
+
+    @Override
+    public boolean equals (Object other)
+    {
+        if (!(other instanceof Bitfield))
+            return false;
+        var bitfield = (Bitfield) other;
+        return m_size == bitfield.m_size && Arrays.equals(m_words, bitfield.m_words);
+    }
+
+    @Override
+    public int hashCode ()
+    {
+        return 31 * m_size + Arrays.hashCode(m_words);
+    }
+
+    @Override
+    public String toString ()
+    {
+        return "Bitfield[" + m_count + "/" + m_size + "]";
+    }
+}
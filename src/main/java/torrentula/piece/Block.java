@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.piece;
+
+import java.util.Objects;
+
+// A block request: `length` bytes at offset `begin` of piece `piece`.
+public final class Block {
+    private final int m_piece;
+    private final int m_begin;
+    private final int m_length;
+
+    public Block (int piece, int begin, int length)
+    {
+        m_piece = piece;
+        m_begin = begin;
+        m_length = length;
+    }
+
+    public int piece ()
+    {
+        return m_piece;
+    }
+
+    public int begin ()
+    {
+        return m_begin;
+    }
+
+    public int length ()
+    {
+        return m_length;
+    }
+
+    @Override
+    public boolean equals (Object other)
+    {
+        if (!(other instanceof Block))
+            return false;
+        var block = (Block) other;
+        return m_piece == block.m_piece && m_begin == block.m_begin && m_length == block.m_length;
+    }
+
+    @Override
+    public int hashCode ()
+    {
+        return Objects.hash(m_piece, m_begin, m_length);
+    }
+
+    @Override
+    public String toString ()
+    {
+        return "Block[" + m_piece + ", " + m_begin + ", " + m_length + "]";
+    }
+}
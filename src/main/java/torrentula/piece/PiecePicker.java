@@ -0,0 +1,464 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.piece;
+
+import torrentula.Metainfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Decides which blocks to request from which peer.
+//
+// The `m_untouched` pieces nobody is downloading yet and we don't have lead `m_order`, sorted by availability,
+// with `m_bucket_start[a]` the index of the first one seen by exactly `a` peers; the rest of `m_order` holds the
+// pieces we have or are downloading, in no particular order. Changing a piece's availability swaps it with the
+// edge of its bucket and moves the bucket boundary, so HAVE/bitfield updates are O(1) per piece and the rarest
+// piece is `m_order[m_bucket_start[1]]`. Starting or finishing a piece moves it between the two regions in one
+// swap per bucket. Ties are broken by the random initial order.
+//
+// Pieces that are already partially downloaded are served first so they complete (and can be shared) sooner.
+// Once every missing block has been requested the picker enters endgame mode and hands out duplicate requests
+// for in-flight blocks; `on_block_received()` returns the other peers that must be sent a CANCEL.
+public class PiecePicker {
+    public static final int BLOCK_SIZE = 16 * 1024;
+    // Peers that may have the same block outstanding during endgame.
+    static final int ENDGAME_REQUESTERS = 3;
+    // Peers that sent data for this many pieces that failed the hash check get no more requests.
+    public static final int MAX_HASH_FAILURES = 2;
+
+    private static final byte FREE = 0;
+    private static final byte REQUESTED = 1;
+    private static final byte RECEIVED = 2;
+
+    private final int m_piece_count;
+    private final long m_piece_length;
+    private final long m_torrent_size;
+    private final int[] m_availability;
+    private final int[] m_order;
+    private final int[] m_position;
+    private int[] m_bucket_start;
+    private final Bitfield m_have;
+    private final Map<Integer, Partial> m_partials = new LinkedHashMap<>();
+    // Strikes outlive the peer's connection, so a bad peer can't wipe them by leaving.
+    private final Map<Object, Integer> m_hash_failures = new HashMap<>();
+    private int m_untouched;
+    private int m_unrequested_blocks = 0;
+
+    private final class Partial {
+        final int piece;
+        final byte[] state;
+        final List<List<Object>> requesters;
+        // Peers whose blocks made it into the piece.
+        final Set<Object> senders = new HashSet<>(4);
+        int received = 0;
+
+        Partial (int piece)
+        {
+            this.piece = piece;
+            int blocks = block_count(piece);
+            state = new byte[blocks];
+            requesters = new ArrayList<>(Collections.nCopies(blocks, null));
+        }
+
+        Block block (int index)
+        {
+            int begin = index * BLOCK_SIZE;
+            return new Block(piece, begin, (int) Math.min(BLOCK_SIZE, piece_size(piece) - begin));
+        }
+
+        void request (int index, Object peer)
+        {
+            if (state[index] == FREE) {
+                state[index] = REQUESTED;
+                m_unrequested_blocks--;
+            }
+            var list = requesters.get(index);
+            if (list == null)
+                requesters.set(index, list = new ArrayList<>(1));
+            list.add(peer);
+        }
+
+        // Drops `peer`'s request for the block; the block becomes free again if nobody else has it in flight.
+        void abort (int index, Object peer)
+        {
+            var list = requesters.get(index);
+            if (list == null || !list.remove(peer) || !list.isEmpty() || state[index] != REQUESTED)
+                return;
+            state[index] = FREE;
+            m_unrequested_blocks++;
+        }
+    }
+
+    public PiecePicker (int piece_count, long piece_length, long torrent_size)
+    {
+        m_piece_count = piece_count;
+        m_piece_length = piece_length;
+        m_torrent_size = torrent_size;
+        m_availability = new int[piece_count];
+        m_order = new int[piece_count];
+        m_position = new int[piece_count];
+        m_have = new Bitfield(piece_count);
+        m_untouched = piece_count;
+        for (int i = 0; i < piece_count; i++)
+            m_order[i] = i;
+        var random = ThreadLocalRandom.current();
+        for (int i = piece_count - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = m_order[i];
+            m_order[i] = m_order[j];
+            m_order[j] = swap;
+        }
+        for (int i = 0; i < piece_count; i++)
+            m_position[m_order[i]] = i;
+        m_bucket_start = new int[] { 0, piece_count, piece_count, piece_count };
+    }
+
+    public static PiecePicker from (Metainfo metainfo)
+    {
+        return new PiecePicker(metainfo.piece_count(), metainfo.piece_length(), metainfo.torrent_size());
+    }
+
+    public int piece_count ()
+    {
+        return m_piece_count;
+    }
+
+    public long piece_size (int piece)
+    {
+        if (piece == m_piece_count - 1)
+            return m_torrent_size - m_piece_length * (m_piece_count - 1);
+        return m_piece_length;
+    }
+
+    public int block_count (int piece)
+    {
+        return (int) ((piece_size(piece) + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    }
+
+    public int availability (int piece)
+    {
+        return m_availability[piece];
+    }
+
+    public boolean have (int piece)
+    {
+        return m_have.get(piece);
+    }
+
+    public int have_count ()
+    {
+        return m_have.count();
+    }
+
+    // A copy of the pieces we have, e.g. to send as our BITFIELD.
+    public Bitfield have_set ()
+    {
+        return m_have.copy();
+    }
+
+    public boolean is_complete ()
+    {
+        return m_have.is_full();
+    }
+
+    // Whether a peer with `bitfield` has a piece we still need.
+    public boolean is_interesting (Bitfield bitfield)
+    {
+        return bitfield.has_any_not_in(m_have);
+    }
+
+    public boolean in_endgame ()
+    {
+        return m_untouched == 0 && m_unrequested_blocks == 0 && !is_complete();
+    }
+
+    // Availability updates.
+
+    public void on_have (int piece)
+    {
+        int a = m_availability[piece];
+        m_availability[piece]++;
+        if (!is_untouched(piece))
+            return;
+        reserve_buckets(a + 1);
+        int last = m_bucket_start[a + 1] - 1;
+        swap(m_position[piece], last);
+        m_bucket_start[a + 1]--;
+    }
+
+    // Makes room for a bucket of availability `a`. Unused buckets past the last are empty and start at the end
+    // of the untouched region.
+    private void reserve_buckets (int a)
+    {
+        if (m_bucket_start.length >= a + 2)
+            return;
+        int old = m_bucket_start.length;
+        m_bucket_start = Arrays.copyOf(m_bucket_start, Math.max(old * 2, a + 2));
+        Arrays.fill(m_bucket_start, old, m_bucket_start.length, m_untouched);
+    }
+
+    private boolean is_untouched (int piece)
+    {
+        return m_position[piece] < m_untouched;
+    }
+
+    public void on_bitfield (Bitfield bitfield)
+    {
+        for (int i = bitfield.next_set_bit(0); i >= 0; i = bitfield.next_set_bit(i + 1))
+            on_have(i);
+    }
+
+    // Takes back a departed peer's contribution. `bitfield` must hold everything the peer announced.
+    public void on_peer_left (Object peer, Bitfield bitfield)
+    {
+        for (int i = bitfield.next_set_bit(0); i >= 0; i = bitfield.next_set_bit(i + 1))
+            lower(i);
+        abort_peer(peer);
+    }
+
+    private void lower (int piece)
+    {
+        int a = m_availability[piece];
+        if (a == 0)
+            throw new RuntimeException("Availability underflow!");
+        m_availability[piece]--;
+        if (!is_untouched(piece))
+            return;
+        int first = m_bucket_start[a];
+        swap(m_position[piece], first);
+        m_bucket_start[a]++;
+    }
+
+    // Moves an untouched piece to the end of the untouched region, through every bucket above its own, and out
+    // of it.
+    private void take (int piece)
+    {
+        for (int b = m_availability[piece] + 1; b < m_bucket_start.length; b++) {
+            swap(m_position[piece], m_bucket_start[b] - 1);
+            m_bucket_start[b]--;
+        }
+        m_untouched--;
+    }
+
+    // The reverse of `take`: the piece is untouched again and rejoins its bucket.
+    private void untake (int piece)
+    {
+        int a = m_availability[piece];
+        reserve_buckets(a + 1);
+        swap(m_position[piece], m_untouched);
+        m_untouched++;
+        for (int b = m_bucket_start.length - 1; b > a; b--) {
+            swap(m_position[piece], m_bucket_start[b]);
+            m_bucket_start[b]++;
+        }
+    }
+
+    private void swap (int i, int j)
+    {
+        int a = m_order[i], b = m_order[j];
+        m_order[i] = b;
+        m_order[j] = a;
+        m_position[b] = i;
+        m_position[a] = j;
+    }
+
+    // Returns the rarest piece we still need that nobody is downloading yet, or -1.
+    public int rarest ()
+    {
+        return m_bucket_start[1] < m_untouched ? m_order[m_bucket_start[1]] : -1;
+    }
+
+    // Picking.
+
+    // Picks up to `count` blocks to request from `peer`, whose pieces are described by `bitfield`.
+    public List<Block> pick (Object peer, Bitfield bitfield, int count)
+    {
+        var picked = new ArrayList<Block>(count);
+        if (is_banned(peer))
+            return picked;
+        for (var partial : m_partials.values()) {
+            if (picked.size() >= count)
+                return picked;
+            if (bitfield.get(partial.piece))
+                take_free(partial, peer, picked, count);
+        }
+        while (picked.size() < count && m_untouched > 0) {
+            int piece = rarest_for(bitfield);
+            if (piece < 0)
+                break;
+            var partial = new Partial(piece);
+            m_partials.put(piece, partial);
+            take(piece);
+            m_unrequested_blocks += partial.state.length;
+            take_free(partial, peer, picked, count);
+        }
+        if (picked.size() < count && in_endgame())
+            take_duplicates(peer, bitfield, picked, count);
+        return picked;
+    }
+
+    // Every piece scanned is one we need, so for a peer with most of the torrent this is the first slot.
+    private int rarest_for (Bitfield bitfield)
+    {
+        if (!bitfield.has_any_not_in(m_have))
+            return -1;
+        for (int i = m_bucket_start[1]; i < m_untouched; i++) {
+            int piece = m_order[i];
+            if (bitfield.get(piece))
+                return piece;
+        }
+        return -1;
+    }
+
+    private void take_free (Partial partial, Object peer, List<Block> picked, int count)
+    {
+        for (int i = 0; i < partial.state.length && picked.size() < count; i++) {
+            if (partial.state[i] == FREE) {
+                partial.request(i, peer);
+                picked.add(partial.block(i));
+            }
+        }
+    }
+
+    private void take_duplicates (Object peer, Bitfield bitfield, List<Block> picked, int count)
+    {
+        for (var partial : m_partials.values()) {
+            if (!bitfield.get(partial.piece))
+                continue;
+            for (int i = 0; i < partial.state.length && picked.size() < count; i++) {
+                var requesters = partial.requesters.get(i);
+                if (partial.state[i] != REQUESTED || requesters.contains(peer) || requesters.size() >= ENDGAME_REQUESTERS)
+                    continue;
+                partial.request(i, peer);
+                picked.add(partial.block(i));
+            }
+        }
+    }
+
+    // Download progress.
+
+    // Records an arrived block and returns the other peers it was requested from, which should be sent a
+    // CANCEL. Returns null if the block wasn't wanted (already received, or its piece isn't being downloaded).
+    public List<Object> on_block_received (Object peer, int piece, int begin)
+    {
+        var partial = m_partials.get(piece);
+        if (partial == null || begin % BLOCK_SIZE != 0 || begin / BLOCK_SIZE >= partial.state.length)
+            return null;
+        int index = begin / BLOCK_SIZE;
+        if (partial.state[index] == RECEIVED)
+            return null;
+        if (partial.state[index] == FREE)
+            m_unrequested_blocks--;
+        partial.state[index] = RECEIVED;
+        partial.received++;
+        partial.senders.add(peer);
+        var requesters = partial.requesters.get(index);
+        partial.requesters.set(index, null);
+        if (requesters == null)
+            return List.of();
+        requesters.remove(peer);
+        return requesters;
+    }
+
+    // True once every block of the piece has arrived; the piece then awaits hash verification.
+    public boolean is_downloaded (int piece)
+    {
+        var partial = m_partials.get(piece);
+        return partial != null && partial.received == partial.state.length;
+    }
+
+    public void on_piece_passed (int piece)
+    {
+        var partial = m_partials.remove(piece);
+        if (partial == null)
+            throw new RuntimeException("Piece wasn't being downloaded!");
+        m_unrequested_blocks -= free_blocks(partial);
+        m_have.set(piece);
+    }
+
+    // Hash check failed: throw the data away and download the piece again from scratch. Every peer that sent
+    // part of it takes a strike, and is returned so the caller can act on it as well.
+    public Set<Object> on_piece_failed (int piece)
+    {
+        var partial = m_partials.remove(piece);
+        if (partial == null)
+            throw new RuntimeException("Piece wasn't being downloaded!");
+        m_unrequested_blocks -= free_blocks(partial);
+        untake(piece);
+        for (var sender : partial.senders)
+            m_hash_failures.merge(sender, 1, Integer::sum);
+        return partial.senders;
+    }
+
+    public int hash_failures (Object peer)
+    {
+        return m_hash_failures.getOrDefault(peer, 0);
+    }
+
+    public boolean is_banned (Object peer)
+    {
+        return hash_failures(peer) >= MAX_HASH_FAILURES;
+    }
+
+    private static int free_blocks (Partial partial)
+    {
+        int free = 0;
+        for (byte state : partial.state) {
+            if (state == FREE)
+                free++;
+        }
+        return free;
+    }
+
+    // Marks a piece we already have on disk, e.g. when resuming.
+    public void set_have (int piece)
+    {
+        if (m_have.get(piece))
+            return;
+        if (m_partials.containsKey(piece))
+            on_piece_passed(piece);
+        else {
+            m_have.set(piece);
+            take(piece);
+        }
+    }
+
+    // The request was rejected, timed out or lost to a choke.
+    public void on_request_failed (Object peer, int piece, int begin)
+    {
+        var partial = m_partials.get(piece);
+        if (partial != null && begin % BLOCK_SIZE == 0 && begin / BLOCK_SIZE < partial.state.length)
+            partial.abort(begin / BLOCK_SIZE, peer);
+    }
+
+    // Releases every request outstanding with `peer`.
+    public void abort_peer (Object peer)
+    {
+        for (var partial : m_partials.values()) {
+            for (int i = 0; i < partial.state.length; i++)
+                partial.abort(i, peer);
+        }
+    }
+}
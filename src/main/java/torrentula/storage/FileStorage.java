@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.storage;
+
+import torrentula.Metainfo;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The files of a torrent seen as one contiguous byte range. Channels are opened on first use. Positioned
+// gathering writes need the channel's position, so writes to one file are serialised on its slot.
+public class FileStorage {
+    // A run of bytes within one file.
+    public static final class Segment {
+        public final int file;
+        public final long position;
+        public final long length;
+        // Offset of the segment within the requested range.
+        public final long offset;
+
+        Segment (int file, long position, long length, long offset)
+        {
+            this.file = file;
+            this.position = position;
+            this.length = length;
+            this.offset = offset;
+        }
+    }
+
+    private final Path[] m_paths;
+    private final long[] m_starts;
+    private final long m_size;
+    private final long m_piece_length;
+    private final FileChannel[] m_channels;
+    private final AtomicLong m_write_calls = new AtomicLong();
+    private final AtomicLong m_read_calls = new AtomicLong();
+
+    public FileStorage (List<Path> paths, long[] sizes, long piece_length)
+    {
+        if (paths.size() != sizes.length)
+            throw new RuntimeException("Every file needs a size!");
+        m_paths = paths.toArray(new Path[0]);
+        m_starts = new long[sizes.length + 1];
+        for (int i = 0; i < sizes.length; i++)
+            m_starts[i + 1] = m_starts[i] + sizes[i];
+        m_size = m_starts[sizes.length];
+        m_piece_length = piece_length;
+        m_channels = new FileChannel[sizes.length];
+    }
+
+    public static FileStorage from (Metainfo metainfo)
+    {
+        var paths = new ArrayList<Path>();
+        var sizes = new long[metainfo.file_count()];
+        for (int i = 0; i < sizes.length; i++) {
+            var info = metainfo.file_info_at(i);
+            paths.add(metainfo.parent_directory().resolve(info.path()));
+            sizes[i] = info.size();
+        }
+        return new FileStorage(paths, sizes, metainfo.piece_length());
+    }
+
+    public long size ()
+    {
+        return m_size;
+    }
+
+    public long piece_length ()
+    {
+        return m_piece_length;
+    }
+
+    public int piece_count ()
+    {
+        return (int) ((m_size + m_piece_length - 1) / m_piece_length);
+    }
+
+    public int piece_size (int piece)
+    {
+        return (int) Math.min(m_piece_length, m_size - piece * m_piece_length);
+    }
+
+    public int file_count ()
+    {
+        return m_paths.length;
+    }
+
+    public Path path (int file)
+    {
+        return m_paths[file];
+    }
+
+    public long write_calls ()
+    {
+        return m_write_calls.get();
+    }
+
+    public long read_calls ()
+    {
+        return m_read_calls.get();
+    }
+
+    // Splits [offset, offset + length) of the torrent along file boundaries. Empty files are skipped.
+    public List<Segment> map (long offset, long length)
+    {
+        if (offset < 0 || length < 0 || offset + length > m_size)
+            throw new RuntimeException("Range outside the torrent!");
+        var segments = new ArrayList<Segment>(2);
+        int file = find_file(offset);
+        long done = 0;
+        while (done < length) {
+            long position = offset + done - m_starts[file];
+            long run = Math.min(length - done, m_starts[file + 1] - m_starts[file] - position);
+            if (run > 0)
+                segments.add(new Segment(file, position, run, done));
+            done += run;
+            file++;
+        }
+        return segments;
+    }
+
+    private int find_file (long offset)
+    {
+        int lo = 0, hi = m_paths.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (m_starts[mid] <= offset)
+                lo = mid;
+            else hi = mid - 1;
+        }
+        return lo;
+    }
+
+    FileChannel channel (int file) throws IOException
+    {
+        synchronized (m_channels) {
+            var channel = m_channels[file];
+            if (channel == null) {
+                var parent = m_paths[file].toAbsolutePath().getParent();
+                if (parent != null)
+                    Files.createDirectories(parent);
+                channel = FileChannel.open(m_paths[file], StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+                m_channels[file] = channel;
+            }
+            return channel;
+        }
+    }
+
+    // Writes all of `buffers` back to back at `position` of `file`.
+    public void write (int file, long position, ByteBuffer[] buffers) throws IOException
+    {
+        var channel = channel(file);
+        synchronized (channel) {
+            channel.position(position);
+            long remaining = 0;
+            for (var buffer : buffers)
+                remaining += buffer.remaining();
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+                m_write_calls.incrementAndGet();
+            }
+        }
+    }
+
+    // Fills `buffer` from `position` of `file`; bytes past the end of the file read as zeroes.
+    public void read (int file, long position, ByteBuffer buffer) throws IOException
+    {
+        var channel = channel(file);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            m_read_calls.incrementAndGet();
+            if (read < 0) {
+                while (buffer.hasRemaining())
+                    buffer.put((byte) 0);
+                return;
+            }
+            position += read;
+        }
+    }
+
+    // Reads the torrent range starting at `offset` into `buffer`, across files as needed.
+    public void read (long offset, ByteBuffer buffer) throws IOException
+    {
+        int start = buffer.position();
+        for (var segment : map(offset, buffer.remaining())) {
+            var slice = buffer.duplicate();
+            slice.position(start + (int) segment.offset).limit(start + (int) (segment.offset + segment.length));
+            read(segment.file, segment.position, slice);
+        }
+        buffer.position(buffer.limit());
+    }
+
+    // Hands up to `count` bytes from `position` of `file` straight to `target`, letting the kernel copy them
+    // (sendfile for sockets). Returns the bytes moved, which may be 0 if `target` is full.
+    public long transfer (int file, long position, long count, WritableByteChannel target) throws IOException
+    {
+        var channel = channel(file);
+        long sent = channel.transferTo(position, count, target);
+        m_read_calls.incrementAndGet();
+        if (sent == 0 && position >= channel.size())
+            throw new EOFException("Transfer past the end of " + m_paths[file] + "!");
+        return sent;
+    }
+
+    public void close ()
+    {
+        synchronized (m_channels) {
+            for (int i = 0; i < m_channels.length; i++) {
+                if (m_channels[i] == null)
+                    continue;
+                try {
+                    m_channels[i].close();
+                } catch (IOException ignored) {
+                }
+                m_channels[i] = null;
+            }
+        }
+    }
+}
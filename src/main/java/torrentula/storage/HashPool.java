@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.storage;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Checks piece hashes on a few worker threads of its own, so hashing a large piece never holds up a network or
+// disk thread. Each worker keeps its own MessageDigest. Finished pieces are never turned away, but once more
+// than `max_queued` wait the pool reports itself saturated, and peer engines stop reading piece payloads
+// until it has drained to half that.
+public class HashPool {
+    // Feeds the piece's bytes, in order, to the digest.
+    public interface Source {
+        void update (MessageDigest sha1) throws IOException;
+    }
+
+    // Runs on a worker thread.
+    public interface Callback {
+        void on_hashed (int piece, boolean passed);
+
+        void on_error (int piece, IOException ioe);
+    }
+
+    public static final int DEFAULT_MAX_QUEUED = 64;
+
+    private static final ThreadLocal<MessageDigest> s_sha1 = ThreadLocal.withInitial(HashPool::create_sha1);
+    private static HashPool s_shared;
+
+    private final ThreadPoolExecutor m_workers;
+    private final int m_max_queued;
+    private final AtomicInteger m_queued = new AtomicInteger();
+    private final AtomicLong m_passed = new AtomicLong();
+    private final AtomicLong m_failed = new AtomicLong();
+    private final List<Runnable> m_drain_listeners = new CopyOnWriteArrayList<>();
+    private boolean m_saturated;
+
+    public HashPool (int threads, int max_queued)
+    {
+        if (threads < 1 || max_queued < 1)
+            throw new RuntimeException("Hash pool needs a thread and a queue!");
+        m_max_queued = max_queued;
+        var count = new AtomicInteger();
+        m_workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                runnable -> {
+                    var thread = new Thread(runnable, "piece-hasher-" + count.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    // Half the cores, as the network and disk threads need the rest.
+    public static synchronized HashPool shared ()
+    {
+        if (s_shared == null)
+            s_shared = new HashPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2), DEFAULT_MAX_QUEUED);
+        return s_shared;
+    }
+
+    public static MessageDigest create_sha1 ()
+    {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException exc) {
+            throw new RuntimeException(exc);
+        }
+    }
+
+    // Pieces queued or being hashed.
+    public int queue_depth ()
+    {
+        return m_queued.get();
+    }
+
+    public synchronized boolean is_saturated ()
+    {
+        return m_saturated;
+    }
+
+    public long passed ()
+    {
+        return m_passed.get();
+    }
+
+    public long failed ()
+    {
+        return m_failed.get();
+    }
+
+    // `listener` runs, on a worker thread, each time a saturated pool has drained enough to accept more.
+    public void add_drain_listener (Runnable listener)
+    {
+        m_drain_listeners.add(listener);
+    }
+
+    public void remove_drain_listener (Runnable listener)
+    {
+        m_drain_listeners.remove(listener);
+    }
+
+    public void submit (int piece, byte[] expected, Source source, Callback callback)
+    {
+        submit(piece, expected, null, source, callback);
+    }
+
+    // Continues `state`, a digest that already holds the start of the piece, instead of starting afresh.
+    public void submit (int piece, byte[] expected, MessageDigest state, Source source, Callback callback)
+    {
+        if (m_queued.incrementAndGet() > m_max_queued) {
+            synchronized (this) {
+                m_saturated = true;
+            }
+        }
+        m_workers.execute(() -> {
+            boolean passed;
+            try {
+                var sha1 = state;
+                if (sha1 == null) {
+                    sha1 = s_sha1.get();
+                    sha1.reset();
+                }
+                source.update(sha1);
+                passed = Arrays.equals(sha1.digest(), expected);
+            } catch (IOException ioe) {
+                finished();
+                callback.on_error(piece, ioe);
+                return;
+            } catch (RuntimeException exc) {
+                // A buggy source must still release its slot and answer, or the pool stays saturated and the
+                // caller waits for this piece forever.
+                finished();
+                callback.on_error(piece, new IOException("Hashing piece " + piece + " failed", exc));
+                return;
+            }
+            (passed ? m_passed : m_failed).incrementAndGet();
+            finished();
+            callback.on_hashed(piece, passed);
+        });
+    }
+
+    private void finished ()
+    {
+        int queued = m_queued.decrementAndGet();
+        synchronized (this) {
+            if (!m_saturated || queued > m_max_queued / 2)
+                return;
+            m_saturated = false;
+        }
+        for (var listener : m_drain_listeners)
+            listener.run();
+    }
+
+    public void dispose ()
+    {
+        m_workers.shutdown();
+    }
+}
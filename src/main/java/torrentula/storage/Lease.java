@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.storage;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A reference-counted hold on a buffer from a SlabAllocator. The same lease travels from the socket read
+// through hashing to the disk write (or from the disk read to the socket); every stage that keeps it past
+// its own call `retain()`s it and `release()`s it when done, and the buffer goes back to the allocator when
+// the count drops to zero.
+public final class Lease {
+    private final SlabAllocator m_allocator;
+    private final ByteBuffer m_buffer;
+    private final int m_size_class;
+    private final AtomicInteger m_references = new AtomicInteger(1);
+    private final LeakTracker m_tracker;
+    private final Cleaner.Cleanable m_cleanable;
+
+    // Reclaims the buffer if the lease is garbage collected without being released. Must not refer to the
+    // lease itself, or it would never become unreachable.
+    static final class LeakTracker implements Runnable {
+        final SlabAllocator allocator;
+        final ByteBuffer buffer;
+        final int size_class;
+        final Throwable site;
+        volatile boolean released = false;
+
+        LeakTracker (SlabAllocator allocator, ByteBuffer buffer, int size_class)
+        {
+            this.allocator = allocator;
+            this.buffer = buffer;
+            this.size_class = size_class;
+            this.site = new Throwable("Leased here");
+        }
+
+        @Override
+        public void run ()
+        {
+            if (!released)
+                allocator.on_leak(this);
+        }
+    }
+
+    Lease (SlabAllocator allocator, ByteBuffer buffer, int size_class, Cleaner cleaner)
+    {
+        m_allocator = allocator;
+        m_buffer = buffer;
+        m_size_class = size_class;
+        if (cleaner != null) {
+            m_tracker = new LeakTracker(allocator, buffer, size_class);
+            m_cleanable = cleaner.register(this, m_tracker);
+        } else {
+            m_tracker = null;
+            m_cleanable = null;
+        }
+    }
+
+    // The leased memory. Position and limit are the holder's to use; the capacity may exceed what was asked.
+    public ByteBuffer buffer ()
+    {
+        if (m_references.get() <= 0)
+            throw new RuntimeException("Lease already released!");
+        return m_buffer;
+    }
+
+    public int capacity ()
+    {
+        return m_buffer.capacity();
+    }
+
+    public int references ()
+    {
+        return m_references.get();
+    }
+
+    public Lease retain ()
+    {
+        while (true) {
+            int references = m_references.get();
+            if (references <= 0)
+                throw new RuntimeException("Lease already released!");
+            if (m_references.compareAndSet(references, references + 1))
+                return this;
+        }
+    }
+
+    public void release ()
+    {
+        int references = m_references.decrementAndGet();
+        if (references > 0)
+            return;
+        if (references < 0)
+            throw new RuntimeException("Lease released too many times!");
+        if (m_tracker != null) {
+            m_tracker.released = true;
+            m_cleanable.clean();
+        }
+        m_allocator.recycle(m_buffer, m_size_class);
+    }
+}
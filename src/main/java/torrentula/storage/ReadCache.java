@@ -0,0 +1,442 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.storage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Whole-piece read cache for seeding, keyed by (torrent storage, piece), with a memory budget.
+//
+// Eviction is 2Q: a piece read for the first time enters a FIFO (`m_in`) capped at a quarter of the budget.
+// Falling out of it leaves only a ghost key behind (`m_ghosts`); a piece requested again while its ghost is
+// around has proven itself and goes to the LRU main queue (`m_main`). A peer streaming the whole torrent once
+// therefore churns the FIFO but can't flush the popular pieces out of the main queue.
+//
+// When a peer requests blocks back to back, the following pieces are read ahead on a background thread.
+public class ReadCache {
+    public static final int READ_AHEAD_TRIGGER = 2;
+    public static final int READ_AHEAD_PIECES = 2;
+    static final int MAX_STREAMS = 4096;
+
+    // A cached block; `data()` is a private view of the piece buffer. Release it once sent.
+    public static final class Block {
+        private final Lease m_lease;
+        private final ByteBuffer m_data;
+
+        Block (Lease lease, ByteBuffer data)
+        {
+            m_lease = lease;
+            m_data = data;
+        }
+
+        public ByteBuffer data ()
+        {
+            return m_data;
+        }
+
+        public void release ()
+        {
+            if (m_lease != null)
+                m_lease.release();
+        }
+    }
+
+    private static final class Key {
+        final FileStorage storage;
+        final int piece;
+
+        Key (FileStorage storage, int piece)
+        {
+            this.storage = storage;
+            this.piece = piece;
+        }
+
+        @Override
+        public boolean equals (Object other)
+        {
+            if (!(other instanceof Key))
+                return false;
+            var key = (Key) other;
+            return storage == key.storage && piece == key.piece;
+        }
+
+        @Override
+        public int hashCode ()
+        {
+            return Objects.hash(System.identityHashCode(storage), piece);
+        }
+    }
+
+    private static final class Entry {
+        final Key key;
+        final int size;
+        final CompletableFuture<Void> loaded = new CompletableFuture<>();
+        Lease lease;
+        boolean evicted = false;
+
+        Entry (Key key, int size)
+        {
+            this.key = key;
+            this.size = size;
+        }
+    }
+
+    // Where a peer's last request ended.
+    private static final class Stream {
+        FileStorage storage;
+        int piece;
+        int next_begin;
+        int streak;
+    }
+
+    private final SlabAllocator m_allocator;
+    private final long m_budget;
+    private final int m_max_ghosts;
+    private final LinkedHashMap<Key, Entry> m_in = new LinkedHashMap<>();
+    private final LinkedHashMap<Key, Entry> m_main = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Key, Boolean> m_ghosts = new LinkedHashMap<>();
+    private final LinkedHashMap<Object, Stream> m_streams = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry (Map.Entry<Object, Stream> eldest)
+        {
+            return size() > MAX_STREAMS;
+        }
+    };
+    private final ExecutorService m_read_ahead;
+    private long m_in_bytes = 0;
+    private long m_main_bytes = 0;
+    private long m_hits = 0;
+    private long m_misses = 0;
+    private long m_read_aheads = 0;
+    private long m_evictions = 0;
+
+    public ReadCache (SlabAllocator allocator, long budget)
+    {
+        this(allocator, budget, 1024);
+    }
+
+    public ReadCache (SlabAllocator allocator, long budget, int max_ghosts)
+    {
+        m_allocator = allocator;
+        m_budget = budget;
+        m_max_ghosts = max_ghosts;
+        m_read_ahead = Executors.newSingleThreadExecutor(runnable -> {
+            var thread = new Thread(runnable, "read-ahead");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public synchronized long hits ()
+    {
+        return m_hits;
+    }
+
+    public synchronized long misses ()
+    {
+        return m_misses;
+    }
+
+    public synchronized long read_aheads ()
+    {
+        return m_read_aheads;
+    }
+
+    public synchronized long evictions ()
+    {
+        return m_evictions;
+    }
+
+    public synchronized double hit_ratio ()
+    {
+        long total = m_hits + m_misses;
+        return total == 0 ? 0 : (double) m_hits / total;
+    }
+
+    public synchronized long cached_bytes ()
+    {
+        return m_in_bytes + m_main_bytes;
+    }
+
+    public synchronized boolean contains (FileStorage storage, int piece)
+    {
+        var key = new Key(storage, piece);
+        return m_in.containsKey(key) || m_main.containsKey(key);
+    }
+
+    // Completes once the cached copy of `piece` has been read, or null if the piece isn't cached.
+    synchronized CompletableFuture<Void> loading (FileStorage storage, int piece)
+    {
+        var key = new Key(storage, piece);
+        var entry = m_main.get(key);
+        if (entry == null)
+            entry = m_in.get(key);
+        return entry == null ? null : entry.loaded;
+    }
+
+    // Reads `length` bytes at `begin` of `piece` for `peer`, from the cache if possible. A miss reads the whole
+    // piece on the calling thread.
+    public Block read (FileStorage storage, int piece, int begin, int length, Object peer) throws IOException
+    {
+        var entry = find(storage, piece, begin, length, peer, Runnable::run);
+        try {
+            entry.loaded.join();
+        } catch (CompletionException exc) {
+            if (exc.getCause() instanceof UncheckedIOException)
+                throw ((UncheckedIOException) exc.getCause()).getCause();
+            throw exc;
+        }
+        var block = cached_block(entry, begin, length);
+        // Evicted before we got to it, or there was no memory to cache it: read just the block.
+        return block != null ? block : read_uncached(storage, piece, begin, length);
+    }
+
+    // Like `read`, but never touches the disk on the calling thread: a hit completes at once, anything else
+    // completes on `disk`, exceptionally with an UncheckedIOException if the read failed. For selector threads.
+    public CompletableFuture<Block> read_async (FileStorage storage, int piece, int begin, int length, Object peer,
+                                                Executor disk)
+    {
+        var entry = find(storage, piece, begin, length, peer, disk);
+        if (entry.loaded.isDone() && !entry.loaded.isCompletedExceptionally()) {
+            var block = cached_block(entry, begin, length);
+            if (block != null)
+                return CompletableFuture.completedFuture(block);
+        }
+        return entry.loaded.thenApplyAsync(ignored -> {
+            var block = cached_block(entry, begin, length);
+            if (block != null)
+                return block;
+            try {
+                return read_uncached(storage, piece, begin, length);
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }, disk);
+    }
+
+    // Looks the piece up, counting a hit or a miss. A miss inserts an entry and has `loader` fill it.
+    private Entry find (FileStorage storage, int piece, int begin, int length, Object peer, Executor loader)
+    {
+        if (begin < 0 || length <= 0 || begin + length > storage.piece_size(piece))
+            throw new RuntimeException("Block outside the piece!");
+        var key = new Key(storage, piece);
+        Entry entry;
+        boolean load = false;
+        synchronized (this) {
+            entry = m_main.get(key);
+            if (entry == null)
+                entry = m_in.get(key);
+            if (entry != null) {
+                m_hits++;
+            } else {
+                m_misses++;
+                entry = insert(key, storage.piece_size(piece), m_ghosts.remove(key) != null);
+                load = true;
+            }
+            track(peer, storage, piece, begin, length);
+        }
+        if (load) {
+            var missed = entry;
+            loader.execute(() -> load(missed));
+        }
+        return entry;
+    }
+
+    private synchronized Block cached_block (Entry entry, int begin, int length)
+    {
+        if (entry.lease == null)
+            return null;
+        var data = entry.lease.buffer().duplicate();
+        data.position(begin).limit(begin + length);
+        return new Block(entry.lease.retain(), data.slice());
+    }
+
+    private Block read_uncached (FileStorage storage, int piece, int begin, int length) throws IOException
+    {
+        var lease = m_allocator.lease(length);
+        var data = lease == null ? ByteBuffer.allocateDirect(length) : lease.buffer();
+        data.clear().limit(length);
+        try {
+            storage.read(piece * storage.piece_length() + begin, data);
+        } catch (IOException ioe) {
+            if (lease != null)
+                lease.release();
+            throw ioe;
+        }
+        data.flip();
+        if (lease != null)
+            return new Block(lease, data);
+        // Out of leasable memory; a plain buffer the collector takes care of.
+        return new Block(null, data);
+    }
+
+    private Entry insert (Key key, int size, boolean proven)
+    {
+        var entry = new Entry(key, size);
+        if (proven) {
+            m_main.put(key, entry);
+            m_main_bytes += size;
+        } else {
+            m_in.put(key, entry);
+            m_in_bytes += size;
+        }
+        evict();
+        return entry;
+    }
+
+    private void evict ()
+    {
+        while (m_in_bytes + m_main_bytes > m_budget) {
+            Entry victim;
+            if (m_in_bytes > m_budget / 4 || m_main.isEmpty()) {
+                victim = m_in.values().iterator().next();
+                m_in.remove(victim.key);
+                m_in_bytes -= victim.size;
+                m_ghosts.put(victim.key, Boolean.TRUE);
+                if (m_ghosts.size() > m_max_ghosts)
+                    m_ghosts.remove(m_ghosts.keySet().iterator().next());
+            } else {
+                victim = m_main.values().iterator().next();
+                m_main.remove(victim.key);
+                m_main_bytes -= victim.size;
+            }
+            victim.evicted = true;
+            m_evictions++;
+            if (victim.lease != null) {
+                victim.lease.release();
+                victim.lease = null;
+            }
+        }
+    }
+
+    private void load (Entry entry)
+    {
+        // Failed by `dispose` while queued.
+        if (entry.loaded.isDone())
+            return;
+        var lease = m_allocator.lease(entry.size);
+        if (lease != null) {
+            var buffer = lease.buffer();
+            buffer.limit(entry.size);
+            try {
+                entry.key.storage.read(entry.key.piece * entry.key.storage.piece_length(), buffer);
+            } catch (IOException ioe) {
+                lease.release();
+                drop(entry);
+                entry.loaded.completeExceptionally(new UncheckedIOException(ioe));
+                return;
+            }
+            buffer.flip();
+        }
+        synchronized (this) {
+            if (lease == null) {
+                drop(entry);
+            } else if (entry.evicted) {
+                lease.release();
+            } else entry.lease = lease;
+        }
+        entry.loaded.complete(null);
+    }
+
+    // Removes an entry that couldn't be loaded, without leaving a ghost.
+    private synchronized void drop (Entry entry)
+    {
+        if (entry.evicted)
+            return;
+        entry.evicted = true;
+        if (m_in.remove(entry.key, entry))
+            m_in_bytes -= entry.size;
+        else if (m_main.remove(entry.key, entry))
+            m_main_bytes -= entry.size;
+    }
+
+    // Follows each peer's position; a run of back-to-back requests triggers read-ahead of the next pieces.
+    private void track (Object peer, FileStorage storage, int piece, int begin, int length)
+    {
+        if (peer == null)
+            return;
+        var stream = m_streams.get(peer);
+        if (stream == null) {
+            stream = new Stream();
+            m_streams.put(peer, stream);
+        }
+        boolean sequential = stream.storage == storage
+                && ((stream.piece == piece && stream.next_begin == begin)
+                    || (stream.piece + 1 == piece && begin == 0 && stream.next_begin == storage.piece_size(stream.piece)));
+        stream.streak = sequential ? stream.streak + 1 : 0;
+        stream.storage = storage;
+        stream.piece = piece;
+        stream.next_begin = begin + length;
+        if (stream.streak < READ_AHEAD_TRIGGER)
+            return;
+        for (int next = piece + 1; next <= piece + READ_AHEAD_PIECES && next < storage.piece_count(); next++) {
+            var key = new Key(storage, next);
+            if (m_in.containsKey(key) || m_main.containsKey(key))
+                continue;
+            var entry = insert(key, storage.piece_size(next), false);
+            m_read_aheads++;
+            m_read_ahead.execute(() -> load(entry));
+        }
+    }
+
+    // Forgets a disconnected peer's read position.
+    public synchronized void forget (Object peer)
+    {
+        m_streams.remove(peer);
+    }
+
+    // Interrupting the read-ahead thread would close the torrent's shared file channel under it, so running
+    // loads are left to finish; they find their entry released and give the buffer back. Entries still waiting
+    // to load fail, so nobody joined on them waits forever.
+    public void dispose ()
+    {
+        m_read_ahead.shutdown();
+        var disposed = new UncheckedIOException(new IOException("Read cache disposed!"));
+        synchronized (this) {
+            for (var entry : m_in.values()) {
+                release(entry);
+                entry.loaded.completeExceptionally(disposed);
+            }
+            for (var entry : m_main.values()) {
+                release(entry);
+                entry.loaded.completeExceptionally(disposed);
+            }
+            m_in.clear();
+            m_main.clear();
+            m_ghosts.clear();
+            m_in_bytes = m_main_bytes = 0;
+        }
+    }
+
+    private static void release (Entry entry)
+    {
+        entry.evicted = true;
+        if (entry.lease != null) {
+            entry.lease.release();
+            entry.lease = null;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.storage;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+// Runs tasks one at a time and in submission order on top of a shared pool, so a torrent's disk work keeps
+// its ordering without a thread of its own. A busy queue hands its thread back every few tasks.
+final class SerialExecutor implements Executor {
+    private static final int BATCH = 16;
+
+    private final Executor m_executor;
+    private final ArrayDeque<Runnable> m_tasks = new ArrayDeque<>();
+    private boolean m_scheduled;
+
+    SerialExecutor (Executor executor)
+    {
+        m_executor = executor;
+    }
+
+    @Override
+    public synchronized void execute (Runnable task)
+    {
+        m_tasks.add(task);
+        if (!m_scheduled) {
+            m_scheduled = true;
+            m_executor.execute(this::drain);
+        }
+    }
+
+    private void drain ()
+    {
+        int ran = 0;
+        try {
+            while (ran++ < BATCH) {
+                Runnable task;
+                synchronized (this) {
+                    task = m_tasks.poll();
+                    if (task == null) {
+                        m_scheduled = false;
+                        return;
+                    }
+                }
+                task.run();
+            }
+        } finally {
+            synchronized (this) {
+                if (m_scheduled) {
+                    if (m_tasks.isEmpty())
+                        m_scheduled = false;
+                    else m_executor.execute(this::drain);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.storage;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Direct buffers for block and piece data, handed out as reference-counted leases.
+//
+// 16 KiB blocks are carved out of 1 MiB direct slabs and recycled through a small per-thread cache backed by
+// a shared free list, so the common lease/release pair touches no shared state. Only threads that lease blocks
+// get a cache; blocks released anywhere else (disk and hashing threads) go straight back to the shared list,
+// where every thread can see them. Short-lived threads that lease blocks should `flush_cache()` before they
+// exit, or their cached blocks are lost to the cap. Larger buffers (piece
+// assembly, up to MAX_SIZE) come in power-of-two classes, are allocated one by one and recycled through the
+// shared lists only. Memory is never returned to the OS, but the total is capped: once `max_bytes` are
+// allocated, leases can only be served from recycled buffers and `lease()` returns null otherwise.
+//
+// With leak detection on (-Dtorrentula.storage.leak_detection=true) each lease records where it was taken;
+// leases that are garbage collected unreleased are reported with that trace and their buffer is reclaimed.
+public class SlabAllocator {
+    public static final int BLOCK_SIZE = 16 * 1024;
+    public static final int SLAB_SIZE = 1024 * 1024;
+    public static final int MAX_SIZE = 32 * 1024 * 1024;
+    static final int CACHE_SIZE = 64;
+    static final int CACHE_BATCH = 32;
+    // Class 0 is the block class; class i > 0 holds buffers of BLOCK_SIZE << i bytes.
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE / BLOCK_SIZE) + 1;
+    private static final Cleaner s_cleaner = Cleaner.create();
+    private static final SlabAllocator s_shared = new SlabAllocator(
+            Long.getLong("torrentula.storage.max_bytes", 256L * 1024 * 1024),
+            Boolean.getBoolean("torrentula.storage.leak_detection"));
+
+    private final long m_max_bytes;
+    private final boolean m_leak_detection;
+    private final AtomicLong m_allocated = new AtomicLong();
+    private final AtomicInteger m_leaks = new AtomicInteger();
+    private final AtomicInteger m_outstanding = new AtomicInteger();
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private final ConcurrentLinkedQueue<ByteBuffer>[] m_free = new ConcurrentLinkedQueue[CLASSES];
+    // Null until the thread leases its first block.
+    private final ThreadLocal<ArrayDeque<ByteBuffer>> m_cache = new ThreadLocal<>();
+
+    public SlabAllocator (long max_bytes, boolean leak_detection)
+    {
+        m_max_bytes = max_bytes;
+        m_leak_detection = leak_detection;
+        for (int i = 0; i < CLASSES; i++)
+            m_free[i] = new ConcurrentLinkedQueue<>();
+    }
+
+    public SlabAllocator (long max_bytes)
+    {
+        this(max_bytes, Boolean.getBoolean("torrentula.storage.leak_detection"));
+    }
+
+    public static SlabAllocator shared ()
+    {
+        return s_shared;
+    }
+
+    public long max_bytes ()
+    {
+        return m_max_bytes;
+    }
+
+    // Bytes of direct memory held, leased or not.
+    public long allocated_bytes ()
+    {
+        return m_allocated.get();
+    }
+
+    public int outstanding ()
+    {
+        return m_outstanding.get();
+    }
+
+    public int leaks ()
+    {
+        return m_leaks.get();
+    }
+
+    static int size_class (int size)
+    {
+        if (size <= BLOCK_SIZE)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros((size - 1) / BLOCK_SIZE);
+    }
+
+    public Lease lease_block ()
+    {
+        return lease(BLOCK_SIZE);
+    }
+
+    // Returns a lease on a cleared buffer of at least `size` bytes, or null if the memory cap is reached and
+    // nothing of that class is free.
+    public Lease lease (int size)
+    {
+        if (size <= 0 || size > MAX_SIZE)
+            throw new RuntimeException("Unsupported buffer size " + size + "!");
+        int size_class = size_class(size);
+        var buffer = size_class == 0 ? take_block() : take_large(size_class);
+        if (buffer == null)
+            return null;
+        m_outstanding.incrementAndGet();
+        buffer.clear();
+        return new Lease(this, buffer, size_class, m_leak_detection ? s_cleaner : null);
+    }
+
+    // True if a block lease would succeed right now on this thread.
+    public boolean can_lease_block ()
+    {
+        var cache = m_cache.get();
+        return (cache != null && !cache.isEmpty()) || !m_free[0].isEmpty() || m_allocated.get() + SLAB_SIZE <= m_max_bytes;
+    }
+
+    private ByteBuffer take_block ()
+    {
+        var cache = m_cache.get();
+        if (cache == null)
+            m_cache.set(cache = new ArrayDeque<>(CACHE_SIZE));
+        var buffer = cache.poll();
+        if (buffer != null)
+            return buffer;
+        // Refill the cache in one go so the next leases stay thread-local.
+        for (int i = 0; i < CACHE_BATCH && (buffer = m_free[0].poll()) != null; i++)
+            cache.push(buffer);
+        if (!cache.isEmpty())
+            return cache.poll();
+        if (!reserve(SLAB_SIZE))
+            return null;
+        var slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+        for (int offset = BLOCK_SIZE; offset < SLAB_SIZE; offset += BLOCK_SIZE)
+            m_free[0].add(slab.duplicate().position(offset).limit(offset + BLOCK_SIZE).slice());
+        return slab.duplicate().limit(BLOCK_SIZE).slice();
+    }
+
+    private ByteBuffer take_large (int size_class)
+    {
+        var buffer = m_free[size_class].poll();
+        if (buffer != null)
+            return buffer;
+        int size = BLOCK_SIZE << size_class;
+        if (!reserve(size))
+            return null;
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    private boolean reserve (long bytes)
+    {
+        while (true) {
+            long allocated = m_allocated.get();
+            if (allocated + bytes > m_max_bytes)
+                return false;
+            if (m_allocated.compareAndSet(allocated, allocated + bytes))
+                return true;
+        }
+    }
+
+    void recycle (ByteBuffer buffer, int size_class)
+    {
+        m_outstanding.decrementAndGet();
+        if (size_class != 0) {
+            m_free[size_class].add(buffer);
+            return;
+        }
+        var cache = m_cache.get();
+        if (cache == null) {
+            m_free[0].add(buffer);
+            return;
+        }
+        if (cache.size() >= CACHE_SIZE) {
+            for (int i = 0; i < CACHE_BATCH; i++)
+                m_free[0].add(cache.pollLast());
+        }
+        cache.push(buffer);
+    }
+
+    // Hands this thread's cached blocks back to the shared list.
+    public void flush_cache ()
+    {
+        var cache = m_cache.get();
+        if (cache == null)
+            return;
+        ByteBuffer buffer;
+        while ((buffer = cache.poll()) != null)
+            m_free[0].add(buffer);
+    }
+
+    void on_leak (Lease.LeakTracker tracker)
+    {
+        System.err.println("Leaked a " + tracker.buffer.capacity() + " byte lease; reclaiming it.");
+        tracker.site.printStackTrace();
+        // The cleaner thread has no cache worth filling.
+        m_outstanding.decrementAndGet();
+        m_free[tracker.size_class].add(tracker.buffer);
+        m_leaks.incrementAndGet();
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.storage;
+
+import torrentula.piece.Bitfield;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+// Holds received blocks in memory until their piece is complete, then hashes the piece and writes it out with
+// one gathered write per file segment, in file order. Random 16 KiB writes become sequential piece-sized ones.
+//
+// The cache owns the leases it is given. When the held blocks exceed the memory budget, the oldest incomplete
+// pieces are written out early; such a piece is hashed from disk once its last block arrives.
+//
+// Disk I/O runs on one background thread (or a serial slot on a shared pool), so writes for a piece always
+// happen in arrival order. Hashing is handed to a HashPool: a piece held in memory is hashed before it is
+// written, a spilled one after its remaining blocks have reached the disk. Each piece also keeps a running
+// digest that advances whenever the next contiguous block arrives, so an in-order piece is fully hashed by
+// the time it completes, and only the bytes past that point are ever hashed late or read back from disk.
+public class WriteCache {
+    public interface Listener {
+        // Called once a complete piece has been hashed (and, if it passed, written), on a hashing or I/O thread.
+        void on_piece_verified (int piece, boolean passed);
+
+        default void on_write_error (int piece, IOException error)
+        {
+        }
+    }
+
+    private static final class PendingPiece {
+        final int piece;
+        final TreeMap<Integer, Lease> blocks = new TreeMap<>();
+        long bytes = 0;
+        // Blocks already written early, by offset, and their total size.
+        Set<Integer> spilled = null;
+        long spilled_bytes = 0;
+        // Running hash of the piece's first `hashed` bytes.
+        final MessageDigest digest = HashPool.create_sha1();
+        int hashed = 0;
+
+        PendingPiece (int piece)
+        {
+            this.piece = piece;
+        }
+
+        // Feeds every held block that continues the hashed prefix to the digest.
+        void advance ()
+        {
+            Lease next;
+            while ((next = blocks.get(hashed)) != null) {
+                var data = next.buffer().duplicate();
+                hashed += data.remaining();
+                digest.update(data);
+            }
+        }
+    }
+
+    private final FileStorage m_storage;
+    private final IntFunction<byte[]> m_checksums;
+    private final long m_budget;
+    private final Listener m_listener;
+    // Disk work runs in order on `m_io`: a thread of the cache's own, or a slot on a pool shared by torrents.
+    private final Executor m_io;
+    private final ExecutorService m_own_io;
+    private final HashPool m_hashes;
+    // Insertion order is age order: the first entry is the oldest piece.
+    private final LinkedHashMap<Integer, PendingPiece> m_pending = new LinkedHashMap<>();
+    // Pieces partly written early and not in memory at all right now.
+    private final Map<Integer, PendingPiece> m_spilled = new HashMap<>();
+    private long m_cached_bytes = 0;
+    private long m_early_flushes = 0;
+    private long m_late_hashed_bytes = 0;
+    // Complete pieces not yet reported to the listener.
+    private int m_verifying = 0;
+    // Pieces being verified or verified good; blocks arriving for them are late duplicates.
+    private final Bitfield m_complete;
+
+    public WriteCache (FileStorage storage, IntFunction<byte[]> checksums, long budget, Listener listener)
+    {
+        this(storage, checksums, budget, listener, null, HashPool.shared());
+    }
+
+    // `disk` may be null, in which case the cache starts its own writer thread.
+    public WriteCache (FileStorage storage, IntFunction<byte[]> checksums, long budget, Listener listener,
+                       Executor disk, HashPool hashes)
+    {
+        m_storage = storage;
+        m_hashes = hashes;
+        m_checksums = checksums;
+        m_budget = budget;
+        m_listener = listener;
+        m_complete = new Bitfield(storage.piece_count());
+        if (disk == null) {
+            m_own_io = Executors.newSingleThreadExecutor(runnable -> {
+                var thread = new Thread(runnable, "disk-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            m_io = m_own_io;
+        } else {
+            m_own_io = null;
+            m_io = new SerialExecutor(disk);
+        }
+    }
+
+    public synchronized long cached_bytes ()
+    {
+        return m_cached_bytes;
+    }
+
+    public synchronized long early_flushes ()
+    {
+        return m_early_flushes;
+    }
+
+    // Takes ownership of `block`; its buffer holds the data between position and limit. Blocks the piece already
+    // has, and blocks for a piece that is complete (endgame duplicates arriving late), are dropped. A piece that
+    // fails verification takes blocks again.
+    public synchronized void add_block (int piece, int begin, Lease block)
+    {
+        if (m_complete.get(piece)) {
+            block.release();
+            return;
+        }
+        var pending = m_pending.get(piece);
+        if (pending == null) {
+            pending = m_spilled.remove(piece);
+            if (pending == null)
+                pending = new PendingPiece(piece);
+            m_pending.put(piece, pending);
+        }
+        int length = block.buffer().remaining();
+        if ((pending.spilled != null && pending.spilled.contains(begin)) || pending.blocks.putIfAbsent(begin, block) != null) {
+            block.release();
+            return;
+        }
+        pending.bytes += length;
+        m_cached_bytes += length;
+        if (begin == pending.hashed)
+            pending.advance();
+        if (pending.bytes + pending.spilled_bytes >= m_storage.piece_size(piece)) {
+            m_pending.remove(piece);
+            m_complete.set(piece);
+            m_verifying++;
+            var complete = pending;
+            if (complete.spilled != null)
+                m_io.execute(() -> verify_on_disk(complete));
+            else verify_in_memory(complete);
+        }
+        while (m_cached_bytes > m_budget && !m_pending.isEmpty())
+            spill_oldest();
+    }
+
+    private void spill_oldest ()
+    {
+        var entry = m_pending.values().iterator().next();
+        m_pending.remove(entry.piece);
+        // The blocks go to the I/O thread; the entry stays behind to remember what is on disk.
+        // Its bytes stop counting against the budget now, so the caller's loop sees the spill take effect.
+        var oldest = new PendingPiece(entry.piece);
+        oldest.blocks.putAll(entry.blocks);
+        m_cached_bytes -= entry.bytes;
+        if (entry.spilled == null)
+            entry.spilled = new HashSet<>();
+        entry.spilled.addAll(entry.blocks.keySet());
+        entry.spilled_bytes += entry.bytes;
+        entry.blocks.clear();
+        entry.bytes = 0;
+        m_spilled.put(entry.piece, entry);
+        m_early_flushes++;
+        m_io.execute(() -> {
+            try {
+                write(oldest);
+            } catch (IOException ioe) {
+                m_listener.on_write_error(oldest.piece, ioe);
+            } finally {
+                release(oldest);
+            }
+        });
+    }
+
+    // Bytes hashed at completion rather than as they arrived.
+    public synchronized long late_hashed_bytes ()
+    {
+        return m_late_hashed_bytes;
+    }
+
+    private synchronized void add_late_hashed (long bytes)
+    {
+        m_late_hashed_bytes += bytes;
+    }
+
+    private void verify_in_memory (PendingPiece pending)
+    {
+        int size = m_storage.piece_size(pending.piece);
+        if (pending.hashed == size) {
+            // Hashed on arrival; only the digest's final block is left.
+            on_hashed(pending, Arrays.equals(pending.digest.digest(), m_checksums.apply(pending.piece)));
+            return;
+        }
+        m_hashes.submit(pending.piece, m_checksums.apply(pending.piece), pending.digest, sha1 -> {
+            add_late_hashed(size - pending.hashed);
+            for (var lease : pending.blocks.tailMap(pending.hashed).values())
+                sha1.update(lease.buffer().duplicate());
+        }, new HashPool.Callback() {
+            @Override
+            public void on_hashed (int piece, boolean passed)
+            {
+                WriteCache.this.on_hashed(pending, passed);
+            }
+
+            @Override
+            public void on_error (int piece, IOException ioe)
+            {
+                finish(pending, false, ioe);
+            }
+        });
+    }
+
+    private void on_hashed (PendingPiece pending, boolean passed)
+    {
+        if (!passed) {
+            finish(pending, false, null);
+            return;
+        }
+        m_io.execute(() -> {
+            try {
+                write(pending);
+                finish(pending, true, null);
+            } catch (IOException ioe) {
+                finish(pending, false, ioe);
+            }
+        });
+    }
+
+    // On the I/O thread: writes the blocks still in memory, then has the rest of the piece hashed.
+    private void verify_on_disk (PendingPiece pending)
+    {
+        try {
+            write(pending);
+        } catch (IOException ioe) {
+            finish(pending, false, ioe);
+            return;
+        }
+        m_hashes.submit(pending.piece, m_checksums.apply(pending.piece), pending.digest, sha1 -> hash_rest(pending, sha1),
+                new HashPool.Callback() {
+                    @Override
+                    public void on_hashed (int piece, boolean passed)
+                    {
+                        finish(pending, passed, null);
+                    }
+
+                    @Override
+                    public void on_error (int piece, IOException ioe)
+                    {
+                        finish(pending, false, ioe);
+                    }
+                });
+    }
+
+    private void finish (PendingPiece pending, boolean passed, IOException error)
+    {
+        release(pending);
+        // Take blocks for a failed piece again before anyone hears about it and re-requests them.
+        if (!passed || error != null) {
+            synchronized (this) {
+                m_complete.clear(pending.piece);
+            }
+        }
+        if (error != null)
+            m_listener.on_write_error(pending.piece, error);
+        else m_listener.on_piece_verified(pending.piece, passed);
+        synchronized (this) {
+            m_verifying--;
+            notifyAll();
+        }
+    }
+
+    private void release (PendingPiece pending)
+    {
+        synchronized (this) {
+            m_cached_bytes -= pending.bytes;
+            pending.bytes = 0;
+        }
+        for (var lease : pending.blocks.values())
+            lease.release();
+        pending.blocks.clear();
+    }
+
+    // Hashes the piece from the end of its running digest: blocks still held come from memory, the gaps between
+    // them (spilled earlier) are read back from disk.
+    private void hash_rest (PendingPiece pending, MessageDigest sha1) throws IOException
+    {
+        long piece_offset = pending.piece * m_storage.piece_length();
+        int size = m_storage.piece_size(pending.piece);
+        add_late_hashed(size - pending.hashed);
+        ByteBuffer buffer = null;
+        int position = pending.hashed;
+        while (position < size) {
+            var held = pending.blocks.get(position);
+            if (held != null) {
+                var data = held.buffer().duplicate();
+                position += data.remaining();
+                sha1.update(data);
+                continue;
+            }
+            var next = pending.blocks.higherKey(position);
+            int end = next == null ? size : next;
+            if (buffer == null)
+                buffer = ByteBuffer.allocateDirect(256 * 1024);
+            while (position < end) {
+                buffer.clear().limit(Math.min(buffer.capacity(), end - position));
+                m_storage.read(piece_offset + position, buffer);
+                position += buffer.flip().remaining();
+                sha1.update(buffer);
+            }
+        }
+    }
+
+    // Writes the held blocks of `pending`: contiguous blocks form runs, each run is split along file boundaries,
+    // and every file segment goes out as one gathered write.
+    private void write (PendingPiece pending) throws IOException
+    {
+        long piece_offset = pending.piece * m_storage.piece_length();
+        var run = new ArrayList<ByteBuffer>();
+        long run_start = -1, run_end = -1;
+        for (var entry : pending.blocks.entrySet()) {
+            long start = piece_offset + entry.getKey();
+            var data = entry.getValue().buffer().duplicate();
+            if (start != run_end && !run.isEmpty()) {
+                write_run(run_start, run);
+                run.clear();
+            }
+            if (run.isEmpty())
+                run_start = start;
+            run.add(data);
+            run_end = start + data.remaining();
+        }
+        if (!run.isEmpty())
+            write_run(run_start, run);
+    }
+
+    private void write_run (long offset, List<ByteBuffer> run) throws IOException
+    {
+        long length = 0;
+        for (var buffer : run)
+            length += buffer.remaining();
+        int index = 0;
+        for (var segment : m_storage.map(offset, length)) {
+            // Slice the run's buffers down to the bytes of this segment.
+            var gather = new ArrayList<ByteBuffer>();
+            long needed = segment.length;
+            while (needed > 0) {
+                var buffer = run.get(index);
+                if (buffer.remaining() <= needed) {
+                    gather.add(buffer);
+                    needed -= buffer.remaining();
+                    index++;
+                } else {
+                    var head = buffer.duplicate();
+                    head.limit(head.position() + (int) needed);
+                    gather.add(head);
+                    buffer.position(buffer.position() + (int) needed);
+                    needed = 0;
+                }
+            }
+            m_storage.write(segment.file, segment.position, gather.toArray(new ByteBuffer[0]));
+        }
+    }
+
+    // Writes out every incomplete piece and waits for all queued work.
+    public void flush () throws InterruptedException
+    {
+        synchronized (this) {
+            while (!m_pending.isEmpty())
+                spill_oldest();
+        }
+        var done = new CountDownLatch(1);
+        m_io.execute(done::countDown);
+        done.await();
+        synchronized (this) {
+            while (m_verifying > 0)
+                wait();
+        }
+    }
+
+    public void dispose () throws InterruptedException
+    {
+        flush();
+        if (m_own_io != null) {
+            m_own_io.shutdown();
+            m_own_io.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+}
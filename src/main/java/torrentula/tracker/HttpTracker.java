@@ -33,13 +33,20 @@ public class HttpTracker extends Tracker
     private final HttpClient m_http;
     private final String m_tracker_address;
     private final Client m_client;
+    private final ResolverCache m_resolver;
 
     public HttpTracker (Client client, String tracker)
+    {
+        this(client, tracker, ResolverCache.shared());
+    }
+
+    public HttpTracker (Client client, String tracker, ResolverCache resolver)
     {
         // FIXME: Currently we are ignoring the tracker URL found in torrents.
         m_tracker_address = tracker;
-        m_http = HttpClient.newBuilder().followRedirects(HttpClient.Redirect.NEVER).build();
+        m_http = client.session().http();
         m_client = client;
+        m_resolver = resolver;
     }
 
     private HttpRequest build_request ()
@@ -69,6 +76,9 @@ public class HttpTracker extends Tracker
     public List<PeerAddress> request_peers () throws  InterruptedException, IOException
     {
         HttpRequest request = build_request();
+        // HttpClient has no resolver hook on this JDK, so the cache can only fail dead trackers fast and
+        // keep the JVM's own address cache warm.
+        m_resolver.resolve(request.uri().getHost());
         byte[] response = m_http.send(request, HttpResponse.BodyHandlers.ofByteArray()).body();
         Map<String, Element> peer_info = Bencode.deserialize(response).as_dictionary();
         Element peers = peer_info.get("peers");
@@ -51,7 +51,7 @@ public class PeerAddress
             {
                 buffer.get(ip);
                 String host = Inet4Address.getByAddress(ip).getHostAddress();
-                int port = buffer.getShort();
+                int port = buffer.getShort() & 0xFFFF;
                 peer_list.add(new PeerAddress(host, port));
             } catch (UnknownHostException exception)
             {
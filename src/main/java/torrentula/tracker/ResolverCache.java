@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.tracker;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+// Caches tracker host lookups. Concurrent lookups of one host share a single resolution, failures are
+// remembered for a short while, and hosts that are still in use get re-resolved in the background before
+// their entry expires so the announce path never waits on DNS for a known tracker. A lookup that hangs fails
+// after `lookup_timeout` and is cached like any other failure, so the next miss after that tries again.
+public class ResolverCache {
+    static final long DEFAULT_TTL = 5 * 60 * 1000; // Milliseconds.
+    static final long DEFAULT_NEGATIVE_TTL = 30 * 1000; // Milliseconds.
+    static final long DEFAULT_LOOKUP_TIMEOUT = 30 * 1000; // Milliseconds.
+    private static final double REFRESH_AHEAD = 0.8;
+
+    private static final ResolverCache s_shared = new ResolverCache(HostResolver.SYSTEM);
+
+    private static class Entry {
+        final CompletableFuture<InetAddress[]> future;
+        volatile long expires_at;
+        volatile boolean used_since_refresh = true;
+        volatile boolean refreshing;
+        final AtomicBoolean settled = new AtomicBoolean();
+
+        Entry (CompletableFuture<InetAddress[]> future, long expires_at)
+        {
+            this.future = future;
+            this.expires_at = expires_at;
+        }
+
+        // Only the first of the lookup and its timeout gets to settle an in-flight entry, and it has to move
+        // the expiry before completing, or a woken caller could still see the in-flight deadline.
+        boolean settle (long expires_at)
+        {
+            if (!settled.compareAndSet(false, true))
+                return false;
+            this.expires_at = expires_at;
+            return true;
+        }
+
+        boolean negative ()
+        {
+            return future.isCompletedExceptionally();
+        }
+    }
+
+    private final HostResolver m_resolver;
+    private final long m_ttl;
+    private final long m_negative_ttl;
+    private final long m_lookup_timeout;
+    private final LongSupplier m_clock;
+    private final ScheduledExecutorService m_executor;
+    private final Map<String, Entry> m_entries = new ConcurrentHashMap<>();
+
+    public ResolverCache (HostResolver resolver)
+    {
+        this(resolver, DEFAULT_TTL, DEFAULT_NEGATIVE_TTL, System::currentTimeMillis);
+    }
+
+    public ResolverCache (HostResolver resolver, long ttl, long negative_ttl, LongSupplier clock)
+    {
+        this(resolver, ttl, negative_ttl, DEFAULT_LOOKUP_TIMEOUT, clock);
+    }
+
+    public ResolverCache (HostResolver resolver, long ttl, long negative_ttl, long lookup_timeout, LongSupplier clock)
+    {
+        m_resolver = resolver;
+        m_ttl = ttl;
+        m_negative_ttl = negative_ttl;
+        m_lookup_timeout = lookup_timeout;
+        m_clock = clock;
+        m_executor = Executors.newScheduledThreadPool(2, runnable -> {
+            var thread = new Thread(runnable, "resolver");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static ResolverCache shared ()
+    {
+        return s_shared;
+    }
+
+    public CompletableFuture<InetAddress> resolve_async (String host)
+    {
+        var now = m_clock.getAsLong();
+        var entry = m_entries.compute(host, (key, existing) -> {
+            if (existing != null && existing.expires_at > now)
+                return existing;
+            return start_lookup(key);
+        });
+        entry.used_since_refresh = true;
+        return entry.future.thenApply(addresses -> addresses[0]);
+    }
+
+    public InetAddress resolve (String host) throws UnknownHostException
+    {
+        try {
+            return resolve_async(host).get();
+        } catch (ExecutionException exc) {
+            if (exc.getCause() instanceof UnknownHostException)
+                throw (UnknownHostException) exc.getCause();
+            throw new RuntimeException(exc.getCause());
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException("Interrupted while resolving " + host);
+        }
+    }
+
+    // Only true if `host` is known to be unresolvable right now; never blocks.
+    public boolean is_known_bad (String host)
+    {
+        var entry = m_entries.get(host);
+        return entry != null && entry.negative() && entry.expires_at > m_clock.getAsLong();
+    }
+
+    public void invalidate (String host)
+    {
+        m_entries.remove(host);
+    }
+
+    public void dispose ()
+    {
+        m_executor.shutdownNow();
+        m_entries.clear();
+    }
+
+    // The entry is shared while in flight, but only until the lookup is due to have timed out.
+    private Entry start_lookup (String host)
+    {
+        var future = new CompletableFuture<InetAddress[]>();
+        var entry = new Entry(future, m_clock.getAsLong() + m_lookup_timeout);
+        m_executor.execute(() -> {
+            try {
+                var addresses = lookup(host);
+                if (entry.settle(m_clock.getAsLong() + m_ttl)) {
+                    entry.used_since_refresh = false;
+                    future.complete(addresses);
+                    schedule_refresh(host, entry);
+                }
+            } catch (Throwable th) {
+                fail(entry, th);
+            }
+        });
+        m_executor.schedule(() -> fail(entry, new UnknownHostException("Timed out resolving " + host)),
+                m_lookup_timeout, TimeUnit.MILLISECONDS);
+        return entry;
+    }
+
+    private void fail (Entry entry, Throwable cause)
+    {
+        if (entry.settle(m_clock.getAsLong() + m_negative_ttl))
+            entry.future.completeExceptionally(cause);
+    }
+
+    private InetAddress[] lookup (String host) throws UnknownHostException
+    {
+        var addresses = m_resolver.resolve(host);
+        if (addresses == null || addresses.length == 0)
+            throw new UnknownHostException(host);
+        return addresses;
+    }
+
+    private void schedule_refresh (String host, Entry entry)
+    {
+        var delay = (long) (m_ttl * REFRESH_AHEAD);
+        m_executor.schedule(() -> refresh(host, entry), delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Swaps in a fresh positive entry without ever exposing callers to an in-flight lookup. Entries nobody
+    // asked for since the last refresh are left to expire.
+    private void refresh (String host, Entry entry)
+    {
+        if (m_entries.get(host) != entry || !entry.used_since_refresh || entry.refreshing)
+            return;
+        entry.refreshing = true;
+        try {
+            var addresses = lookup(host);
+            var fresh = new Entry(CompletableFuture.completedFuture(addresses), m_clock.getAsLong() + m_ttl);
+            fresh.used_since_refresh = false;
+            if (m_entries.replace(host, entry, fresh))
+                schedule_refresh(host, fresh);
+        } catch (Throwable th) {
+            // Keep serving the old addresses until they expire; the next miss will retry.
+        } finally {
+            entry.refreshing = false;
+        }
+    }
+}
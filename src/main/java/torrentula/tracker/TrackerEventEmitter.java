@@ -18,6 +18,7 @@ package torrentula.tracker;
 
 import torrentula.event.EventData;
 import torrentula.event.Event;
+import torrentula.event.EventType;
 
 class TrackerEventEmitter {
     private final Tracker m_emitter;
@@ -37,25 +38,25 @@ class TrackerEventEmitter {
     void fire_connected (EventData... data)
     {
         var tmp = prepare_bag(data);
-        Event.create(EventId.Connected, tmp).fire();
+        Event.create(EventId.Connected, m_emitter, tmp).fire();
     }
 
     void fire_connection_failed (EventData... data)
     {
         var tmp = prepare_bag(data);
-        Event.create(EventId.ConnectionFailed, tmp).fire();
+        Event.create(EventId.ConnectionFailed, m_emitter, tmp).fire();
     }
 
     void fire_announce_failed (EventData... data)
     {
         var tmp = prepare_bag(data);
-        Event.create(EventId.AnnounceFailed, tmp).fire();
+        Event.create(EventId.AnnounceFailed, m_emitter, tmp).fire();
     }
 
     void fire_disconnected (EventData... data)
     {
         var tmp = prepare_bag(data);
-        Event.create(EventId.Disconnected, tmp).fire();
+        Event.create(EventId.Disconnected, m_emitter, tmp).fire();
     }
 
     interface DataFields {
@@ -65,9 +66,9 @@ class TrackerEventEmitter {
     }
 
     private interface EventId {
-        static final String Connected = "$_connected";
-        static final String Disconnected = "$_disconnected";
-        static final String ConnectionFailed = "$_connection_failed";
-        static final String AnnounceFailed = "$_announce_failed";
+        static final EventType Connected = EventType.register("$_connected");
+        static final EventType Disconnected = EventType.register("$_disconnected");
+        static final EventType ConnectionFailed = EventType.register("$_connection_failed");
+        static final EventType AnnounceFailed = EventType.register("$_announce_failed");
     }
 }
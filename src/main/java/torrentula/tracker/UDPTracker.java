@@ -29,14 +29,23 @@ class UDPTracker extends Tracker {
     private static final String TrackerUrl = "udp://tracker.opentrackr.org:1337/announce";
 
     private DatagramSocket m_socket;
-    private final SocketAddress m_tracker_address;
+    private final String m_tracker_host;
+    private final int m_tracker_port;
+    private final ResolverCache m_resolver;
     private final int m_socket_timeout = 15000; // Milliseconds.
 
     UDPTracker (String tracker)
+    {
+        this(tracker, ResolverCache.shared());
+    }
+
+    UDPTracker (String tracker, ResolverCache resolver)
     {
         // FIXME: Currently we are ignoring the tracker URL found in torrents.
         var remote = URI.create(TrackerUrl);
-        m_tracker_address = new InetSocketAddress(remote.getHost(), remote.getPort());
+        m_tracker_host = remote.getHost();
+        m_tracker_port = remote.getPort();
+        m_resolver = resolver;
         try {
             m_socket = new DatagramSocket(new InetSocketAddress(0));
             m_socket.setSoTimeout(m_socket_timeout);
@@ -48,11 +57,13 @@ class UDPTracker extends Tracker {
         }
     }
 
-    private void send_message (final DatagramPacket packet, final RequestCallback callback)
+    private void send_message (final byte[] message, final RequestCallback callback)
     {
         m_executor.submit(() -> {
             try {
-                m_socket.send(packet);
+                // Resolution happens here, off the caller's thread; repeat lookups are served by the cache.
+                var address = new InetSocketAddress(m_resolver.resolve(m_tracker_host), m_tracker_port);
+                m_socket.send(new DatagramPacket(message, message.length, address));
                 final int length = 4096;
                 byte[] response_buffer = new byte[length];
                 var response_packet = new DatagramPacket(response_buffer, length);
@@ -70,9 +81,8 @@ class UDPTracker extends Tracker {
         final int action = 0;
         final int tran_id = 1;
         final var buffer = ByteBuffer.allocate(16).putLong(conn_id).putInt(action).putInt(tran_id);
-        final var packet = new DatagramPacket(buffer.array(), 0, 16, m_tracker_address);
 
-        send_message(packet, new RequestCallback() {
+        send_message(buffer.array(), new RequestCallback() {
             @Override
             public void on_success (TrackerResponse result)
             {
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.client;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BandwidthLimiterTest {
+    private static final long MS = 1_000_000L;
+
+    // Asks for `chunk` bytes every millisecond for `millis` and returns the total granted.
+    private static long drain (BandwidthLimiter limiter, long start, long millis, int chunk)
+    {
+        long total = 0;
+        for (long t = 0; t < millis; t++)
+            total += limiter.acquire(chunk, start + t * MS);
+        return total;
+    }
+
+    @Test
+    void test_unlimited_grants_everything ()
+    {
+        var root = BandwidthLimiter.create_root(BandwidthLimiter.UNLIMITED);
+        var peer = root.create_child(BandwidthLimiter.UNLIMITED);
+        assertEquals(1 << 20, peer.acquire(1 << 20));
+        assertEquals(1, peer.retry_delay_millis());
+    }
+
+    @Test
+    void test_rate_is_enforced ()
+    {
+        long start = System.nanoTime();
+        var root = BandwidthLimiter.create_root(1 << 20);
+        long total = drain(root, start, 10_000, 64 * 1024);
+        // Ten seconds at 1 MiB/s, give or take one bucket.
+        assertEquals(10L << 20, total, BandwidthLimiter.MIN_BURST + (1 << 20) / 10);
+    }
+
+    @Test
+    void test_tightest_level_wins ()
+    {
+        long start = System.nanoTime();
+        var root = BandwidthLimiter.create_root(1 << 20);
+        var torrent = root.create_child(BandwidthLimiter.UNLIMITED);
+        var peer = torrent.create_child(100 * 1024);
+        long total = drain(peer, start, 10_000, 64 * 1024);
+        assertEquals(1000L * 1024, total, BandwidthLimiter.MIN_BURST);
+        // Tokens the peer couldn't use were given back to the root.
+        assertTrue(root.acquire(64 * 1024, start + 10_000 * MS) > 0);
+    }
+
+    @Test
+    void test_leftover_is_shared ()
+    {
+        long start = System.nanoTime();
+        var root = BandwidthLimiter.create_root(1 << 20);
+        var capped = root.create_child(100 * 1024);
+        var greedy = root.create_child(BandwidthLimiter.UNLIMITED);
+        var also_greedy = root.create_child(BandwidthLimiter.UNLIMITED);
+        var peers = new BandwidthLimiter[] { capped, greedy, also_greedy };
+        long[] totals = new long[3];
+        // Peers come in a different order every millisecond, as they would off several selector threads.
+        var random = new Random(42);
+        var order = new ArrayList<>(List.of(0, 1, 2));
+        for (long t = 0; t < 10_000; t++) {
+            long now = start + t * MS;
+            Collections.shuffle(order, random);
+            for (int peer : order)
+                totals[peer] += peers[peer].acquire(64 * 1024, now);
+        }
+        assertEquals(1000L * 1024, totals[0], BandwidthLimiter.MIN_BURST);
+        // The greedy two split what the capped one left, fairly.
+        long leftover = (10L << 20) - totals[0];
+        assertEquals(leftover / 2, totals[1], leftover / 10);
+        assertEquals(leftover / 2, totals[2], leftover / 10);
+    }
+
+    @Test
+    void test_idle_peers_leave_the_burst_to_active_ones ()
+    {
+        long start = System.nanoTime();
+        var root = BandwidthLimiter.create_root(1 << 20);
+        var busy = root.create_child(BandwidthLimiter.UNLIMITED);
+        var other = root.create_child(BandwidthLimiter.UNLIMITED);
+        for (int i = 0; i < 8; i++)
+            root.create_child(BandwidthLimiter.UNLIMITED);
+        long burst = (1 << 20) * BandwidthLimiter.BURST_MILLIS / 1000;
+        // Nine idle peers don't cut into the one asking.
+        assertEquals(burst, busy.acquire(1 << 20, start + 1000 * MS));
+        // Two active peers split it.
+        other.acquire(1, start + 2000 * MS);
+        assertEquals(burst / 2, busy.acquire(1 << 20, start + 2000 * MS), 1);
+        // And once the other has been quiet for a while, it's all the busy one's again.
+        busy.acquire(1 << 20, start + 3000 * MS);
+        assertEquals(burst, busy.acquire(1 << 20, start + 4000 * MS));
+    }
+
+    @Test
+    void test_unused_tokens_come_back ()
+    {
+        long start = System.nanoTime();
+        var root = BandwidthLimiter.create_root(1 << 20);
+        var peer = root.create_child(BandwidthLimiter.UNLIMITED);
+        int granted = peer.acquire(64 * 1024, start + 100 * MS);
+        assertTrue(granted > 0);
+        peer.give_back(granted);
+        assertEquals(granted, peer.acquire(granted, start + 100 * MS));
+    }
+
+    @Test
+    void test_concurrent_grants_respect_the_rate () throws InterruptedException
+    {
+        var root = BandwidthLimiter.create_root(4 << 20);
+        var threads = new Thread[8];
+        var totals = new long[threads.length];
+        long start = System.nanoTime();
+        for (int i = 0; i < threads.length; i++) {
+            var peer = root.create_child(BandwidthLimiter.UNLIMITED);
+            int id = i;
+            threads[i] = new Thread(() -> {
+                while (System.nanoTime() - start < 500 * MS)
+                    totals[id] += peer.acquire(16 * 1024);
+            });
+            threads[i].start();
+        }
+        long total = 0;
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            total += totals[i];
+        }
+        assertTrue(total <= (2 << 20) + BandwidthLimiter.MIN_BURST * 8, "granted " + total);
+        assertTrue(total >= (1 << 20), "granted " + total);
+    }
+}
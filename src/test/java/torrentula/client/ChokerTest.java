@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.client;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChokerTest {
+    private static class FakePeer implements Choker.Peer {
+        final TransferStats stats;
+        boolean interested = true;
+        boolean am_interested = true;
+        boolean peer_choking = false;
+        boolean seeding = false;
+        long last_block = 0;
+        boolean unchoked = false;
+        int changes = 0;
+
+        FakePeer (TransferStats root)
+        {
+            stats = root.create_child();
+        }
+
+        public TransferStats stats () { return stats; }
+        public boolean peer_interested () { return interested; }
+        public boolean am_interested () { return am_interested; }
+        public boolean peer_choking () { return peer_choking; }
+        public boolean seeding () { return seeding; }
+        public long last_block_received () { return last_block; }
+        public void choke () { unchoked = false; changes++; }
+        public void unchoke () { unchoked = true; changes++; }
+    }
+
+    private final TransferStats m_root = TransferStats.create_root();
+
+    private List<FakePeer> peers (Choker choker, int count)
+    {
+        var peers = new ArrayList<FakePeer>();
+        for (int i = 0; i < count; i++) {
+            var peer = new FakePeer(m_root);
+            peer.stats.add_payload_downloaded(1000L * (i + 1));
+            peer.stats.add_payload_uploaded(1000L * (count - i));
+            peer.last_block = 0;
+            choker.add(peer, 0);
+            peers.add(peer);
+        }
+        m_root.tick();
+        return peers;
+    }
+
+    private static int unchoked (List<FakePeer> peers)
+    {
+        int count = 0;
+        for (var peer : peers)
+            count += peer.unchoked ? 1 : 0;
+        return count;
+    }
+
+    @Test
+    void test_fastest_uploaders_get_the_slots ()
+    {
+        var choker = new Choker();
+        var peers = peers(choker, 20);
+        choker.rechoke(1000);
+        for (int i = 20 - Choker.DEFAULT_SLOTS; i < 20; i++)
+            assertTrue(peers.get(i).unchoked, "peer " + i);
+        // Plus exactly one optimistic unchoke among the rest.
+        assertEquals(Choker.DEFAULT_SLOTS + 1, unchoked(peers));
+        assertFalse(choker.optimistic() == peers.get(19));
+    }
+
+    @Test
+    void test_seeding_ranks_by_upload ()
+    {
+        var choker = new Choker();
+        var peers = peers(choker, 10);
+        peers.forEach(peer -> peer.seeding = true);
+        choker.rechoke(1000);
+        for (int i = 0; i < Choker.DEFAULT_SLOTS; i++)
+            assertTrue(peers.get(i).unchoked, "peer " + i);
+    }
+
+    @Test
+    void test_uninterested_peers_stay_choked ()
+    {
+        var choker = new Choker();
+        var peers = peers(choker, 10);
+        peers.forEach(peer -> peer.interested = false);
+        choker.rechoke(1000);
+        assertEquals(0, unchoked(peers));
+    }
+
+    @Test
+    void test_snubbed_peers_lose_regular_slots ()
+    {
+        var choker = new Choker();
+        var peers = peers(choker, 6);
+        long now = Choker.SNUB_TIMEOUT + 1000;
+        for (int i = 0; i < 5; i++)
+            peers.get(i).last_block = now;
+        // The fastest peer has sent nothing for a minute.
+        choker.rechoke(now);
+        assertFalse(peers.get(5).unchoked && choker.optimistic() != peers.get(5));
+        for (int i = 1; i < 5; i++)
+            assertTrue(peers.get(i).unchoked, "peer " + i);
+    }
+
+    @Test
+    void test_optimistic_slot_rotates ()
+    {
+        var choker = new Choker();
+        var peers = peers(choker, 40);
+        // Keep snubbing out of the picture over the simulated 20 minutes.
+        peers.forEach(peer -> peer.am_interested = false);
+        choker.tick(0);
+        var first = choker.optimistic();
+        assertNotNull(first);
+        choker.tick(Choker.RECHOKE_INTERVAL);
+        assertSame(first, choker.optimistic());
+        var seen = new HashSet<Choker.Peer>();
+        for (long now = Choker.OPTIMISTIC_INTERVAL; now < 40 * Choker.OPTIMISTIC_INTERVAL; now += Choker.OPTIMISTIC_INTERVAL) {
+            choker.tick(now);
+            seen.add(choker.optimistic());
+        }
+        assertTrue(seen.size() > 1);
+        assertEquals(Choker.DEFAULT_SLOTS + 1, unchoked(peers));
+    }
+
+    @Test
+    void test_slots_follow_capacity ()
+    {
+        var choker = new Choker();
+        choker.set_upload_capacity(10 * Choker.SLOT_RATE);
+        assertEquals(10, choker.slots());
+        choker.set_upload_capacity(1);
+        assertEquals(Choker.MIN_SLOTS, choker.slots());
+        choker.set_upload_capacity(1L << 40);
+        assertEquals(Choker.MAX_SLOTS, choker.slots());
+        var peers = peers(choker, 300);
+        choker.rechoke(0);
+        assertEquals(Choker.MAX_SLOTS + 1, unchoked(peers));
+    }
+
+    @Test
+    void test_removed_peers_are_forgotten ()
+    {
+        var choker = new Choker();
+        var peers = peers(choker, 100);
+        for (int i = 0; i < 100; i += 2)
+            choker.remove(peers.get(i));
+        assertEquals(50, choker.peer_count());
+        choker.rechoke(0);
+        for (int i = 0; i < 100; i += 2)
+            assertFalse(peers.get(i).unchoked);
+        assertEquals(Choker.DEFAULT_SLOTS + 1, unchoked(peers));
+    }
+}
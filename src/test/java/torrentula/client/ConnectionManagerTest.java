@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.client;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConnectionManagerTest {
+    private static class FakePeer implements ConnectionManager.Peer {
+        final TransferStats stats = TransferStats.create_root();
+        boolean interested = true;
+        boolean am_interested = true;
+        boolean peer_choking = false;
+        long last_block = 0;
+        boolean disconnected = false;
+
+        public TransferStats stats () { return stats; }
+        public boolean peer_interested () { return interested; }
+        public boolean am_interested () { return am_interested; }
+        public boolean peer_choking () { return peer_choking; }
+        public boolean seeding () { return false; }
+        public long last_block_received () { return last_block; }
+        public void choke () { }
+        public void unchoke () { }
+        public void disconnect () { disconnected = true; }
+    }
+
+    private final List<Object[]> m_dials = new ArrayList<>();
+    private final ConnectionManager m_manager = new ConnectionManager((torrent, address) -> m_dials.add(new Object[] { torrent, address }));
+
+    private static InetSocketAddress address (String host, int port)
+    {
+        return new InetSocketAddress(host, port);
+    }
+
+    private static List<InetSocketAddress> addresses (int count)
+    {
+        var addresses = new ArrayList<InetSocketAddress>();
+        for (int i = 0; i < count; i++)
+            addresses.add(address("10." + (i / 250) + "." + (i % 250) + ".1", 6881));
+        return addresses;
+    }
+
+    @Test
+    void test_canonical_peer_priority ()
+    {
+        // The examples from BEP 40.
+        var self = address("123.213.32.10", 51);
+        assertEquals(0xec2d7224L, ConnectionManager.priority(self, address("98.76.54.32", 23)));
+        assertEquals(0x99568189L, ConnectionManager.priority(self, address("123.213.32.234", 23)));
+        // Both ends compute the same value.
+        assertEquals(ConnectionManager.priority(address("98.76.54.32", 23), address("123.213.32.10", 51)),
+                ConnectionManager.priority(self, address("98.76.54.32", 23)));
+        assertEquals(ConnectionManager.priority(address("123.213.32.10", 7000), self),
+                ConnectionManager.priority(self, address("123.213.32.10", 7000)));
+        assertEquals(ConnectionManager.priority(address("2001:db8::1", 1), address("2001:db9::2", 2)),
+                ConnectionManager.priority(address("2001:db9::2", 2), address("2001:db8::1", 1)));
+    }
+
+    @Test
+    void test_dials_respect_half_open_and_torrent_limits ()
+    {
+        var self = address("123.213.32.10", 51);
+        m_manager.set_external_address(self);
+        m_manager.set_max_half_open(5);
+        m_manager.set_max_per_torrent(8);
+        m_manager.add_torrent("t");
+        var candidates = addresses(100);
+        m_manager.add_peers("t", candidates);
+        m_manager.add_peers("t", candidates);
+        assertEquals(100, m_manager.candidate_count("t"));
+
+        m_manager.tick(0);
+        assertEquals(5, m_dials.size());
+        assertEquals(5, m_manager.half_open());
+        long previous = Long.MAX_VALUE;
+        for (var dial : m_dials) {
+            long priority = ConnectionManager.priority(self, (InetSocketAddress) dial[1]);
+            assertTrue(priority <= previous);
+            previous = priority;
+        }
+        m_manager.tick(1);
+        assertEquals(5, m_dials.size());
+
+        for (int i = 0; i < 5; i++) {
+            var address = (InetSocketAddress) m_dials.get(i)[1];
+            if (i < 4)
+                m_manager.on_connected("t", address, new FakePeer(), 0);
+            else m_manager.on_connect_failed("t", address);
+        }
+        assertEquals(0.8, m_manager.success_rate(), 1e-9);
+        m_manager.tick(2);
+        // Four connected, four dialing: the torrent's cap of eight is reached.
+        assertEquals(9, m_dials.size());
+        assertEquals(4, m_manager.connection_count("t"));
+        assertEquals(4, m_manager.half_open());
+        assertEquals(9, m_manager.attempts());
+
+        m_manager.set_torrent_limit("t", 20);
+        m_manager.tick(3);
+        assertEquals(10, m_dials.size());
+    }
+
+    @Test
+    void test_closed_peers_can_be_dialed_again ()
+    {
+        m_manager.add_torrent("t");
+        var address = address("10.0.0.1", 6881);
+        m_manager.add_peers("t", List.of(address));
+        m_manager.tick(0);
+        assertEquals(1, m_dials.size());
+        var peer = new FakePeer();
+        m_manager.on_connected("t", address, peer, 0);
+        m_manager.add_peers("t", List.of(address));
+        assertEquals(0, m_manager.candidate_count("t"));
+
+        m_manager.on_closed(peer);
+        m_manager.add_peers("t", List.of(address));
+        assertEquals(1, m_manager.candidate_count("t"));
+        m_manager.tick(1);
+        assertEquals(2, m_dials.size());
+
+        // Incoming addresses are only known while connected.
+        var incoming = new FakePeer();
+        var ephemeral = address("10.0.0.2", 51234);
+        assertTrue(m_manager.accept_incoming("t", ephemeral, incoming, 2));
+        m_manager.on_closed(incoming);
+        m_manager.add_peers("t", List.of(ephemeral));
+        assertEquals(1, m_manager.candidate_count("t"));
+    }
+
+    @Test
+    void test_useless_peers_make_room_for_starved_torrents ()
+    {
+        m_manager.set_max_connections(2);
+        m_manager.add_torrent("a");
+        m_manager.add_torrent("b");
+        var useful = new FakePeer();
+        useful.stats.add_payload_downloaded(1 << 20);
+        var useless = new FakePeer();
+        useless.interested = false;
+        useless.am_interested = false;
+        assertTrue(m_manager.accept_incoming("a", address("10.0.0.1", 1), useful, 0));
+        assertTrue(m_manager.accept_incoming("a", address("10.0.0.2", 1), useless, 0));
+        m_manager.add_peers("b", addresses(3));
+
+        // Nobody is judged during the grace period.
+        m_manager.tick(1000);
+        assertTrue(m_dials.isEmpty());
+        assertFalse(useless.disconnected);
+
+        long now = ConnectionManager.GRACE_PERIOD + 1000;
+        m_manager.tick(now);
+        assertTrue(useless.disconnected);
+        assertFalse(useful.disconnected);
+        assertEquals(1, m_manager.evictions());
+        m_manager.on_closed(useless);
+        m_manager.tick(now + 1);
+        assertEquals(1, m_dials.size());
+        assertEquals("b", m_dials.get(0)[0]);
+    }
+
+    @Test
+    void test_incoming_peers_replace_only_snubbing_or_useless_ones ()
+    {
+        m_manager.set_max_connections(1);
+        m_manager.add_torrent("t");
+        var first = new FakePeer();
+        assertTrue(m_manager.accept_incoming("t", address("10.0.0.1", 1), first, 0));
+        long now = ConnectionManager.GRACE_PERIOD + 1;
+        first.last_block = now - 1;
+        assertFalse(m_manager.accept_incoming("t", address("10.0.0.2", 1), new FakePeer(), now));
+
+        // Unchoked and wanted, yet silent for a minute: snubbing.
+        now += Choker.SNUB_TIMEOUT + 1;
+        var second = new FakePeer();
+        assertTrue(m_manager.accept_incoming("t", address("10.0.0.3", 1), second, now));
+        assertTrue(first.disconnected);
+        assertEquals(1, m_manager.connection_count());
+
+        m_manager.remove_torrent("t");
+        assertTrue(second.disconnected);
+        assertEquals(0, m_manager.connection_count());
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.client;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import torrentula.Metainfo;
+import torrentula.bencode.Bencode;
+import torrentula.peer.PeerConnection;
+import torrentula.peer.PeerEngine;
+import torrentula.peer.PeerEvent;
+import torrentula.peer.PeerHandler;
+import torrentula.storage.SlabAllocator;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SessionTest {
+    private final Session m_session = new Session(id(1), new SlabAllocator(8 * SlabAllocator.SLAB_SIZE), 2);
+    private PeerEngine m_remote;
+
+    private static byte[] id (int seed)
+    {
+        var id = new byte[20];
+        Arrays.fill(id, (byte) seed);
+        return id;
+    }
+
+    private static Metainfo torrent (int number)
+    {
+        var url = "http://tracker.invalid/announce";
+        var name = "torrent-" + number;
+        return Metainfo.from(Bencode.deserialize("d8:announce" + url.length() + ":" + url + "4:infod6:lengthi100e4:name"
+                + name.length() + ":" + name + "12:piece lengthi16384e6:pieces20:" + "x".repeat(20) + "ee").as_dictionary());
+    }
+
+    @AfterEach
+    void dispose ()
+    {
+        if (m_remote != null)
+            m_remote.dispose();
+        m_session.dispose();
+    }
+
+    // Connects to the session asking for `info_hash` and completes with whether the connection got past the
+    // handshake.
+    private boolean connect (InetSocketAddress address, byte[] info_hash) throws Exception
+    {
+        var result = new CompletableFuture<Boolean>();
+        m_remote.connect(address, info_hash, new PeerHandler() {
+            @Override
+            public void on_connected (PeerConnection connection)
+            {
+                result.complete(true);
+            }
+
+            @Override
+            public void on_closed (PeerConnection connection, Throwable cause)
+            {
+                result.complete(false);
+            }
+        });
+        return result.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void test_incoming_handshakes_are_routed_by_info_hash () throws Exception
+    {
+        var address = m_session.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        m_remote = new PeerEngine(id(2), (connection, handshake) -> null, 1, new SlabAllocator(4 * SlabAllocator.SLAB_SIZE));
+        var first = m_session.add(torrent(1));
+        var second = m_session.add(torrent(2));
+        var first_routed = new CompletableFuture<byte[]>();
+        var second_routed = new CompletableFuture<byte[]>();
+        first.set_incoming((connection, handshake) -> {
+            first_routed.complete(handshake.info_hash());
+            return new PeerHandler() {};
+        });
+        second.set_incoming((connection, handshake) -> {
+            second_routed.complete(handshake.info_hash());
+            return new PeerHandler() {};
+        });
+        assertEquals(address.getPort(), first.port());
+        assertEquals(m_session.peer_id(), second.id());
+
+        var second_hash = second.metainfo().info_hash();
+        assertTrue(connect(address, second_hash));
+        assertArrayEquals(second_hash, second_routed.get(1, TimeUnit.SECONDS));
+        assertFalse(first_routed.isDone());
+
+        assertFalse(connect(address, torrent(3).info_hash()));
+        assertSame(second, m_session.remove(second_hash));
+        assertFalse(connect(address, second_hash));
+        assertTrue(connect(address, first.metainfo().info_hash()));
+    }
+
+    @Test
+    void test_many_torrents ()
+    {
+        int count = 2000;
+        var hashes = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            var client = m_session.add(torrent(i));
+            hashes[i] = client.metainfo().info_hash();
+            client.state().stats().add_payload_downloaded(10);
+        }
+        assertEquals(count, m_session.torrent_count());
+        assertEquals(10L * count, m_session.stats().payload_downloaded());
+        assertThrows(RuntimeException.class, () -> m_session.add(torrent(7)));
+        for (int i = 0; i < count; i += 2)
+            assertNotNull(m_session.remove(hashes[i]));
+        assertNull(m_session.remove(hashes[0]));
+        assertEquals(count / 2, m_session.torrent_count());
+        assertNull(m_session.torrent(hashes[10]));
+        assertArrayEquals(hashes[11], m_session.torrent(hashes[11]).metainfo().info_hash());
+        // Totals of removed torrents stay in the session's.
+        assertEquals(10L * count, m_session.stats().payload_downloaded());
+    }
+
+    @Test
+    void test_peer_events_are_published_to_subscribers () throws Exception
+    {
+        var address = m_session.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        m_remote = new PeerEngine(id(2), (connection, handshake) -> null, 1, new SlabAllocator(4 * SlabAllocator.SLAB_SIZE));
+        var client = m_session.add(torrent(1));
+        var info_hash = client.metainfo().info_hash();
+        client.set_incoming((connection, handshake) -> new PeerHandler() {});
+        var have = new CountDownLatch(1);
+        var block = new CountDownLatch(1);
+        var tick = new CountDownLatch(1);
+        var failure = new CompletableFuture<String>();
+        m_session.subscribe((event, sequence, end_of_batch) -> {
+            if (!Arrays.equals(info_hash, event.info_hash()))
+                failure.complete("Event for another torrent");
+            switch (event.type()) {
+                case HAVE -> {
+                    if (event.piece() != 3)
+                        failure.complete("HAVE " + event.piece());
+                    have.countDown();
+                }
+                case BLOCK_RECEIVED -> {
+                    if (event.piece() != 0 || event.begin() != 16 || event.length() != 32)
+                        failure.complete("Block " + event.piece() + "/" + event.begin() + "/" + event.length());
+                    block.countDown();
+                }
+                case RATE_TICK -> tick.countDown();
+            }
+        });
+
+        m_remote.connect(address, info_hash, new PeerHandler() {
+            @Override
+            public void on_connected (PeerConnection connection)
+            {
+                connection.send_have(3);
+                connection.send_piece(0, 16, ByteBuffer.allocate(32), null);
+            }
+        });
+        assertTrue(have.await(10, TimeUnit.SECONDS));
+        assertTrue(block.await(10, TimeUnit.SECONDS));
+        assertTrue(tick.await(10, TimeUnit.SECONDS));
+        assertFalse(failure.isDone(), () -> failure.join());
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.client;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TransferStatsTest {
+    @Test
+    void test_concurrent_updates_roll_up () throws InterruptedException
+    {
+        var session = TransferStats.create_root();
+        var torrent = session.create_child();
+        var peers = new TransferStats[8];
+        var threads = new Thread[peers.length];
+        for (int i = 0; i < peers.length; i++) {
+            final var peer = peers[i] = torrent.create_child();
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 100_000; j++) {
+                    peer.add_payload_downloaded(16);
+                    peer.add_protocol_downloaded(13);
+                }
+            });
+            threads[i].start();
+        }
+        for (var thread : threads)
+            thread.join();
+
+        assertEquals(100_000 * 16, peers[3].payload_downloaded());
+        assertEquals(8 * 100_000 * 16, torrent.payload_downloaded());
+        assertEquals(8 * 100_000 * 13, session.protocol_downloaded());
+        assertEquals(0, session.payload_uploaded());
+    }
+
+    @Test
+    void test_sliding_windows ()
+    {
+        var meter = new RateMeter();
+        for (int second = 0; second < 10; second++) {
+            meter.add(1000);
+            meter.tick();
+        }
+        assertEquals(1000, meter.rate(RateMeter.Window.ONE_SECOND));
+        assertEquals(1000, meter.rate(RateMeter.Window.TEN_SECONDS));
+        assertEquals(1000, meter.rate(RateMeter.Window.ONE_MINUTE));
+
+        // Ten idle seconds empty the 10 s window but only dilute the minute.
+        for (int second = 0; second < 10; second++)
+            meter.tick();
+        assertEquals(0, meter.rate(RateMeter.Window.ONE_SECOND));
+        assertEquals(0, meter.rate(RateMeter.Window.TEN_SECONDS));
+        assertEquals(500, meter.rate(RateMeter.Window.ONE_MINUTE));
+
+        for (int second = 0; second < 60; second++)
+            meter.tick();
+        assertEquals(0, meter.rate(RateMeter.Window.ONE_MINUTE));
+        assertEquals(10_000, meter.total());
+    }
+
+    @Test
+    void test_client_state_accumulates ()
+    {
+        var stats = TransferStats.create_root();
+        var state = new ClientState(null, 100, stats);
+        state.add_downloaded_byte_count(30);
+        state.add_downloaded_byte_count(20);
+        state.add_uploaded_byte_count(5);
+        assertEquals(50, state.bytes_downloaded());
+        assertEquals(50, state.bytes_left());
+        assertEquals(5, state.bytes_uploaded());
+    }
+}
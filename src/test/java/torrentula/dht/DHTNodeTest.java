@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.dht;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DHTNodeTest {
+    private final List<DHTNode> m_nodes = new ArrayList<>();
+
+    private void spawn (int count) throws Exception
+    {
+        var loopback = InetAddress.getLoopbackAddress();
+        for (int i = 0; i < count; i++) {
+            var node = new DHTNode(new InetSocketAddress(loopback, 0));
+            if (!m_nodes.isEmpty())
+                node.bootstrap(List.of(m_nodes.get(0).local_address())).get(10, TimeUnit.SECONDS);
+            m_nodes.add(node);
+        }
+        // Late joiners are only known to the seed; let everyone refresh once.
+        for (var node : m_nodes)
+            node.bootstrap(List.of(m_nodes.get(0).local_address())).get(10, TimeUnit.SECONDS);
+    }
+
+    @AfterEach
+    void dispose ()
+    {
+        m_nodes.forEach(DHTNode::dispose);
+    }
+
+    @Test
+    void test_bucket_index ()
+    {
+        var a = new byte[NodeId.LENGTH];
+        var b = new byte[NodeId.LENGTH];
+        assertEquals(-1, NodeId.bucket_index(a, b));
+        b[NodeId.LENGTH - 1] = 1;
+        assertEquals(0, NodeId.bucket_index(a, b));
+        b[0] = (byte) 0x80;
+        assertEquals(NodeId.BITS - 1, NodeId.bucket_index(a, b));
+    }
+
+    @Test
+    void test_routing_table_orders_by_distance ()
+    {
+        var local = new byte[NodeId.LENGTH];
+        var table = new RoutingTable(local);
+        var address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 6881);
+        for (int i = 1; i <= 40; i++) {
+            var id = new byte[NodeId.LENGTH];
+            id[NodeId.LENGTH - 1] = (byte) i;
+            table.insert(id, address, 0);
+        }
+        var target = new byte[NodeId.LENGTH];
+        target[NodeId.LENGTH - 1] = 3;
+        var closest = table.closest(target, 4);
+        assertEquals(4, closest.size());
+        assertEquals(3, closest.get(0).id()[NodeId.LENGTH - 1]);
+        for (int i = 1; i < closest.size(); i++)
+            assertTrue(NodeId.compare_distance(target, closest.get(i - 1).id(), closest.get(i).id()) < 0);
+    }
+
+    @Test
+    void test_announce_and_get_peers () throws Exception
+    {
+        spawn(24);
+        for (var node : m_nodes)
+            assertTrue(node.routing_table_size() > 0);
+
+        var info_hash = NodeId.random();
+        m_nodes.get(5).announce(info_hash, 6881).get(10, TimeUnit.SECONDS);
+
+        var peers = m_nodes.get(17).get_peers(info_hash).get(10, TimeUnit.SECONDS);
+        assertFalse(peers.isEmpty());
+        assertEquals(6881, peers.get(0).port());
+    }
+
+    @Test
+    void test_two_node_round_trips () throws Exception
+    {
+        spawn(2);
+        var a = m_nodes.get(0);
+        var b = m_nodes.get(1);
+        // Each learned the other: `b` from the answer to its query, `a` from the query itself. The target is
+        // at distance zero from itself, so it must come back first.
+        var found = b.find_node(a.id()).get(10, TimeUnit.SECONDS);
+        assertFalse(found.isEmpty());
+        assertArrayEquals(a.id(), found.get(0).id());
+        assertEquals(a.local_address(), found.get(0).address());
+        found = a.find_node(b.id()).get(10, TimeUnit.SECONDS);
+        assertFalse(found.isEmpty());
+        assertArrayEquals(b.id(), found.get(0).id());
+        assertEquals(b.local_address(), found.get(0).address());
+
+        var info_hash = NodeId.random();
+        assertTrue(b.get_peers(info_hash).get(10, TimeUnit.SECONDS).isEmpty());
+        // The announce completes once `a` has stored the peer, so the next lookup sees it.
+        assertTrue(b.announce(info_hash, 7000).get(10, TimeUnit.SECONDS).isEmpty());
+        var peers = b.get_peers(info_hash).get(10, TimeUnit.SECONDS);
+        assertEquals(1, peers.size());
+        assertEquals(7000, peers.get(0).port());
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.event;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DispatchLaneTest {
+    // Holds the lane thread inside the sink until released, so tests can fill the queue behind it. `delivered`
+    // opens once the expected number of events has been recorded.
+    static class GatedSink {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final CountDownLatch delivered;
+        final List<Integer> values = new CopyOnWriteArrayList<>();
+
+        GatedSink (int expected)
+        {
+            delivered = new CountDownLatch(expected);
+        }
+
+        void accept (Event event)
+        {
+            entered.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException exc) {
+                return;
+            }
+            values.add(event.data().take("value"));
+            delivered.countDown();
+        }
+    }
+
+    private static Event event (EventType type, Object key, int value)
+    {
+        return Event.create(type, key, EventData.initialize("value", value));
+    }
+
+    @Test
+    void test_drop_oldest () throws InterruptedException
+    {
+        var type = EventType.register("lane-drop-test");
+        var sink = new GatedSink(5);
+        var lane = new DispatchLane("lane-drop", 4, OverflowPolicy.DROP_OLDEST, sink::accept);
+        lane.offer(event(type, null, 0));
+        assertTrue(sink.entered.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i <= 6; i++)
+            lane.offer(event(type, null, i));
+
+        var metrics = lane.metrics();
+        assertEquals(4, metrics.depth());
+        assertEquals(2, metrics.dropped());
+        sink.gate.countDown();
+        assertTrue(sink.delivered.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(0, 3, 4, 5, 6), sink.values);
+        lane.shutdown(false);
+    }
+
+    @Test
+    void test_coalescing_type () throws InterruptedException
+    {
+        var progress = EventType.register("lane-progress-test", true);
+        var plain = EventType.register("lane-plain-test");
+        var sink = new GatedSink(4);
+        var lane = new DispatchLane("lane-coalesce", 16, OverflowPolicy.BLOCK, sink::accept);
+        lane.offer(event(plain, null, 0));
+        assertTrue(sink.entered.await(5, TimeUnit.SECONDS));
+
+        lane.offer(event(progress, "a", 1));
+        lane.offer(event(progress, "b", 2));
+        lane.offer(event(plain, "a", 3));
+        lane.offer(event(progress, "a", 4));
+        lane.offer(event(progress, "a", 5));
+
+        var metrics = lane.metrics();
+        assertEquals(3, metrics.depth());
+        assertEquals(2, metrics.coalesced());
+        sink.gate.countDown();
+        assertTrue(sink.delivered.await(5, TimeUnit.SECONDS));
+        // The latest "a" progress event keeps the position of the first.
+        assertEquals(List.of(0, 5, 2, 3), sink.values);
+        lane.shutdown(false);
+    }
+
+    @Test
+    void test_coalesce_on_overflow () throws InterruptedException
+    {
+        var type = EventType.register("lane-overflow-test");
+        var sink = new GatedSink(3);
+        var lane = new DispatchLane("lane-overflow", 2, OverflowPolicy.COALESCE, sink::accept);
+        lane.offer(event(type, "x", 0));
+        assertTrue(sink.entered.await(5, TimeUnit.SECONDS));
+        lane.offer(event(type, "x", 1));
+        lane.offer(event(type, "y", 2));
+        // Full: replaces the pending "x" rather than blocking.
+        lane.offer(event(type, "x", 3));
+
+        assertEquals(1, lane.metrics().coalesced());
+        sink.gate.countDown();
+        assertTrue(sink.delivered.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(0, 3, 2), sink.values);
+        lane.shutdown(false);
+    }
+}
@@ -18,6 +18,16 @@ package torrentula.event;
 
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
 public class EventDispatcherTest {
     static class SimpleEventListener implements EventListener {
         private volatile boolean message_received = false;
@@ -39,4 +49,173 @@ public class EventDispatcherTest {
         var event = Event.create("test", EventData.initialize("message", "hello there!"));
         var reactor = new SimpleEventListener();
     }
+
+    @Test
+    void test_per_key_ordering () throws InterruptedException
+    {
+        final int keys = 8;
+        final int per_key = 500;
+        var latch = new CountDownLatch(keys * per_key);
+        Map<Integer, List<Integer>> received = new ConcurrentHashMap<>();
+        var probe = Event.create("ordering-test", null);
+        EventDispatcher.add_listener(probe, event -> {
+            int key = (Integer) event.key();
+            int sequence = event.data().take("sequence");
+            received.computeIfAbsent(key, k -> new ArrayList<>()).add(sequence);
+            latch.countDown();
+        });
+
+        for (int i = 0; i < per_key; i++) {
+            for (int key = 0; key < keys; key++)
+                Event.create("ordering-test", key, EventData.initialize("sequence", i)).fire();
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        for (int key = 0; key < keys; key++) {
+            var sequence = received.get(key);
+            assertEquals(per_key, sequence.size());
+            for (int i = 0; i < per_key; i++)
+                assertEquals(i, sequence.get(i));
+        }
+        EventDispatcher.remove_listeners_listening_to(probe);
+    }
+
+    @Test
+    void test_event_type_registry () throws InterruptedException
+    {
+        var type = EventType.register("registry-test");
+        assertSame(type, EventType.register("registry-test"));
+        assertNotEquals(type.id(), EventType.register("registry-test-other").id());
+        assertTrue(type.id() < EventType.count());
+
+        // String-created events resolve to the same type and reach the same listeners.
+        var legacy = Event.create("registry-test", null);
+        assertSame(type, legacy.type());
+        assertEquals(legacy, Event.create(type, null));
+
+        var latch = new CountDownLatch(2);
+        EventDispatcher.add_listener(type, event -> latch.countDown());
+        legacy.fire();
+        Event.create(type, null).fire();
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        EventDispatcher.remove_listeners_listening_to(legacy);
+    }
+
+    @Test
+    void test_instrumentation () throws InterruptedException
+    {
+        var type = EventType.register("instrumentation-test");
+        var latch = new CountDownLatch(4);
+        EventListener failing = event -> {
+            latch.countDown();
+            throw new RuntimeException("boom");
+        };
+        EventListener slow = event -> {
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException ignored) {
+            }
+            latch.countDown();
+        };
+        EventDispatcher.add_listener(type, failing);
+        EventDispatcher.add_listener(type, slow);
+        EventDispatcher.set_slow_listener_threshold(1_000_000);
+        Event.create(type, null).fire();
+        Event.create(type, null).fire();
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+        // The counters are updated right after `react` returns, so poll until both calls have been recorded.
+        DispatcherMetrics metrics;
+        DispatcherMetrics.Listener failing_metrics;
+        DispatcherMetrics.Listener slow_metrics;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (true) {
+            metrics = EventDispatcher.metrics();
+            failing_metrics = null;
+            slow_metrics = null;
+            for (var listener : metrics.listeners()) {
+                if (!listener.event_type().equals(type.name()))
+                    continue;
+                if (listener.exceptions() > 0)
+                    failing_metrics = listener;
+                else slow_metrics = listener;
+            }
+            boolean recorded = failing_metrics != null && failing_metrics.exceptions() == 2
+                    && slow_metrics != null && slow_metrics.execution().count() == 2;
+            if (recorded || System.nanoTime() > deadline)
+                break;
+            Thread.yield();
+        }
+        assertNotNull(failing_metrics);
+        assertNotNull(slow_metrics);
+        // A throwing listener doesn't keep the next one from running.
+        assertEquals(2, failing_metrics.exceptions());
+        assertEquals("boom", failing_metrics.last_exception().getMessage());
+        assertEquals(2, slow_metrics.execution().count());
+        assertEquals(2, slow_metrics.slow());
+        assertTrue(slow_metrics.execution().quantile(0.5) >= 5_000_000);
+
+        long delivered = 0;
+        for (var lane : metrics.lanes())
+            delivered += lane.queue_latency().count();
+        assertTrue(delivered >= 2);
+
+        EventDispatcher.set_slow_listener_threshold(EventDispatcher.DEFAULT_SLOW_LISTENER_THRESHOLD);
+        EventDispatcher.remove_listeners_listening_to(Event.create(type, null));
+    }
+
+    @Test
+    void test_dispatch_modes () throws InterruptedException
+    {
+        var type = EventType.register("dispatch-mode-test");
+        var firing_thread = Thread.currentThread();
+        var inline_on_firing_thread = new boolean[]{true};
+        var inline_count = new int[1];
+        EventDispatcher.add_listener(type, event -> {
+            inline_on_firing_thread[0] &= Thread.currentThread() == firing_thread;
+            inline_count[0]++;
+        }, DispatchMode.INLINE);
+
+        final int total = 1000;
+        var latch = new CountDownLatch(total);
+        List<Integer> received = new ArrayList<>();
+        var largest_batch = new int[1];
+        EventDispatcher.add_listener(type, (BatchEventListener) events -> {
+            largest_batch[0] = Math.max(largest_batch[0], events.size());
+            for (var event : events) {
+                received.add(event.data().take("sequence"));
+                latch.countDown();
+            }
+        }, DispatchMode.BATCHED, 100);
+
+        for (int i = 0; i < total; i++)
+            Event.create(type, EventData.initialize("sequence", i)).fire();
+        assertEquals(total, inline_count[0]);
+        assertTrue(inline_on_firing_thread[0]);
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertTrue(largest_batch[0] > 1);
+        for (int i = 0; i < total; i++)
+            assertEquals(i, received.get(i));
+        EventDispatcher.remove_listeners_listening_to(Event.create(type, null));
+    }
+
+    @Test
+    void test_removed_batched_listeners_get_pending_events () throws InterruptedException
+    {
+        var type = EventType.register("batched-removal-test");
+        int total = 50;
+        var latch = new CountDownLatch(total);
+        var received = new CopyOnWriteArrayList<Integer>();
+        EventDispatcher.add_listener(type, event -> {
+            received.add(event.data().take("sequence"));
+            latch.countDown();
+        }, DispatchMode.BATCHED, 1000);
+        for (int i = 0; i < total; i++)
+            Event.create(type, EventData.initialize("sequence", i)).fire();
+        EventDispatcher.remove_listeners_listening_to(Event.create(type, null));
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < total; i++)
+            assertEquals(i, received.get(i));
+    }
 }
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.event;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RingBufferTest {
+    static class BlockEvent {
+        int producer;
+        long value;
+    }
+
+    static class Checker implements RingEventHandler<BlockEvent> {
+        final long[] last_seen;
+        final CountDownLatch done;
+        volatile boolean ordered = true;
+        long sum;
+        long batches;
+
+        Checker (int producers, long total)
+        {
+            last_seen = new long[producers];
+            Arrays.fill(last_seen, -1);
+            done = new CountDownLatch((int) total);
+        }
+
+        @Override
+        public void on_event (BlockEvent event, long sequence, boolean end_of_batch)
+        {
+            if (event.value != last_seen[event.producer] + 1)
+                ordered = false;
+            last_seen[event.producer] = event.value;
+            sum += event.value;
+            if (end_of_batch)
+                batches++;
+            done.countDown();
+        }
+    }
+
+    private void run (WaitStrategy strategy, int producers, int per_producer) throws InterruptedException
+    {
+        var ring = new RingBuffer<>(1024, BlockEvent::new, strategy);
+        var checker = new Checker(producers, (long) producers * per_producer);
+        var processor = new BatchEventProcessor<>(ring, checker);
+        var consumer = new Thread(processor, "ring-consumer");
+        consumer.start();
+
+        var threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < per_producer; i++) {
+                    long sequence = ring.next();
+                    var slot = ring.get(sequence);
+                    slot.producer = producer;
+                    slot.value = i;
+                    ring.publish(sequence);
+                }
+            });
+            threads[p].start();
+        }
+        for (var thread : threads)
+            thread.join();
+        assertTrue(checker.done.await(30, TimeUnit.SECONDS));
+        processor.halt();
+        consumer.join();
+
+        assertTrue(checker.ordered);
+        long expected = (long) producers * ((long) per_producer * (per_producer - 1) / 2);
+        assertEquals(expected, checker.sum);
+        assertTrue(checker.batches > 0);
+    }
+
+    @Test
+    void test_single_producer () throws InterruptedException
+    {
+        run(WaitStrategy.YIELD, 1, 2_000_000);
+    }
+
+    @Test
+    void test_multiple_producers () throws InterruptedException
+    {
+        run(WaitStrategy.PARK, 4, 250_000);
+        run(WaitStrategy.BUSY_SPIN, 2, 250_000);
+    }
+
+    @Test
+    void test_try_next_on_full_ring ()
+    {
+        var ring = new RingBuffer<>(4, BlockEvent::new, WaitStrategy.PARK);
+        ring.add_gating_sequence(new Sequence());
+        for (int i = 0; i < 4; i++)
+            ring.publish(ring.try_next());
+        assertEquals(-1, ring.try_next());
+    }
+
+    @Test
+    void test_halt_while_busy () throws InterruptedException
+    {
+        var ring = new RingBuffer<>(64, BlockEvent::new, WaitStrategy.YIELD);
+        var started = new CountDownLatch(1000);
+        // Slower than the producer, so the cursor is always ahead and the processor never has to wait.
+        var processor = new BatchEventProcessor<>(ring, (event, sequence, end_of_batch) -> {
+            started.countDown();
+            Thread.onSpinWait();
+        });
+        var consumer = new Thread(processor, "ring-consumer");
+        consumer.start();
+        var producer = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted())
+                ring.publish(ring.next());
+        });
+        producer.start();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        processor.halt();
+        consumer.join(10_000);
+        assertFalse(consumer.isAlive());
+        assertFalse(processor.running());
+        producer.interrupt();
+        producer.join(10_000);
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.peer;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AllowedFastTest {
+    private static final byte[] INFO_HASH = new byte[20];
+
+    static {
+        Arrays.fill(INFO_HASH, (byte) 0xAA);
+    }
+
+    @Test
+    void test_canonical_sets () throws Exception
+    {
+        // The examples from BEP 6.
+        var address = InetAddress.getByName("80.4.4.200");
+        assertArrayEquals(new int[] { 1059, 431, 808, 1217, 287, 376, 1188 },
+                AllowedFast.generate(INFO_HASH, address, 1313, 7));
+        assertArrayEquals(new int[] { 1059, 431, 808, 1217, 287, 376, 1188, 353, 508 },
+                AllowedFast.generate(INFO_HASH, address, 1313, 9));
+        // Only the /24 counts.
+        assertArrayEquals(AllowedFast.generate(INFO_HASH, address, 1313, 9),
+                AllowedFast.generate(INFO_HASH, InetAddress.getByName("80.4.4.1"), 1313, 9));
+    }
+
+    @Test
+    void test_small_torrents_and_ipv6 () throws Exception
+    {
+        var address = InetAddress.getByName("80.4.4.200");
+        assertArrayEquals(new int[] { 0, 1, 2 }, AllowedFast.generate(INFO_HASH, address, 3, 10));
+        assertEquals(0, AllowedFast.generate(INFO_HASH, InetAddress.getByName("2001:db8::1"), 1313, 10).length);
+    }
+}
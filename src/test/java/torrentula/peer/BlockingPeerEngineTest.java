@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.peer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BlockingPeerEngineTest {
+    private static final byte[] INFO_HASH = id(7);
+    private static final InetSocketAddress ANY = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+
+    private BlockingPeerEngine m_seed;
+    private BlockingPeerEngine m_leech;
+
+    private static byte[] id (int seed)
+    {
+        var id = new byte[20];
+        Arrays.fill(id, (byte) seed);
+        return id;
+    }
+
+    private static final byte[] BLOCK = new byte[Message.BLOCK_SIZE];
+
+    static {
+        for (int i = 0; i < BLOCK.length; i++)
+            BLOCK[i] = (byte) (i * 7);
+    }
+
+    // Blocking-style seeder: unchoke on interest and serve every request.
+    private static void seed (BlockingPeerConnection connection) throws IOException
+    {
+        connection.send_bitfield(new byte[] { (byte) 0xFF });
+        while (true) {
+            var frame = connection.read();
+            if (frame.id() == Message.INTERESTED)
+                connection.send_unchoke();
+            else if (frame.id() == Message.REQUEST)
+                connection.send_piece(frame.payload().getInt(), frame.payload().getInt(), ByteBuffer.wrap(BLOCK));
+        }
+    }
+
+    // Requests `blocks` blocks and returns how many arrived intact.
+    private static int leech (BlockingPeerConnection connection, int blocks) throws IOException
+    {
+        int received = 0;
+        while (received < blocks) {
+            var frame = connection.read();
+            if (frame.id() == Message.BITFIELD) {
+                connection.send_interested();
+            } else if (frame.id() == Message.UNCHOKE) {
+                for (int i = 0; i < blocks; i++)
+                    connection.send_request(i, 0, Message.BLOCK_SIZE);
+            } else if (frame.id() == Message.PIECE) {
+                var payload = frame.payload().position(8).slice();
+                if (payload.equals(ByteBuffer.wrap(BLOCK)))
+                    received++;
+            }
+        }
+        return received;
+    }
+
+    private InetSocketAddress start () throws Exception
+    {
+        m_seed = new BlockingPeerEngine(id(1));
+        m_leech = new BlockingPeerEngine(id(2));
+        m_seed.open(INFO_HASH, BlockingPeerEngineTest::seed);
+        return m_seed.listen(ANY);
+    }
+
+    @AfterEach
+    void dispose ()
+    {
+        if (m_seed != null)
+            m_seed.dispose();
+        if (m_leech != null)
+            m_leech.dispose();
+    }
+
+    @Test
+    void test_download_blocks () throws Exception
+    {
+        var address = start();
+        var scope = m_leech.open(INFO_HASH, connection -> { });
+        var intact = new AtomicInteger();
+        var done = new CountDownLatch(1);
+        scope.connect(address, connection -> {
+            assertArrayEquals(id(1), connection.remote_handshake().peer_id());
+            intact.set(leech(connection, 32));
+            done.countDown();
+        });
+        assertTrue(done.await(20, TimeUnit.SECONDS));
+        assertEquals(32, intact.get());
+    }
+
+    @Test
+    void test_cancel_ends_every_session () throws Exception
+    {
+        var address = start();
+        var scope = m_leech.open(INFO_HASH, connection -> { });
+        int count = 100;
+        var connected = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            scope.connect(address, connection -> {
+                connected.countDown();
+                while (true)
+                    connection.read();
+            });
+        }
+        assertTrue(connected.await(30, TimeUnit.SECONDS));
+        assertEquals(count, scope.connection_count());
+        scope.close();
+        assertTrue(scope.join(1000));
+        assertEquals(0, scope.connection_count());
+        assertThrows(RuntimeException.class, () -> scope.connect(address, connection -> { }));
+    }
+
+    @Test
+    void test_pinned_sections_are_bounded () throws Exception
+    {
+        var engine = new BlockingPeerEngine(id(3), 2);
+        var inside = new AtomicInteger();
+        var peak = new AtomicInteger();
+        var threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    engine.pinned(() -> {
+                        peak.accumulateAndGet(inside.incrementAndGet(), Math::max);
+                        Thread.sleep(20);
+                        return inside.decrementAndGet();
+                    });
+                } catch (Exception exc) {
+                    throw new RuntimeException(exc);
+                }
+            });
+            threads[i].start();
+        }
+        for (var thread : threads)
+            thread.join();
+        engine.dispose();
+        assertEquals(2, peak.get());
+    }
+
+    @Test
+    void test_many_concurrent_sessions () throws Exception
+    {
+        int connections = 50;
+        int blocks = 64;
+        var address = start();
+        var scope = m_leech.open(INFO_HASH, connection -> { });
+        var intact = new AtomicInteger();
+        var done = new CountDownLatch(connections);
+        for (int i = 0; i < connections; i++) {
+            scope.connect(address, connection -> {
+                intact.addAndGet(leech(connection, blocks));
+                done.countDown();
+                while (true)
+                    connection.read();
+            });
+        }
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        assertEquals(connections * blocks, intact.get());
+        assertEquals(connections, scope.connection_count());
+        scope.close();
+        assertTrue(scope.join(1000));
+    }
+}
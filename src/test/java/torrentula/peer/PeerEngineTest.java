@@ -0,0 +1,594 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.peer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import torrentula.client.BandwidthLimiter;
+import torrentula.storage.FileStorage;
+import torrentula.storage.Lease;
+import torrentula.storage.ReadCache;
+import torrentula.storage.SlabAllocator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PeerEngineTest {
+    private static final byte[] INFO_HASH = id(7);
+
+    private PeerEngine m_seed;
+    private PeerEngine m_leech;
+
+    private static byte[] id (int seed)
+    {
+        var id = new byte[20];
+        Arrays.fill(id, (byte) seed);
+        return id;
+    }
+
+    private static byte[] block (int index, int begin, int length)
+    {
+        var data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) (index * 31 + begin + i);
+        return data;
+    }
+
+    // Serves every request straight from `block()`.
+    private static class Seeder implements PeerHandler {
+        @Override
+        public void on_connected (PeerConnection connection)
+        {
+            connection.send_bitfield(new byte[] { (byte) 0xFF });
+        }
+
+        @Override
+        public void on_interested (PeerConnection connection)
+        {
+            connection.send_unchoke();
+        }
+
+        @Override
+        public void on_request (PeerConnection connection, int index, int begin, int length)
+        {
+            connection.send_piece(index, begin, ByteBuffer.wrap(block(index, begin, length)), null);
+        }
+    }
+
+    // Serves requests from the files of `m_storage`, throttled to `m_limit` if there is one.
+    private static class FileSeeder extends Seeder {
+        private final FileStorage m_storage;
+        private final BandwidthLimiter m_limit;
+        private final ReadCache m_cache;
+        private final Executor m_disk;
+
+        FileSeeder (FileStorage storage, BandwidthLimiter limit)
+        {
+            this(storage, limit, null, null);
+        }
+
+        FileSeeder (FileStorage storage, BandwidthLimiter limit, ReadCache cache, Executor disk)
+        {
+            m_storage = storage;
+            m_limit = limit;
+            m_cache = cache;
+            m_disk = disk;
+        }
+
+        @Override
+        public void on_connected (PeerConnection connection)
+        {
+            if (m_limit != null)
+                connection.set_limits(null, m_limit.create_child(BandwidthLimiter.UNLIMITED));
+            super.on_connected(connection);
+        }
+
+        @Override
+        public void on_request (PeerConnection connection, int index, int begin, int length)
+        {
+            try {
+                connection.send_piece(index, begin, length, m_storage, m_cache, m_disk);
+            } catch (IOException ioe) {
+                connection.close();
+            }
+        }
+    }
+
+    private InetSocketAddress start_seed () throws Exception
+    {
+        return start_seed(Seeder::new);
+    }
+
+    private InetSocketAddress start_seed (Supplier<PeerHandler> seeder) throws Exception
+    {
+        m_seed = new PeerEngine(id(1), (connection, handshake) ->
+                Arrays.equals(handshake.info_hash(), INFO_HASH) ? seeder.get() : null, 2, new SlabAllocator(4 * SlabAllocator.SLAB_SIZE));
+        m_leech = new PeerEngine(id(2), (connection, handshake) -> null, 2, new SlabAllocator(4 * SlabAllocator.SLAB_SIZE));
+        return m_seed.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    @AfterEach
+    void dispose ()
+    {
+        if (m_seed != null)
+            m_seed.dispose();
+        if (m_leech != null)
+            m_leech.dispose();
+    }
+
+    @Test
+    void test_handshake () throws Exception
+    {
+        var address = start_seed();
+        var connected = new CompletableFuture<PeerConnection>();
+        m_leech.connect(address, INFO_HASH, new PeerHandler() {
+            @Override
+            public void on_connected (PeerConnection connection)
+            {
+                connected.complete(connection);
+            }
+        });
+        var connection = connected.get(10, TimeUnit.SECONDS);
+        assertTrue(connection.is_active());
+        assertArrayEquals(id(1), connection.remote_handshake().peer_id());
+    }
+
+    @Test
+    void test_unknown_info_hash_is_rejected () throws Exception
+    {
+        var address = start_seed();
+        var closed = new CompletableFuture<Boolean>();
+        m_leech.connect(address, id(9), new PeerHandler() {
+            @Override
+            public void on_closed (PeerConnection connection, Throwable cause)
+            {
+                closed.complete(connection.remote_handshake() == null);
+            }
+        });
+        assertTrue(closed.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void test_download_blocks () throws Exception
+    {
+        var address = start_seed();
+        int blocks = 32;
+        var done = new CountDownLatch(blocks);
+        var failure = new CompletableFuture<String>();
+        m_leech.connect(address, INFO_HASH, new PeerHandler() {
+            @Override
+            public void on_bitfield (PeerConnection connection, byte[] bitfield)
+            {
+                connection.send_interested();
+            }
+
+            @Override
+            public void on_unchoke (PeerConnection connection)
+            {
+                for (int i = 0; i < blocks; i++)
+                    connection.send_request(i % 8, (i / 8) * Message.BLOCK_SIZE, Message.BLOCK_SIZE);
+            }
+
+            @Override
+            public void on_piece (PeerConnection connection, int index, int begin, Lease block)
+            {
+                var data = new byte[block.buffer().remaining()];
+                block.buffer().get(data);
+                block.release();
+                if (!Arrays.equals(block(index, begin, Message.BLOCK_SIZE), data))
+                    failure.complete("Corrupt block " + index + "/" + begin);
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(20, TimeUnit.SECONDS));
+        assertFalse(failure.isDone(), () -> failure.join());
+    }
+
+    @Test
+    void test_disposed_loops_give_cached_blocks_back () throws Exception
+    {
+        var address = start_seed();
+        // A single slab: every block the leech's loop ever leased must be back for the test thread.
+        var allocator = new SlabAllocator(SlabAllocator.SLAB_SIZE);
+        var leech = new PeerEngine(id(3), (connection, handshake) -> null, 1, allocator);
+        int blocks = 16;
+        var done = new CountDownLatch(blocks);
+        leech.connect(address, INFO_HASH, new PeerHandler() {
+            @Override
+            public void on_bitfield (PeerConnection connection, byte[] bitfield)
+            {
+                connection.send_interested();
+            }
+
+            @Override
+            public void on_unchoke (PeerConnection connection)
+            {
+                for (int i = 0; i < blocks; i++)
+                    connection.send_request(i % 8, (i / 8) * Message.BLOCK_SIZE, Message.BLOCK_SIZE);
+            }
+
+            @Override
+            public void on_piece (PeerConnection connection, int index, int begin, Lease block)
+            {
+                block.release();
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(20, TimeUnit.SECONDS));
+        leech.dispose();
+        var leases = new ArrayList<Lease>();
+        for (int i = 0; i < SlabAllocator.SLAB_SIZE / SlabAllocator.BLOCK_SIZE; i++) {
+            var lease = allocator.lease_block();
+            assertNotNull(lease, "block " + i);
+            leases.add(lease);
+        }
+        leases.forEach(Lease::release);
+    }
+
+    // Never unchokes; grants the canonical allowed fast set of a 100 piece torrent and rejects the rest.
+    private static class FastSeeder extends Seeder {
+        static final int PIECES = 100;
+
+        @Override
+        public void on_connected (PeerConnection connection)
+        {
+            connection.send_have_all();
+            connection.send_allowed_fast(PIECES);
+        }
+
+        @Override
+        public void on_interested (PeerConnection connection)
+        {
+        }
+
+        @Override
+        public void on_request (PeerConnection connection, int index, int begin, int length)
+        {
+            if (connection.is_granted_fast(index))
+                super.on_request(connection, index, begin, length);
+            else connection.send_reject_request(index, begin, length);
+        }
+    }
+
+    @Test
+    void test_choked_peer_downloads_allowed_fast_pieces () throws Exception
+    {
+        var address = start_seed(FastSeeder::new);
+        var allowed = AllowedFast.generate(INFO_HASH, address.getAddress(), FastSeeder.PIECES, AllowedFast.DEFAULT_SIZE);
+        var received = new CountDownLatch(allowed.length);
+        var rejected = new CompletableFuture<Integer>();
+        var seed_is_seeding = new CompletableFuture<Boolean>();
+        m_leech.connect(address, INFO_HASH, new PeerHandler() {
+            @Override
+            public void on_have_all (PeerConnection connection)
+            {
+                seed_is_seeding.complete(connection.supports_fast());
+            }
+
+            @Override
+            public void on_allowed_fast (PeerConnection connection, int index)
+            {
+                connection.send_request(index, 0, Message.BLOCK_SIZE);
+                if (connection.allowed_fast().size() == allowed.length)
+                    connection.send_request(forbidden_piece(allowed), 0, Message.BLOCK_SIZE);
+            }
+
+            @Override
+            public void on_piece (PeerConnection connection, int index, int begin, Lease block)
+            {
+                block.release();
+                received.countDown();
+            }
+
+            @Override
+            public void on_reject_request (PeerConnection connection, int index, int begin, int length)
+            {
+                rejected.complete(index);
+            }
+        });
+        assertTrue(seed_is_seeding.get(10, TimeUnit.SECONDS));
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        assertEquals(forbidden_piece(allowed), rejected.get(10, TimeUnit.SECONDS));
+    }
+
+    private static int forbidden_piece (int[] allowed)
+    {
+        int piece = 0;
+        while (contains(allowed, piece))
+            piece++;
+        return piece;
+    }
+
+    private static boolean contains (int[] pieces, int piece)
+    {
+        return Arrays.stream(pieces).anyMatch(p -> p == piece);
+    }
+
+    @Test
+    void test_throttled_download () throws Exception
+    {
+        var address = start_seed();
+        int blocks = 32;
+        var done = new CountDownLatch(blocks);
+        var limit = BandwidthLimiter.create_root(512 * 1024);
+        long start = System.nanoTime();
+        var connection = m_leech.connect(address, INFO_HASH, new PeerHandler() {
+            @Override
+            public void on_bitfield (PeerConnection connection, byte[] bitfield)
+            {
+                connection.send_interested();
+            }
+
+            @Override
+            public void on_unchoke (PeerConnection connection)
+            {
+                for (int i = 0; i < blocks; i++)
+                    connection.send_request(0, i * Message.BLOCK_SIZE, Message.BLOCK_SIZE);
+            }
+
+            @Override
+            public void on_piece (PeerConnection connection, int index, int begin, Lease block)
+            {
+                block.release();
+                done.countDown();
+            }
+        });
+        connection.set_limits(limit.create_child(BandwidthLimiter.UNLIMITED), null);
+        assertTrue(done.await(20, TimeUnit.SECONDS));
+        // 512 KiB at 512 KiB/s, less the initial bucket.
+        assertTrue(System.nanoTime() - start > 800_000_000L);
+    }
+
+    private void download_files (BandwidthLimiter limit, Path directory) throws Exception
+    {
+        // Small files so that most blocks span two or three of them.
+        long[] sizes = { 20_000, 1, 0, 50_000, 100_000, 7 };
+        var paths = new ArrayList<Path>();
+        var random = new Random(3);
+        var content = new ByteArrayOutputStream();
+        for (int i = 0; i < sizes.length; i++) {
+            var data = new byte[(int) sizes[i]];
+            random.nextBytes(data);
+            content.write(data);
+            paths.add(Files.write(directory.resolve("file" + i), data));
+        }
+        var expected = content.toByteArray();
+        var storage = new FileStorage(paths, sizes, 2 * Message.BLOCK_SIZE);
+        var address = start_seed(() -> new FileSeeder(storage, limit));
+        int blocks = (expected.length + Message.BLOCK_SIZE - 1) / Message.BLOCK_SIZE;
+        var done = new CountDownLatch(blocks);
+        var failure = new CompletableFuture<String>();
+        m_leech.connect(address, INFO_HASH, new PeerHandler() {
+            @Override
+            public void on_bitfield (PeerConnection connection, byte[] bitfield)
+            {
+                connection.send_interested();
+            }
+
+            @Override
+            public void on_unchoke (PeerConnection connection)
+            {
+                for (int i = 0; i < blocks; i++) {
+                    int length = Math.min(Message.BLOCK_SIZE, expected.length - i * Message.BLOCK_SIZE);
+                    connection.send_request(i / 2, (i % 2) * Message.BLOCK_SIZE, length);
+                }
+            }
+
+            @Override
+            public void on_piece (PeerConnection connection, int index, int begin, Lease block)
+            {
+                var data = new byte[block.buffer().remaining()];
+                block.buffer().get(data);
+                block.release();
+                int offset = index * 2 * Message.BLOCK_SIZE + begin;
+                if (!Arrays.equals(expected, offset, offset + data.length, data, 0, data.length))
+                    failure.complete("Corrupt block " + index + "/" + begin);
+                done.countDown();
+            }
+        });
+        try {
+            assertTrue(done.await(20, TimeUnit.SECONDS));
+            assertFalse(failure.isDone(), () -> failure.join());
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    void test_upload_from_files (@TempDir Path directory) throws Exception
+    {
+        download_files(null, directory);
+    }
+
+    @Test
+    void test_throttled_upload_from_files (@TempDir Path directory) throws Exception
+    {
+        download_files(BandwidthLimiter.create_root(1024 * 1024), directory);
+    }
+
+    @Test
+    void test_repeated_uploads_hit_the_read_cache (@TempDir Path directory) throws Exception
+    {
+        var data = block(3, 0, 2 * Message.BLOCK_SIZE);
+        var path = Files.write(directory.resolve("file"), data);
+        var storage = new FileStorage(List.of(path), new long[] { data.length }, data.length);
+        var cache = new ReadCache(new SlabAllocator(4 * SlabAllocator.SLAB_SIZE), 1024 * 1024);
+        // The miss is read on the disk pool, never on the seed's selector thread.
+        var pool = Executors.newSingleThreadExecutor();
+        var disk_tasks = new AtomicInteger();
+        Executor disk = task -> {
+            disk_tasks.incrementAndGet();
+            pool.execute(task);
+        };
+        var address = start_seed(() -> new FileSeeder(storage, null, cache, disk));
+        var done = new CountDownLatch(2);
+        var failure = new CompletableFuture<String>();
+        m_leech.connect(address, INFO_HASH, new PeerHandler() {
+            @Override
+            public void on_bitfield (PeerConnection connection, byte[] bitfield)
+            {
+                connection.send_interested();
+            }
+
+            @Override
+            public void on_unchoke (PeerConnection connection)
+            {
+                connection.send_request(0, Message.BLOCK_SIZE, Message.BLOCK_SIZE);
+                connection.send_request(0, Message.BLOCK_SIZE, Message.BLOCK_SIZE);
+            }
+
+            @Override
+            public void on_piece (PeerConnection connection, int index, int begin, Lease block)
+            {
+                var received = new byte[block.buffer().remaining()];
+                block.buffer().get(received);
+                block.release();
+                if (!Arrays.equals(data, begin, begin + received.length, received, 0, received.length))
+                    failure.complete("Corrupt block " + index + "/" + begin);
+                done.countDown();
+            }
+        });
+        try {
+            assertTrue(done.await(20, TimeUnit.SECONDS));
+            assertFalse(failure.isDone(), () -> failure.join());
+            assertEquals(1, cache.misses());
+            assertEquals(1, cache.hits());
+            assertTrue(cache.contains(storage, 0));
+            assertTrue(disk_tasks.get() > 0);
+        } finally {
+            pool.shutdown();
+            cache.dispose();
+            storage.close();
+        }
+    }
+
+    @Test
+    void test_sends_racing_close_are_all_completed () throws Exception
+    {
+        var address = start_seed();
+        var connected = new CompletableFuture<PeerConnection>();
+        var closed = new CountDownLatch(1);
+        m_leech.connect(address, INFO_HASH, new PeerHandler() {
+            @Override
+            public void on_connected (PeerConnection connection)
+            {
+                connected.complete(connection);
+            }
+
+            @Override
+            public void on_closed (PeerConnection connection, Throwable cause)
+            {
+                closed.countDown();
+            }
+        });
+        var connection = connected.get(10, TimeUnit.SECONDS);
+        var sent = new AtomicInteger();
+        var completed = new AtomicInteger();
+        var sender = new Thread(() -> {
+            for (int i = 0; i < 20_000; i++) {
+                sent.incrementAndGet();
+                connection.send_piece(0, 0, ByteBuffer.allocate(16), completed::incrementAndGet);
+            }
+        });
+        sender.start();
+        while (sent.get() < 1000)
+            Thread.onSpinWait();
+        connection.close();
+        sender.join();
+        assertTrue(closed.await(10, TimeUnit.SECONDS));
+        // Whatever the loop didn't write was completed by `close` or, if it came later, by the sender.
+        assertEquals(sent.get(), completed.get());
+    }
+
+    @Test
+    void test_failing_callbacks_close_only_their_connection () throws Exception
+    {
+        var address = start_seed();
+        var connected = new CompletableFuture<PeerConnection>();
+        var closed = new CompletableFuture<Throwable>();
+        m_leech.connect(address, INFO_HASH, new PeerHandler() {
+            @Override
+            public void on_connected (PeerConnection connection)
+            {
+                connected.complete(connection);
+            }
+
+            @Override
+            public void on_closed (PeerConnection connection, Throwable cause)
+            {
+                closed.complete(cause);
+            }
+        });
+        connected.get(10, TimeUnit.SECONDS).send_piece(0, 0, ByteBuffer.allocate(16), () -> {
+            throw new IllegalStateException("Broken callback");
+        });
+        assertTrue(closed.get(10, TimeUnit.SECONDS) instanceof IllegalStateException);
+
+        // The loops carry on with other connections.
+        var second = new CompletableFuture<PeerConnection>();
+        m_leech.connect(address, INFO_HASH, new PeerHandler() {
+            @Override
+            public void on_connected (PeerConnection connection)
+            {
+                second.complete(connection);
+            }
+        });
+        assertTrue(second.get(10, TimeUnit.SECONDS).is_active());
+    }
+
+    @Test
+    void test_many_connections () throws Exception
+    {
+        var address = start_seed();
+        int count = 200;
+        var connected = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            m_leech.connect(address, INFO_HASH, new PeerHandler() {
+                @Override
+                public void on_connected (PeerConnection connection)
+                {
+                    connected.countDown();
+                }
+            });
+        }
+        assertTrue(connected.await(30, TimeUnit.SECONDS));
+        assertEquals(count, m_leech.connection_count());
+        long start = System.currentTimeMillis();
+        while (m_seed.connection_count() != count && System.currentTimeMillis() - start < 5000)
+            Thread.sleep(10);
+        assertEquals(count, m_seed.connection_count());
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.peer;
+
+import org.junit.jupiter.api.Test;
+import torrentula.piece.Bitfield;
+import torrentula.piece.Block;
+import torrentula.piece.PiecePicker;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RequestQueueTest {
+    private static final long MS = 1_000_000L;
+    private static final int PIECES = 64;
+    private static final long PIECE = 256 * PiecePicker.BLOCK_SIZE;
+
+    private static Bitfield all ()
+    {
+        var bitfield = new Bitfield(PIECES);
+        bitfield.set_all();
+        return bitfield;
+    }
+
+    private static PiecePicker picker ()
+    {
+        var picker = new PiecePicker(PIECES, PIECE, PIECES * PIECE);
+        picker.on_bitfield(all());
+        picker.on_bitfield(all());
+        return picker;
+    }
+
+    // Simulates a peer that delivers `rate` bytes per second with `rtt` round trip, answering in order.
+    private static long run (RequestQueue queue, PiecePicker picker, double rate, long rtt, long seconds)
+    {
+        long now = 0;
+        long per_block = (long) (PiecePicker.BLOCK_SIZE / rate * 1e9);
+        var in_flight = new ArrayDeque<long[]>();
+        long link_free = 0;
+        while (now < seconds * 1000 * MS) {
+            for (var block : queue.fill(picker, "peer", all(), now)) {
+                long start = Math.max(now + rtt / 2, link_free);
+                link_free = start + per_block;
+                in_flight.add(new long[] { block.piece(), block.begin(), block.length(), link_free + rtt / 2 });
+            }
+            var next = in_flight.poll();
+            if (next == null)
+                break;
+            now = Math.max(now, next[3]);
+            var block = new Block((int) next[0], (int) next[1], (int) next[2]);
+            assertTrue(queue.on_block(block, now));
+            picker.on_block_received("peer", block.piece(), block.begin());
+            if (picker.is_downloaded(block.piece()))
+                picker.on_piece_passed(block.piece());
+        }
+        return now;
+    }
+
+    @Test
+    void test_depth_follows_bandwidth_delay_product ()
+    {
+        var queue = new RequestQueue();
+        assertEquals(RequestQueue.DEFAULT_MIN_DEPTH, queue.target_depth());
+        // 10 MiB/s at 200 ms is 2 MiB in flight, 128 blocks.
+        run(queue, picker(), 10 << 20, 200 * MS, 8);
+        assertEquals(200 * MS, queue.rtt(), 20 * MS);
+        assertTrue(queue.target_depth() >= 128, "depth " + queue.target_depth());
+
+        var slow = new RequestQueue();
+        run(slow, picker(), 64 << 10, 50 * MS, 4);
+        assertEquals(RequestQueue.DEFAULT_MIN_DEPTH, slow.target_depth());
+    }
+
+    @Test
+    void test_depth_is_bounded ()
+    {
+        var queue = new RequestQueue(2, 32);
+        run(queue, picker(), 50 << 20, 500 * MS, 8);
+        assertEquals(32, queue.target_depth());
+        assertThrows(RuntimeException.class, () -> new RequestQueue(8, 4));
+    }
+
+    @Test
+    void test_stalled_requests_are_reissued ()
+    {
+        var picker = picker();
+        var stalled = new RequestQueue();
+        var blocks = stalled.fill(picker, "slow", all(), 0);
+        assertEquals(RequestQueue.DEFAULT_MIN_DEPTH, blocks.size());
+        assertTrue(stalled.expire(picker, "slow", RequestQueue.MAX_TIMEOUT - 1).isEmpty());
+        assertEquals(blocks, stalled.expire(picker, "slow", RequestQueue.MAX_TIMEOUT));
+        assertEquals(0, stalled.outstanding());
+
+        var other = new RequestQueue();
+        assertEquals(blocks, other.fill(picker, "fast", all(), RequestQueue.MAX_TIMEOUT));
+    }
+
+    @Test
+    void test_blocks_from_elsewhere_are_cancelled ()
+    {
+        var picker = new PiecePicker(1, 4 * PiecePicker.BLOCK_SIZE, 4 * PiecePicker.BLOCK_SIZE);
+        var bitfield = Bitfield.decode(new byte[] { (byte) 0x80 }, 1);
+        picker.on_bitfield(bitfield);
+        picker.on_bitfield(bitfield);
+        var a = new RequestQueue();
+        var b = new RequestQueue();
+        var blocks = a.fill(picker, "a", bitfield, 0);
+        assertTrue(picker.in_endgame());
+        assertEquals(blocks, b.fill(picker, "b", bitfield, 0));
+
+        var block = blocks.get(0);
+        assertTrue(a.on_block(block, 10 * MS));
+        for (var peer : picker.on_block_received("a", block.piece(), block.begin()))
+            assertTrue(peer.equals("b") && b.cancel(block));
+        assertFalse(b.is_outstanding(block));
+        assertFalse(b.on_block(block, 20 * MS));
+    }
+
+    @Test
+    void test_choked_peers_bootstrap_from_allowed_fast_pieces ()
+    {
+        var picker = picker();
+        var queue = new RequestQueue();
+        var peer = all();
+        peer.clear(5);
+        var blocks = queue.fill_allowed_fast(picker, "peer", peer, Set.of(5, 9, 1000), 0);
+        assertFalse(blocks.isEmpty());
+        for (var block : blocks)
+            assertEquals(9, block.piece());
+
+        // A rejected block is asked of someone else.
+        var rejected = blocks.get(0);
+        assertTrue(queue.reject(picker, "peer", rejected));
+        assertFalse(queue.reject(picker, "peer", rejected));
+        assertEquals(blocks.size() - 1, queue.outstanding());
+        assertTrue(new RequestQueue().fill(picker, "other", all(), 0).contains(rejected));
+    }
+
+    @Test
+    void test_requests_are_one_buffer ()
+    {
+        var buffer = Message.requests(List.of(new Block(1, 0, 16384), new Block(2, 16384, 100)));
+        assertEquals(34, buffer.remaining());
+        assertEquals(Message.request(2, 16384, 100), buffer.position(17).slice());
+    }
+}
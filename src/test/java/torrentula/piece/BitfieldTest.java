@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.piece;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BitfieldTest {
+    private static final int[] SIZES = { 0, 1, 7, 8, 9, 63, 64, 65, 127, 128, 1000 };
+
+    private static Bitfield random (int size, Random random, BitSet reference)
+    {
+        var bitfield = new Bitfield(size);
+        for (int i = 0; i < size; i++) {
+            if (random.nextBoolean()) {
+                bitfield.set(i);
+                reference.set(i);
+            }
+        }
+        return bitfield;
+    }
+
+    private static void assert_same (BitSet expected, Bitfield actual)
+    {
+        assertEquals(expected.cardinality(), actual.count());
+        for (int i = 0; i < actual.size(); i++)
+            assertEquals(expected.get(i), actual.get(i), "bit " + i);
+    }
+
+    @Test
+    void test_wire_format_round_trip ()
+    {
+        var random = new Random(1);
+        for (int size : SIZES) {
+            var reference = new BitSet();
+            var bitfield = random(size, random, reference);
+            var bytes = bitfield.to_bytes();
+            assertEquals((size + 7) / 8, bytes.length);
+            for (int i = 0; i < size; i++)
+                assertEquals(reference.get(i), (bytes[i >> 3] & (0x80 >>> (i & 7))) != 0);
+            // Decoding starts at the buffer's position, as it does for a message payload.
+            var payload = ByteBuffer.allocate(bytes.length + 5);
+            payload.put(new byte[5]).put(bytes).flip().position(5);
+            var decoded = Bitfield.decode(payload, size);
+            assertFalse(payload.hasRemaining());
+            assertEquals(bitfield, decoded);
+            assert_same(reference, decoded);
+        }
+    }
+
+    @Test
+    void test_malformed_bitfields_are_rejected ()
+    {
+        assertThrows(RuntimeException.class, () -> Bitfield.decode(new byte[] { 0x01 }, 7));
+        assertThrows(RuntimeException.class, () -> Bitfield.decode(new byte[2], 7));
+        assertThrows(RuntimeException.class, () -> Bitfield.decode(new byte[8], 65));
+        var spare = new byte[9];
+        spare[8] = 0x40;
+        assertThrows(RuntimeException.class, () -> Bitfield.decode(spare, 65));
+        spare[8] = (byte) 0x80;
+        assertEquals(1, Bitfield.decode(spare, 65).count());
+    }
+
+    @Test
+    void test_incremental_updates ()
+    {
+        var bitfield = new Bitfield(100);
+        assertTrue(bitfield.set(64));
+        assertFalse(bitfield.set(64));
+        assertTrue(bitfield.set(99));
+        assertEquals(2, bitfield.count());
+        assertTrue(bitfield.clear(64));
+        assertFalse(bitfield.clear(64));
+        assertEquals(1, bitfield.count());
+        assertThrows(RuntimeException.class, () -> bitfield.set(100));
+        bitfield.set_all();
+        assertTrue(bitfield.is_full());
+        assertEquals(-1, bitfield.next_clear_bit(0));
+        bitfield.clear_all();
+        assertTrue(bitfield.is_empty());
+    }
+
+    @Test
+    void test_bulk_operations_match_bit_set ()
+    {
+        var random = new Random(2);
+        for (int size : SIZES) {
+            var a_bits = new BitSet();
+            var b_bits = new BitSet();
+            var a = random(size, random, a_bits);
+            var b = random(size, random, b_bits);
+
+            var missing = (BitSet) a_bits.clone();
+            missing.andNot(b_bits);
+            assertEquals(!missing.isEmpty(), a.has_any_not_in(b));
+            assertEquals(missing.cardinality(), a.count_not_in(b));
+            assertEquals(a_bits.intersects(b_bits), a.intersects(b));
+            assert_same(missing, a.copy().and_not(b));
+
+            var and = (BitSet) a_bits.clone();
+            and.and(b_bits);
+            assert_same(and, a.copy().and(b));
+
+            var or = (BitSet) a_bits.clone();
+            or.or(b_bits);
+            assert_same(or, a.copy().or(b));
+            assert_same(a_bits, a);
+        }
+        assertThrows(RuntimeException.class, () -> new Bitfield(8).and(new Bitfield(9)));
+    }
+
+    @Test
+    void test_iteration_matches_bit_set ()
+    {
+        var random = new Random(3);
+        for (int size : SIZES) {
+            var reference = new BitSet();
+            var bitfield = random(size, random, reference);
+            for (int from = 0; from <= size; from++) {
+                int set = reference.nextSetBit(from);
+                int clear = reference.nextClearBit(from);
+                assertEquals(set, bitfield.next_set_bit(from), "set from " + from);
+                assertEquals(clear < size ? clear : -1, bitfield.next_clear_bit(from), "clear from " + from);
+            }
+        }
+        var sparse = new Bitfield(10_000);
+        sparse.set(9_999);
+        assertEquals(9_999, sparse.next_set_bit(0));
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.piece;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PiecePickerTest {
+    private static final long PIECE = 4 * PiecePicker.BLOCK_SIZE;
+
+    private static Bitfield bitfield (int pieces, int... set)
+    {
+        var bitfield = new Bitfield(pieces);
+        for (int piece : set)
+            bitfield.set(piece);
+        return bitfield;
+    }
+
+    private static Bitfield all (int pieces)
+    {
+        var bitfield = new Bitfield(pieces);
+        bitfield.set_all();
+        return bitfield;
+    }
+
+    @Test
+    void test_rarest_piece_first ()
+    {
+        var picker = new PiecePicker(8, PIECE, 8 * PIECE);
+        picker.on_bitfield(all(8));
+        picker.on_bitfield(all(8));
+        picker.on_bitfield(bitfield(8, 5, 6));
+        picker.on_have(6);
+        picker.on_bitfield(bitfield(8, 3));
+        // Piece 3 and 5 are at 3 peers, 6 at 4, the rest at 2; drop one full peer so the rest fall to 1.
+        picker.on_peer_left("gone", all(8));
+        assertEquals(1, picker.availability(0));
+        assertEquals(3, picker.availability(6));
+
+        var blocks = picker.pick("peer", all(8), 4);
+        assertEquals(4, blocks.size());
+        int piece = blocks.get(0).piece();
+        assertEquals(1, picker.availability(piece));
+        for (var block : blocks)
+            assertEquals(piece, block.piece());
+        assertNotEquals(piece, picker.rarest());
+        assertEquals(1, picker.availability(picker.rarest()));
+    }
+
+    @Test
+    void test_rarest_skips_pieces_we_have_or_download ()
+    {
+        int pieces = 64;
+        var picker = new PiecePicker(pieces, PIECE, pieces * PIECE);
+        var random = new Random(7);
+        var peers = new Bitfield[6];
+        for (int i = 0; i < peers.length; i++) {
+            peers[i] = new Bitfield(pieces);
+            for (int piece = 0; piece < pieces; piece++) {
+                if (random.nextInt(3) > 0)
+                    peers[i].set(piece);
+            }
+            picker.on_bitfield(peers[i]);
+        }
+        for (int round = 0; round < 200 && !picker.is_complete(); round++) {
+            switch (random.nextInt(4)) {
+                case 0 -> picker.set_have(random.nextInt(pieces));
+                case 1 -> {
+                    var blocks = picker.pick("peer", all(pieces), 4);
+                    if (!blocks.isEmpty()) {
+                        int piece = blocks.get(0).piece();
+                        for (var block : blocks)
+                            picker.on_block_received("peer", piece, block.begin());
+                        if (random.nextBoolean())
+                            picker.on_piece_passed(piece);
+                        else picker.on_piece_failed(piece);
+                    }
+                }
+                case 2 -> picker.on_have(random.nextInt(pieces));
+                default -> {
+                    int peer = random.nextInt(peers.length);
+                    picker.on_peer_left("gone", peers[peer]);
+                    picker.on_bitfield(peers[peer]);
+                }
+            }
+            // Brute force: every picked piece was passed or failed at once, so untouched means not had.
+            int best = Integer.MAX_VALUE;
+            for (int piece = 0; piece < pieces; piece++) {
+                if (!picker.have(piece) && picker.availability(piece) > 0)
+                    best = Math.min(best, picker.availability(piece));
+            }
+            int rarest = picker.rarest();
+            if (best == Integer.MAX_VALUE)
+                assertEquals(-1, rarest);
+            else {
+                assertFalse(picker.have(rarest));
+                assertEquals(best, picker.availability(rarest));
+            }
+        }
+    }
+
+    @Test
+    void test_only_pieces_the_peer_has ()
+    {
+        var picker = new PiecePicker(16, PIECE, 16 * PIECE);
+        picker.on_bitfield(all(16));
+        var blocks = picker.pick("peer", bitfield(16, 9), 16);
+        assertEquals(4, blocks.size());
+        blocks.forEach(block -> assertEquals(9, block.piece()));
+    }
+
+    @Test
+    void test_partial_pieces_first ()
+    {
+        var picker = new PiecePicker(4, PIECE, 4 * PIECE);
+        picker.on_bitfield(all(4));
+        var first = picker.pick("a", all(4), 2);
+        picker.on_bitfield(bitfield(4, 0, 1, 2, 3));
+        // Another peer continues the piece `a` started rather than opening a new one.
+        var second = picker.pick("b", all(4), 2);
+        assertEquals(first.get(0).piece(), second.get(0).piece());
+        assertEquals(2 * PiecePicker.BLOCK_SIZE, second.get(0).begin());
+    }
+
+    @Test
+    void test_last_piece_is_short ()
+    {
+        var picker = new PiecePicker(2, PIECE, PIECE + 100);
+        picker.on_bitfield(all(2));
+        var blocks = picker.pick("peer", bitfield(2, 1), 10);
+        assertEquals(List.of(new Block(1, 0, 100)), blocks);
+    }
+
+    @Test
+    void test_endgame_duplicates_and_cancels ()
+    {
+        var picker = new PiecePicker(1, PIECE, PIECE);
+        picker.on_bitfield(all(1));
+        picker.on_bitfield(all(1));
+        var blocks = picker.pick("a", all(1), 4);
+        assertEquals(4, blocks.size());
+        assertTrue(picker.in_endgame());
+
+        var duplicates = picker.pick("b", all(1), 4);
+        assertEquals(blocks, duplicates);
+        assertTrue(picker.pick("a", all(1), 4).isEmpty());
+
+        for (var block : blocks)
+            assertEquals(List.of("b"), picker.on_block_received("a", block.piece(), block.begin()));
+        assertNull(picker.on_block_received("b", 0, 0));
+        assertTrue(picker.is_downloaded(0));
+        picker.on_piece_passed(0);
+        assertTrue(picker.is_complete());
+        assertFalse(picker.in_endgame());
+    }
+
+    @Test
+    void test_failed_requests_and_pieces_are_picked_again ()
+    {
+        var picker = new PiecePicker(1, PIECE, PIECE);
+        picker.on_bitfield(all(1));
+        var blocks = picker.pick("a", all(1), 4);
+        picker.abort_peer("a");
+        assertFalse(picker.in_endgame());
+        assertEquals(blocks, picker.pick("b", all(1), 4));
+
+        for (var block : blocks)
+            picker.on_block_received("b", block.piece(), block.begin());
+        picker.on_piece_failed(0);
+        assertEquals(blocks, picker.pick("b", all(1), 4));
+    }
+
+    @Test
+    void test_senders_of_bad_pieces_are_banned ()
+    {
+        var picker = new PiecePicker(2, PIECE, 2 * PIECE);
+        picker.on_bitfield(all(2));
+        for (int round = 0; round < PiecePicker.MAX_HASH_FAILURES; round++) {
+            var blocks = picker.pick("a", all(2), 4);
+            assertEquals(4, blocks.size());
+            int piece = blocks.get(0).piece();
+            picker.on_block_received("a", piece, 0);
+            for (var block : blocks.subList(1, 4))
+                picker.on_block_received("b", block.piece(), block.begin());
+            assertEquals(Set.of("a", "b"), picker.on_piece_failed(piece));
+        }
+        assertTrue(picker.is_banned("a"));
+        assertEquals(PiecePicker.MAX_HASH_FAILURES, picker.hash_failures("b"));
+        assertTrue(picker.pick("a", all(2), 4).isEmpty());
+        assertFalse(picker.pick("c", all(2), 4).isEmpty());
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HashPoolTest {
+    private static byte[] sha1 (byte[] data) throws Exception
+    {
+        return MessageDigest.getInstance("SHA-1").digest(data);
+    }
+
+    // Collects the outcome of every piece.
+    private static class Results implements HashPool.Callback {
+        final Map<Integer, Object> outcomes = new ConcurrentHashMap<>();
+        final CountDownLatch done;
+
+        Results (int count)
+        {
+            done = new CountDownLatch(count);
+        }
+
+        @Override
+        public void on_hashed (int piece, boolean passed)
+        {
+            outcomes.put(piece, passed);
+            done.countDown();
+        }
+
+        @Override
+        public void on_error (int piece, IOException ioe)
+        {
+            outcomes.put(piece, ioe);
+            done.countDown();
+        }
+    }
+
+    @Test
+    void test_pieces_pass_and_fail () throws Exception
+    {
+        var pool = new HashPool(3, 8);
+        var data = new byte[1 << 20];
+        new Random(5).nextBytes(data);
+        var good = sha1(data);
+        var bad = good.clone();
+        bad[0] ^= 1;
+        var results = new Results(20);
+        for (int piece = 0; piece < 20; piece++) {
+            int index = piece;
+            pool.submit(piece, piece % 2 == 0 ? good : bad, sha1 -> {
+                if (index == 19)
+                    throw new IOException("Disk gone");
+                sha1.update(data);
+            }, results);
+        }
+        assertTrue(results.done.await(20, TimeUnit.SECONDS));
+        for (int piece = 0; piece < 19; piece++)
+            assertEquals(piece % 2 == 0, results.outcomes.get(piece));
+        assertTrue(results.outcomes.get(19) instanceof IOException);
+        assertEquals(10, pool.passed());
+        assertEquals(9, pool.failed());
+        assertEquals(0, pool.queue_depth());
+        pool.dispose();
+    }
+
+    @Test
+    void test_saturation_is_reported_until_drained () throws Exception
+    {
+        var pool = new HashPool(1, 4);
+        var drained = new AtomicInteger();
+        pool.add_drain_listener(drained::incrementAndGet);
+        var gate = new CountDownLatch(1);
+        var results = new Results(8);
+        for (int piece = 0; piece < 8; piece++) {
+            pool.submit(piece, new byte[20], sha1 -> {
+                try {
+                    gate.await();
+                } catch (InterruptedException exc) {
+                    throw new IOException(exc);
+                }
+            }, results);
+        }
+        assertEquals(8, pool.queue_depth());
+        assertTrue(pool.is_saturated());
+        assertEquals(0, drained.get());
+        gate.countDown();
+        assertTrue(results.done.await(10, TimeUnit.SECONDS));
+        assertFalse(pool.is_saturated());
+        assertEquals(1, drained.get());
+        assertEquals(0, pool.queue_depth());
+        pool.dispose();
+    }
+
+    @Test
+    void test_failing_sources_are_reported_and_drain () throws Exception
+    {
+        var pool = new HashPool(1, 2);
+        var drained = new AtomicInteger();
+        pool.add_drain_listener(drained::incrementAndGet);
+        var gate = new CountDownLatch(1);
+        var results = new Results(4);
+        for (int piece = 0; piece < 4; piece++) {
+            pool.submit(piece, new byte[20], sha1 -> {
+                try {
+                    gate.await();
+                } catch (InterruptedException exc) {
+                    throw new IOException(exc);
+                }
+                throw new IllegalStateException("Buffer already released");
+            }, results);
+        }
+        assertTrue(pool.is_saturated());
+        gate.countDown();
+        assertTrue(results.done.await(10, TimeUnit.SECONDS));
+        for (int piece = 0; piece < 4; piece++)
+            assertTrue(results.outcomes.get(piece) instanceof IOException);
+        assertFalse(pool.is_saturated());
+        assertEquals(1, drained.get());
+        assertEquals(0, pool.queue_depth());
+        pool.dispose();
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.storage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReadCacheTest {
+    private static final int PIECE = 64 * 1024;
+    private static final int PIECES = 64;
+
+    private Path m_file;
+    private FileStorage m_storage;
+    private byte[] m_data;
+    private final SlabAllocator m_allocator = new SlabAllocator(64L * 1024 * 1024, false);
+    private ReadCache m_cache;
+
+    @BeforeEach
+    void create () throws IOException
+    {
+        m_file = Files.createTempFile("torrentula-read-cache", ".bin");
+        m_data = new byte[PIECE * PIECES];
+        new Random(11).nextBytes(m_data);
+        Files.write(m_file, m_data);
+        m_storage = new FileStorage(List.of(m_file), new long[] { m_data.length }, PIECE);
+        m_cache = new ReadCache(m_allocator, 8 * PIECE);
+    }
+
+    @AfterEach
+    void delete () throws IOException
+    {
+        m_cache.dispose();
+        m_storage.close();
+        Files.delete(m_file);
+        assertEquals(0, m_allocator.outstanding());
+    }
+
+    private void read (int piece, int begin, Object peer) throws IOException
+    {
+        var block = m_cache.read(m_storage, piece, begin, SlabAllocator.BLOCK_SIZE, peer);
+        assertEquals(ByteBuffer.wrap(m_data, piece * PIECE + begin, SlabAllocator.BLOCK_SIZE), block.data());
+        block.release();
+    }
+
+    @Test
+    void test_repeated_reads_hit () throws IOException
+    {
+        read(3, 0, null);
+        long disk_reads = m_storage.read_calls();
+        for (int begin = 0; begin < PIECE; begin += SlabAllocator.BLOCK_SIZE)
+            read(3, begin, null);
+        assertEquals(disk_reads, m_storage.read_calls());
+        assertEquals(1, m_cache.misses());
+        assertEquals(4, m_cache.hits());
+        assertEquals(0.8, m_cache.hit_ratio(), 1e-9);
+    }
+
+    @Test
+    void test_scans_do_not_flush_popular_pieces () throws IOException
+    {
+        // Read twice, with the first copy pushed out in between: the second read promotes them.
+        for (int piece = 0; piece < 4; piece++)
+            read(piece, 0, null);
+        for (int piece = 10; piece < 20; piece++)
+            read(piece, 0, null);
+        for (int piece = 0; piece < 4; piece++)
+            read(piece, 0, null);
+        // A one-off scan over everything else.
+        for (int piece = 20; piece < PIECES; piece++)
+            read(piece, 0, null);
+        for (int piece = 0; piece < 4; piece++)
+            assertTrue(m_cache.contains(m_storage, piece), "piece " + piece);
+        assertFalse(m_cache.contains(m_storage, 25));
+        assertTrue(m_cache.cached_bytes() <= 8 * PIECE);
+        assertTrue(m_cache.evictions() > 0);
+    }
+
+    @Test
+    void test_sequential_requests_read_ahead () throws Exception
+    {
+        var peer = new Object();
+        for (int begin = 0; begin < 3 * SlabAllocator.BLOCK_SIZE; begin += SlabAllocator.BLOCK_SIZE)
+            read(5, begin, peer);
+        assertTrue(m_cache.read_aheads() >= 2);
+        m_cache.loading(m_storage, 6).get(10, TimeUnit.SECONDS);
+        m_cache.loading(m_storage, 7).get(10, TimeUnit.SECONDS);
+        long misses = m_cache.misses();
+        read(6, 0, peer);
+        read(7, 0, peer);
+        assertEquals(misses, m_cache.misses());
+
+        // Random access doesn't.
+        var random = new Object();
+        long read_aheads = m_cache.read_aheads();
+        read(40, 0, random);
+        read(20, SlabAllocator.BLOCK_SIZE, random);
+        read(30, 0, random);
+        assertEquals(read_aheads, m_cache.read_aheads());
+    }
+
+    @Test
+    void test_evicted_blocks_stay_valid_while_held () throws IOException
+    {
+        var held = m_cache.read(m_storage, 0, 0, SlabAllocator.BLOCK_SIZE, null);
+        for (int piece = 1; piece < PIECES; piece++)
+            read(piece, 0, null);
+        assertFalse(m_cache.contains(m_storage, 0));
+        assertEquals(ByteBuffer.wrap(m_data, 0, SlabAllocator.BLOCK_SIZE), held.data());
+        held.release();
+    }
+
+    @Test
+    void test_async_misses_load_on_the_executor () throws Exception
+    {
+        var queued = new AtomicReference<Runnable>();
+        Executor disk = queued::set;
+        var miss = m_cache.read_async(m_storage, 5, 0, SlabAllocator.BLOCK_SIZE, null, disk);
+        assertFalse(miss.isDone());
+        assertEquals(0, m_storage.read_calls());
+        queued.getAndSet(null).run();
+        // The block is cut from the loaded piece on the executor as well.
+        assertFalse(miss.isDone());
+        queued.getAndSet(null).run();
+        var block = miss.get(10, TimeUnit.SECONDS);
+        assertEquals(ByteBuffer.wrap(m_data, 5 * PIECE, SlabAllocator.BLOCK_SIZE), block.data());
+        block.release();
+
+        var hit = m_cache.read_async(m_storage, 5, SlabAllocator.BLOCK_SIZE, SlabAllocator.BLOCK_SIZE, null, disk);
+        assertTrue(hit.isDone());
+        assertNull(queued.get());
+        block = hit.get();
+        assertEquals(ByteBuffer.wrap(m_data, 5 * PIECE + SlabAllocator.BLOCK_SIZE, SlabAllocator.BLOCK_SIZE), block.data());
+        block.release();
+    }
+
+    @Test
+    void test_dispose_fails_pending_loads () throws Exception
+    {
+        var queued = new AtomicReference<Runnable>();
+        var pending = m_cache.read_async(m_storage, 7, 0, SlabAllocator.BLOCK_SIZE, null, queued::set);
+        m_cache.dispose();
+        var error = assertThrows(ExecutionException.class, () -> pending.get(10, TimeUnit.SECONDS));
+        assertTrue(error.getCause() instanceof UncheckedIOException);
+        // The load was dropped, not run late.
+        queued.get().run();
+        assertEquals(0, m_storage.read_calls());
+        assertEquals(0, m_allocator.outstanding());
+    }
+}
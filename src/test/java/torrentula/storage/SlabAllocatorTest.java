@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SlabAllocatorTest {
+    @Test
+    void test_blocks_are_recycled ()
+    {
+        var allocator = new SlabAllocator(SlabAllocator.SLAB_SIZE, false);
+        var lease = allocator.lease_block();
+        var buffer = lease.buffer();
+        assertTrue(buffer.isDirect());
+        assertEquals(SlabAllocator.BLOCK_SIZE, buffer.capacity());
+        buffer.putInt(42);
+        lease.release();
+        var again = allocator.lease_block();
+        assertSame(buffer, again.buffer());
+        assertEquals(0, again.buffer().position());
+        again.release();
+        assertEquals(SlabAllocator.SLAB_SIZE, allocator.allocated_bytes());
+        assertEquals(0, allocator.outstanding());
+    }
+
+    @Test
+    void test_cap_is_enforced ()
+    {
+        var allocator = new SlabAllocator(SlabAllocator.SLAB_SIZE, false);
+        var leases = new ArrayList<Lease>();
+        var seen = new IdentityHashMap<Object, Boolean>();
+        for (int i = 0; i < SlabAllocator.SLAB_SIZE / SlabAllocator.BLOCK_SIZE; i++) {
+            var lease = allocator.lease_block();
+            assertNotNull(lease);
+            assertNull(seen.put(lease.buffer(), true));
+            leases.add(lease);
+        }
+        assertNull(allocator.lease_block());
+        assertFalse(allocator.can_lease_block());
+        assertNull(allocator.lease(64 * 1024));
+        leases.remove(0).release();
+        assertTrue(allocator.can_lease_block());
+        assertNotNull(allocator.lease_block());
+    }
+
+    @Test
+    void test_blocks_released_elsewhere_are_shared () throws Exception
+    {
+        var allocator = new SlabAllocator(SlabAllocator.SLAB_SIZE, false);
+        var leases = new ArrayList<Lease>();
+        Lease lease;
+        while ((lease = allocator.lease_block()) != null)
+            leases.add(lease);
+        assertFalse(allocator.can_lease_block());
+        // A thread that only releases, like a disk writer, keeps nothing to itself.
+        var releaser = new Thread(() -> leases.forEach(Lease::release));
+        releaser.start();
+        releaser.join();
+        assertTrue(allocator.can_lease_block());
+        for (int i = 0; i < leases.size(); i++)
+            assertNotNull(allocator.lease_block());
+    }
+
+    @Test
+    void test_blocks_do_not_overlap ()
+    {
+        var allocator = new SlabAllocator(SlabAllocator.SLAB_SIZE, false);
+        var leases = new ArrayList<Lease>();
+        for (int i = 0; i < 64; i++) {
+            var lease = allocator.lease_block();
+            while (lease.buffer().hasRemaining())
+                lease.buffer().put((byte) i);
+            leases.add(lease);
+        }
+        for (int i = 0; i < 64; i++) {
+            var buffer = leases.get(i).buffer().flip();
+            while (buffer.hasRemaining())
+                assertEquals((byte) i, buffer.get());
+        }
+    }
+
+    @Test
+    void test_piece_buffers_use_size_classes ()
+    {
+        var allocator = new SlabAllocator(64L * 1024 * 1024, false);
+        var lease = allocator.lease(3 * 256 * 1024);
+        assertEquals(1024 * 1024, lease.capacity());
+        lease.release();
+        assertEquals(1024 * 1024, allocator.lease(1024 * 1024).capacity());
+        assertEquals(1024 * 1024, allocator.allocated_bytes());
+        assertThrows(RuntimeException.class, () -> allocator.lease(SlabAllocator.MAX_SIZE + 1));
+    }
+
+    @Test
+    void test_reference_counting ()
+    {
+        var allocator = new SlabAllocator(SlabAllocator.SLAB_SIZE, false);
+        var lease = allocator.lease_block();
+        lease.retain();
+        lease.release();
+        assertEquals(1, allocator.outstanding());
+        lease.release();
+        assertEquals(0, allocator.outstanding());
+        assertThrows(RuntimeException.class, lease::buffer);
+        assertThrows(RuntimeException.class, lease::retain);
+        assertThrows(RuntimeException.class, lease::release);
+    }
+
+    @Test
+    void test_leaks_are_detected_and_reclaimed () throws InterruptedException
+    {
+        var allocator = new SlabAllocator(SlabAllocator.SLAB_SIZE, true);
+        for (int i = 0; i < 8; i++)
+            allocator.lease_block();
+        for (int i = 0; i < 100 && allocator.leaks() < 8; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertEquals(8, allocator.leaks());
+        assertEquals(0, allocator.outstanding());
+    }
+
+    @Test
+    void test_concurrent_leases () throws InterruptedException
+    {
+        var allocator = new SlabAllocator(4L * SlabAllocator.SLAB_SIZE, false);
+        var threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                var held = new ArrayList<Lease>();
+                for (int i = 0; i < 100_000; i++) {
+                    var lease = allocator.lease_block();
+                    if (lease != null)
+                        held.add(lease);
+                    if (held.size() > 16 || lease == null) {
+                        held.forEach(Lease::release);
+                        held.clear();
+                    }
+                }
+                held.forEach(Lease::release);
+                allocator.flush_cache();
+            });
+            threads[t].start();
+        }
+        for (var thread : threads)
+            thread.join();
+        assertEquals(0, allocator.outstanding());
+        assertTrue(allocator.allocated_bytes() <= 4L * SlabAllocator.SLAB_SIZE);
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.storage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WriteCacheTest {
+    private static final int PIECE = 64 * 1024;
+    // Files deliberately straddle piece and block boundaries; one is empty.
+    private static final long[] SIZES = { 100_000, 0, 5_000, 300_000, 17 };
+
+    private Path m_directory;
+    private FileStorage m_storage;
+    private byte[] m_data;
+    private byte[][] m_checksums;
+    private final SlabAllocator m_allocator = new SlabAllocator(64L * 1024 * 1024, false);
+    private final Map<Integer, Boolean> m_verified = new ConcurrentHashMap<>();
+
+    @BeforeEach
+    void create () throws IOException
+    {
+        m_directory = Files.createTempDirectory("torrentula-write-cache");
+        var paths = new ArrayList<Path>();
+        long total = 0;
+        for (int i = 0; i < SIZES.length; i++) {
+            paths.add(m_directory.resolve("dir").resolve("file-" + i));
+            total += SIZES[i];
+        }
+        m_storage = new FileStorage(paths, SIZES, PIECE);
+        m_data = new byte[(int) total];
+        new Random(7).nextBytes(m_data);
+        m_checksums = new byte[m_storage.piece_count()][];
+        for (int piece = 0; piece < m_checksums.length; piece++) {
+            try {
+                var sha1 = MessageDigest.getInstance("SHA-1");
+                sha1.update(m_data, piece * PIECE, m_storage.piece_size(piece));
+                m_checksums[piece] = sha1.digest();
+            } catch (Exception exc) {
+                throw new RuntimeException(exc);
+            }
+        }
+    }
+
+    @AfterEach
+    void delete () throws IOException
+    {
+        m_storage.close();
+        try (var walk = Files.walk(m_directory)) {
+            walk.sorted(Collections.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private byte[] checksum (int piece)
+    {
+        return m_checksums[piece];
+    }
+
+    private WriteCache cache (long budget)
+    {
+        return new WriteCache(m_storage, this::checksum, budget, (piece, passed) -> m_verified.put(piece, passed));
+    }
+
+    // Every block of the torrent, shuffled.
+    private List<int[]> blocks ()
+    {
+        var blocks = new ArrayList<int[]>();
+        for (int piece = 0; piece < m_storage.piece_count(); piece++) {
+            for (int begin = 0; begin < m_storage.piece_size(piece); begin += SlabAllocator.BLOCK_SIZE)
+                blocks.add(new int[] { piece, begin });
+        }
+        Collections.shuffle(blocks, new Random(3));
+        return blocks;
+    }
+
+    private void feed (WriteCache cache, int piece, int begin)
+    {
+        int length = Math.min(SlabAllocator.BLOCK_SIZE, m_storage.piece_size(piece) - begin);
+        var lease = m_allocator.lease_block();
+        lease.buffer().put(m_data, piece * PIECE + begin, length).flip();
+        cache.add_block(piece, begin, lease);
+    }
+
+    private void assert_files () throws IOException
+    {
+        int offset = 0;
+        for (int i = 0; i < SIZES.length; i++) {
+            var expected = Arrays.copyOfRange(m_data, offset, offset + (int) SIZES[i]);
+            // Nothing is ever written to empty files, so they only exist once preallocated.
+            var actual = Files.exists(m_storage.path(i)) ? Files.readAllBytes(m_storage.path(i)) : new byte[0];
+            assertArrayEquals(expected, actual, "file " + i);
+            offset += SIZES[i];
+        }
+    }
+
+    @Test
+    void test_pieces_are_verified_and_written_whole () throws Exception
+    {
+        var cache = cache(64L * 1024 * 1024);
+        var blocks = blocks();
+        for (var block : blocks)
+            feed(cache, block[0], block[1]);
+        cache.dispose();
+        assert_files();
+        assertEquals(m_storage.piece_count(), m_verified.size());
+        assertFalse(m_verified.containsValue(false));
+        assertEquals(0, cache.early_flushes());
+        assertEquals(0, cache.cached_bytes());
+        assertEquals(0, m_allocator.outstanding());
+        // One write per file segment of each piece, far fewer than one per block.
+        assertTrue(m_storage.write_calls() <= m_storage.piece_count() + SIZES.length, "writes " + m_storage.write_calls());
+        assertTrue(m_storage.write_calls() < blocks.size() / 2);
+    }
+
+    @Test
+    void test_budget_forces_early_flushes () throws Exception
+    {
+        var cache = cache(3 * SlabAllocator.BLOCK_SIZE);
+        for (var block : blocks())
+            feed(cache, block[0], block[1]);
+        cache.dispose();
+        assertTrue(cache.early_flushes() > 0);
+        assert_files();
+        assertEquals(m_storage.piece_count(), m_verified.size());
+        assertFalse(m_verified.containsValue(false));
+        assertEquals(0, m_allocator.outstanding());
+    }
+
+    @Test
+    void test_going_over_budget_spills_only_the_oldest_piece () throws Exception
+    {
+        var cache = cache(5 * SlabAllocator.BLOCK_SIZE);
+        for (int piece = 0; piece < 5; piece++)
+            feed(cache, piece, 0);
+        assertEquals(0, cache.early_flushes());
+        feed(cache, 4, SlabAllocator.BLOCK_SIZE);
+        assertEquals(1, cache.early_flushes());
+        assertEquals(5 * SlabAllocator.BLOCK_SIZE, cache.cached_bytes());
+        for (var block : blocks())
+            feed(cache, block[0], block[1]);
+        cache.dispose();
+        assert_files();
+        assertFalse(m_verified.containsValue(false));
+        assertEquals(0, m_allocator.outstanding());
+    }
+
+    @Test
+    void test_in_order_pieces_are_hashed_on_arrival () throws Exception
+    {
+        // A budget below one piece forces spills, yet nothing needs reading back: every spilled block was
+        // already part of the running digest.
+        var cache = cache(3 * SlabAllocator.BLOCK_SIZE);
+        for (int piece = 0; piece < m_storage.piece_count(); piece++) {
+            for (int begin = 0; begin < m_storage.piece_size(piece); begin += SlabAllocator.BLOCK_SIZE)
+                feed(cache, piece, begin);
+        }
+        cache.dispose();
+        assert_files();
+        assertEquals(m_storage.piece_count(), m_verified.size());
+        assertFalse(m_verified.containsValue(false));
+        assertEquals(0, cache.late_hashed_bytes());
+        assertEquals(0, m_storage.read_calls());
+    }
+
+    @Test
+    void test_only_unhashed_spilled_bytes_are_read_back () throws Exception
+    {
+        // Shuffled blocks held in memory catch the digest up as the gaps fill; only bytes spilled past the
+        // hashed prefix have to be hashed at completion.
+        var cache = cache(64L * 1024 * 1024);
+        for (var block : blocks())
+            feed(cache, block[0], block[1]);
+        cache.flush();
+        assertEquals(0, cache.late_hashed_bytes());
+        cache.dispose();
+
+        m_verified.clear();
+        var spilling = cache(3 * SlabAllocator.BLOCK_SIZE);
+        for (var block : blocks())
+            feed(spilling, block[0], block[1]);
+        spilling.dispose();
+        assertFalse(m_verified.containsValue(false));
+        assertEquals(m_storage.piece_count(), m_verified.size());
+        assertTrue(spilling.late_hashed_bytes() > 0);
+        assertTrue(spilling.late_hashed_bytes() < m_data.length);
+    }
+
+    @Test
+    void test_shared_disk_pool_keeps_order () throws Exception
+    {
+        // Spills must reach the disk before the piece is hashed from it, even with several pool threads.
+        var pool = Executors.newFixedThreadPool(3);
+        try {
+            var cache = new WriteCache(m_storage, this::checksum, 3 * SlabAllocator.BLOCK_SIZE,
+                    (piece, passed) -> m_verified.put(piece, passed), pool, HashPool.shared());
+            for (var block : blocks())
+                feed(cache, block[0], block[1]);
+            cache.dispose();
+            assertTrue(cache.early_flushes() > 0);
+            assert_files();
+            assertEquals(m_storage.piece_count(), m_verified.size());
+            assertFalse(m_verified.containsValue(false));
+            assertEquals(0, m_allocator.outstanding());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void test_corrupt_pieces_fail_and_duplicates_are_dropped () throws Exception
+    {
+        var cache = cache(64L * 1024 * 1024);
+        feed(cache, 0, 0);
+        feed(cache, 0, 0);
+        m_data[SlabAllocator.BLOCK_SIZE] ^= 1;
+        for (int begin = SlabAllocator.BLOCK_SIZE; begin < PIECE; begin += SlabAllocator.BLOCK_SIZE)
+            feed(cache, 0, begin);
+        cache.flush();
+        assertEquals(Map.of(0, false), m_verified);
+
+        // A good piece, then a corrupt duplicate of one of its blocks arriving after verification.
+        for (int begin = 0; begin < PIECE; begin += SlabAllocator.BLOCK_SIZE)
+            feed(cache, 1, begin);
+        cache.flush();
+        m_data[PIECE] ^= 1;
+        feed(cache, 1, 0);
+        m_data[PIECE] ^= 1;
+        assertEquals(0, cache.cached_bytes());
+
+        // The failed piece can be downloaded again.
+        m_data[SlabAllocator.BLOCK_SIZE] ^= 1;
+        for (int begin = 0; begin < PIECE; begin += SlabAllocator.BLOCK_SIZE)
+            feed(cache, 0, begin);
+        cache.dispose();
+        assertEquals(Map.of(0, true, 1, true), m_verified);
+        assertEquals(0, m_allocator.outstanding());
+        var written = ByteBuffer.allocate(2 * PIECE);
+        m_storage.read(0, written);
+        assertArrayEquals(Arrays.copyOf(m_data, 2 * PIECE), written.array());
+    }
+
+    @Test
+    void test_failed_pieces_take_blocks_from_the_listener () throws Exception
+    {
+        // A re-request answered before the listener even returns must not be taken for a late duplicate.
+        var cache = new WriteCache[1];
+        cache[0] = new WriteCache(m_storage, this::checksum, 64L * 1024 * 1024, (piece, passed) -> {
+            m_verified.put(piece, passed);
+            if (!passed) {
+                m_data[0] ^= 1;
+                for (int begin = 0; begin < PIECE; begin += SlabAllocator.BLOCK_SIZE)
+                    feed(cache[0], piece, begin);
+            }
+        });
+        m_data[0] ^= 1;
+        for (int begin = 0; begin < PIECE; begin += SlabAllocator.BLOCK_SIZE)
+            feed(cache[0], 0, begin);
+        cache[0].dispose();
+        assertEquals(Map.of(0, true), m_verified);
+        assertEquals(0, m_allocator.outstanding());
+    }
+}
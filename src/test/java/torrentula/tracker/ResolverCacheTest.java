@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2020 Devashish Jaiswal.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package torrentula.tracker;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ResolverCacheTest {
+    static class StubResolver implements HostResolver {
+        final AtomicInteger lookups = new AtomicInteger();
+        final AtomicBoolean failing = new AtomicBoolean();
+        volatile CountDownLatch gate = new CountDownLatch(0);
+        // Counted down as each lookup starts.
+        volatile CountDownLatch started = new CountDownLatch(0);
+
+        @Override
+        public InetAddress[] resolve (String host) throws UnknownHostException
+        {
+            lookups.incrementAndGet();
+            started.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException exc) {
+                throw new UnknownHostException(host);
+            }
+            if (failing.get())
+                throw new UnknownHostException(host);
+            return new InetAddress[]{InetAddress.getByAddress(host, new byte[]{10, 0, 0, 1})};
+        }
+    }
+
+    @Test
+    void test_concurrent_lookups_are_deduplicated () throws Exception
+    {
+        var stub = new StubResolver();
+        stub.gate = new CountDownLatch(1);
+        var cache = new ResolverCache(stub);
+        var futures = new ArrayList<CompletableFuture<InetAddress>>();
+        for (int i = 0; i < 16; i++)
+            futures.add(cache.resolve_async("tracker.example"));
+        stub.gate.countDown();
+        for (var future : futures)
+            assertEquals("10.0.0.1", future.get().getHostAddress());
+        assertEquals(1, stub.lookups.get());
+        cache.dispose();
+    }
+
+    @Test
+    void test_ttl_and_negative_caching () throws Exception
+    {
+        var stub = new StubResolver();
+        var clock = new AtomicLong();
+        var cache = new ResolverCache(stub, 1000_000, 100, clock::get);
+
+        stub.failing.set(true);
+        assertThrows(UnknownHostException.class, () -> cache.resolve("tracker.example"));
+        assertTrue(cache.is_known_bad("tracker.example"));
+        assertThrows(UnknownHostException.class, () -> cache.resolve("tracker.example"));
+        assertEquals(1, stub.lookups.get());
+
+        stub.failing.set(false);
+        clock.addAndGet(101);
+        assertFalse(cache.is_known_bad("tracker.example"));
+        cache.resolve("tracker.example");
+        cache.resolve("tracker.example");
+        assertEquals(2, stub.lookups.get());
+
+        clock.addAndGet(1000_001);
+        cache.resolve("tracker.example");
+        assertEquals(3, stub.lookups.get());
+        cache.dispose();
+    }
+
+    @Test
+    void test_background_refresh () throws Exception
+    {
+        var stub = new StubResolver();
+        stub.started = new CountDownLatch(2);
+        // The clock stands still, so the first entry never expires and every resolve is a hit; the second
+        // lookup can only be the refresh scheduled ahead of expiry.
+        var cache = new ResolverCache(stub, 200, 100, () -> 0);
+        cache.resolve("tracker.example");
+        cache.resolve("tracker.example");
+        assertTrue(stub.started.await(10, TimeUnit.SECONDS));
+        cache.resolve("tracker.example");
+        assertEquals(2, stub.lookups.get());
+        cache.dispose();
+    }
+
+    @Test
+    void test_hung_lookups_time_out () throws Exception
+    {
+        var stub = new StubResolver();
+        stub.gate = new CountDownLatch(1);
+        var clock = new AtomicLong();
+        var cache = new ResolverCache(stub, 1000, 100, 50, clock::get);
+        var hung = cache.resolve_async("tracker.example");
+        var error = assertThrows(ExecutionException.class, () -> hung.get(10, TimeUnit.SECONDS));
+        assertTrue(error.getCause() instanceof UnknownHostException);
+        assertTrue(cache.is_known_bad("tracker.example"));
+
+        // Once the failure expires, the host is looked up afresh instead of waiting on the hung lookup.
+        stub.gate.countDown();
+        clock.addAndGet(101);
+        assertEquals("10.0.0.1", cache.resolve("tracker.example").getHostAddress());
+        assertEquals(2, stub.lookups.get());
+        cache.dispose();
+    }
+}